@@ -0,0 +1,278 @@
+package com.yckir.bluetoothchat.services;
+
+import android.test.InstrumentationTestCase;
+
+import com.yckir.bluetoothchat.services.transport.PipedTransport;
+import com.yckir.bluetoothchat.services.transport.Transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a hub and a client BluetoothService against each other over a PipedTransport pair. The
+ * services need a looper and the bluetooth adapter, so this runs on a device.
+ */
+public class BluetoothServiceTest extends InstrumentationTestCase {
+
+    private static final String HUB = "hubdev";
+    private static final String CLIENT = "clientdev";
+    private static final int PIPE_SIZE = 4096;
+    private static final int TIMEOUT = 5;
+
+    private BluetoothService mHub;
+    private BluetoothService mClient;
+    private BluetoothService.BluetoothBinder mHubBinder;
+    private BluetoothService.BluetoothBinder mClientBinder;
+    private Recorder mHubEvents;
+    private Recorder mClientEvents;
+    private PipedTransport[] mPair;
+
+    /**
+     * Records every callback as a string such as "app hubdev h0" or "closed clientdev 105". While
+     * paused, app messages wait in appMessage(), so the credits for them are not returned.
+     */
+    private static class Recorder extends BluetoothServiceHandler {
+        private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<>();
+        private volatile CountDownLatch mPause;
+
+        @Override
+        public void connectionClosed(String macAddress, int closeCode) {
+            mEvents.add("closed " + macAddress + " " + closeCode);
+        }
+
+        @Override
+        public void appMessage(String macAddress, ByteBuffer data) {
+            byte[] b = new byte[data.remaining()];
+            data.get(b);
+            mEvents.add("app " + macAddress + " " + (b.length > 100 ? b.length + " bytes" : new String(b)));
+
+            CountDownLatch pause = mPause;
+            if(pause == null)
+                return;
+            try {
+                pause.await(TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void serverSetupFinished() {
+            mEvents.add("setup finished");
+        }
+
+        private void pause(){
+            mPause = new CountDownLatch(1);
+        }
+
+        private void resume(){
+            mPause.countDown();
+            mPause = null;
+        }
+
+        private String next() throws InterruptedException {
+            return mEvents.poll(TIMEOUT, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHub = new BluetoothService();
+        mHub.onCreate();
+        mClient = new BluetoothService();
+        mClient.onCreate();
+        mHubBinder = (BluetoothService.BluetoothBinder) mHub.onBind(null);
+        mClientBinder = (BluetoothService.BluetoothBinder) mClient.onBind(null);
+
+        //handlers need a looper, so they are made on the main thread
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mHubEvents = new Recorder();
+                mClientEvents = new Recorder();
+            }
+        });
+        mHubBinder.setHandler(mHubEvents);
+        mClientBinder.setHandler(mClientEvents);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHub.onDestroy();
+        mClient.onDestroy();
+        super.tearDown();
+    }
+
+    /**
+     * Connects the client to the hub over mPair and waits until both sides can send. The credits
+     * are opened by the handshake, which can finish after setup finished is read, so one message
+     * is sent each way with a blocking send first.
+     *
+     * @param connector used by the client to reconnect, null if it does not resume
+     */
+    private void connect(Transport.Connector connector) throws InterruptedException {
+        mPair = PipedTransport.pair(HUB, CLIENT, PIPE_SIZE);
+        assertTrue(mHubBinder.addSocket(mPair[0], true));
+        assertTrue(mClientBinder.addSocket(mPair[1], false, connector));
+        mHubBinder.serverReady();
+        assertEquals("setup finished", mClientEvents.next());
+
+        assertTrue(mHubBinder.writeMessageBlocking("first".getBytes(), CLIENT, ServiceUtility.PRIORITY_INTERACTIVE));
+        assertEquals("app " + HUB + " first", mClientEvents.next());
+        assertTrue(mClientBinder.writeMessageBlocking("first".getBytes(), HUB, ServiceUtility.PRIORITY_INTERACTIVE));
+        assertEquals("app " + CLIENT + " first", mHubEvents.next());
+    }
+
+    /**
+     * Sends count messages named prefix0, prefix1... from a new thread, trying again while the
+     * connection is being resumed.
+     */
+    private static Thread startWriter(final BluetoothService.BluetoothBinder binder, final String address,
+                                      final String prefix, final int count){
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for(int i = 0; i < count; i++){
+                        while(!binder.writeMessageBlocking((prefix + i).getBytes(), address,
+                                ServiceUtility.PRIORITY_INTERACTIVE))
+                            Thread.sleep(5);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        writer.start();
+        return writer;
+    }
+
+    public void testExchange() throws Exception {
+        connect(null);
+
+        mClientBinder.writeMessage("hello hub".getBytes());
+        assertEquals("app " + CLIENT + " hello hub", mHubEvents.next());
+        mHubBinder.writeMessage(new byte[5000]);
+        assertEquals("app " + HUB + " 5000 bytes", mClientEvents.next());
+    }
+
+    public void testKickDrainsQueue() throws Exception {
+        connect(null);
+
+        for(int i = 0; i < 8; i++)
+            assertTrue(mHubBinder.writeMessage(new byte[3000], CLIENT));
+        mHubBinder.removeSocket(CLIENT, ServiceUtility.CLOSE_KICKED_FROM_SERVER);
+
+        for(int i = 0; i < 8; i++)
+            assertEquals("app " + HUB + " 3000 bytes", mClientEvents.next());
+        assertEquals("closed " + HUB + " " + ServiceUtility.CLOSE_KICKED_FROM_SERVER, mClientEvents.next());
+        assertEquals("closed " + CLIENT + " " + ServiceUtility.CLOSE_KICKED_FROM_SERVER, mHubEvents.next());
+    }
+
+    public void testGoodbyeDrainsQueue() throws Exception {
+        connect(null);
+
+        for(int i = 0; i < 8; i++)
+            assertTrue(mClientBinder.writeMessage(("c" + i).getBytes(), HUB));
+        mClientBinder.removeSockets(ServiceUtility.CLOSE_SAY_GOODBYE);
+
+        for(int i = 0; i < 8; i++)
+            assertEquals("app " + CLIENT + " c" + i, mHubEvents.next());
+        assertEquals("closed " + CLIENT + " " + ServiceUtility.CLOSE_SAY_GOODBYE, mHubEvents.next());
+        assertEquals("closed " + HUB + " " + ServiceUtility.CLOSE_SAY_GOODBYE, mClientEvents.next());
+    }
+
+    public void testCreditStall() throws Exception {
+        connect(null);
+
+        //no credits come back while the client is paused, so only the rest of the window is taken
+        mClientEvents.pause();
+        int accepted = 0;
+        for(int i = 0; i < 100; i++){
+            if(mHubBinder.writeMessage(("n" + i).getBytes(), CLIENT))
+                accepted++;
+        }
+        assertEquals(BluetoothService.RECEIVE_WINDOW - 1, accepted);
+
+        SendFuture stalled = mHubBinder.writeMessageAsync("stalled".getBytes(), CLIENT);
+        Thread.sleep(200);
+        assertFalse(stalled.isDone());
+
+        mClientEvents.resume();
+        assertTrue(stalled.get());
+        for(int i = 0; i < accepted; i++)
+            assertEquals("app " + HUB + " n" + i, mClientEvents.next());
+        assertEquals("app " + HUB + " stalled", mClientEvents.next());
+
+        //blocking sends wait for credits instead of being rejected
+        for(int i = 0; i < 300; i++)
+            assertTrue(mHubBinder.writeMessageBlocking(("b" + i).getBytes(), CLIENT, ServiceUtility.PRIORITY_BULK));
+        for(int i = 0; i < 300; i++)
+            assertEquals("app " + HUB + " b" + i, mClientEvents.next());
+    }
+
+    public void testBroadcastWaitsForCredits() throws Exception {
+        connect(null);
+
+        //a client that is behind gets every broadcast once it returns credits
+        mClientEvents.pause();
+        for(int i = 0; i < 100; i++)
+            assertEquals(1, mHubBinder.writeMessage(("n" + i).getBytes()));
+
+        mClientEvents.resume();
+        for(int i = 0; i < 100; i++)
+            assertEquals("app " + HUB + " n" + i, mClientEvents.next());
+    }
+
+    /**
+     * Drops one end of the pipe while both sides are writing. The client reconnects over a new
+     * pipe, and every message must arrive once and in order.
+     *
+     * @param dropHub true to close the hub's end of the pipe, false for the client's
+     */
+    private void resumeAfterDrop(boolean dropHub) throws Exception {
+        final AtomicInteger connects = new AtomicInteger();
+        connect(new Transport.Connector() {
+            @Override
+            public Transport connect() throws IOException {
+                //the first attempt fails, so the client has to retry
+                if(connects.incrementAndGet() == 1)
+                    throw new IOException("first attempt fails");
+                PipedTransport[] pair = PipedTransport.pair(HUB, CLIENT, PIPE_SIZE);
+                mHubBinder.addSocket(pair[0], true);
+                return pair[1];
+            }
+        });
+
+        final int count = 200;
+        Thread hubWriter = startWriter(mHubBinder, CLIENT, "h", count);
+        Thread clientWriter = startWriter(mClientBinder, HUB, "c", count);
+        Thread.sleep(3);
+        mPair[dropHub ? 0 : 1].close();
+
+        for(int i = 0; i < count; i++)
+            assertEquals("app " + HUB + " h" + i, mClientEvents.next());
+        for(int i = 0; i < count; i++)
+            assertEquals("app " + CLIENT + " c" + i, mHubEvents.next());
+        hubWriter.join();
+        clientWriter.join();
+
+        assertTrue(connects.get() >= 2);
+        assertNull(mClientEvents.mEvents.poll(300, TimeUnit.MILLISECONDS));
+        assertNull(mHubEvents.mEvents.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    public void testResumeAfterClientDrop() throws Exception {
+        resumeAfterDrop(false);
+    }
+
+    public void testResumeAfterHubDrop() throws Exception {
+        resumeAfterDrop(true);
+    }
+}
@@ -24,6 +24,8 @@ import com.yckir.bluetoothchat.services.ServiceUtility;
 import com.yckir.bluetoothchat.services.BluetoothService;
 
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 /**
  * It is the job of the server to send a makeServerSetupFinishedMessage to clients so that they
@@ -68,9 +70,9 @@ public class ChatroomActivity extends AppCompatActivity {
         }
 
         @Override
-        public void appMessage(String address, byte[] data) {
-            String msg = new String(data);
-            if(data.length < ChatroomUtility.ID_LENGTH){
+        public void appMessage(String address, ByteBuffer data) {
+            String msg = Charset.defaultCharset().decode(data.duplicate()).toString();
+            if(data.remaining() < ChatroomUtility.ID_LENGTH){
                 Log.w(TAG, "unreadable message " + msg);
                 return;
             }
@@ -84,8 +86,10 @@ public class ChatroomActivity extends AppCompatActivity {
                 case ChatroomUtility.ID_SEND_DISPLAY_TEXT:
                     mActivity.get().showMessage(messageData);
                     if(mActivity.get().mIsServer) {
-                        String appMessage = ChatroomUtility.makeDisplayTextMessage(messageData);
-                        mActivity.get().mBinder.writeMessage(appMessage.getBytes());
+                        //the received data is already a display text message, forward it as is.
+                        //Clients that are behind get it once they return credits
+                        if(mActivity.get().mBinder.writeMessage(data) == 0)
+                            Log.w(TAG, "no connected device to forward the message of " + address + " to");
                     }
                     break;
                 default:
@@ -143,7 +147,9 @@ public class ChatroomActivity extends AppCompatActivity {
                     String message = "\n-----"+mName+"\n" + text + "\n-----\n";
                     if(mConnected) {
                         String chatMessage = ChatroomUtility.makeDisplayTextMessage(message);
-                        mBinder.writeMessage(chatMessage.getBytes());
+                        if(mBinder.writeMessage(chatMessage.getBytes()) == 0)
+                            Toast.makeText(ChatroomActivity.this, "message not sent, no device is connected",
+                                    Toast.LENGTH_SHORT).show();
                     }
                     if(mIsServer)
                         showMessage(message);
@@ -42,6 +42,7 @@ import com.yckir.bluetoothchat.services.BluetoothService;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Set;
 
@@ -453,7 +454,7 @@ public class PairingActivity extends AppCompatActivity implements BluetoothStatu
             if(mServiceConnected) {
                 Toast.makeText(PairingActivity.this, "connected to server", Toast.LENGTH_SHORT).show();
                 changeState(CONNECTED);
-                mBinder.addSocket(socket);
+                mBinder.addSocket(socket, false);
                 return;
             }
             Log.e(TAG, "not connected to read or write service when a server is found");
@@ -487,8 +488,8 @@ public class PairingActivity extends AppCompatActivity implements BluetoothStatu
         }
 
         @Override
-        public void appMessage(String address, byte[] data) {
-            Log.v(TAG, "got app message " + new String(data));
+        public void appMessage(String address, ByteBuffer data) {
+            Log.v(TAG, "got app message of length " + data.remaining());
         }
     }
 
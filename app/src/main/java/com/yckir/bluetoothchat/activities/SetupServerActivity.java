@@ -40,6 +40,7 @@ import com.yckir.bluetoothchat.services.BluetoothService;
 
 
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 
 /**
  * Sets up the server for the bluetooth chat. The activity will exit if bluetooth is ever off.
@@ -326,7 +327,7 @@ public class SetupServerActivity extends AppCompatActivity implements BlueToothS
         }
         mRecyclerAdapter.addItem(ServerRecyclerAdapter.UNACCEPTED, clientSocket);
         mStatusText.setText(R.string.status_no_accepted_clients);
-        mBinder.addSocket(clientSocket);
+        mBinder.addSocket(clientSocket, true);
     }
 
     @Override
@@ -403,8 +404,8 @@ public class SetupServerActivity extends AppCompatActivity implements BlueToothS
         }
 
         @Override
-        public void appMessage(String address, byte[] data) {
-            Log.v(TAG, "got app message " + new String(data));
+        public void appMessage(String address, ByteBuffer data) {
+            Log.v(TAG, "got app message of length " + data.remaining());
         }
     }
 
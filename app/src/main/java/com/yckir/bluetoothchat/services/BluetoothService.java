@@ -7,170 +7,975 @@ import android.bluetooth.BluetoothSocket;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.yckir.bluetoothchat.services.messages.BT_FrameDecoder;
+import com.yckir.bluetoothchat.services.messages.BT_FrameDeflater;
+import com.yckir.bluetoothchat.services.messages.BT_FrameInflater;
+import com.yckir.bluetoothchat.services.messages.BT_FrameReassembler;
 import com.yckir.bluetoothchat.services.messages.BT_Message;
 import com.yckir.bluetoothchat.services.messages.BT_MessageApp;
 import com.yckir.bluetoothchat.services.messages.BT_MessageClose;
+import com.yckir.bluetoothchat.services.messages.BT_MessageCredit;
 import com.yckir.bluetoothchat.services.messages.BT_MessageHello;
 import com.yckir.bluetoothchat.services.messages.BT_MessageHelloReply;
+import com.yckir.bluetoothchat.services.messages.BT_MessageOptions;
+import com.yckir.bluetoothchat.services.messages.BT_MessageRegistry;
+import com.yckir.bluetoothchat.services.messages.BT_MessageResume;
+import com.yckir.bluetoothchat.services.messages.BT_MessageSession;
 import com.yckir.bluetoothchat.services.messages.BT_MessageSetupFinished;
 import com.yckir.bluetoothchat.services.messages.BT_MessageUtility;
+import com.yckir.bluetoothchat.services.transport.BluetoothSocketTransport;
+import com.yckir.bluetoothchat.services.transport.Transport;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.Deflater;
 
 
 public class BluetoothService extends Service {
-    //TODO: enforce read and write buffer sizes
-    //check connections every increment of this many milliseconds
+    //longest a connection goes without anything being read before it is sent a hello, and
+    //longest a hello is given to be answered
     public static final int TIMEOUT_DURATION = 6000;
-    //after TIMEOUT_LENGTH * MAX_CONNECTION_ATTEMPTS milliseconds without reply, close the connection
-    public static final int MAX_CONNECTION_ATTEMPTS = 3;
+    //shortest idle interval and hello timeout, used for links that are busy and answer quickly
+    public static final int MIN_HEARTBEAT_INTERVAL = 1000;
+    //a connection whose remote device has not sent its options by then is closed
+    public static final int HANDSHAKE_TIMEOUT = TIMEOUT_DURATION;
+    //timers of connections fire within this many milliseconds after their deadline
+    public static final int TIMER_TICK = 50;
+    //buckets of the timer wheel, deadlines up to TIMER_TICK * TIMER_WHEEL_SIZE away take one turn
+    private static final int TIMER_WHEEL_SIZE = 512;
+    //phi at which a silent connection is closed, a 1 in 10^8 chance that it would still answer
+    public static final double DEFAULT_SUSPICION_THRESHOLD = 8;
+    //a connection that nothing has been read from for this long is closed whatever its phi
+    public static final int MAX_SILENCE = 4 * TIMEOUT_DURATION;
+    //replies that took longer than this many microseconds are not counted as round trip times,
+    //their hello was sent before the connection would have timed out
+    private static final long MAX_ROUND_TRIP = 1000L * MAX_SILENCE;
+    //largest frame that is written or read, including the length prefix. App messages that do not
+    //fit are sent as fragments, so a large message never needs a larger buffer
+    public static final int FRAME_LENGTH = 1024;
+    //most data a message being reassembled from fragments can hold, per connection
+    public static final int MAX_REASSEMBLY_LENGTH = BT_MessageApp.MAX_DATA_LENGTH;
+    //frames queued together are gathered into writes of up to this many bytes, so a burst of
+    //messages does not become many small writes to the socket
+    public static final int WRITE_BATCH_SIZE = 8 * FRAME_LENGTH;
+    //messages each lane of a connection's queue holds before sends to it fail
+    public static final int DEFAULT_QUEUE_CAPACITY = 32;
+    //times an idle write task checks its queue again, yielding in between, before it parks
+    private static final int WRITER_SPINS_BEFORE_PARK = 20;
+    //app messages each device may send on a connection before the other device returns credits
+    public static final int RECEIVE_WINDOW = 32;
+    //credits are returned once this many app messages have been handled, so not every message is answered
+    public static final int CREDIT_RETURN_BATCH = RECEIVE_WINDOW / 4;
+    //app messages with at least this many bytes of data are compressed if the remote device supports it
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 128;
+    //every connection blocks one thread reading and one thread writing, so the I/O pool has room
+    //for two threads for every session id the hub can assign
+    public static final int MAX_IO_THREADS = 2 * (BT_MessageUtility.MAX_SESSION_ID - BT_MessageUtility.SESSION_HUB);
+    //seconds an idle I/O thread waits for a new connection before it ends
+    public static final int IO_THREAD_KEEP_ALIVE = 60;
+    //milliseconds a kicked or goodbye connection has to write its queue and close message and for
+    //the remote device to close its end, after which the socket is closed anyway
+    public static final int CLOSE_TIMEOUT = 2000;
+    //milliseconds between attempts to queue the end of a draining connection when its queue is full
+    private static final int DRAIN_RETRY_INTERVAL = 20;
+    //milliseconds the session of a connection that failed is kept for the remote device to resume it
+    public static final int RESUME_TIMEOUT = 2 * TIMEOUT_DURATION;
+    //app messages kept on each connection to be written again when it is resumed. The remote device
+    //can not have more unread app messages than it gave credits for
+    public static final int REPLAY_CAPACITY = RECEIVE_WINDOW;
+    //milliseconds a client waits before reconnecting to the hub, doubled after every attempt that
+    //fails up to MAX_RECONNECT_DELAY
+    private static final int RECONNECT_DELAY = 100;
+    private static final int MAX_RECONNECT_DELAY = 2000;
 
     private static final String TAG = "BluetoothService";
-    private HashMap<String, BluetoothConnectionInfo> mClients;
+    //when a WriteTask receives this message from the queue, the task will finish.
+    private static final BT_Message SHUTDOWN_MESSAGE = new BT_MessageApp(BT_MessageUtility.SESSION_UNASSIGNED, null);
+    //frame handlers indexed by BT_MessageRegistry.getTypeIndex(), null for activity messages.
+    //Types can be registered while connections are read, so the entries are read atomically.
+    private static final AtomicReferenceArray<FrameHandler> sFrameHandlers =
+            new AtomicReferenceArray<>(BT_MessageRegistry.MAX_TYPES);
+    //connections by mac address and by session id of the remote device
+    private ConnectionRegistry<BluetoothConnectionInfo> mClients;
     private BluetoothBinder mBinder;
     private BluetoothServiceHandler mClientHandler;
-    private TimeoutHandler mTimeoutHandler;
+    //runs connection management, timeouts and closing sockets so that none of it blocks the main thread
+    private HandlerThread mControlThread;
+    private Handler mControlHandler;
+    //idle, handshake and drain timers of every connection, only used on the control thread
+    private TimerWheel mTimers;
+    //advances mTimers when its next bucket with a timer is due
+    private Runnable mAdvanceTimers;
+    //uptime mAdvanceTimers is posted for, 0 if it is not posted
+    private long mTimersWakeup;
+    //runs the ReadTask and WriteTask of every connection, threads are reused as peers come and go
+    private ThreadPoolExecutor mIOExecutor;
 
     private String mMyBluetoothName;
     private String mMyAddress;
+    //session id written in the header of every message this device sends. Assigned on the read
+    //thread when the hub sends it, and read by every thread that builds a message
+    private volatile int mMySessionId;
+    //read by every WriteTask, app messages with less data than this are not compressed
+    private volatile int mCompressionThreshold;
+    //read by every WriteTask, milliseconds it waits for more messages before writing a batch
+    private volatile int mWriteLinger;
+    //capacity of each lane of the queue of a connection that is added
+    private volatile int mQueueCapacity;
+    //phi at which a silent connection is closed, connections are reported to mClientHandler as
+    //suspected from half of it
+    private volatile double mSuspicionThreshold;
+    //connections that failed and whose sessions can still be resumed, by resume token. Their
+    //close is given to mClientHandler once they expire
+    private ConcurrentHashMap<Integer, BluetoothConnectionInfo> mParked;
+    //makes the resume tokens the hub gives to its clients
+    private SecureRandom mRandom;
 
 
     /**
-     * Handler used to determine if the connected clients are responding to our messages.
-     * Sends a hello message to each connected client. The remote client should then respond with
-     * a hello reply message. If MAX_CONNECTION_ATTEMPTS consecutive hello messages are unanswered,
-     * then the connection is closed.
+     * Schedules a task on mTimers. Must be called on the control thread.
+     *
+     * @param task run on the control thread once the deadline has passed
+     * @param deadline uptime in milliseconds to run the task at
+     * @return the timer, used to cancel it.
      */
-    private static class TimeoutHandler extends Handler{
-        public int mTimeoutWhat = 1993;
-        WeakReference<BluetoothService> mService;
+    private TimerWheel.Timeout schedule(Runnable task, long deadline){
+        TimerWheel.Timeout timeout = mTimers.schedule(task, deadline);
+        wakeTimersAt(timeout.getFireTime());
+        return timeout;
+    }
 
-        public TimeoutHandler(BluetoothService service){
-            mService = new WeakReference<>(service);
-        }
+    /**
+     * Makes sure mTimers is advanced by the given time. The control thread only wakes for
+     * ticks that have a timer, so an idle service does not wake every TIMER_TICK.
+     *
+     * @param time uptime in milliseconds, -1 if there is nothing to wake for
+     */
+    private void wakeTimersAt(long time){
+        if(time < 0 || (mTimersWakeup != 0 && mTimersWakeup <= time))
+            return;
+        mControlHandler.removeCallbacks(mAdvanceTimers);
+        mControlHandler.postDelayed(mAdvanceTimers, Math.max(0, time - SystemClock.uptimeMillis()));
+        mTimersWakeup = time;
+    }
 
-        @Override
-        public void handleMessage(Message msg) {
-            if(msg.what != mTimeoutWhat) {
-                Log.d(TAG, "unknown what " + msg.what + ", received for TimeoutHandler");
+    /**
+     * Starts the idle and handshake timers of a connection that was just added. Must be called
+     * on the control thread.
+     *
+     * @param info the connection
+     */
+    private void startTimers(final BluetoothConnectionInfo info){
+        if(info.getState() != BluetoothConnectionInfo.STATE_ACTIVE)
+            return;
+
+        info.heartbeatCheck = new Runnable() {
+            @Override
+            public void run() {
+                checkHeartbeat(info);
+            }
+        };
+        info.idleTimer = schedule(info.heartbeatCheck,
+                info.heartbeat.getNextCheck(SystemClock.uptimeMillis()));
+        info.handshakeTimer = schedule(new Runnable() {
+            @Override
+            public void run() {
+                if(info.handshakeDone || info.getState() != BluetoothConnectionInfo.STATE_ACTIVE)
+                    return;
+                Log.v(TAG, "no options received, handshake timed out: " + info.address);
+                mBinder.removeConnection(info, ServiceUtility.CLOSE_SERVER_NOT_RESPONDING);
+            }
+        }, SystemClock.uptimeMillis() + HANDSHAKE_TIMEOUT);
+    }
+
+    /**
+     * Stops the idle and handshake timers of a connection that is closing.
+     *
+     * @param info the connection
+     */
+    private void cancelTimers(BluetoothConnectionInfo info){
+        mTimers.cancel(info.idleTimer);
+        mTimers.cancel(info.handshakeTimer);
+    }
+
+    /**
+     * Runs when the idle timer of a connection fires. The connection is sent a hello if nothing
+     * has been read from it for its idle interval, or closed once the suspicion level of its
+     * Heartbeat reaches mSuspicionThreshold. Every frame read counts as a response, so the timer
+     * is set again for the next time the Heartbeat of the connection has something to check.
+     *
+     * @param info the connection
+     */
+    private void checkHeartbeat(BluetoothConnectionInfo info){
+        if(info.getState() != BluetoothConnectionInfo.STATE_ACTIVE)
+            return;
+
+        long now = SystemClock.uptimeMillis();
+        double threshold = mSuspicionThreshold;
+        int action = info.heartbeat.check(now, threshold);
+        double phi = info.heartbeat.getPhi();
+        reportSuspicion(info, action == Heartbeat.ACTION_TIMED_OUT ? Math.max(phi, threshold) : phi, threshold);
+
+        switch (action){
+            case Heartbeat.ACTION_TIMED_OUT:
+                Log.v(TAG, "timeout has occurred, phi " + phi + ": " + info.address);
+                mBinder.removeConnection(info, ServiceUtility.CLOSE_SERVER_NOT_RESPONDING);
                 return;
+            case Heartbeat.ACTION_SEND_HELLO:
+                if(info.heartbeat.getAttempts() > 1)
+                    Log.v(TAG, "connection attempt " + info.heartbeat.getAttempts() + ": " + info.address);
+                sendMessage(BT_MessageHello.obtain(mMySessionId, echoToken()), info.address);
+                break;
+        }
+        info.idleTimer = schedule(info.heartbeatCheck, info.heartbeat.getNextCheck(now));
+    }
+
+    /**
+     * Tells mClientHandler how suspected a connection is. Every check of a connection whose phi
+     * is at least half the threshold is reported, and once more with a phi of 0 when something
+     * is read from it again. Must be called on the control thread.
+     *
+     * @param info the connection
+     * @param phi the suspicion level of the connection
+     * @param threshold the phi at which the connection is closed
+     */
+    private void reportSuspicion(BluetoothConnectionInfo info, double phi, double threshold){
+        boolean suspected = phi >= threshold / 2;
+        if(!suspected && !info.suspected)
+            return;
+        info.suspected = suspected;
+
+        BluetoothServiceHandler handler = mClientHandler;
+        if(handler == null)
+            return;
+        int level = (int) Math.min(Math.round((suspected ? phi : 0) * BluetoothServiceHandler.PHI_SCALE),
+                Integer.MAX_VALUE);
+        handler.sendMessage(handler.obtainMessage(BluetoothServiceHandler.WHAT_SUSPICION, level, 0,
+                info.address));
+    }
+
+    /**
+     * Handles the frames of a message type that is only used by the service. It is called on the
+     * read thread of the connection the frame was read from, so it must return quickly.
+     */
+    public interface FrameHandler{
+        /**
+         * The frame is only valid during the call, handlers that keep it must copy it.
+         *
+         * @param binder binder of the service that read the frame
+         * @param address mac address of the remote bluetooth device that the frame was read from
+         * @param b array that holds a complete frame, including its length prefix
+         * @param offset index of the first byte of the frame
+         * @param length number of bytes in the frame
+         */
+        void handleFrame(@NonNull BluetoothBinder binder, @NonNull String address,
+                         @NonNull byte[] b, int offset, int length);
+    }
+
+    static {
+        registerFrameHandler(BT_MessageUtility.TYPE_HELLO, new FrameHandler() {
+            @Override
+            public void handleFrame(@NonNull BluetoothBinder binder, @NonNull String address,
+                                    @NonNull byte[] b, int offset, int length) {
+                binder.getService().helloRead(address, b, offset, length);
+            }
+        });
+        registerFrameHandler(BT_MessageUtility.TYPE_HELLO_REPLY, new FrameHandler() {
+            @Override
+            public void handleFrame(@NonNull BluetoothBinder binder, @NonNull String address,
+                                    @NonNull byte[] b, int offset, int length) {
+                binder.getService().helloReplyRead(address, b, offset, length);
             }
+        });
+        registerFrameHandler(BT_MessageUtility.TYPE_CONNECTION_CLOSED, new FrameHandler() {
+            @Override
+            public void handleFrame(@NonNull BluetoothBinder binder, @NonNull String address,
+                                    @NonNull byte[] b, int offset, int length) {
+                binder.getService().closeRead(address, b, offset, length);
+            }
+        });
+        registerFrameHandler(BT_MessageUtility.TYPE_SESSION, new FrameHandler() {
+            @Override
+            public void handleFrame(@NonNull BluetoothBinder binder, @NonNull String address,
+                                    @NonNull byte[] b, int offset, int length) {
+                binder.getService().sessionRead(address, b, offset, length);
+            }
+        });
+        registerFrameHandler(BT_MessageUtility.TYPE_OPTIONS, new FrameHandler() {
+            @Override
+            public void handleFrame(@NonNull BluetoothBinder binder, @NonNull String address,
+                                    @NonNull byte[] b, int offset, int length) {
+                binder.getService().optionsRead(address, b, offset, length);
+            }
+        });
+        registerFrameHandler(BT_MessageUtility.TYPE_RESUME, new FrameHandler() {
+            @Override
+            public void handleFrame(@NonNull BluetoothBinder binder, @NonNull String address,
+                                    @NonNull byte[] b, int offset, int length) {
+                binder.getService().resumeRead(address, b, offset, length);
+            }
+        });
+        registerFrameHandler(BT_MessageUtility.TYPE_CREDIT, new FrameHandler() {
+            @Override
+            public void handleFrame(@NonNull BluetoothBinder binder, @NonNull String address,
+                                    @NonNull byte[] b, int offset, int length) {
+                binder.getService().creditRead(address, b, offset, length);
+            }
+        });
+    }
 
-            for(BluetoothConnectionInfo info : mService.get().mClients.values()){
-                if(info.connectionAttempts >= MAX_CONNECTION_ATTEMPTS){
-                    Log.v(TAG, "timeout has occurred: " + info.device.getAddress());
-                    mService.get().mBinder.removeSocket(info.device.getAddress(), ServiceUtility.CLOSE_SERVER_NOT_RESPONDING);
-                }else{
-                    info.connectionAttempts++;
-                    if(info.connectionAttempts >1)
-                        Log.v(TAG, "connection attempt " + info.connectionAttempts + ": " + info.device.getAddress());
-                    mService.get().sendMessage(new BT_MessageHello(mService.get().mMyAddress),info.device.getAddress());
-                }
+    /**
+     * Sets the FrameHandler of a message type that was registered in BT_MessageRegistry as only
+     * used by the service. A running service reads the frames of the type with it as soon as
+     * this returns, until then they are dropped.
+     *
+     * @param type the message type, already registered in BT_MessageRegistry
+     * @param frameHandler handles the frames of the type
+     */
+    public static void registerFrameHandler(int type, @NonNull FrameHandler frameHandler){
+        int index = BT_MessageRegistry.getTypeIndex(type);
+        if(index < 0)
+            throw new IllegalArgumentException(type + " has not been registered in BT_MessageRegistry");
+        if(BT_MessageRegistry.isActivityMessage(index))
+            throw new IllegalArgumentException(type + " is an activity message, register a dispatcher for it instead");
+        if(frameHandler == null)
+            throw new IllegalArgumentException("type " + type + " must have a frame handler");
+        if(!sFrameHandlers.compareAndSet(index, null, frameHandler))
+            throw new IllegalArgumentException(type + " already has a frame handler");
+    }
+
+    /**
+     * @param index index of a registered type, from BT_MessageRegistry.getTypeIndex()
+     * @return the frame handler of the type, null if it has none.
+     */
+    static @Nullable FrameHandler getFrameHandler(int index){
+        return sFrameHandlers.get(index);
+    }
+
+    /**
+     * A hello was read, it is always answered, returning the echo token if the hello has one.
+     *
+     * @param address mac address of the remote bluetooth device that the frame was read from
+     * @param b array that holds a complete frame, including its length prefix
+     * @param offset index of the first byte of the frame
+     * @param length number of bytes in the frame
+     */
+    private void helloRead(String address, byte[] b, int offset, int length){
+        long echoToken = BT_MessageHello.getEchoToken(b, offset, length);
+        if(echoToken < 0)
+            sendMessage(BT_MessageHelloReply.obtain(mMySessionId), address);
+        else
+            sendMessage(BT_MessageHelloReply.obtain(mMySessionId, (int) echoToken), address);
+    }
+
+    /**
+     * A reply to our hello was read. The read task already counted it in the Heartbeat, like
+     * every other frame. The echo token is the time the hello was sent, which gives the round
+     * trip time.
+     *
+     * @param address mac address of the remote bluetooth device that the frame was read from
+     * @param b array that holds a complete frame, including its length prefix
+     * @param offset index of the first byte of the frame
+     * @param length number of bytes in the frame
+     */
+    private void helloReplyRead(String address, byte[] b, int offset, int length){
+        long echoToken = BT_MessageHelloReply.getEchoToken(b, offset, length);
+        BluetoothConnectionInfo info = mClients.get(address);
+        if(echoToken < 0 || info == null)
+            return;
+
+        long roundTrip = (echoToken() - echoToken) & 0xFFFFFFFFL;
+        if(roundTrip <= MAX_ROUND_TRIP)
+            info.rtt.addSample(roundTrip);
+    }
+
+    /**
+     * The remote device is closing the connection. Only kicked and goodbye close messages are
+     * sent over bluetooth, the other close messages are errors that force the connection to
+     * close immediately.
+     *
+     * @param address mac address of the remote bluetooth device that the frame was read from
+     * @param b array that holds a complete frame, including its length prefix
+     * @param offset index of the first byte of the frame
+     * @param length number of bytes in the frame
+     */
+    private void closeRead(String address, byte[] b, int offset, int length){
+        BT_MessageClose m_c = BT_MessageClose.reconstruct(Arrays.copyOfRange(b, offset, offset + length));
+
+        //the remote device is waiting for us to close our end, so no close message is sent back
+        if(isGracefulClose(m_c.getCloseCode()))
+            mBinder.postClose(address, m_c.getCloseCode(), false);
+        else
+            Log.w(TAG, "Read close code that should not have been sent " + m_c.getCloseCode());
+    }
+
+    /**
+     * The hub has given us the session id to put in our messages.
+     *
+     * @param address mac address of the remote bluetooth device that the frame was read from
+     * @param b array that holds a complete frame, including its length prefix
+     * @param offset index of the first byte of the frame
+     * @param length number of bytes in the frame
+     */
+    private void sessionRead(String address, byte[] b, int offset, int length){
+        BT_MessageSession m_id = BT_MessageSession.reconstruct(Arrays.copyOfRange(b, offset, offset + length));
+
+        if(m_id.getSessionId() != BT_MessageUtility.SESSION_HUB) {
+            Log.w(TAG, "session id assigned by " + address + ", which is not the hub");
+            return;
+        }
+        Log.v(TAG, "assigned session id " + m_id.getAssignedId() + " by " + address);
+        mMySessionId = m_id.getAssignedId();
+
+        //a connection that is resuming keeps the token of the session it resumes
+        BluetoothConnectionInfo info = mClients.get(address);
+        if(info != null && !info.resuming)
+            info.session.token = m_id.getResumeToken();
+    }
+
+    /**
+     * The remote device has told us which options we can use when writing to it.
+     *
+     * @param address mac address of the remote bluetooth device that the frame was read from
+     * @param b array that holds a complete frame, including its length prefix
+     * @param offset index of the first byte of the frame
+     * @param length number of bytes in the frame
+     */
+    private void optionsRead(String address, byte[] b, int offset, int length){
+        BT_MessageOptions m_o = BT_MessageOptions.reconstruct(Arrays.copyOfRange(b, offset, offset + length));
+
+        BluetoothConnectionInfo info = mClients.get(address);
+        if(info != null) {
+            Log.v(TAG, "options " + m_o.getOptions() + " from " + address);
+            info.peerOptions = m_o.getOptions();
+            info.handshakeDone = true;
+            //a client that is resuming opens its credits once its replays are queued
+            if(!info.resuming)
+                openCredits(info);
+        }
+    }
+
+    /**
+     * A client is resuming its session on this connection, or the hub has answered our resume.
+     *
+     * @param address mac address of the remote bluetooth device that the frame was read from
+     * @param b array that holds a complete frame, including its length prefix
+     * @param offset index of the first byte of the frame
+     * @param length number of bytes in the frame
+     */
+    private void resumeRead(String address, byte[] b, int offset, int length){
+        BT_MessageResume m_r = BT_MessageResume.reconstruct(Arrays.copyOfRange(b, offset, offset + length));
+
+        BluetoothConnectionInfo info = mClients.get(address);
+        if(info == null)
+            return;
+        if(info.resuming)
+            resumed(info, m_r);
+        else if(info.sessionId != BT_MessageUtility.SESSION_HUB)
+            resumeSession(info, m_r);
+        else
+            Log.w(TAG, "resume sent by " + address + ", which is the hub");
+    }
+
+    /**
+     * The remote device has handled app messages and can be sent more.
+     *
+     * @param address mac address of the remote bluetooth device that the frame was read from
+     * @param b array that holds a complete frame, including its length prefix
+     * @param offset index of the first byte of the frame
+     * @param length number of bytes in the frame
+     */
+    private void creditRead(String address, byte[] b, int offset, int length){
+        BT_MessageCredit m_cr = BT_MessageCredit.reconstruct(Arrays.copyOfRange(b, offset, offset + length));
+
+        BluetoothConnectionInfo info = mClients.get(address);
+        if(info != null)
+            queueClaimed(info, info.sendCredits.grant(m_cr.getCredits()));
+    }
+
+    /**
+     * Lets app messages be sent on a connection once the handshake is done. Until then the
+     * connection has no credits, so the replays of a resumed session are queued before any new
+     * app message.
+     *
+     * @param info the connection
+     */
+    private void openCredits(BluetoothConnectionInfo info){
+        //the remote device will never return credits, so never wait for them
+        if((info.peerOptions & BT_MessageOptions.OPTION_CREDITS) == 0)
+            queueClaimed(info, info.sendCredits.setUnlimited());
+        else
+            queueClaimed(info, info.sendCredits.grant(info.creditLimit));
+    }
+
+    /**
+     * Queues the app messages the remote device missed when the session was resumed. Each one
+     * holds a credit that the remote device returns once it has read it, so they are taken from
+     * the credits the connection opens with.
+     *
+     * @param info the connection that resumed the session
+     * @param replay messages returned by ReplayRing.replay(), owned by this call
+     * @return false if a message did not fit in its lane, the connection is then closed.
+     */
+    private boolean queueReplay(BluetoothConnectionInfo info, List<BT_Message> replay){
+        Log.v(TAG, "replaying " + replay.size() + " messages to " + info.address);
+        info.creditLimit = Math.max(info.creditLimit - replay.size(), 0);
+        for(int i = 0; i < replay.size(); i++){
+            if(!queueMessage(info, replay.get(i), OutboundQueue.LANE_INTERACTIVE)){
+                for(int j = i + 1; j < replay.size(); j++)
+                    replay.get(j).recycle();
+                mBinder.removeConnection(info, ServiceUtility.CLOSE_WRITE_CLOSE);
+                return false;
             }
-            Message m = obtainMessage(mTimeoutWhat);
-            sendMessageDelayed(m,TIMEOUT_DURATION);
         }
+        return true;
     }
 
     /**
-     * Enable reading and writing if it hasn't already for the bluetooth device with the
-     * specified info.
+     * Resumes the session a client asked for on a new connection, called by the hub on the read
+     * thread of the connection. The session is taken from mParked and the messages written after
+     * the ones the client has read are queued again, followed by the ones that were never
+     * written. If the session is gone, or the client missed more than the ReplayRing keeps, the
+     * resume is rejected and the client closes the connection.
      *
-     * @param info info and data about the bluetooth connection
+     * @param info the new connection of the client
+     * @param m_r the resume sent by the client
      */
-    private void enableRW(@NonNull BluetoothConnectionInfo info){
-        Log.v(TAG, "enableRW for " + info.device.getAddress());
+    private void resumeSession(BluetoothConnectionInfo info, BT_MessageResume m_r){
+        BluetoothConnectionInfo found = m_r.isRejected() ? null : mParked.get(m_r.getResumeToken());
+        final BluetoothConnectionInfo parked = found != null && found.address.equals(info.address)
+                && mParked.remove(m_r.getResumeToken(), found) ? found : null;
+        List<BT_Message> replay = null;
+        if(parked != null && parked.session.awaitWriter())
+            replay = parked.session.replay.replay(m_r.getReadCount());
+
+        if(replay == null){
+            Log.v(TAG, "could not resume the session of " + info.address);
+            //the client closes this connection, which is not worth keeping for a resume either
+            info.session.token = 0;
+            sendMessage(new BT_MessageResume(mMySessionId, BT_MessageResume.REJECTED, 0), info.address);
+            if(parked != null)
+                mControlHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mTimers.cancel(parked.resumeTimeout);
+                        mBinder.endSession(parked);
+                    }
+                });
+            return;
+        }
 
-        if(info.readThread == null || !info.readThread.isAlive()){
-            info.readThread = new ReadThread(info.device.getAddress(), 1024, info.inputStream);
-            info.readThread.start();
-        }else{
-            Log.v(TAG, "already reading");
+        Log.v(TAG, "resuming the session of " + info.address);
+        info.session = parked.session;
+        mControlHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTimers.cancel(parked.resumeTimeout);
+            }
+        });
+        sendMessage(new BT_MessageResume(mMySessionId, info.session.token, info.session.readCount), info.address);
+        queueReplay(info, replay);
+    }
+
+    /**
+     * Handles the answer of the hub to the resume a client sent on a new connection, called on
+     * the read thread of the connection. The messages the hub missed are queued again before
+     * credits are opened for new ones. A session the hub could not resume is ended.
+     *
+     * @param info the new connection to the hub
+     * @param m_r the answer of the hub
+     */
+    private void resumed(BluetoothConnectionInfo info, BT_MessageResume m_r){
+        ResumableSession session = info.session;
+        List<BT_Message> replay = null;
+        if(!m_r.isRejected() && m_r.getResumeToken() == session.token && session.awaitWriter())
+            replay = session.replay.replay(m_r.getReadCount());
+
+        if(replay == null){
+            Log.v(TAG, "hub could not resume the session: " + info.address);
+            session.token = 0;
+            mBinder.removeConnection(info, session.closeCode);
+            return;
         }
 
-        if(info.writeThread == null || !info.writeThread.isAlive()){
-            info.writeThread = new WriteThread(info.device.getAddress(), info.outputStream, info.blockingQueue);
-            info.writeThread.start();
-        }else{
-            Log.v(TAG, "already writing");
+        Log.v(TAG, "session resumed: " + info.address);
+        if(!queueReplay(info, replay))
+            return;
+        info.resuming = false;
+        if(info.handshakeDone)
+            openCredits(info);
+    }
+
+    /**
+     * @return a new resume token, never 0.
+     */
+    private int newResumeToken(){
+        int token;
+        do {
+            token = mRandom.nextInt();
+        }while(token == 0);
+        return token;
+    }
+
+
+    /**
+     * The echo token of a hello is the time it was sent, in microseconds, cut to the
+     * BT_MessageUtility.LENGTH_ECHO_TOKEN bytes of the token. The remote device returns it
+     * unchanged, so the round trip time is found without remembering each hello.
+     *
+     * @return the current time as an echo token.
+     */
+    private static int echoToken(){
+        return (int) (System.nanoTime() / 1000);
+    }
+
+
+    /**
+     * @param closeCode id that identifies why a socket is being closed
+     * @return true if the close is sent to the remote device and the connection is drained before
+     *         its socket is closed, false if the socket is closed right away.
+     */
+    private static boolean isGracefulClose(@ServiceUtility.CLOSE_CODE int closeCode){
+        return closeCode == ServiceUtility.CLOSE_KICKED_FROM_SERVER
+                || closeCode == ServiceUtility.CLOSE_SAY_GOODBYE;
+    }
+
+
+    /**
+     * @param closeCode id that identifies why a socket is being closed
+     * @return true if the connection failed, rather than being closed by either device, so its
+     *         session can be resumed on a new connection.
+     */
+    private static boolean isResumableClose(@ServiceUtility.CLOSE_CODE int closeCode){
+        return closeCode == ServiceUtility.CLOSE_READ_CLOSE
+                || closeCode == ServiceUtility.CLOSE_WRITE_CLOSE
+                || closeCode == ServiceUtility.CLOSE_SERVER_NOT_RESPONDING;
+    }
+
+
+    /**
+     * Creates the pool that runs the read and write loops of every connection. A blocked read or
+     * write holds its thread, so the pool does not queue tasks, it uses an idle thread or starts a
+     * new one up to MAX_IO_THREADS. Idle threads are kept for IO_THREAD_KEEP_ALIVE seconds so a
+     * device that reconnects reuses them.
+     *
+     * @return the executor for connection I/O
+     */
+    private static ThreadPoolExecutor createIOExecutor(){
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                return new Thread(r, "BluetoothService I/O " + mCount.incrementAndGet());
+            }
+        };
+        return new ThreadPoolExecutor(0, MAX_IO_THREADS, IO_THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), factory);
+    }
+
+
+    /**
+     * Finds the mac address of the device that sent a message using the session id in its header.
+     * A device only sends on its own connection, so if the session id is unassigned or belongs to
+     * another connection the address of the connection the message was read from is used.
+     *
+     * @param message a message that was read from a remote bluetooth device
+     * @param readAddress mac address of the connection the message was read from
+     * @return the mac address of the device that sent the message
+     */
+    private String getSenderAddress(BT_Message message, String readAddress){
+        BluetoothConnectionInfo sender = mClients.getBySession(message.getSessionId());
+
+        if(sender == null || !sender.address.equals(readAddress)){
+            if(message.getSessionId() != BT_MessageUtility.SESSION_UNASSIGNED)
+                Log.w(TAG, "session id " + message.getSessionId() + " does not belong to " + readAddress);
+            return readAddress;
+        }
+        return sender.address;
+    }
+
+
+    /**
+     * Enable reading and writing if it hasn't already for the bluetooth device with the
+     * specified info. The read and write loops run on threads from mIOExecutor.
+     *
+     * @param info info and data about the bluetooth connection
+     * @return false if the I/O pool has no threads left for the connection.
+     */
+    private boolean enableRW(@NonNull BluetoothConnectionInfo info){
+        Log.v(TAG, "enableRW for " + info.address);
+
+        try {
+            if (info.readTask == null || info.readTask.isDone()) {
+                info.readTask = mIOExecutor.submit(new ReadTask(info, FRAME_LENGTH));
+            } else {
+                Log.v(TAG, "already reading");
+            }
+
+            if (info.writeTask == null || info.writeTask.isDone()) {
+                info.writeTask = mIOExecutor.submit(new WriteTask(info.address, info.outputStream, info.outboundQueue, info));
+            } else {
+                Log.v(TAG, "already writing");
+            }
+        }catch (RejectedExecutionException e){
+            Log.e(TAG, "no I/O threads left for " + info.address);
+            return false;
         }
+        return true;
     }
 
     /**
      * Disable reading and writing if it hasn't already for the bluetooth device with the
-     * specified info.
+     * specified info. The write task finishes after the messages already in its queue, or right
+     * away if the queue is full. Interrupting does not wake a thread that is blocked reading a
+     * bluetooth stream, so the read task only finishes once the transport has been closed.
      *
      * @param info info and data about the bluetooth connection
      */
     private void disableRW(BluetoothConnectionInfo info){
-        Log.v(TAG, "disableRW for " + info.device.getAddress());
+        Log.v(TAG, "disableRW for " + info.address);
 
-        if(info.writeThread == null || !info.writeThread.isAlive()){
+        if(info.writeTask == null || info.writeTask.isDone()){
             Log.v(TAG,"not currently writing");
+        }else if(!info.outboundQueue.offer(SHUTDOWN_MESSAGE, OutboundQueue.LANE_BULK)){
+            Log.v(TAG,"disable writing, queue is full");
+            info.writeTask.cancel(true);
         }else{
             Log.v(TAG,"disable writing");
-            info.blockingQueue.offer(new BT_MessageApp(WriteThread.SHUTDOWN_KEY, null));
         }
 
-        if(info.readThread == null || !info.readThread.isAlive()){
+        if(info.readTask == null || info.readTask.isDone()){
             Log.v(TAG,"not currently reading");
         }else{
             Log.v(TAG,"disable reading");
-            info.readThread.interrupt();
+            info.readTask.cancel(true);
         }
-        info.readThread = null;
-        info.writeThread = null;
+        info.readTask = null;
+        info.writeTask = null;
     }
 
     /**
-     * Sends a message to the remote bluetooth device.
+     * Sends a message to the remote bluetooth device. App messages are sent with
+     * PRIORITY_INTERACTIVE, every other message is sent ahead of them in the control lane.
      *
      * @param message the message to be sent
      * @param macAddress the mac address to send to
      * @return true if the message was sent, false if it could not.
      */
     private boolean sendMessage(BT_Message message, String macAddress){
-        String msg = new String(message.makeBytes());
-        Log.v(TAG, "WRITE APP MESSAGE -"+ msg +"- to " + macAddress);
-
-        if( !mClients.containsKey(macAddress) )
-            return false;
+        return sendMessage(message, macAddress, message.getMessageType() == BT_MessageUtility.TYPE_APP_MESSAGE
+                ? OutboundQueue.LANE_INTERACTIVE : OutboundQueue.LANE_CONTROL);
+    }
 
+    /**
+     * Sends a message to the remote bluetooth device. The caller gives its reference to the
+     * message to the service, the message is recycled once it has been written or if it could
+     * not be queued. Call BT_Message.retain() first to send the same message to several devices.
+     * Nothing more is sent to a connection once it has started closing.
+     *
+     * @param message the message to be sent
+     * @param macAddress the mac address to send to
+     * @param lane the OutboundQueue lane the message is written from
+     * @return true if the message was sent, false if it could not.
+     */
+    private boolean sendMessage(BT_Message message, String macAddress, int lane){
         BluetoothConnectionInfo tmpInfo = mClients.get(macAddress);
 
-        if(tmpInfo == null || tmpInfo.socket == null)
+        if(tmpInfo == null || tmpInfo.getState() >= BluetoothConnectionInfo.STATE_DRAINING) {
+            message.recycle();
             return false;
+        }
+        return queueMessage(tmpInfo, message, lane);
+    }
+
+    /**
+     * Gives a message to the write task of a connection without checking its state. The
+     * message is recycled if its lane is full.
+     *
+     * @param info the connection to send to
+     * @param message the message to be sent
+     * @param lane the OutboundQueue lane the message is written from
+     * @return true if the message was queued.
+     */
+    private boolean queueMessage(BluetoothConnectionInfo info, BT_Message message, int lane){
+        Log.v(TAG, "WRITE MESSAGE of type " + message.getMessageType() + " to " + info.address);
 
-        if(!tmpInfo.blockingQueue.offer(message))
-            Log.v(TAG, "blocking queue is full, cannot put message " + msg);
+        if(!info.outboundQueue.offer(message, lane)) {
+            Log.v(TAG, "blocking queue is full, cannot put message of type " + message.getMessageType());
+            message.recycle();
+            return false;
+        }
         return true;
     }
 
+    /**
+     * Sends an app message if the connection has a credit for it. The message is recycled if it
+     * is not sent.
+     *
+     * @param message the message to be sent
+     * @param macAddress the mac address to send to
+     * @param lane the OutboundQueue lane the message is written from
+     * @return true if the message was queued, false if the connection does not exist, has no
+     *         credits or its lane is full.
+     */
+    private boolean sendAppMessage(BT_MessageApp message, String macAddress, int lane){
+        BluetoothConnectionInfo info = mClients.get(macAddress);
+
+        if(info == null || info.getState() >= BluetoothConnectionInfo.STATE_DRAINING) {
+            message.recycle();
+            return false;
+        }
+        if(!info.sendCredits.tryAcquire()){
+            Log.v(TAG, "no credits left for " + macAddress);
+            message.recycle();
+            return false;
+        }
+        return queueCredited(info, message, lane);
+    }
+
+    /**
+     * Sends an app message once the connection has a credit for it.
+     *
+     * @param message the message to be sent, owned by the returned future until it is queued
+     * @param macAddress the mac address to send to
+     * @param lane the OutboundQueue lane the message is written from
+     * @return a future that completes once the message has been queued or rejected.
+     */
+    private SendFuture sendAppMessageAsync(BT_MessageApp message, String macAddress, int lane){
+        SendFuture send = new SendFuture(message, lane);
+        BluetoothConnectionInfo info = mClients.get(macAddress);
+
+        if(info == null || info.getState() >= BluetoothConnectionInfo.STATE_DRAINING) {
+            message.recycle();
+            send.complete(false);
+        }else if(info.sendCredits.tryAcquire()){
+            send.claim();
+            send.queued();
+            send.complete(queueCredited(info, message, lane));
+        }else if(!info.sendCredits.addWaiting(send)){
+            //the connection started closing
+            message.recycle();
+            send.complete(false);
+        }
+        return send;
+    }
+
+    /**
+     * Queues a message that a credit was acquired for. The credit is given back if the message
+     * could not be queued.
+     *
+     * @param info the connection to send to
+     * @param message the message to be sent
+     * @param lane the OutboundQueue lane the message is written from
+     * @return true if the message was queued.
+     */
+    private boolean queueCredited(BluetoothConnectionInfo info, BT_Message message, int lane){
+        info.queueing.incrementAndGet();
+        try {
+            if (info.queueClosed) {
+                //the queue was already given to the session, the message would never be written
+                message.recycle();
+            }else if (queueMessage(info, message, lane)) {
+                return true;
+            }
+            info.sendCredits.refund();
+            return false;
+        }finally {
+            //the last thread to leave empties the queue again if it closed meanwhile
+            if (info.queueing.decrementAndGet() == 0 && info.queueClosed)
+                mBinder.postDrainOutbound(info);
+        }
+    }
+
+    /**
+     * Queues the sends that were waiting for credits and completes their futures.
+     *
+     * @param info the connection to send to
+     * @param claimed sends returned by the CreditWindow of the connection
+     */
+    private void queueClaimed(BluetoothConnectionInfo info, List<SendFuture> claimed){
+        for(int i = 0; i < claimed.size(); i++){
+            SendFuture send = claimed.get(i);
+            send.queued();
+            send.complete(queueCredited(info, send.getMessage(), send.getLane()));
+        }
+    }
+
+    /**
+     * Rejects the sends that are waiting for credits on a connection that is closing.
+     *
+     * @param info the connection that is closing
+     */
+    private void rejectWaiting(BluetoothConnectionInfo info){
+        List<SendFuture> waiting = info.sendCredits.close();
+        for(int i = 0; i < waiting.size(); i++){
+            waiting.get(i).getMessage().recycle();
+            waiting.get(i).complete(false);
+        }
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
         Log.v(TAG, "onCreate");
-        mClients = new HashMap<>(ServiceUtility.MAX_NUM_BLUETOOTH_DEVICES);
+        mClients = new ConnectionRegistry<>(BT_MessageUtility.SESSION_HUB + 1, BT_MessageUtility.MAX_SESSION_ID);
         mBinder = new BluetoothBinder();
-        mTimeoutHandler = new TimeoutHandler(this);
+        mControlThread = new HandlerThread("BluetoothService control", Process.THREAD_PRIORITY_BACKGROUND);
+        mControlThread.start();
+        mControlHandler = new Handler(mControlThread.getLooper());
+        mTimers = new TimerWheel(SystemClock.uptimeMillis(), TIMER_TICK, TIMER_WHEEL_SIZE);
+        mAdvanceTimers = new Runnable() {
+            @Override
+            public void run() {
+                mTimersWakeup = 0;
+                mTimers.advance(SystemClock.uptimeMillis());
+                wakeTimersAt(mTimers.getNextTickTime());
+            }
+        };
+        mIOExecutor = createIOExecutor();
         mMyBluetoothName = "Default Name";
         mMyAddress = "zz:zz:zz:zz:zz:zz";
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
         mMyBluetoothName = adapter.getName();
         mMyAddress = adapter.getAddress();
-        mTimeoutHandler.sendMessageDelayed(mTimeoutHandler.obtainMessage(mTimeoutHandler.mTimeoutWhat),TIMEOUT_DURATION);
+        mMySessionId = BT_MessageUtility.SESSION_UNASSIGNED;
+        mCompressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+        mWriteLinger = 0;
+        mQueueCapacity = DEFAULT_QUEUE_CAPACITY;
+        mSuspicionThreshold = DEFAULT_SUSPICION_THRESHOLD;
+        mParked = new ConcurrentHashMap<>();
+        mRandom = new SecureRandom();
     }
 
     @Override
@@ -193,213 +998,660 @@ public class BluetoothService extends Service {
     @Override
     public void onDestroy() {
         mBinder.removeSockets(ServiceUtility.CLOSE_SERVICE_DESTROYED);
+        //posted after the sockets are closed, so the control thread finishes closing them first
+        mControlHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mControlHandler.removeCallbacks(mAdvanceTimers);
+                mIOExecutor.shutdownNow();
+                mControlThread.quit();
+            }
+        });
     }
 
     /**
-     * Thread that reads data from a remote bluetooth device using an inputStream retrieved from a
-     * bluetooth socket. The data that is read will be sent to handler that was set from the Binder.
-     * In the Message, the number of bytes will be sent as arg1 and the message will be sent in
-     * obj parameter as a string.
+     * Task that reads data from a remote bluetooth device using an inputStream retrieved from a
+     * transport, run on a thread from mIOExecutor. The stream is read into a BT_FrameDecoder, so
+     * frames that were split across reads are put back together and every frame in a read is
+     * handled. Messages for the activity are sent to the handler that was set from the Binder as
+     * the obj parameter.
      */
-    private class ReadThread extends Thread {
+    private class ReadTask implements Runnable {
 
         private InputStream mInputStream;
         private final int mBufferSize;
         private final String mAddress;
+        //created when the first compressed frame is read
+        private BT_FrameInflater mInflater;
+        private final BT_FrameReassembler mReassembler;
+        //app messages read since credits were last returned for them
+        private int mUnreturnedCredits;
+        //told every time frames are read, so any traffic keeps the connection alive
+        private final Heartbeat mHeartbeat;
+        //the connection that is read, its session counts the app messages read
+        private final BluetoothConnectionInfo mInfo;
 
         /**
-         * Creates a new thread that will read input from a stream.
+         * Creates a new task that will read input from the input stream of a connection.
          *
-         * @param address mac address for the remote bluetooth device
-         * @param bufferSize max size of input buffer
-         * @param inputStream input stream of the bluetooth connection
+         * @param info the connection to read from
+         * @param bufferSize size of the input buffer, frames larger than this can not be read
          */
-        public ReadThread(String address, int bufferSize, InputStream inputStream){
-            mInputStream = inputStream;
+        public ReadTask(BluetoothConnectionInfo info, int bufferSize){
+            mInputStream = info.inputStream;
+            mHeartbeat = info.heartbeat;
             mBufferSize = bufferSize;
-            mAddress = address;
+            mAddress = info.address;
+            mInfo = info;
+            mReassembler = new BT_FrameReassembler(MAX_REASSEMBLY_LENGTH);
         }
 
+
         /**
-         * Attempts to create a BT_Message object form buffer. The service either handles the message or
-         * passes it down to the mClientHandler depending on the type of message.
+         * Gives a decoded activity message to mClientHandler.
          *
-         * @param numBytes size of message
-         * @param buffer the message that was read
+         * @param message message read from the remote bluetooth device
          */
-        private void parseMessage(int numBytes, byte[] buffer){
-            //check if buffer is as long as the id
-            //attempt to extract the type from the buffer,
-            //based on the type, perform appropriate action
-
-            String message = new String(buffer, 0, numBytes);
-            Log.v(TAG, "Read message " + message + " from " + mAddress);
-            if(numBytes < BT_MessageUtility.LENGTH_ID) {
-                Log.w(TAG, "Got a message with size less than the length of a service id: " + message);
-                return;
-            }
+        private void postMessage(BT_Message message){
+            message.setMacAddress(getSenderAddress(message, mAddress));
+            mClientHandler.sendMessage(mClientHandler.obtainMessage(0, 0, 0, message));
+        }
 
-            if(mClientHandler == null) {
-                Log.e(TAG, "NO HANDLER, LOSING MESSAGE: " + message);
+        /**
+         * Counts an app message that was read, in the session so that a resume knows where the
+         * remote device has to start again. Once CREDIT_RETURN_BATCH have been read, their
+         * credits are returned to the remote device by a runnable posted behind them to
+         * mClientHandler, so the credits only go back once the handler has caught up.
+         */
+        private void appMessageRead(){
+            mInfo.session.readCount++;
+            if(++mUnreturnedCredits < CREDIT_RETURN_BATCH)
                 return;
-            }
-
-            Message msg;
-            int type = BT_Message.getType(buffer);
 
-            switch (type) {
-                case BT_MessageUtility.TYPE_HELLO:
-                    //always reply to hellos
-                    sendMessage(new BT_MessageHelloReply(mMyAddress), mAddress);
-                    break;
+            final int credits = mUnreturnedCredits;
+            mUnreturnedCredits = 0;
+            Runnable returnCredits = new Runnable() {
+                @Override
+                public void run() {
+                    sendMessage(new BT_MessageCredit(mMySessionId, credits), mAddress);
+                }
+            };
 
-                case BT_MessageUtility.TYPE_HELLO_REPLY:
-                    //reset the timeout counter since we got a reply
-                    BluetoothConnectionInfo info = mClients.get(mAddress);
-                    if(info != null)
-                        info.connectionAttempts = 0;
-                    break;
+            BluetoothServiceHandler handler = mClientHandler;
+            if(handler == null || !handler.post(returnCredits))
+                returnCredits.run();
+        }
 
-                case BT_MessageUtility.TYPE_CONNECTION_CLOSED:
-                    //only kicked and goodbye close messages are sent over bluetooth, the
-                    //other close messages are errors that force the connection to close immediately.
-                    BT_MessageClose m_c = BT_MessageClose.reconstruct(message.getBytes());
+        /**
+         * Attempts to create a BT_Message object form a frame. Compressed frames are inflated
+         * first, and fragments of app messages are given to mReassembler. The type is read
+         * without allocating and its index in BT_MessageRegistry is used to find how the frame is
+         * handled. Types that are only used by the service are handled by their FrameHandler, the
+         * others are decoded with their registered decoder and passed down to the mClientHandler.
+         *
+         * @param b array that holds a complete frame, including its length prefix
+         * @param offset index of the first byte of the frame
+         * @param length number of bytes in the frame
+         */
+        private void parseMessage(byte[] b, int offset, int length){
+            if(BT_Message.isCompressed(b, offset, length)){
+                if(mInflater == null)
+                    mInflater = new BT_FrameInflater(mBufferSize);
+                length = mInflater.inflate(b, offset, length);
+                b = mInflater.getBuffer();
+                offset = 0;
+            }
 
-                    if(m_c.getCloseCode() == ServiceUtility.CLOSE_KICKED_FROM_SERVER
-                            || m_c.getCloseCode() == ServiceUtility.CLOSE_SAY_GOODBYE )
-                        mBinder.removeSocket(m_c.getMacAddress(), m_c.getCloseCode());
-                    else
-                        Log.w(TAG, "Read close code that should not have been sent " + m_c.getCloseCode());
-                    break;
+            int type = BT_Message.getType(b, offset, length);
 
-                case BT_MessageUtility.TYPE_SERVER_SETUP_FINISHED:
-                    BT_MessageSetupFinished m_s = BT_MessageSetupFinished.reconstruct(message.getBytes());
+            //fragments are added even without a handler so that the next message starts clean
+            if(type == BT_MessageUtility.TYPE_APP_MESSAGE
+                    && (BT_Message.hasMoreFragments(b, offset, length) || mReassembler.isReassembling())){
+                BT_MessageApp m = mReassembler.add(b, offset, length);
+                if(m == null)
+                    return;
 
-                    msg = mClientHandler.obtainMessage(0, 0, 0, m_s);
-                    mClientHandler.sendMessage(msg);
-                    break;
+                if(mClientHandler == null) {
+                    Log.e(TAG, "NO HANDLER, LOSING MESSAGE of type " + type);
+                    m.recycle();
+                }else {
+                    postMessage(m);
+                }
+                appMessageRead();
+                return;
+            }
 
-                case BT_MessageUtility.TYPE_APP_MESSAGE:
+            if(mClientHandler == null) {
+                Log.e(TAG, "NO HANDLER, LOSING MESSAGE of type " + type);
+                if(type == BT_MessageUtility.TYPE_APP_MESSAGE)
+                    appMessageRead();
+                return;
+            }
 
-                    BT_MessageApp m_a = BT_MessageApp.reconstruct(message.getBytes());
+            int index = BT_MessageRegistry.getTypeIndex(type);
+            if(index < 0) {
+                Log.v(TAG, "Unknown message id: " + type);
+                return;
+            }
 
-                    msg = mClientHandler.obtainMessage(0, 0, 0, m_a);
-                    mClientHandler.sendMessage(msg);
-                    break;
-                default:
-                    Log.v(TAG, "Unknown message id: " + message);
+            if(!BT_MessageRegistry.isActivityMessage(index)){
+                FrameHandler frameHandler = getFrameHandler(index);
+                if(frameHandler != null)
+                    frameHandler.handleFrame(mBinder, mAddress, b, offset, length);
+                else
+                    Log.w(TAG, "no frame handler for type " + type);
+                return;
             }
+
+            postMessage(BT_MessageRegistry.decode(index, b, offset, length));
+            if(type == BT_MessageUtility.TYPE_APP_MESSAGE)
+                appMessageRead();
         }
 
         @Override
         public void run() {
             Log.v(TAG, "START READING: " + mAddress);
 
-            byte[] buffer = new byte[mBufferSize];
-            int numBytes;
+            BT_FrameDecoder decoder = new BT_FrameDecoder(mBufferSize, mBufferSize);
+            int frameLength;
 
-            while( !isInterrupted() ){
-                try {
-                    numBytes = mInputStream.read(buffer);
-                    parseMessage(numBytes, buffer);
-                } catch (IOException e) {
-                    Log.v(TAG, "READ EXCEPTION: " + mAddress);
-                    e.printStackTrace();
-                    mBinder.removeSocket(mAddress, ServiceUtility.CLOSE_READ_CLOSE);
-                    return;
+            try {
+                while( !Thread.currentThread().isInterrupted() ){
+                    try {
+                        if(decoder.readFrom(mInputStream) < 0)
+                            throw new IOException("end of stream reached");
+                        mHeartbeat.frameRead(SystemClock.uptimeMillis());
+
+                        //frames are handled in place, only app frames are copied into pooled messages.
+                        //a malformed frame is skipped, the frames behind it are still handled
+                        while( (frameLength = decoder.peekFrameLength()) >= 0 ){
+                            try {
+                                parseMessage(decoder.getBuffer(), decoder.getFrameOffset(), frameLength);
+                            } catch (IllegalArgumentException e) {
+                                Log.w(TAG, "MALFORMED FRAME: " + mAddress);
+                                e.printStackTrace();
+                            }finally {
+                                decoder.skipFrame();
+                            }
+                        }
+
+                    } catch (IOException e) {
+                        Log.v(TAG, "READ EXCEPTION: " + mAddress);
+                        e.printStackTrace();
+                        mBinder.removeConnection(mInfo, ServiceUtility.CLOSE_READ_CLOSE);
+                        return;
+                    }
                 }
+            }catch (RuntimeException e){
+                //thrown by a handler or decoder, the future of the task is never read so the
+                //connection is closed here instead of being left without a reader
+                Log.e(TAG, "READ TASK FAILED: " + mAddress);
+                e.printStackTrace();
+                mBinder.removeConnection(mInfo, ServiceUtility.CLOSE_READ_CLOSE);
+                return;
+            }finally {
+                if(mInflater != null)
+                    mInflater.end();
+                mReassembler.clear();
             }
             Log.v(TAG,"READING INTERRUPTED: " + mAddress);
-            mBinder.removeSocket(mAddress, ServiceUtility.CLOSE_READ_CLOSE);
+            mBinder.removeConnection(mInfo, ServiceUtility.CLOSE_READ_CLOSE);
         }
     }
 
     /**
-     * Thread that writes data to a remote bluetooth device using an outputStream retrieved from a
-     * bluetooth socket.
+     * Task that writes data to a remote bluetooth device using an outputStream retrieved from a
+     * transport, run on a thread from mIOExecutor. Each message is recycled after it has been
+     * written. Frames are gathered in a buffer of WRITE_BATCH_SIZE bytes, which is written once
+     * the queue is empty or the buffer is full, so every message that was queued during a write
+     * goes out in the next one. The write listeners of the messages in a batch are told once the
+     * batch has been flushed. App messages are kept in the ReplayRing of the session once they
+     * are written. When the task ends, listeners of messages that were not written are failed on
+     * the control thread, unless they are app messages of a session that can be resumed.
      */
-    private class WriteThread extends Thread{
+    private class WriteTask implements Runnable{
         private final String mAddress;
         private OutputStream mOutputStream;
-        private ArrayBlockingQueue<BT_Message> mQueue;
-        /**
-         * when the thread receives this message from the queue, the thread will close.
-         */
-        private static final String SHUTDOWN_KEY = "xx:xx:xx:xx:xx:xx";
+        private OutboundQueue mQueue;
+        private final BluetoothConnectionInfo mInfo;
+        //created when the first app message is compressed
+        private BT_FrameDeflater mDeflater;
+        //every frame is encoded into this buffer and written from it, so sending does not allocate
+        private final ByteBuffer mOutput;
+        //listeners of the messages written since the last flush
+        private final ArrayList<BT_Message.WriteListener> mUnflushed;
+        //the message being written, null between messages
+        private BT_Message mWriting;
 
         /**
-         * Creates a thread that writes input using a stream. Communicate to this thread by giving it
+         * Creates a task that writes input using a stream. Communicate to this task by giving it
          * messages to send using the blocking queue that is given as a parameter.
          *
-         * @param address mac address of the thread used for debugging
-         * @param outputStream output stream of a bluetooth socket
+         * @param address mac address of the connection used for debugging
+         * @param outputStream output stream of a bluetooth socket, written through a buffer of
+         *                     WRITE_BATCH_SIZE bytes
          * @param queue a queue that will be given messages to be sent using output stream..
+         * @param info the connection that is written to, used to check the options of the remote device
          */
-        public WriteThread(String address, OutputStream outputStream, ArrayBlockingQueue<BT_Message> queue){
+        public WriteTask(String address, OutputStream outputStream, OutboundQueue queue,
+                           BluetoothConnectionInfo info){
             mAddress = address;
-            mOutputStream = outputStream;
+            mOutputStream = new BufferedOutputStream(outputStream, WRITE_BATCH_SIZE);
             mQueue = queue;
+            mInfo = info;
+            mOutput = ByteBuffer.allocate(FRAME_LENGTH);
+            mUnflushed = new ArrayList<>();
+        }
+
+        /**
+         * Writes a message to the output stream. App messages that do not fit in FRAME_LENGTH are
+         * written as fragments, with the control frames that are waiting in the queue written
+         * between them so that a large message does not hold back hellos and close messages.
+         *
+         * @param message the message to be written
+         * @throws IOException if the stream could not be written to
+         */
+        private void write(BT_Message message) throws IOException{
+            if(message.getMessageType() != BT_MessageUtility.TYPE_APP_MESSAGE){
+                writeControlFrame(message);
+                return;
+            }
+
+            BT_MessageApp m = (BT_MessageApp) message;
+            int dataOffset = 0;
+            while(true){
+                dataOffset = m.encodeFragment(dataOffset, mOutput);
+                flushAppFrame();
+                if(dataOffset == m.getDataLength())
+                    return;
+                writeControlFrames();
+            }
+        }
+
+        /**
+         * Writes a frame that is not an app message. Frames larger than the output buffer are
+         * written by the message itself.
+         *
+         * @param message the message to be written
+         * @throws IOException if the stream could not be written to
+         */
+        private void writeControlFrame(BT_Message message) throws IOException{
+            if(message.getFrameLength() > mOutput.capacity()){
+                message.writeTo(mOutputStream);
+                return;
+            }
+            message.encode(mOutput);
+            mOutputStream.write(mOutput.array(), 0, mOutput.position());
+            mOutput.clear();
+        }
+
+        /**
+         * Writes the app frame in the output buffer and clears it. Frames with at least
+         * mCompressionThreshold bytes of data are compressed if the remote device has said that
+         * it can inflate them.
+         *
+         * @throws IOException if the stream could not be written to
+         */
+        private void flushAppFrame() throws IOException{
+            int length = mOutput.position();
+            mOutput.clear();
+            if((mInfo.peerOptions & BT_MessageOptions.OPTION_DEFLATE) != 0
+                    && length - BT_MessageUtility.LENGTH_HEADER >= mCompressionThreshold){
+                if(mDeflater == null)
+                    mDeflater = new BT_FrameDeflater(Deflater.DEFAULT_COMPRESSION);
+                mDeflater.write(mOutput.array(), 0, length, mOutputStream);
+                return;
+            }
+            mOutputStream.write(mOutput.array(), 0, length);
+        }
+
+        /**
+         * Writes the messages in the control lane of the queue. App messages of any priority
+         * wait, since the fragments of one message can not be mixed with another.
+         *
+         * @throws IOException if the stream could not be written to
+         */
+        private void writeControlFrames() throws IOException{
+            BT_Message next;
+            while( (next = mQueue.poll(OutboundQueue.LANE_CONTROL)) != null ){
+                writeControlFrame(next);
+                next.recycle();
+            }
+        }
+
+        /**
+         * Flushes the output stream and tells the listeners of the messages in the batch that
+         * they have been written.
+         *
+         * @throws IOException if the stream could not be written to
+         */
+        private void flush() throws IOException{
+            mOutputStream.flush();
+            for(int i = 0; i < mUnflushed.size(); i++)
+                mUnflushed.get(i).onWritten();
+            mUnflushed.clear();
+        }
+
+        /**
+         * Called when the task ends. The app message that was being written when the task failed
+         * is kept in the ReplayRing of a session that can be resumed, ahead of the ones still in
+         * the queue, so it is written on the connection that resumes it. Otherwise it is failed
+         * with the unflushed messages.
+         */
+        private void releaseWriting(){
+            BT_Message writing = mWriting;
+            mWriting = null;
+            if(writing == null)
+                return;
+
+            ResumableSession session = mInfo.session;
+            if(session.token != 0 && writing.getMessageType() == BT_MessageUtility.TYPE_APP_MESSAGE) {
+                session.replay.unsent(writing);
+                return;
+            }
+            if(writing.getWriteListener() != null)
+                mUnflushed.add(writing.getWriteListener());
+            writing.recycle();
         }
 
         public boolean shutdown(BT_Message message){
-            return message.getMessageType() == BT_MessageUtility.TYPE_APP_MESSAGE &&
-                    new String(((BT_MessageApp) message).getData()).equals(SHUTDOWN_KEY);
+            return message == SHUTDOWN_MESSAGE;
+        }
+
+        /**
+         * Gets the next message of the batch being written. A message that is already queued is
+         * returned right away, otherwise this waits until the linger of the batch has passed.
+         *
+         * @param lingerEnd uptime in milliseconds at which the batch is written
+         * @return the next message, null if the batch should be written.
+         * @throws InterruptedException if interrupted while waiting
+         */
+        private BT_Message nextInBatch(long lingerEnd) throws InterruptedException{
+            BT_Message next = mQueue.poll();
+            if(next != null)
+                return next;
+
+            long wait = lingerEnd - SystemClock.uptimeMillis();
+            if(wait <= 0)
+                return null;
+            return mQueue.poll(wait, TimeUnit.MILLISECONDS);
         }
 
         @Override
         public void run() {
             Log.v(TAG, "START WRITING: " + mAddress);
             BT_Message message ;
-            byte[] bytes;
-            while ( !isInterrupted() ){
-                try{
-                    message = mQueue.take();
-                    if( shutdown(message) ){
-                        Log.v(TAG, "SHUTDOWN KEY RECEIVED: " + mAddress);
-                        mBinder.removeSocket(mAddress, ServiceUtility.CLOSE_WRITE_CLOSE);
+            try {
+                while ( !Thread.currentThread().isInterrupted() ){
+                    try{
+                        message = mQueue.take();
+                        long lingerEnd = SystemClock.uptimeMillis() + mWriteLinger;
+
+                        //everything queued is gathered into the buffer, which writes itself when full
+                        while(message != null){
+                            if( shutdown(message) ){
+                                Log.v(TAG, "SHUTDOWN KEY RECEIVED: " + mAddress);
+                                //the close message is owned by the handler, so it is not recycled
+                                if(mInfo.closeFrame != null)
+                                    writeControlFrame(mInfo.closeFrame);
+                                flush();
+                                mBinder.postDrained(mInfo);
+                                return;
+                            }
+                            mWriting = message;
+                            write(message);
+                            if(message.getMessageType() == BT_MessageUtility.TYPE_APP_MESSAGE)
+                                mInfo.session.replay.written(message);
+                            if(message.getWriteListener() != null)
+                                mUnflushed.add(message.getWriteListener());
+                            mWriting = null;
+                            message.recycle();
+                            message = nextInBatch(lingerEnd);
+                        }
+                        flush();
+                    }catch (InterruptedException e){
+                        Log.v(TAG, "WRITE QUEUE EXCEPTION  " + mAddress);
+                        e.printStackTrace();
+                        mBinder.removeConnection(mInfo, ServiceUtility.CLOSE_WRITE_CLOSE);
+                        return;
+                    } catch (IOException e) {
+                        Log.v(TAG, "WRITE EXCEPTION, " + mAddress);
+                        e.printStackTrace();
+                        mBinder.removeConnection(mInfo, ServiceUtility.CLOSE_WRITE_CLOSE);
                         return;
                     }
-                    bytes = message.makeBytes();
-                    mOutputStream.write(bytes);
-                }catch (InterruptedException e){
-                    Log.v(TAG, "WRITE QUEUE EXCEPTION  " + mAddress);
-                    e.printStackTrace();
-                    mBinder.removeSocket(mAddress, ServiceUtility.CLOSE_WRITE_CLOSE);
-                    return;
-                } catch (IOException e) {
-                    Log.v(TAG, "WRITE EXCEPTION, " + mAddress);
-                    e.printStackTrace();
-                    mBinder.removeSocket(mAddress, ServiceUtility.CLOSE_WRITE_CLOSE);
-                    return;
                 }
+            }catch (RuntimeException e){
+                //the future of the task is never read, so the connection is closed here instead
+                //of being left without a writer
+                Log.e(TAG, "WRITE TASK FAILED: " + mAddress);
+                e.printStackTrace();
+                mBinder.removeConnection(mInfo, ServiceUtility.CLOSE_WRITE_CLOSE);
+                return;
+            }finally {
+                if(mDeflater != null)
+                    mDeflater.end();
+                releaseWriting();
+                mBinder.postUnwritten(mInfo, mUnflushed);
             }
             Log.v(TAG,"CLOSING INTERRUPTED: " + mAddress);
-            mBinder.removeSocket(mAddress, ServiceUtility.CLOSE_WRITE_CLOSE);
+            mBinder.removeConnection(mInfo, ServiceUtility.CLOSE_WRITE_CLOSE);
         }
     }
 
     /**
-     * Stores data associated with a bluetooth connection
+     * Stores data associated with a bluetooth connection. A connection moves through its states
+     * in order, STATE_CONNECTING while it is added, STATE_ACTIVE once it can be used,
+     * STATE_DRAINING while it is being closed and STATE_CLOSED once its socket has been closed.
+     * The state only changes with compareAndSetState(), so exactly one thread closes a connection
+     * even if its read and write tasks fail at the same time.
      */
-    private class BluetoothConnectionInfo {
+    private static class BluetoothConnectionInfo {
+        static final int STATE_CONNECTING = 0;
+        static final int STATE_ACTIVE = 1;
+        static final int STATE_DRAINING = 2;
+        static final int STATE_CLOSED = 3;
+
+        private static final AtomicIntegerFieldUpdater<BluetoothConnectionInfo> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(BluetoothConnectionInfo.class, "state");
+
+        /**
+         * one of the STATE constants, only changed through STATE
+         */
+        private volatile int state = STATE_CONNECTING;
+        /**
+         * decides when the connection is sent a hello and when it has timed out
+         */
+        Heartbeat heartbeat;
+        /**
+         * round trip times measured from the replies to the hellos sent to the connection
+         */
+        RttEstimator rtt;
         /**
-         * true if the connection is being deleted.
+         * session id of the remote device, assigned by the hub
          */
-        volatile boolean deleting;
+        int sessionId;
         /**
-         * number of unanswered hello messages
+         * BT_MessageOptions flags sent by the remote device, 0 until its options are read
          */
-        int connectionAttempts;
+        volatile int peerOptions;
         OutputStream outputStream;
         InputStream inputStream;
-        Thread writeThread;
-        Thread readThread;
-        BluetoothSocket socket;
-        BluetoothDevice device;
+        Future<?> writeTask;
+        Future<?> readTask;
+        Transport transport;
+        /**
+         * id of the remote device from Transport.getRemoteId(), the mac address for bluetooth
+         */
+        String address;
+        /**
+         * used to give the write task data, which takes the highest priority lane first.
+         */
+        OutboundQueue outboundQueue;
+        /**
+         * credits for sending app messages, returned by the remote device
+         */
+        CreditWindow sendCredits;
+        /**
+         * given to the handler once the connection is closed, set when it starts closing
+         */
+        BT_MessageClose closeMessage;
+        /**
+         * written by the write task after the rest of its queue, null if the remote device is not
+         * told that the connection is closing
+         */
+        BT_MessageClose closeFrame;
+        /**
+         * true while a close message was sent and the remote device has not closed its end or
+         * sent its own close message. Only used on the control thread.
+         */
+        boolean awaitingAck;
+        /**
+         * true once the write task has written everything that was queued. Only used on the
+         * control thread.
+         */
+        boolean drained;
+        /**
+         * true once the options of the remote device have been read
+         */
+        volatile boolean handshakeDone;
+        /**
+         * runs checkHeartbeat() for the connection, scheduled again every time it runs
+         */
+        Runnable heartbeatCheck;
+        /**
+         * true while mClientHandler was last told the connection is suspected
+         */
+        boolean suspected;
+        /**
+         * fires when the Heartbeat of the connection next has something to check. Timers are only
+         * used on the control thread.
+         */
+        TimerWheel.Timeout idleTimer;
+        /**
+         * closes the connection if the remote device has not sent its options by HANDSHAKE_TIMEOUT
+         */
+        TimerWheel.Timeout handshakeTimer;
+        /**
+         * closes the connection if it has not finished draining by CLOSE_TIMEOUT
+         */
+        TimerWheel.Timeout closeTimeout;
+        /**
+         * the session the connection carries, replaced by the parked session when the connection
+         * resumes one
+         */
+        volatile ResumableSession session;
+        /**
+         * reconnects a client to the hub when the connection fails, null for the hub and for
+         * clients that can not reconnect
+         */
+        Transport.Connector connector;
+        /**
+         * true while a client waits for the hub to answer the resume it sent on the connection
+         */
+        volatile boolean resuming;
+        /**
+         * ends the session of a parked connection if it is not resumed by RESUME_TIMEOUT
+         */
+        TimerWheel.Timeout resumeTimeout;
+        /**
+         * counted down once the write task has ended and the messages it did not write have been
+         * given to the session
+         */
+        final CountDownLatch writerDone = new CountDownLatch(1);
+        /**
+         * number of threads between acquiring a credit and putting an app message in the outbound
+         * queue, so the queue is only given to the session once none of them can still add to it
+         */
+        final AtomicInteger queueing = new AtomicInteger();
+        /**
+         * true once the outbound queue is being emptied after the write task ended, app messages
+         * are no longer put in it
+         */
+        volatile boolean queueClosed;
+        /**
+         * credits the connection is given once the handshake is done. Only used on the read thread.
+         */
+        int creditLimit;
+
+        /**
+         * @return the current state of the connection.
+         */
+        int getState(){
+            return state;
+        }
+
+        /**
+         * @param expect the state the connection must be in
+         * @param update the state the connection moves to
+         * @return true if the connection was in the expected state and has moved to the new one.
+         */
+        boolean compareAndSetState(int expect, int update){
+            return STATE.compareAndSet(this, expect, update);
+        }
+
         /**
-         * used to give writing thread data.
+         * Moves a connection that is connecting or active to STATE_DRAINING.
+         *
+         * @return true if this call started closing the connection, false if it was already closing.
          */
-        ArrayBlockingQueue<BT_Message> blockingQueue;
+        boolean beginClose(){
+            int current;
+            do {
+                current = state;
+                if(current >= STATE_DRAINING)
+                    return false;
+            }while( !STATE.compareAndSet(this, current, STATE_DRAINING) );
+            return true;
+        }
+    }
+
+    /**
+     * What a connection needs to be resumed on a new connection after it fails. The hub gives
+     * every client a resume token, and both devices keep the app messages they wrote and count the
+     * ones they read, which are compared when the session is resumed.
+     */
+    private static class ResumableSession {
+        /**
+         * token the session is resumed with, 0 if it can not be resumed
+         */
+        volatile int token;
+        /**
+         * app messages written in the session
+         */
+        final ReplayRing replay = new ReplayRing(REPLAY_CAPACITY);
+        /**
+         * app messages read in the session, only changed by the read task of the current connection
+         */
+        volatile int readCount;
+        /**
+         * the code the connection closed with when the session was first parked, given to the
+         * handler if the hub can not resume it
+         */
+        int closeCode;
+        /**
+         * writerDone of the connection the session was last parked by, null if it never was
+         */
+        volatile CountDownLatch writerDone;
+
+
+        /**
+         * Waits for the messages that the connection the session was parked by did not write to
+         * be given to the ReplayRing. Its streams have been closed, so its write task ends quickly.
+         *
+         * @return false if it did not end within CLOSE_TIMEOUT.
+         */
+        boolean awaitWriter(){
+            CountDownLatch done = writerDone;
+            if(done == null)
+                return true;
+            try {
+                return done.await(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
     }
 
     /**
@@ -415,148 +1667,799 @@ public class BluetoothService extends Service {
      */
     public class BluetoothBinder extends Binder{
 
+        /**
+         * @return the service of the binder, used by the built in FrameHandlers.
+         */
+        private BluetoothService getService(){
+            return BluetoothService.this;
+        }
+
+
         /**
          * Add a bluetooth socket that has been connected with a remote bluetooth device. A socket
          * can be connected using BluetoothServerSocket.accept() for a server or
          * createRfcommSocketToServiceRecord().connect() for a client.
          *
+         * A client reconnects to the hub on its own if the socket fails, and resumes its session
+         * without losing the app messages that were sent in between.
+         *
          * @param socket bluetooth socket that will be added
-         * @return false if output streams could not be created from socekets
+         * @param isHub true if this device is the hub that accepted the socket, false if this
+         *              device is a client that connected to the hub. The hub assigns the session
+         *              id of the remote device.
+         * @return false if output streams could not be created from socekets or if no session ids
+         *         are left
+         */
+        public boolean addSocket(@NonNull BluetoothSocket socket, boolean isHub){
+            Transport.Connector connector = isHub ? null
+                    : BluetoothSocketTransport.connector(socket.getRemoteDevice(), ServiceUtility.getBTChatUUID());
+            return addSocket(new BluetoothSocketTransport(socket), isHub, connector);
+        }
+
+
+        /**
+         * Add a connected transport to a remote device. Everything the service does with a
+         * bluetooth socket works the same with any transport, the remote id of the transport is
+         * used in place of the mac address.
+         *
+         * @param transport transport that will be added
+         * @param isHub true if this device is the hub that accepted the connection, false if this
+         *              device is a client that connected to the hub. The hub assigns the session
+         *              id of the remote device.
+         * @return false if streams could not be created from the transport or if no session ids
+         *         are left
+         */
+        public boolean addSocket(@NonNull Transport transport, boolean isHub){
+            return addSocket(transport, isHub, null);
+        }
+
+
+        /**
+         * Add a connected transport to a remote device. A client given a connector reconnects to
+         * the hub with it when the transport fails, and resumes its session so that the app
+         * messages either device missed are written again. The session is kept for
+         * RESUME_TIMEOUT, the handler is only told that the connection closed if it is not
+         * resumed by then. The hub resumes the sessions of clients that reconnect, as long as
+         * their new transports are added.
+         *
+         * @param transport transport that will be added
+         * @param isHub true if this device is the hub that accepted the connection, false if this
+         *              device is a client that connected to the hub. The hub assigns the session
+         *              id of the remote device.
+         * @param connector connects a client to the hub again, null if the connection is not
+         *                  resumed when it fails. Must be null for the hub.
+         * @return false if streams could not be created from the transport or if no session ids
+         *         are left
+         */
+        public boolean addSocket(@NonNull final Transport transport, final boolean isHub,
+                                 @Nullable final Transport.Connector connector){
+            if(isHub && connector != null)
+                throw new IllegalArgumentException("the hub does not reconnect to its clients");
+
+            //the device reconnected before its old connection was found to have failed. The old
+            //connection is closed first, so its session can be resumed on the new one
+            final String address = transport.getRemoteId();
+            if(isHub && mClients.get(address) != null){
+                Log.v(TAG, "replacing the connection of " + address);
+                mControlHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeSocket(address, ServiceUtility.CLOSE_READ_CLOSE, false);
+                        if(!addTransport(transport, true, null, null))
+                            closeTransport(transport);
+                    }
+                });
+                return true;
+            }
+            return addTransport(transport, isHub, connector, null);
+        }
+
+
+        /**
+         * Adds a connected transport, starts reading and writing it and sends the handshake.
+         *
+         * @param transport transport that will be added
+         * @param isHub true if this device is the hub
+         * @param connector connects a client to the hub again, null if it does not reconnect
+         * @param parked the connection whose session is resumed, null for a new session
+         * @return false if streams could not be created from the transport or if no session ids
+         *         are left
          */
-        public boolean addSocket(@NonNull BluetoothSocket socket){
-            Log.v(TAG, "adding socket with address " +socket.getRemoteDevice().getAddress());
+        private boolean addTransport(@NonNull Transport transport, boolean isHub,
+                                     @Nullable Transport.Connector connector,
+                                     @Nullable BluetoothConnectionInfo parked){
+            String address = transport.getRemoteId();
+            Log.v(TAG, "adding socket with address " + address);
             BluetoothConnectionInfo info = new BluetoothConnectionInfo();
+            info.transport = transport;
+            info.address = address;
+            info.connector = connector;
 
             OutputStream tmpOut;
             InputStream tmpIn;
 
             //get outputStream, return if cannot
             try {
-                tmpOut = socket.getOutputStream();
+                tmpOut = transport.getOutputStream();
 
             } catch (IOException e) {
-                Log.e(TAG, "could not get an outputStream from socket " + socket.getRemoteDevice().getAddress());
+                Log.e(TAG, "could not get an outputStream from socket " + address);
                 e.printStackTrace();
                 return false;
             }
 
             //get inputStream, close outputStream and return if cannot
             try {
-                tmpIn = socket.getInputStream();
+                tmpIn = transport.getInputStream();
 
             } catch (IOException e) {
-                Log.e(TAG, "could not get an inputStream from socket " + socket.getRemoteDevice().getAddress());
+                Log.e(TAG, "could not get an inputStream from socket " + address);
                 e.printStackTrace();
                 try {
                     Log.e(TAG, "closing outputStream because could not get inputStream from socket "
-                            + socket.getRemoteDevice().getAddress());
+                            + address);
                     tmpOut.close();
                 } catch (IOException e1) {
                     Log.e(TAG, "closing outputStream because could not get inputStream from socket "
-                            + socket.getRemoteDevice().getAddress() + ": has FAILED");
+                            + address + ": has FAILED");
                     e1.printStackTrace();
                 }
                 return false;
             }
-            info.connectionAttempts = 0;
-            info.deleting = false;
+            info.heartbeat = new Heartbeat(SystemClock.uptimeMillis(), MIN_HEARTBEAT_INTERVAL,
+                    TIMEOUT_DURATION, MAX_SILENCE);
+            info.rtt = new RttEstimator();
             info.inputStream = tmpIn;
             info.outputStream = tmpOut;
-            info.socket = socket;
-            info.device = socket.getRemoteDevice();
-            //TODO determine ideal queue size for requests
-            info.blockingQueue = new ArrayBlockingQueue<>(10, true);
+            info.outboundQueue = new OutboundQueue(mQueueCapacity, WRITER_SPINS_BEFORE_PARK);
+            //every queued app message holds a credit, so with no more credits than a lane holds
+            //a message that has a credit always fits in its lane. They are given once the
+            //handshake is done
+            info.creditLimit = Math.min(RECEIVE_WINDOW, info.outboundQueue.getCapacity());
+            info.sendCredits = new CreditWindow(0);
+            if(parked != null){
+                info.session = parked.session;
+                info.resuming = true;
+            }else{
+                info.session = new ResumableSession();
+                if(isHub)
+                    info.session.token = newResumeToken();
+            }
+
+            //registered once the streams are set, so a close that races the add can drain it.
+            //the hub assigns the session id of the remote device, a client only connects to the hub
+            mMySessionId = isHub ? BT_MessageUtility.SESSION_HUB : BT_MessageUtility.SESSION_UNASSIGNED;
+            info.sessionId = mClients.add(address,
+                    isHub ? ConnectionRegistry.ASSIGN_SESSION_ID : BT_MessageUtility.SESSION_HUB, info);
+
+            if(info.sessionId < 0){
+                Log.e(TAG, "address already added or no session ids left for " + address);
+                return false;
+            }
 
-            mClients.put(info.device.getAddress(), info);
-            enableRW(info);
+            if(!enableRW(info)){
+                info.compareAndSetState(BluetoothConnectionInfo.STATE_CONNECTING, BluetoothConnectionInfo.STATE_CLOSED);
+                disableRW(info);
+                mClients.remove(address, info.sessionId, info);
+                try {
+                    transport.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "could not close socket: " + address);
+                }
+                return false;
+            }
+
+            //the session id has to be the first message so every later message can use it
+            if(isHub)
+                sendMessage(new BT_MessageSession(mMySessionId, info.sessionId, info.session.token), info.address);
+            //the hub has to know the session is resumed before the options open its credits
+            if(info.resuming)
+                sendMessage(new BT_MessageResume(mMySessionId, info.session.token, info.session.readCount), info.address);
+            //let the remote device know it can compress the app messages it sends us, that we
+            //return credits for the ones we read and whether we can resume the connection
+            int options = BT_MessageOptions.OPTION_DEFLATE | BT_MessageOptions.OPTION_CREDITS;
+            if(isHub || connector != null)
+                options |= BT_MessageOptions.OPTION_RESUME;
+            sendMessage(new BT_MessageOptions(mMySessionId, options), info.address);
+
+            //a close that started while connecting has already won, it finishes the connection
+            if(info.compareAndSetState(BluetoothConnectionInfo.STATE_CONNECTING, BluetoothConnectionInfo.STATE_ACTIVE)){
+                final BluetoothConnectionInfo addedInfo = info;
+                mControlHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        startTimers(addedInfo);
+                    }
+                });
+            }
             return true;
         }
 
 
         /**
          * Removes and closes all sockets that have been added. The reading and writing will
-         * also stop for that socket if it hasn't already.
+         * also stop for that socket if it hasn't already. The sockets are closed on the control
+         * thread, so this returns right away.
          *
          * @param closeCode id that identifies why the socket is being closed
          */
-        public void removeSockets(@ServiceUtility.CLOSE_CODE int closeCode){
-
-            ArrayList<BluetoothConnectionInfo> list = new ArrayList<>(mClients.values());
-            for(int i = 0; i < list.size(); i++){
-                removeSocket(list.get(i).device.getAddress(), closeCode);
-            }
+        public void removeSockets(@ServiceUtility.CLOSE_CODE final int closeCode){
+            mControlHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    List<BluetoothConnectionInfo> connections = mClients.snapshot();
+                    for(int i = 0; i < connections.size(); i++){
+                        closeSocket(connections.get(i).address, closeCode, true);
+                    }
+                    endParkedSessions(null, closeCode);
+                }
+            });
         }
 
 
         /**
          * Removes and closes the socket with the given mac address if it exists. The reading and
-         * writing will also stop for that socket.
+         * writing will also stop for that socket. Closing a stream can block, so the socket is
+         * closed on the control thread and this returns right away. The handler receives a
+         * connection closed message once it is done.
+         * <p>
+         * When kicking or saying goodbye, the messages already queued are written, then the close
+         * message, and the socket is closed once the remote device has closed its end. The remote
+         * device learns of the close in the time it takes to write the queue instead of waiting
+         * for its hellos to time out. If this takes longer than CLOSE_TIMEOUT the socket is
+         * closed anyway. Other close codes close the socket right away. A session that is waiting
+         * to be resumed is ended with the close code.
          *
          * @param macAddress mac address of the bluetooth device that will have the message sent to
          * @param closeCode id that identifies why the socket is being closed
          */
         public void removeSocket(String macAddress, @ServiceUtility.CLOSE_CODE int closeCode){
+            postClose(macAddress, closeCode, true);
+        }
 
-            BT_MessageClose closeMessage = new BT_MessageClose(mMyAddress, closeCode);
 
+        /**
+         * Removes and closes a connection like removeSocket(), unless it has already been
+         * replaced by a new connection with the same mac address. Used by the tasks and timers of
+         * a connection, which may find it has failed after a new connection has resumed its
+         * session.
+         *
+         * @param info the connection to close
+         * @param closeCode id that identifies why the socket is being closed
+         */
+        private void removeConnection(final BluetoothConnectionInfo info, @ServiceUtility.CLOSE_CODE final int closeCode){
+            mControlHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(mClients.get(info.address) == info)
+                        closeSocket(info.address, closeCode, true);
+                }
+            });
+        }
+
+
+        /**
+         * Closes a socket on the control thread.
+         *
+         * @param macAddress mac address of the bluetooth device whose socket is closed
+         * @param closeCode id that identifies why the socket is being closed
+         * @param sendClose false if the remote device closed the connection, so it is not sent a
+         *                  close message
+         */
+        private void postClose(final String macAddress, @ServiceUtility.CLOSE_CODE final int closeCode,
+                               final boolean sendClose){
+            mControlHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    closeSocket(macAddress, closeCode, sendClose);
+                }
+            });
+        }
+
+
+        /**
+         * Called by the write task of a draining connection once it has written its queue and
+         * close message. The socket is closed unless the remote device still has to close its end.
+         *
+         * @param info the connection that was drained
+         */
+        private void postDrained(final BluetoothConnectionInfo info){
+            mControlHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    info.drained = true;
+                    if(!info.awaitingAck)
+                        finishClose(info);
+                }
+            });
+        }
+
+
+        /**
+         * Called by the write task of a connection when it ends. The listeners of the messages
+         * it did not flush, and of the messages still in its queue, are failed with the code the
+         * connection closed with. The queue is emptied on the control thread, which is its only
+         * consumer once the write task has ended. For a session that can be resumed, the app
+         * messages that were not written are kept in its ReplayRing instead, and the ones that
+         * were written but not flushed are already in it, so they are written again if the
+         * session is resumed. The session can be resumed once the queue has been emptied.
+         *
+         * @param info the connection whose write task ended
+         * @param unflushed listeners of messages that were written but not flushed, owned by
+         *                  this call
+         */
+        private void postUnwritten(final BluetoothConnectionInfo info,
+                                   final List<BT_Message.WriteListener> unflushed){
+            mControlHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    //the close message is set unless the write task ended without being closed
+                    int closeCode = info.closeMessage != null
+                            ? info.closeMessage.getCloseCode() : ServiceUtility.CLOSE_WRITE_CLOSE;
+                    ResumableSession session = info.session;
+                    if(session.token == 0) {
+                        for (int i = 0; i < unflushed.size(); i++)
+                            unflushed.get(i).onWriteFailed(closeCode);
+                    }
+
+                    info.queueClosed = true;
+                    drainOutbound(info);
+                }
+            });
+        }
+
+
+        /**
+         * Empties the outbound queue of a connection again after an app message was put in it
+         * while the queue was closing.
+         *
+         * @param info the connection whose write task ended
+         */
+        private void postDrainOutbound(final BluetoothConnectionInfo info){
+            mControlHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    drainOutbound(info);
+                }
+            });
+        }
+
+
+        /**
+         * Gives the app messages left in the outbound queue of a connection whose write task has
+         * ended to its session, so they are sent if it is resumed, and fails the rest. The
+         * session may be resumed once no thread is still putting a message in the queue, which
+         * is checked after queueClosed was set so that a message added by a thread that has
+         * already left is found by the second pass. Must be called on the control thread.
+         *
+         * @param info the connection whose write task ended
+         */
+        private void drainOutbound(BluetoothConnectionInfo info){
+            pollUnwritten(info);
+            if(info.queueing.get() != 0)
+                return;
+            pollUnwritten(info);
+            info.writerDone.countDown();
+        }
+
+
+        /**
+         * Takes every message out of the outbound queue of a connection whose write task has
+         * ended. Must be called on the control thread.
+         *
+         * @param info the connection whose write task ended
+         */
+        private void pollUnwritten(BluetoothConnectionInfo info){
+            //the close message is set unless the write task ended without being closed
+            int closeCode = info.closeMessage != null
+                    ? info.closeMessage.getCloseCode() : ServiceUtility.CLOSE_WRITE_CLOSE;
+            ResumableSession session = info.session;
+
+            BT_Message message;
+            while( (message = info.outboundQueue.poll()) != null ){
+                if(message == SHUTDOWN_MESSAGE)
+                    continue;
+                if(session.token != 0 && message.getMessageType() == BT_MessageUtility.TYPE_APP_MESSAGE){
+                    session.replay.unsent(message);
+                    continue;
+                }
+                if(message.getWriteListener() != null)
+                    message.getWriteListener().onWriteFailed(closeCode);
+                message.recycle();
+            }
+        }
+
+
+        /**
+         * Starts closing the socket with the given mac address if it exists and has not already
+         * started closing. A draining socket is closed right away by a close code that is not
+         * graceful, such as the read task finding that the remote device has closed its end.
+         * Must be called on the control thread.
+         *
+         * @param macAddress mac address of the bluetooth device that will have the message sent to
+         * @param closeCode id that identifies why the socket is being closed
+         * @param sendClose false if the remote device closed the connection, so it is not sent a
+         *                  close message
+         */
+        private void closeSocket(String macAddress, @ServiceUtility.CLOSE_CODE int closeCode, boolean sendClose){
             BluetoothConnectionInfo tmpInfo = mClients.get(macAddress);
 
-            //if cant find connection or already deleting, return
-            if(tmpInfo == null || tmpInfo.deleting)
+            //if cant find connection, return. A session waiting to be resumed is ended unless this
+            //is the failure of the connection it was parked by, found again by its other task
+            if(tmpInfo == null) {
+                if(!isResumableClose(closeCode))
+                    endParkedSessions(macAddress, closeCode);
                 return;
-            tmpInfo.deleting = true;
+            }
+
+            if(!tmpInfo.beginClose()){
+                if(tmpInfo.getState() != BluetoothConnectionInfo.STATE_DRAINING)
+                    return;
+                //the remote device closing its end, or sending its own close message, is the ack
+                if(!isGracefulClose(closeCode)) {
+                    finishClose(tmpInfo);
+                }else if(!sendClose){
+                    tmpInfo.awaitingAck = false;
+                    if(tmpInfo.drained)
+                        finishClose(tmpInfo);
+                }
+                return;
+            }
 
             Log.v(TAG, closeCode +": removeSocket for " + macAddress);
+            cancelTimers(tmpInfo);
+            rejectWaiting(tmpInfo);
+            tmpInfo.closeMessage = new BT_MessageClose(mMySessionId, closeCode);
+            tmpInfo.closeMessage.setMacAddress(macAddress);
+
+            if(!isGracefulClose(closeCode)){
+                finishClose(tmpInfo);
+                return;
+            }
 
-            if(closeCode == ServiceUtility.CLOSE_KICKED_FROM_SERVER ||
-                    closeCode == ServiceUtility.CLOSE_SAY_GOODBYE){
-                sendMessage(closeMessage, macAddress);
+            if(sendClose){
+                tmpInfo.closeFrame = tmpInfo.closeMessage;
+                tmpInfo.awaitingAck = true;
             }
 
-            disableRW(tmpInfo);
+            final BluetoothConnectionInfo info = tmpInfo;
+            info.closeTimeout = schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Log.v(TAG, "timed out draining " + info.address);
+                    finishClose(info);
+                }
+            }, SystemClock.uptimeMillis() + CLOSE_TIMEOUT);
+            drain(info);
+        }
+
+
+        /**
+         * Queues the message that ends the write task of a draining connection. Nothing new is
+         * queued once a connection is draining, so if the queue is full this is tried again
+         * after the write task has had time to make room.
+         *
+         * @param info the connection that is draining
+         */
+        private void drain(final BluetoothConnectionInfo info){
+            if(info.getState() != BluetoothConnectionInfo.STATE_DRAINING)
+                return;
+
+            if(info.writeTask != null && info.writeTask.isDone()){
+                Log.w(TAG, "write task already finished, cannot drain " + info.address);
+                finishClose(info);
+                return;
+            }
+
+            if(!info.outboundQueue.offer(SHUTDOWN_MESSAGE, OutboundQueue.LANE_BULK)){
+                mControlHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain(info);
+                    }
+                }, DRAIN_RETRY_INTERVAL);
+            }
+        }
+
+
+        /**
+         * Closes the streams and socket of a draining connection and removes it. The handler is
+         * given the close message with the code the connection started closing with. Must be
+         * called on the control thread.
+         *
+         * @param info the connection to close
+         */
+        private void finishClose(BluetoothConnectionInfo info){
+            if(!info.compareAndSetState(BluetoothConnectionInfo.STATE_DRAINING, BluetoothConnectionInfo.STATE_CLOSED))
+                return;
+
+            String macAddress = info.address;
+            cancelTimers(info);
+            mTimers.cancel(info.closeTimeout);
+
+            disableRW(info);
 
-            //TODO delay rest of code so that socket isn't closed before close message is read
             try {
                 Log.v(TAG, "closing the input stream: " + macAddress);
-                tmpInfo.inputStream.close();
+                info.inputStream.close();
             } catch (IOException e) {
                 Log.w(TAG, "could not close the input stream: " + macAddress);
             }
 
             try {
                 Log.v(TAG, "closing the output stream: " + macAddress);
-                tmpInfo.outputStream.close();
+                info.outputStream.close();
             } catch (IOException e) {
                 Log.w(TAG, "could not close the output stream: " + macAddress);
             }
 
             try {
                 Log.v(TAG, "closing the input socket: " + macAddress);
-                tmpInfo.socket.close();
+                info.transport.close();
             } catch (IOException e) {
                 Log.w(TAG, "could not close socket: " + macAddress);
             }
 
-            mClients.remove(tmpInfo.device.getAddress());
-            Log.v(TAG, "removed from clients: " + tmpInfo.device.getAddress());
+            mClients.remove(info.address, info.sessionId, info);
+            Log.v(TAG, "removed from clients: " + info.address);
+
+            if(!park(info))
+                endSession(info);
+        }
+
+
+        /**
+         * Keeps the session of a connection that failed so that it can be resumed on a new
+         * connection. The hub waits for the client to reconnect, a client reconnects with its
+         * connector. Must be called on the control thread.
+         *
+         * @param info the connection that was closed
+         * @return false if the session can not be resumed.
+         */
+        private boolean park(final BluetoothConnectionInfo info){
+            int closeCode = info.closeMessage.getCloseCode();
+            final int token = info.session.token;
+            boolean isClient = info.sessionId == BT_MessageUtility.SESSION_HUB;
+            if(token == 0 || !isResumableClose(closeCode) || (info.peerOptions & BT_MessageOptions.OPTION_RESUME) == 0
+                    || (isClient && info.connector == null))
+                return false;
+
+            Log.v(TAG, "keeping the session of " + info.address + " to be resumed");
+            //a connection that failed while resuming keeps the code the session first closed with
+            if(!info.resuming)
+                info.session.closeCode = closeCode;
+            info.session.writerDone = info.writerDone;
+            mParked.put(token, info);
+            info.resumeTimeout = schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if(!mParked.remove(token, info))
+                        return;
+                    Log.v(TAG, "session was not resumed: " + info.address);
+                    endSession(info);
+                }
+            }, SystemClock.uptimeMillis() + RESUME_TIMEOUT);
+
+            if(isClient)
+                reconnect(info, RECONNECT_DELAY);
+            return true;
+        }
+
+
+        /**
+         * Tries to connect to the hub again after a delay, on a thread from mIOExecutor since
+         * connecting blocks. Stops once the parked session has been resumed or has expired.
+         *
+         * @param parked the parked connection of a client
+         * @param delay milliseconds to wait before connecting
+         */
+        private void reconnect(final BluetoothConnectionInfo parked, final int delay){
+            final int token = parked.session.token;
+            final Runnable connect = new Runnable() {
+                @Override
+                public void run() {
+                    if(mParked.get(token) != parked)
+                        return;
+
+                    final Transport transport;
+                    try {
+                        transport = parked.connector.connect();
+                    } catch (IOException e) {
+                        Log.v(TAG, "could not reconnect to " + parked.address);
+                        reconnect(parked, Math.min(2 * delay, MAX_RECONNECT_DELAY));
+                        return;
+                    }
+                    mControlHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            resume(parked, transport);
+                        }
+                    });
+                }
+            };
+
+            mControlHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if(mParked.get(token) != parked)
+                        return;
+                    try {
+                        mIOExecutor.execute(connect);
+                    }catch (RejectedExecutionException e){
+                        Log.w(TAG, "no I/O threads left to reconnect to " + parked.address);
+                        reconnect(parked, MAX_RECONNECT_DELAY);
+                    }
+                }
+            }, delay);
+        }
+
+
+        /**
+         * Resumes the session of a parked client connection on the transport it reconnected
+         * with. Must be called on the control thread.
+         *
+         * @param parked the parked connection of a client
+         * @param transport the new transport to the hub
+         */
+        private void resume(BluetoothConnectionInfo parked, Transport transport){
+            if(!mParked.remove(parked.session.token, parked)){
+                closeTransport(transport);
+                return;
+            }
+            mTimers.cancel(parked.resumeTimeout);
+            Log.v(TAG, "reconnected, resuming the session of " + parked.address);
+            if(!addTransport(transport, false, parked.connector, parked)){
+                closeTransport(transport);
+                endSession(parked);
+            }
+        }
+
+
+        /**
+         * Ends the parked sessions of a device, or of every device. Must be called on the control
+         * thread.
+         *
+         * @param macAddress mac address of the device, null for every device
+         * @param closeCode the code the handler is given for each session
+         */
+        private void endParkedSessions(@Nullable String macAddress, @ServiceUtility.CLOSE_CODE int closeCode){
+            for(Map.Entry<Integer, BluetoothConnectionInfo> entry : mParked.entrySet()){
+                BluetoothConnectionInfo parked = entry.getValue();
+                if(macAddress != null && !macAddress.equals(parked.address))
+                    continue;
+                if(!mParked.remove(entry.getKey(), parked))
+                    continue;
+                mTimers.cancel(parked.resumeTimeout);
+                parked.closeMessage = new BT_MessageClose(mMySessionId, closeCode);
+                parked.closeMessage.setMacAddress(parked.address);
+                endSession(parked);
+            }
+        }
+
+
+        /**
+         * Releases the app messages kept for the session of a closed connection and gives the
+         * handler the close message. Must be called on the control thread.
+         *
+         * @param info the closed connection
+         */
+        private void endSession(BluetoothConnectionInfo info){
+            info.session.replay.clear(info.closeMessage.getCloseCode());
 
             //Send message to handler
             if(mClientHandler != null){
-                Message m = mClientHandler.obtainMessage(0, 0, 0, closeMessage);
+                Message m = mClientHandler.obtainMessage(0, 0, 0, info.closeMessage);
                 mClientHandler.sendMessage(m);
             }
         }
 
 
         /**
-         * Write a message to all bluetooth sockets that are enabled.
+         * Closes a transport that was not added.
+         *
+         * @param transport the transport to close
+         */
+        private void closeTransport(Transport transport){
+            try {
+                transport.close();
+            } catch (IOException e) {
+                Log.w(TAG, "could not close socket: " + transport.getRemoteId());
+            }
+        }
+
+
+        /**
+         * Write a message to all bluetooth sockets that are enabled. The same frame is queued for
+         * every socket, so data is only copied once.
+         *
+         * @param data message to be sent
+         * @return the number of sockets the message was queued for or is waiting for credits
+         *         from, 0 if no socket will get it.
+         */
+        public int writeMessage(byte[] data){
+            return writeMessage(data, ServiceUtility.PRIORITY_INTERACTIVE);
+        }
+
+
+        /**
+         * Write a message to all bluetooth sockets that are enabled. The same frame is queued for
+         * every socket, so data is only copied once.
          *
          * @param data message to be sent
+         * @param priority PRIORITY_INTERACTIVE for messages a user is waiting on, PRIORITY_BULK
+         *                 for large transfers that interactive messages may overtake
+         * @return the number of sockets the message was queued for or is waiting for credits
+         *         from, 0 if no socket will get it.
          */
-        public void writeMessage(byte[] data){
-            for(BluetoothConnectionInfo tmpInfo: mClients.values()){
-                writeMessage(data, tmpInfo.device.getAddress());
+        public int writeMessage(byte[] data, @ServiceUtility.PRIORITY int priority){
+            return broadcast(BT_MessageApp.obtain(mMySessionId, data), checkPriority(priority));
+        }
+
+
+        /**
+         * Write a message to all bluetooth sockets that are enabled. The remaining bytes of data
+         * are copied into a single frame that is queued for every socket. The position of data is
+         * not changed, so a buffer received in BluetoothServiceHandler.appMessage() can be
+         * forwarded as is.
+         *
+         * @param data message to be sent
+         * @return the number of sockets the message was queued for or is waiting for credits
+         *         from, 0 if no socket will get it.
+         */
+        public int writeMessage(ByteBuffer data){
+            return writeMessage(data, ServiceUtility.PRIORITY_INTERACTIVE);
+        }
+
+
+        /**
+         * Write a message to all bluetooth sockets that are enabled. The remaining bytes of data
+         * are copied into a single frame that is queued for every socket. The position of data is
+         * not changed.
+         *
+         * @param data message to be sent
+         * @param priority PRIORITY_INTERACTIVE for messages a user is waiting on, PRIORITY_BULK
+         *                 for large transfers that interactive messages may overtake
+         * @return the number of sockets the message was queued for or is waiting for credits
+         *         from, 0 if no socket will get it.
+         */
+        public int writeMessage(ByteBuffer data, @ServiceUtility.PRIORITY int priority){
+            return broadcast(BT_MessageApp.fromBuffer(mMySessionId, data), checkPriority(priority));
+        }
+
+
+        /**
+         * Queues a message for every active socket. A socket without a credit for it gets the
+         * message once the remote device returns credits, behind the sends that were already
+         * waiting, so a peer that falls behind slows the sender down instead of missing the
+         * message. Each socket gets its own reference to the message, and the reference of the
+         * caller is released once the message has been queued or made to wait.
+         *
+         * @param message message to be sent
+         * @param lane the OutboundQueue lane the message is written from
+         * @return the number of sockets the message was queued for or is waiting on.
+         */
+        private int broadcast(BT_Message message, int lane){
+            int sent = 0;
+            List<BluetoothConnectionInfo> connections = mClients.snapshot();
+            for(int i = 0; i < connections.size(); i++){
+                BluetoothConnectionInfo tmpInfo = connections.get(i);
+                if(tmpInfo.getState() != BluetoothConnectionInfo.STATE_ACTIVE)
+                    continue;
+
+                message.retain();
+                if(tmpInfo.sendCredits.tryAcquire()){
+                    if(queueCredited(tmpInfo, message, lane))
+                        sent++;
+                }else if(tmpInfo.sendCredits.addWaiting(new SendFuture(message, lane, false))){
+                    Log.v(TAG, "waiting for credits from " + tmpInfo.address);
+                    sent++;
+                }else {
+                    //the connection started closing
+                    message.recycle();
+                }
             }
+            message.recycle();
+            return sent;
         }
 
 
@@ -566,11 +2469,159 @@ public class BluetoothService extends Service {
          *
          * @param data data to be sent
          * @param macAddress mac address of the bluetooth device that will have the message sent to
-         * @return false if mac address doesn't exist for an added socket.
+         * @return false if mac address doesn't exist for an added socket, or if the message could
+         *         not be queued right away because the device has not returned enough credits.
          */
         public boolean writeMessage(byte[] data, String macAddress){
-            BT_MessageApp m = new BT_MessageApp(mMyAddress, data);
-            return sendMessage(m,macAddress);
+            return writeMessage(data, macAddress, ServiceUtility.PRIORITY_INTERACTIVE);
+        }
+
+
+        /**
+         * write a message to the specified bluetooth device with the specified mac address. Does
+         * not wait, use writeMessageAsync() or writeMessageBlocking() to wait for credits.
+         *
+         * @param data data to be sent
+         * @param macAddress mac address of the bluetooth device that will have the message sent to
+         * @param priority PRIORITY_INTERACTIVE for messages a user is waiting on, PRIORITY_BULK
+         *                 for large transfers that interactive messages may overtake
+         * @return false if mac address doesn't exist for an added socket, or if the message could
+         *         not be queued right away because the device has not returned enough credits.
+         */
+        public boolean writeMessage(byte[] data, String macAddress, @ServiceUtility.PRIORITY int priority){
+            BT_MessageApp m = BT_MessageApp.obtain(mMySessionId, data);
+            return sendAppMessage(m, macAddress, checkPriority(priority));
+        }
+
+
+        /**
+         * write a message to the specified bluetooth device with PRIORITY_INTERACTIVE, waiting for
+         * credits if the device has fallen behind.
+         *
+         * @param data data to be sent
+         * @param macAddress mac address of the bluetooth device that will have the message sent to
+         * @return a future that completes once the message has been queued or rejected, and
+         *         tracks the message until it has been written.
+         */
+        public SendFuture writeMessageAsync(byte[] data, String macAddress){
+            return writeMessageAsync(data, macAddress, ServiceUtility.PRIORITY_INTERACTIVE);
+        }
+
+
+        /**
+         * write a message to the specified bluetooth device, waiting for credits if the device
+         * has fallen behind. Messages that wait are sent in order once the device returns credits.
+         * The returned future also tells when the message has been written to the socket, or the
+         * close code of the connection if it closed first, and how long it was queued for.
+         *
+         * @param data data to be sent
+         * @param macAddress mac address of the bluetooth device that will have the message sent to
+         * @param priority PRIORITY_INTERACTIVE for messages a user is waiting on, PRIORITY_BULK
+         *                 for large transfers that interactive messages may overtake
+         * @return a future that completes with true once the message has been queued, or false if
+         *         it was rejected. Cancel it to stop waiting. SendFuture.awaitWritten() waits for
+         *         the message to be written.
+         */
+        public SendFuture writeMessageAsync(byte[] data, String macAddress, @ServiceUtility.PRIORITY int priority){
+            BT_MessageApp m = BT_MessageApp.obtain(mMySessionId, data);
+            return sendAppMessageAsync(m, macAddress, checkPriority(priority));
+        }
+
+
+        /**
+         * write a message to the specified bluetooth device, waiting up to the timeout for the
+         * device to return credits. Must not be called on the thread of the handler, which is the
+         * thread the credits are returned after.
+         *
+         * @param data data to be sent
+         * @param macAddress mac address of the bluetooth device that will have the message sent to
+         * @param priority PRIORITY_INTERACTIVE for messages a user is waiting on, PRIORITY_BULK
+         *                 for large transfers that interactive messages may overtake
+         * @param timeout longest time to wait for credits
+         * @param unit unit of timeout
+         * @return true if the message was queued, false if it was rejected or the timeout passed,
+         *         in which case it is not sent.
+         * @throws InterruptedException if interrupted while waiting for credits, the message is
+         *                              not sent
+         */
+        public boolean writeMessage(byte[] data, String macAddress, @ServiceUtility.PRIORITY int priority,
+                                    long timeout, TimeUnit unit) throws InterruptedException{
+            SendFuture send = writeMessageAsync(data, macAddress, priority);
+            try {
+                return send.get(timeout, unit);
+            } catch (TimeoutException e) {
+                return awaitUnlessCancelled(send);
+            } catch (InterruptedException e) {
+                if(send.cancel(false))
+                    throw e;
+                //already being queued, report the result and keep the interrupt for the caller
+                Thread.currentThread().interrupt();
+                return awaitUnlessCancelled(send);
+            }
+        }
+
+
+        /**
+         * write a message to the specified bluetooth device, waiting as long as it takes for the
+         * device to return credits. Must not be called on the thread of the handler.
+         *
+         * @param data data to be sent
+         * @param macAddress mac address of the bluetooth device that will have the message sent to
+         * @param priority PRIORITY_INTERACTIVE for messages a user is waiting on, PRIORITY_BULK
+         *                 for large transfers that interactive messages may overtake
+         * @return true if the message was queued, false if it was rejected.
+         * @throws InterruptedException if interrupted while waiting for credits, the message is
+         *                              not sent
+         */
+        public boolean writeMessageBlocking(byte[] data, String macAddress, @ServiceUtility.PRIORITY int priority)
+                throws InterruptedException{
+            SendFuture send = writeMessageAsync(data, macAddress, priority);
+            try {
+                return send.get();
+            } catch (InterruptedException e) {
+                if(send.cancel(false))
+                    throw e;
+                Thread.currentThread().interrupt();
+                return awaitUnlessCancelled(send);
+            }
+        }
+
+
+        /**
+         * Cancels a send that is still waiting for credits. A send that was claimed at the same
+         * time is about to complete, so its result is waited for instead.
+         *
+         * @param send the send to stop waiting for
+         * @return the result of the send, false if it was cancelled.
+         */
+        private boolean awaitUnlessCancelled(SendFuture send){
+            if(send.cancel(false))
+                return false;
+
+            boolean interrupted = false;
+            try {
+                while(true){
+                    try {
+                        return send.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }finally {
+                if(interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+
+
+        /**
+         * @param priority the priority an app message was sent with
+         * @return the OutboundQueue lane of the priority
+         */
+        private int checkPriority(int priority){
+            if(priority != ServiceUtility.PRIORITY_INTERACTIVE && priority != ServiceUtility.PRIORITY_BULK)
+                throw new IllegalArgumentException(priority + " is not a valid priority");
+            return priority;
         }
 
 
@@ -579,22 +2630,116 @@ public class BluetoothService extends Service {
          * setting up and that they have been accepted.
          */
         public void serverReady(){
-            for(BluetoothConnectionInfo tmpInfo: mClients.values()){
-                sendMessage(new BT_MessageSetupFinished(mMyAddress), tmpInfo.device.getAddress());
+            List<BluetoothConnectionInfo> connections = mClients.snapshot();
+            for(int i = 0; i < connections.size(); i++){
+                sendMessage(new BT_MessageSetupFinished(mMySessionId), connections.get(i).address);
             }
         }
 
 
+        /**
+         * Sets the size above which app messages are compressed before they are sent. Messages
+         * are only compressed on connections where the remote device supports it.
+         *
+         * @param threshold app messages with at least this many bytes of data are compressed,
+         *                  Integer.MAX_VALUE turns compression off.
+         */
+        public void setCompressionThreshold(int threshold){
+            if(threshold < 0)
+                throw new IllegalArgumentException(threshold + " is not a valid compression threshold");
+            mCompressionThreshold = threshold;
+        }
+
+
+        /**
+         * Sets how long a write task waits for more messages before writing the ones it has.
+         * Waiting adds up to this much latency to a message that arrives alone, but a burst of
+         * messages is written in fewer, larger writes. A batch is written as soon as it holds
+         * WRITE_BATCH_SIZE bytes, whatever the linger.
+         *
+         * @param millis milliseconds to wait for more messages, 0 writes as soon as the queue is
+         *               empty
+         */
+        public void setWriteLinger(int millis){
+            if(millis < 0)
+                throw new IllegalArgumentException(millis + " is not a valid write linger");
+            mWriteLinger = millis;
+        }
+
+
+        /**
+         * Sets how many messages can wait to be written to a connection. A larger queue absorbs
+         * longer bursts, a smaller one makes a slow device refuse sends sooner instead of holding
+         * them in memory. Only connections added after the call are affected.
+         *
+         * @param capacity messages each priority lane holds, rounded up to a power of two
+         */
+        public void setQueueCapacity(int capacity){
+            if(capacity <= 0)
+                throw new IllegalArgumentException(capacity + " is not a valid queue capacity");
+            mQueueCapacity = capacity;
+        }
+
+
+        /**
+         * Sets how suspected a silent connection has to be before it is closed. The suspicion
+         * level phi of a connection grows the longer nothing is read from it, measured against
+         * how late it has been heard from before, and each point of phi makes it ten times less
+         * likely that the connection would still answer. A lower threshold closes dead
+         * connections sooner but risks closing slow ones. The handler is told about connections
+         * from half the threshold on.
+         *
+         * @param threshold phi at which a connection is closed, DEFAULT_SUSPICION_THRESHOLD by
+         *                  default
+         */
+        public void setSuspicionThreshold(double threshold){
+            if(!(threshold > 0) || Double.isInfinite(threshold))
+                throw new IllegalArgumentException(threshold + " is not a valid suspicion threshold");
+            mSuspicionThreshold = threshold;
+        }
+
+
+        /**
+         * Gets the round trip times of a connection, measured with the hellos that are sent to
+         * it when it goes quiet.
+         *
+         * @param macAddress mac address of the bluetooth device
+         * @return a copy of the round trip times of the connection, null if it does not exist.
+         */
+        public @Nullable RttStats getRttStats(String macAddress){
+            BluetoothConnectionInfo info = mClients.get(macAddress);
+            if(info == null)
+                return null;
+            return info.rtt.getStats();
+        }
+
+
+        /**
+         * Gets the round trip times of every connection, to find the slow links of a room.
+         *
+         * @return a copy of the round trip times of each connection, by mac address.
+         */
+        public Map<String, RttStats> getRttStats(){
+            Map<String, RttStats> stats = new HashMap<>();
+            List<BluetoothConnectionInfo> connections = mClients.snapshot();
+            for(int i = 0; i < connections.size(); i++)
+                stats.put(connections.get(i).address, connections.get(i).rtt.getStats());
+            return stats;
+        }
+
+
         /**
          * Get the bluetooth device with the given mac address.
          *
          * @param macAddress mac address of the bluetooth device that will have the message sent to
-         * @return the bluetooth device with the given macAddress, null if it does not exist.
+         * @return the bluetooth device with the given macAddress, null if it does not exist or was
+         *         not added with a bluetooth socket.
          */
         public BluetoothDevice getDevice(String macAddress){
-            if( !mClients.containsKey(macAddress) )
+            BluetoothConnectionInfo info = mClients.get(macAddress);
+            if(info == null || !(info.transport instanceof BluetoothSocketTransport))
                 return null;
-            return (mClients.get(macAddress)).device;
+            return ((BluetoothSocketTransport) info.transport).getSocket().getRemoteDevice();
         }
 
 
@@ -3,15 +3,19 @@ package com.yckir.bluetoothchat.services;
 
 import android.os.Handler;
 import android.os.Message;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.yckir.bluetoothchat.services.messages.BT_Message;
 import com.yckir.bluetoothchat.services.messages.BT_MessageApp;
 import com.yckir.bluetoothchat.services.messages.BT_MessageClose;
-import com.yckir.bluetoothchat.services.messages.BT_MessageHello;
-import com.yckir.bluetoothchat.services.messages.BT_MessageHelloReply;
+import com.yckir.bluetoothchat.services.messages.BT_MessageRegistry;
 import com.yckir.bluetoothchat.services.messages.BT_MessageUtility;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * Handler that listens to messages from BluetoothService. The abstract methods will be called
  * from the default handleMessage method. HandleMessage should not be extended, implement the
@@ -19,6 +23,78 @@ import com.yckir.bluetoothchat.services.messages.BT_MessageUtility;
  */
 public abstract class BluetoothServiceHandler extends Handler {
     public static final String TAG = "BluetoothServiceHandler";
+    //what of the messages that report the suspicion level of a connection, the others are 0
+    //and hold a BT_Message
+    static final int WHAT_SUSPICION = 1;
+    //the suspicion level is sent in arg1 multiplied by this
+    static final int PHI_SCALE = 100;
+
+    /**
+     * Calls the method of a BluetoothServiceHandler for the messages of one type.
+     */
+    public interface Dispatcher{
+        /**
+         * The message is recycled once this returns.
+         *
+         * @param handler the handler the service gave the message to
+         * @param message the message, of the type the dispatcher was registered with
+         */
+        void dispatch(@NonNull BluetoothServiceHandler handler, @NonNull BT_Message message);
+    }
+
+    //dispatchers indexed by BT_MessageRegistry.getTypeIndex(), null for types without a method.
+    //Types can be registered while messages are handled, so the entries are read atomically.
+    private static final AtomicReferenceArray<Dispatcher> sDispatchers =
+            new AtomicReferenceArray<>(BT_MessageRegistry.MAX_TYPES);
+
+    static {
+        registerDispatcher(BT_MessageUtility.TYPE_APP_MESSAGE, new Dispatcher() {
+            @Override
+            public void dispatch(@NonNull BluetoothServiceHandler handler, @NonNull BT_Message message) {
+                BT_MessageApp m = (BT_MessageApp) message;
+                handler.appMessage(m.getMacAddress(), m.getDataBuffer());
+            }
+        });
+        registerDispatcher(BT_MessageUtility.TYPE_SERVER_SETUP_FINISHED, new Dispatcher() {
+            @Override
+            public void dispatch(@NonNull BluetoothServiceHandler handler, @NonNull BT_Message message) {
+                handler.serverSetupFinished();
+            }
+        });
+        //close messages are read by the service, which gives one to the handler when a connection closes
+        registerDispatcher(BT_MessageUtility.TYPE_CONNECTION_CLOSED, new Dispatcher() {
+            @Override
+            public void dispatch(@NonNull BluetoothServiceHandler handler, @NonNull BT_Message message) {
+                BT_MessageClose m = (BT_MessageClose) message;
+                handler.connectionClosed(m.getMacAddress(), m.getCloseCode());
+            }
+        });
+    }
+
+    /**
+     * Sets the Dispatcher of a message type that was registered in BT_MessageRegistry. Messages
+     * of a type without one are given to otherMessage().
+     *
+     * @param type the message type, already registered in BT_MessageRegistry
+     * @param dispatcher calls the method of the handler for messages of the type
+     */
+    public static void registerDispatcher(int type, @NonNull Dispatcher dispatcher){
+        int index = BT_MessageRegistry.getTypeIndex(type);
+        if(index < 0)
+            throw new IllegalArgumentException(type + " has not been registered in BT_MessageRegistry");
+        if(dispatcher == null)
+            throw new IllegalArgumentException("type " + type + " must have a dispatcher");
+        if(!sDispatchers.compareAndSet(index, null, dispatcher))
+            throw new IllegalArgumentException(type + " already has a dispatcher");
+    }
+
+    /**
+     * @param index index of a registered type, from BT_MessageRegistry.getTypeIndex()
+     * @return the dispatcher of the type, null if it has none.
+     */
+    static @Nullable Dispatcher getDispatcher(int index){
+        return sDispatchers.get(index);
+    }
 
     /**
      * Called when a connection has closed.
@@ -29,11 +105,15 @@ public abstract class BluetoothServiceHandler extends Handler {
 
     /**
      * message that was sent form a remote bluetooth device and should be parsed by the activity.
+     * The buffer is a read only view of the received frame, nothing is copied before this is
+     * called. Read it with the relative or absolute get methods, array() is not available. The
+     * message is recycled when this returns, so the buffer must not be kept after the call,
+     * copy the data if it is needed later.
      *
      * @param macAddress address of the remote bluetooth device that sent the message
-     * @param bytes data that was sent by remote bluetooth device
+     * @param data data that was sent by remote bluetooth device
      */
-    public abstract void appMessage(String macAddress, byte[] bytes);
+    public abstract void appMessage(String macAddress, ByteBuffer data);
 
     /**
      * Tells client that the server has finished setting up and it can
@@ -41,43 +121,48 @@ public abstract class BluetoothServiceHandler extends Handler {
      */
     public abstract void serverSetupFinished();
 
+    /**
+     * Called for messages of a type that was registered in BT_MessageRegistry by the application
+     * without a Dispatcher from registerDispatcher(). The message is recycled when this returns.
+     *
+     * @param message the message that was sent from a remote bluetooth device
+     */
+    public void otherMessage(BT_Message message){
+        Log.w(TAG, "unknown type " + message.getMessageType());
+    }
+
+    /**
+     * Called while a connection has gone silent for longer than usual, before it is closed. Phi
+     * is the suspicion level of the connection, each point of it makes it ten times less likely
+     * that the remote device would still answer. It is called as phi rises past half the
+     * threshold set with BluetoothBinder.setSuspicionThreshold(), and once more with a phi of 0
+     * if the connection answers. A connection that reaches the threshold is closed.
+     *
+     * @param macAddress mac address of the suspected connection
+     * @param phi the suspicion level, 0 once the connection is no longer suspected
+     */
+    public void connectionSuspected(String macAddress, double phi){
+        Log.v(TAG, "connection " + macAddress + " suspected, phi " + phi);
+    }
+
     public final void handleMessage(Message msg){
+        if(msg.what == WHAT_SUSPICION){
+            connectionSuspected((String) msg.obj, (double) msg.arg1 / PHI_SCALE);
+            return;
+        }
+
         //The service filters out illegal BT_Message objects so
         //it error checking is not required.
-        int type = BT_Message.getType( ((BT_Message) msg.obj).makeBytes() );
-
-        switch (type) {
-            case BT_MessageUtility.TYPE_APP_MESSAGE :
-                BT_MessageApp m = (BT_MessageApp)msg.obj;
-                appMessage(m.getMacAddress(), (m.getData()));
-                break;
-
-            case BT_MessageUtility.TYPE_SERVER_SETUP_FINISHED:
-                serverSetupFinished();
-                break;
-
-            case BT_MessageUtility.TYPE_CONNECTION_CLOSED:
-                BT_MessageClose m1 = (BT_MessageClose)msg.obj ;
-                connectionClosed(m1.getMacAddress(), m1.getCloseCode());
-                break;
-
-            case BT_MessageUtility.TYPE_HELLO:
-                //hello messages should have been handled by service and should not have been passed
-                //to handler
-                BT_MessageHello m2 = (BT_MessageHello)msg.obj ;
-                Log.w(TAG, "should not have received message " + new String(m2.makeBytes()));
-                break;
-
-            case BT_MessageUtility.TYPE_HELLO_REPLY:
-                //hello messages should have been handled by service and should not have been passed
-                //to handler
-                BT_MessageHelloReply m3 = (BT_MessageHelloReply) msg.obj ;
-                Log.w(TAG, "should not have received message " + new String(m3.makeBytes()));
-                break;
-
-            default:
-                Log.w(TAG, "unknown type " + type);
+        BT_Message message = (BT_Message) msg.obj;
 
-        }
+        int index = BT_MessageRegistry.getTypeIndex(message.getMessageType());
+        Dispatcher dispatcher = index >= 0 ? getDispatcher(index) : null;
+        if(dispatcher != null)
+            dispatcher.dispatch(this, message);
+        else
+            otherMessage(message);
+
+        //the service gives its reference to the handler, release it so pooled messages are reused
+        message.recycle();
     }
 }
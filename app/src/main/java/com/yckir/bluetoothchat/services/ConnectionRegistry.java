@@ -0,0 +1,148 @@
+package com.yckir.bluetoothchat.services;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The connections of a service, found by the address of the remote device or by the session id
+ * it was given. Lookups never block, so read and write tasks can use them for every frame.
+ * Connections are added and removed under a lock, which also rebuilds an immutable snapshot of
+ * every connection. Broadcasts and timeout sweeps iterate the snapshot without locking or copying,
+ * and connections added or removed during the iteration do not affect it.
+ *
+ * @param <C> the type that holds a connection
+ */
+class ConnectionRegistry<C> {
+
+    //passed to add() to give the connection the first free session id
+    public static final int ASSIGN_SESSION_ID = -1;
+
+    private final ConcurrentHashMap<String, C> mByAddress;
+    private final AtomicReferenceArray<C> mBySession;
+    private final int mFirstAssignedId;
+    //every connection, replaced and never modified when a connection is added or removed
+    private volatile List<C> mSnapshot;
+
+
+    /**
+     * @param firstAssignedId the smallest session id that ASSIGN_SESSION_ID can give a connection
+     * @param maxSessionId the largest session id a connection can have
+     */
+    public ConnectionRegistry(int firstAssignedId, int maxSessionId){
+        if(firstAssignedId < 0 || firstAssignedId > maxSessionId)
+            throw new IllegalArgumentException(firstAssignedId + " is not a valid first session id");
+
+        mByAddress = new ConcurrentHashMap<>();
+        mBySession = new AtomicReferenceArray<>(maxSessionId + 1);
+        mFirstAssignedId = firstAssignedId;
+        mSnapshot = Collections.emptyList();
+    }
+
+
+    /**
+     * Adds a connection unless its address or session id is already used.
+     *
+     * @param address the address of the remote device
+     * @param sessionId the session id of the remote device, or ASSIGN_SESSION_ID to use the first
+     *                  free id starting at the first assigned id
+     * @param connection the connection to add
+     * @return the session id of the connection, -1 if the address is used or no id was free.
+     */
+    public synchronized int add(@NonNull String address, int sessionId, @NonNull C connection){
+        if(mByAddress.containsKey(address))
+            return -1;
+
+        if(sessionId == ASSIGN_SESSION_ID){
+            sessionId = -1;
+            for(int id = mFirstAssignedId; id < mBySession.length(); id++){
+                if(mBySession.get(id) == null) {
+                    sessionId = id;
+                    break;
+                }
+            }
+            if(sessionId < 0)
+                return -1;
+        }else if(sessionId < 0 || sessionId >= mBySession.length()){
+            throw new IllegalArgumentException(sessionId + " is not a valid session id");
+        }else if(mBySession.get(sessionId) != null){
+            return -1;
+        }
+
+        mByAddress.put(address, connection);
+        mBySession.set(sessionId, connection);
+        updateSnapshot();
+        return sessionId;
+    }
+
+
+    /**
+     * Removes a connection. Nothing is removed if a different connection has since been added
+     * with the same address or session id.
+     *
+     * @param address the address the connection was added with
+     * @param sessionId the session id returned by add()
+     * @param connection the connection to remove
+     * @return true if the connection was removed, false if it was not in the registry.
+     */
+    public synchronized boolean remove(@NonNull String address, int sessionId, @NonNull C connection){
+        if(!mByAddress.remove(address, connection))
+            return false;
+
+        mBySession.compareAndSet(sessionId, connection, null);
+        updateSnapshot();
+        return true;
+    }
+
+
+    /**
+     * @param address the address of the remote device
+     * @return the connection to the device, null if there is none.
+     */
+    public @Nullable C get(String address){
+        return address == null ? null : mByAddress.get(address);
+    }
+
+
+    /**
+     * @param sessionId the session id of the remote device
+     * @return the connection of the device, null if no connection has the id.
+     */
+    public @Nullable C getBySession(int sessionId){
+        if(sessionId < 0 || sessionId >= mBySession.length())
+            return null;
+        return mBySession.get(sessionId);
+    }
+
+
+    /**
+     * The snapshot is not changed by later calls to add() and remove() and must not be modified.
+     * Iterate it with an index to avoid creating an iterator.
+     *
+     * @return every connection in the registry at the time of the call.
+     */
+    public List<C> snapshot(){
+        return mSnapshot;
+    }
+
+
+    /**
+     * @return the number of connections in the registry.
+     */
+    public int size(){
+        return mSnapshot.size();
+    }
+
+
+    /**
+     * Replaces the snapshot after a connection was added or removed. Must hold the lock.
+     */
+    private void updateSnapshot(){
+        mSnapshot = Collections.unmodifiableList(new ArrayList<>(mByAddress.values()));
+    }
+}
@@ -0,0 +1,161 @@
+package com.yckir.bluetoothchat.services;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The credits a connection has to send app messages, one credit for each message. The remote
+ * device returns credits once it has handled the messages it read, so a device that falls behind
+ * stops being sent messages instead of having them queue up or be dropped. Sends that find no
+ * credits can wait in order until the next credits arrive.
+ * <p>
+ * A remote device that does not return credits is made unlimited, and every send is allowed.
+ */
+class CreditWindow {
+
+    private int mCredits;
+    private boolean mUnlimited;
+    private boolean mClosed;
+    //sends waiting for credits, in the order they were sent
+    private final ArrayDeque<SendFuture> mWaiting;
+
+
+    /**
+     * @param credits the credits the connection starts with
+     */
+    public CreditWindow(int credits){
+        if(credits < 0)
+            throw new IllegalArgumentException(credits + " is not a valid number of credits");
+        mCredits = credits;
+        mWaiting = new ArrayDeque<>();
+    }
+
+
+    /**
+     * Uses a credit if one is available and no earlier send is waiting for it.
+     *
+     * @return true if the message can be sent now, false if there are no credits or the window
+     *         is closed.
+     */
+    public synchronized boolean tryAcquire(){
+        dropCancelled();
+        if(mClosed || !mWaiting.isEmpty())
+            return false;
+        if(mUnlimited)
+            return true;
+        if(mCredits == 0)
+            return false;
+        mCredits--;
+        return true;
+    }
+
+
+    /**
+     * Gives back a credit that was acquired for a message that could not be queued.
+     */
+    public synchronized void refund(){
+        if(!mUnlimited)
+            mCredits++;
+    }
+
+
+    /**
+     * Makes a send wait for credits. Call after tryAcquire() fails.
+     *
+     * @param send the send to wait
+     * @return true if the send is waiting, false if the window is closed.
+     */
+    public synchronized boolean addWaiting(@NonNull SendFuture send){
+        if(mClosed)
+            return false;
+        mWaiting.addLast(send);
+        return true;
+    }
+
+
+    /**
+     * Adds credits returned by the remote device.
+     *
+     * @param credits number of credits to add
+     * @return the waiting sends that now have a credit, in order. They have been claimed and
+     *         must be queued by the caller.
+     */
+    public synchronized @NonNull List<SendFuture> grant(int credits){
+        mCredits = (int) Math.min((long) mCredits + credits, Integer.MAX_VALUE);
+        return claimWaiting();
+    }
+
+
+    /**
+     * Allows every send from now on, for remote devices that do not return credits.
+     *
+     * @return the waiting sends, claimed and in order, which must be queued by the caller.
+     */
+    public synchronized @NonNull List<SendFuture> setUnlimited(){
+        mUnlimited = true;
+        return claimWaiting();
+    }
+
+
+    /**
+     * Stops all sends once the connection starts closing.
+     *
+     * @return the waiting sends, claimed so that the caller can reject them and recycle their
+     *         messages.
+     */
+    public synchronized @NonNull List<SendFuture> close(){
+        mClosed = true;
+        mUnlimited = true;
+        return claimWaiting();
+    }
+
+
+    /**
+     * @return the number of messages that can be sent without waiting, Integer.MAX_VALUE if
+     *         the window is unlimited.
+     */
+    public synchronized int getCredits(){
+        return mUnlimited ? Integer.MAX_VALUE : mCredits;
+    }
+
+
+    /**
+     * Claims the waiting sends that have a credit. Cancelled sends are dropped. Must hold the lock.
+     *
+     * @return the claimed sends, in order.
+     */
+    private List<SendFuture> claimWaiting(){
+        dropCancelled();
+        if(mWaiting.isEmpty() || (!mUnlimited && mCredits == 0))
+            return Collections.emptyList();
+
+        List<SendFuture> claimed = new ArrayList<>();
+        SendFuture send;
+        while( (mUnlimited || mCredits > 0) && (send = mWaiting.pollFirst()) != null ){
+            if(!send.claim()){
+                send.getMessage().recycle();
+                continue;
+            }
+            if(!mUnlimited)
+                mCredits--;
+            claimed.add(send);
+        }
+        return claimed;
+    }
+
+
+    /**
+     * Recycles the messages of cancelled sends at the head of the queue. Must hold the lock.
+     */
+    private void dropCancelled(){
+        SendFuture send;
+        while( (send = mWaiting.peekFirst()) != null && send.isCancelled() ){
+            mWaiting.pollFirst();
+            send.getMessage().recycle();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.yckir.bluetoothchat.services;
+
+/**
+ * Decides when a connection is sent a hello and when it has stopped responding. Every frame
+ * read from the remote device counts as a sign that it is alive, so a connection that is busy
+ * with app messages is never sent a hello. A hello is only sent once nothing has been read for
+ * the idle interval, and sent again every reply timeout until something is.
+ * <p>
+ * Both times adapt to the link. The idle interval is a few times the average gap between reads,
+ * so a stream that stalls is checked soon while a quiet connection is left alone for longer.
+ * The time a hello is given to be answered follows the measured reply time and its variance,
+ * so a loaded link that answers slowly is not closed by mistake.
+ * <p>
+ * Whether the connection has stopped responding is left to a PhiAccrualDetector. Every gap
+ * between reads gives it a sample of how far past the idle interval the remote device was
+ * heard from, usually 0 on a busy link and the reply time on a quiet one. The longer the
+ * device stays silent past the idle interval, compared to how late it has been before, the
+ * higher the suspicion level phi. The connection times out once phi reaches the threshold
+ * given to check(), or after maxSilence whatever the samples say.
+ * <p>
+ * frameRead() is called by the read task, check() by the control thread. Times are in
+ * milliseconds from the same clock.
+ */
+class Heartbeat {
+
+    public static final int ACTION_NONE = 0;
+    public static final int ACTION_SEND_HELLO = 1;
+    public static final int ACTION_TIMED_OUT = 2;
+
+    //the connection is idle once nothing has been read for this many average gaps between reads
+    private static final int IDLE_GAPS = 4;
+    //weight of a new sample in the averages is 1 / 2^AVERAGE_SHIFT
+    private static final int AVERAGE_SHIFT = 3;
+    //the connection is checked this many times a min interval while a hello is unanswered,
+    //so phi is seen as it rises
+    private static final int SUSPICION_CHECKS = 4;
+
+    private final int mMinInterval;
+    private final int mMaxInterval;
+    private final int mMaxSilence;
+    private final PhiAccrualDetector mDetector;
+
+    //only written by the read task
+    private volatile long mLastRead;
+    private volatile long mMeanGap;
+
+    //only used by the control thread
+    private int mAttempts;
+    private long mLastHello;
+    //average time for something to be read after a hello, -1 until the first one is answered
+    private long mReplyTime;
+    private long mReplyVariance;
+    private double mPhi;
+
+
+    /**
+     * @param now the current time, the connection counts as having just been read from
+     * @param minInterval shortest idle interval and reply timeout
+     * @param maxInterval longest idle interval and reply timeout
+     * @param maxSilence time nothing can be read for before the connection times out, even if
+     *                   phi has not reached the threshold
+     */
+    public Heartbeat(long now, int minInterval, int maxInterval, int maxSilence){
+        if(minInterval <= 0 || maxInterval < minInterval)
+            throw new IllegalArgumentException("invalid intervals " + minInterval + ", " + maxInterval);
+        if(maxSilence < maxInterval)
+            throw new IllegalArgumentException(maxSilence + " is not a valid max silence");
+
+        mMinInterval = minInterval;
+        mMaxInterval = maxInterval;
+        mMaxSilence = maxSilence;
+        //a link that has always answered at once is still given a few times half the min
+        //interval past its idle interval before phi reaches a usual threshold
+        mDetector = new PhiAccrualDetector(PhiAccrualDetector.DEFAULT_WINDOW, minInterval / 2.0);
+        mLastRead = now;
+        mMeanGap = maxInterval / IDLE_GAPS;
+        mReplyTime = -1;
+    }
+
+
+    /**
+     * Records that a frame was read from the remote device. Only called by the read task.
+     *
+     * @param now the time the frame was read
+     */
+    public void frameRead(long now){
+        long gap = now - mLastRead;
+        mDetector.addSample(Math.max(gap - getInterval(), 0));
+        mMeanGap += (gap - mMeanGap) >> AVERAGE_SHIFT;
+        mLastRead = now;
+    }
+
+
+    /**
+     * Checks the connection. A hello that was answered by any frame ends the attempts and its
+     * reply time is added to the average. Only called by the control thread.
+     *
+     * @param now the current time
+     * @param threshold the phi at which the connection counts as having stopped responding
+     * @return ACTION_SEND_HELLO if a hello should be sent now, ACTION_TIMED_OUT if the
+     *         connection has stopped responding, otherwise ACTION_NONE.
+     */
+    public int check(long now, double threshold){
+        long lastRead = mLastRead;
+        if(mAttempts > 0 && lastRead >= mLastHello){
+            addReplyTime(lastRead - mLastHello);
+            mAttempts = 0;
+        }
+
+        long late = now - lastRead - getInterval();
+        mPhi = late > 0 ? mDetector.phi(late) : 0;
+        if(mPhi >= threshold || now - lastRead >= mMaxSilence)
+            return ACTION_TIMED_OUT;
+
+        if(mAttempts == 0){
+            if(now - lastRead < getInterval())
+                return ACTION_NONE;
+        }else if(now - mLastHello < getReplyTimeout()){
+            return ACTION_NONE;
+        }
+
+        mAttempts++;
+        mLastHello = now;
+        return ACTION_SEND_HELLO;
+    }
+
+
+    /**
+     * @param now the current time
+     * @return the time check() has something to do if nothing is read before then. Reading a
+     *         frame only moves it later, so a timer set for it never fires too late. While a
+     *         hello is unanswered it is at most a quarter of the min interval away, so that the
+     *         rising phi is checked.
+     */
+    public long getNextCheck(long now){
+        if(mAttempts == 0)
+            return mLastRead + getInterval();
+        return Math.min(mLastHello + getReplyTimeout(), now + mMinInterval / SUSPICION_CHECKS);
+    }
+
+
+    /**
+     * Adds a reply time to the average and variance, the same way TCP smooths round trip times.
+     *
+     * @param replyTime time from a hello being sent to the next frame being read
+     */
+    private void addReplyTime(long replyTime){
+        if(mReplyTime < 0){
+            mReplyTime = replyTime;
+            mReplyVariance = replyTime / 2;
+            return;
+        }
+        mReplyVariance += (Math.abs(replyTime - mReplyTime) - mReplyVariance) >> 2;
+        mReplyTime += (replyTime - mReplyTime) >> AVERAGE_SHIFT;
+    }
+
+
+    /**
+     * @param value the value to limit
+     * @return value limited to the min and max interval.
+     */
+    private long clamp(long value){
+        return Math.max(mMinInterval, Math.min(mMaxInterval, value));
+    }
+
+
+    /**
+     * @return how long nothing has to be read before a hello is sent.
+     */
+    public long getInterval(){
+        return clamp(IDLE_GAPS * mMeanGap);
+    }
+
+
+    /**
+     * @return how long a hello is given to be answered before the next one is sent, the max
+     *         interval until a hello has been answered.
+     */
+    public long getReplyTimeout(){
+        if(mReplyTime < 0)
+            return mMaxInterval;
+        return clamp(mReplyTime + 4 * mReplyVariance);
+    }
+
+
+    /**
+     * @return the suspicion level found by the last check(), 0 until the connection is silent
+     *         for longer than its idle interval.
+     */
+    public double getPhi(){
+        return mPhi;
+    }
+
+
+    /**
+     * @return the number of hellos sent since something was last read.
+     */
+    public int getAttempts(){
+        return mAttempts;
+    }
+}
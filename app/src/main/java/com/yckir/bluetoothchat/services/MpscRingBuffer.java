@@ -0,0 +1,115 @@
+package com.yckir.bluetoothchat.services;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue that many threads can offer to and one thread polls from, without locks. A
+ * producer claims a slot by moving the tail forward with compare and set, then stores its element
+ * in the slot. The consumer empties the slot at the head and moves the head forward. Neither ever
+ * waits for a lock, so the UI thread offering a message is not held up by the read task offering
+ * a hello reply at the same time.
+ * <p>
+ * Only one thread may call poll(). Waiting for an element is left to the caller.
+ *
+ * @param <E> the type of the elements
+ */
+class MpscRingBuffer<E> {
+
+    private final AtomicReferenceArray<E> mBuffer;
+    private final int mMask;
+    //index of the next slot a producer claims
+    private final AtomicLong mTail;
+    //index of the next slot the consumer empties, only written by the consumer
+    private final AtomicLong mHead;
+
+
+    /**
+     * @param capacity number of elements the buffer holds, rounded up to a power of two
+     */
+    public MpscRingBuffer(int capacity){
+        if(capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException(capacity + " is not a valid capacity");
+
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity)
+            size <<= 1;
+        mBuffer = new AtomicReferenceArray<>(size);
+        mMask = size - 1;
+        mTail = new AtomicLong();
+        mHead = new AtomicLong();
+    }
+
+
+    /**
+     * Adds an element to the tail without waiting. Safe to call from any thread.
+     *
+     * @param e the element to add
+     * @return true if the element was added, false if the buffer is full.
+     */
+    public boolean offer(@NonNull E e){
+        if(e == null)
+            throw new NullPointerException("element is null");
+
+        long tail;
+        do {
+            tail = mTail.get();
+            if(tail - mHead.get() > mMask)
+                return false;
+        }while( !mTail.compareAndSet(tail, tail + 1) );
+
+        //a volatile store, so a consumer that parks after seeing the slot empty is always woken
+        mBuffer.set((int) tail & mMask, e);
+        return true;
+    }
+
+
+    /**
+     * Removes the element at the head. Must only be called by the consumer.
+     *
+     * @return the element at the head, null if the buffer is empty.
+     */
+    public @Nullable E poll(){
+        long head = mHead.get();
+        int index = (int) head & mMask;
+        E e = mBuffer.get(index);
+
+        if(e == null){
+            if(head == mTail.get())
+                return null;
+            //a producer has claimed the slot but not stored its element yet
+            do {
+                e = mBuffer.get(index);
+            }while(e == null);
+        }
+
+        mBuffer.lazySet(index, null);
+        mHead.lazySet(head + 1);
+        return e;
+    }
+
+
+    /**
+     * @return the number of elements in the buffer, only exact while no other thread uses it.
+     */
+    public int size(){
+        long head;
+        long tail;
+        do {
+            head = mHead.get();
+            tail = mTail.get();
+        }while(head != mHead.get());
+        return (int) Math.min(tail - head, mMask + 1);
+    }
+
+
+    /**
+     * @return the number of elements the buffer holds.
+     */
+    public int capacity(){
+        return mMask + 1;
+    }
+}
@@ -0,0 +1,190 @@
+package com.yckir.bluetoothchat.services;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.yckir.bluetoothchat.services.messages.BT_Message;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The messages waiting to be written to one connection, kept in lanes by priority. Any thread can
+ * offer a message to a lane, and the write task always takes from the highest lane that has a
+ * message. Messages in the same lane are taken in the order they were offered. Each lane has its
+ * own capacity, so a full lane of app messages never keeps a hello reply or close message out.
+ * <p>
+ * Every lane is a MpscRingBuffer, so offering never takes a lock. Only the write task may take
+ * messages. When every lane is empty it checks again spinsBeforePark times, yielding in between,
+ * before it parks until a message is offered. Spinning catches a message that arrives right
+ * after a write without the cost of waking a parked thread, parking keeps an idle connection
+ * from using any CPU.
+ */
+class OutboundQueue {
+
+    //hellos, replies, close messages and the other messages the service sends to itself
+    public static final int LANE_CONTROL = 0;
+    //app messages sent with ServiceUtility.PRIORITY_INTERACTIVE
+    public static final int LANE_INTERACTIVE = ServiceUtility.PRIORITY_INTERACTIVE;
+    //app messages sent with ServiceUtility.PRIORITY_BULK
+    public static final int LANE_BULK = ServiceUtility.PRIORITY_BULK;
+    public static final int LANE_COUNT = 3;
+
+    private final MpscRingBuffer<BT_Message>[] mLanes;
+    private final int mSpinsBeforePark;
+    //the write task while it is parked, woken by the next offer
+    private volatile Thread mWaiter;
+
+
+    /**
+     * @param capacity number of messages each lane holds before offers to it fail, rounded up to
+     *                 a power of two
+     * @param spinsBeforePark number of times the write task checks an empty queue again before
+     *                        it parks
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public OutboundQueue(int capacity, int spinsBeforePark){
+        if(capacity <= 0)
+            throw new IllegalArgumentException(capacity + " is not a valid capacity");
+        if(spinsBeforePark < 0)
+            throw new IllegalArgumentException(spinsBeforePark + " is not a valid number of spins");
+
+        mLanes = new MpscRingBuffer[LANE_COUNT];
+        for(int i = 0; i < LANE_COUNT; i++)
+            mLanes[i] = new MpscRingBuffer<>(capacity);
+        mSpinsBeforePark = spinsBeforePark;
+    }
+
+
+    /**
+     * Adds a message to the end of a lane without waiting. Safe to call from any thread.
+     *
+     * @param message the message to add
+     * @param lane one of the LANE constants
+     * @return true if the message was added, false if the lane is full.
+     */
+    public boolean offer(@NonNull BT_Message message, int lane){
+        if(lane < 0 || lane >= LANE_COUNT)
+            throw new IllegalArgumentException(lane + " is not a valid lane");
+
+        if(!mLanes[lane].offer(message))
+            return false;
+
+        Thread waiter = mWaiter;
+        if(waiter != null)
+            LockSupport.unpark(waiter);
+        return true;
+    }
+
+
+    /**
+     * @return the first message of the highest lane that has one, null if every lane is empty.
+     */
+    public @Nullable BT_Message poll(){
+        for(int i = 0; i < LANE_COUNT; i++){
+            BT_Message message = mLanes[i].poll();
+            if(message != null)
+                return message;
+        }
+        return null;
+    }
+
+
+    /**
+     * Waits until a lane has a message.
+     *
+     * @return the first message of the highest lane that has one.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public @NonNull BT_Message take() throws InterruptedException{
+        BT_Message message;
+        while( (message = await(0)) == null );
+        return message;
+    }
+
+
+    /**
+     * Waits up to the timeout for a lane to have a message.
+     *
+     * @param timeout longest time to wait
+     * @param unit unit of timeout
+     * @return the first message of the highest lane that has one, null if the timeout passed.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public @Nullable BT_Message poll(long timeout, TimeUnit unit) throws InterruptedException{
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        BT_Message message;
+        while( (message = await(deadline)) == null ){
+            if(deadline - System.nanoTime() <= 0)
+                return null;
+        }
+        return message;
+    }
+
+
+    /**
+     * Takes only from one lane, used to write control messages between the fragments of a
+     * large app message.
+     *
+     * @param lane one of the LANE constants
+     * @return the first message of the lane, null if it is empty.
+     */
+    public @Nullable BT_Message poll(int lane){
+        return mLanes[lane].poll();
+    }
+
+
+    /**
+     * @return the number of messages each lane holds.
+     */
+    public int getCapacity(){
+        return mLanes[0].capacity();
+    }
+
+
+    /**
+     * @return the number of messages in every lane.
+     */
+    public int size(){
+        int size = 0;
+        for(int i = 0; i < LANE_COUNT; i++)
+            size += mLanes[i].size();
+        return size;
+    }
+
+
+    /**
+     * Spins, then parks until a message is offered, the deadline passes or the thread is
+     * interrupted. Parking can also end for no reason, so callers check again.
+     *
+     * @param deadline System.nanoTime() at which to stop waiting, 0 to wait without a deadline
+     * @return a message, null if none was offered before waking.
+     * @throws InterruptedException if the thread was interrupted
+     */
+    private BT_Message await(long deadline) throws InterruptedException{
+        BT_Message message;
+        for(int i = 0; i < mSpinsBeforePark; i++){
+            if( (message = poll()) != null )
+                return message;
+            Thread.yield();
+        }
+
+        //published before checking the lanes again, so an offer either is seen or unparks us
+        mWaiter = Thread.currentThread();
+        try {
+            if( (message = poll()) != null )
+                return message;
+
+            if(deadline == 0)
+                LockSupport.park(this);
+            else
+                LockSupport.parkNanos(this, deadline - System.nanoTime());
+        }finally {
+            mWaiter = null;
+        }
+
+        if(Thread.interrupted())
+            throw new InterruptedException();
+        return poll();
+    }
+}
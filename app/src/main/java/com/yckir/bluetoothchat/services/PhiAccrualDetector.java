@@ -0,0 +1,94 @@
+package com.yckir.bluetoothchat.services;
+
+/**
+ * A phi accrual failure detector. Instead of deciding that a remote device is dead after a
+ * fixed time, it gives a suspicion level phi that grows the longer the device is silent,
+ * measured against the times it has taken to be heard from before. A phi of 1 means a 10%
+ * chance that the device would still be heard from, 2 a 1% chance, 3 a 0.1% chance and so on.
+ * The caller picks the phi that counts as failed. A link that has always been quick is
+ * suspected soon, a link that varies a lot is given longer.
+ * <p>
+ * The samples are assumed to be normally distributed, and the tail of the distribution is
+ * approximated with a logistic function as in the phi accrual detector of Hayashibara et al.
+ * Samples and phi() may be called from different threads.
+ */
+class PhiAccrualDetector {
+
+    //number of recent samples the distribution is taken from
+    public static final int DEFAULT_WINDOW = 100;
+
+    private final long[] mSamples;
+    //the standard deviation is never taken to be smaller than this, so a link whose samples
+    //are all the same is not suspected the moment it is late
+    private final double mMinStdDeviation;
+    private int mCount;
+    private int mNext;
+    private long mSum;
+    private double mSumOfSquares;
+
+
+    /**
+     * @param window number of recent samples the distribution is taken from
+     * @param minStdDeviation smallest standard deviation used, in the unit of the samples
+     */
+    public PhiAccrualDetector(int window, double minStdDeviation){
+        if(window <= 0)
+            throw new IllegalArgumentException(window + " is not a valid window");
+        if(minStdDeviation <= 0)
+            throw new IllegalArgumentException(minStdDeviation + " is not a valid standard deviation");
+
+        mSamples = new long[window];
+        mMinStdDeviation = minStdDeviation;
+    }
+
+
+    /**
+     * Adds a time the remote device took to be heard from. The oldest sample is dropped once
+     * the window is full.
+     *
+     * @param sample the time, not negative
+     */
+    public synchronized void addSample(long sample){
+        if(sample < 0)
+            throw new IllegalArgumentException(sample + " is not a valid sample");
+
+        if(mCount == mSamples.length){
+            long oldest = mSamples[mNext];
+            mSum -= oldest;
+            mSumOfSquares -= (double) oldest * oldest;
+        }else{
+            mCount++;
+        }
+        mSamples[mNext] = sample;
+        mNext = (mNext + 1) % mSamples.length;
+        mSum += sample;
+        mSumOfSquares += (double) sample * sample;
+    }
+
+
+    /**
+     * @param elapsed the time the remote device has been silent for, in the unit of the samples
+     * @return the suspicion level, 0 while elapsed is well within the samples and growing
+     *         without bound as it passes them. Infinity once the chance of the device still
+     *         being heard from is too small to represent.
+     */
+    public synchronized double phi(long elapsed){
+        double mean = mCount == 0 ? 0 : (double) mSum / mCount;
+        double variance = mCount == 0 ? 0 : mSumOfSquares / mCount - mean * mean;
+        double stdDeviation = Math.max(Math.sqrt(Math.max(variance, 0)), mMinStdDeviation);
+
+        double y = (elapsed - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if(elapsed > mean)
+            return -Math.log10(e / (1 + e));
+        return -Math.log10(1 - 1 / (1 + e));
+    }
+
+
+    /**
+     * @return the number of samples in the window.
+     */
+    public synchronized int getSampleCount(){
+        return mCount;
+    }
+}
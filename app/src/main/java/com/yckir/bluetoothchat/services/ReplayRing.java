@@ -0,0 +1,175 @@
+package com.yckir.bluetoothchat.services;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.yckir.bluetoothchat.services.messages.BT_Message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last app messages written on a session, kept so that the ones the remote device did not
+ * read before the connection failed can be written again on the connection that resumes it. Every
+ * message written is counted, and the remote device gives the count of the messages it read, so
+ * the difference is the number of messages at the end of the ring that were lost. Messages that
+ * were still queued when the connection failed are kept too, and follow the lost ones.
+ * <p>
+ * The ring holds a reference to each message it keeps. Messages are written by the write task
+ * and replayed from the thread that reads the resume, so every method is synchronized.
+ */
+class ReplayRing {
+
+    private final BT_Message[] mMessages;
+    //number of messages written in the session, wraps around like the counts sent in BT_MessageResume
+    private int mWrittenCount;
+    //number of messages in mMessages
+    private int mSize;
+    //index in mMessages the next message written is kept at
+    private int mNext;
+    //messages handed out by replay() that have not been written again yet
+    private final ArrayList<BT_Message> mReplaying;
+    //messages that were queued but never written, in the order they were taken from the queue
+    private final ArrayList<BT_Message> mUnsent;
+    //true once the session has ended, messages given to the ring after that are released
+    private boolean mCleared;
+    //the code the session ended with
+    private int mCloseCode;
+
+
+    /**
+     * @param capacity most messages the ring keeps, older messages can not be replayed
+     */
+    public ReplayRing(int capacity){
+        if(capacity <= 0)
+            throw new IllegalArgumentException(capacity + " is not a valid capacity");
+        mMessages = new BT_Message[capacity];
+        mReplaying = new ArrayList<>();
+        mUnsent = new ArrayList<>();
+    }
+
+
+    /**
+     * Records an app message that was written. A message that is being replayed was already
+     * counted and is only taken off the replay list. Any other message is retained and kept in
+     * place of the oldest message once the ring is full.
+     *
+     * @param message the message that was written
+     */
+    public synchronized void written(@NonNull BT_Message message){
+        if(mCleared)
+            return;
+        for(int i = 0; i < mReplaying.size(); i++){
+            if(mReplaying.get(i) == message){
+                mReplaying.remove(i);
+                return;
+            }
+        }
+
+        BT_Message oldest = mMessages[mNext];
+        if(oldest != null){
+            mReplaying.remove(oldest);
+            oldest.recycle();
+        }
+        message.retain();
+        mMessages[mNext] = message;
+        mNext = (mNext + 1) % mMessages.length;
+        mWrittenCount++;
+        mSize = Math.min(mSize + 1, mMessages.length);
+    }
+
+
+    /**
+     * Keeps an app message that was queued on a connection that failed before it was written.
+     * It is sent after the replayed messages when the session is resumed.
+     *
+     * @param message the message, the reference of the caller is given to the ring
+     */
+    public synchronized void unsent(@NonNull BT_Message message){
+        if(mCleared){
+            release(message);
+            return;
+        }
+        mUnsent.add(message);
+    }
+
+
+    /**
+     * Finds the messages the remote device did not read, followed by the messages that were never
+     * written. Each returned message has been retained for the caller, who queues it on the
+     * connection that resumes the session. Replaying again replaces the previous replay, the
+     * messages of a connection that failed while replaying are found again.
+     *
+     * @param readCount the number of app messages the remote device has read in the session
+     * @return the messages written after the first readCount, oldest first, then the unsent
+     *         messages. Null if the remote device claims to have read more than was written, or
+     *         missed messages the ring no longer has.
+     */
+    public synchronized @Nullable List<BT_Message> replay(int readCount){
+        int missing = mWrittenCount - readCount;
+        if(mCleared || missing < 0 || missing > mSize)
+            return null;
+
+        mReplaying.clear();
+        List<BT_Message> messages = new ArrayList<>(missing);
+        for(int i = missing; i > 0; i--){
+            BT_Message message = mMessages[(mNext - i + mMessages.length) % mMessages.length];
+            message.retain();
+            messages.add(message);
+            mReplaying.add(message);
+        }
+        messages.addAll(mUnsent);
+        mUnsent.clear();
+        return messages;
+    }
+
+
+    /**
+     * @return the number of app messages written in the session, wrapping around.
+     */
+    public synchronized int getWrittenCount(){
+        return mWrittenCount;
+    }
+
+
+    /**
+     * @return the number of messages the ring keeps.
+     */
+    public synchronized int size(){
+        return mSize;
+    }
+
+
+    /**
+     * Releases every message once the session has ended. The write listeners of the messages
+     * are failed, which does nothing to listeners that were already told the message was written.
+     *
+     * @param closeCode the code the session ended with
+     */
+    public synchronized void clear(int closeCode){
+        mCleared = true;
+        mCloseCode = closeCode;
+        for(int i = 0; i < mMessages.length; i++){
+            if(mMessages[i] != null)
+                release(mMessages[i]);
+            mMessages[i] = null;
+        }
+        for(int i = 0; i < mUnsent.size(); i++)
+            release(mUnsent.get(i));
+        mUnsent.clear();
+        mReplaying.clear();
+        mSize = 0;
+    }
+
+
+    /**
+     * Fails the write listener of a message of the ended session and recycles it. Must hold the lock.
+     *
+     * @param message the message to release
+     */
+    private void release(BT_Message message){
+        if(message.getWriteListener() != null)
+            message.getWriteListener().onWriteFailed(mCloseCode);
+        message.recycle();
+    }
+}
@@ -0,0 +1,62 @@
+package com.yckir.bluetoothchat.services;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Collects the round trip times of one connection, measured from the echo token of each hello to
+ * the reply that carries it back. Keeps a smoothed average and variance the same way TCP does,
+ * the min and max of every sample, and the last SAMPLE_WINDOW samples for percentiles. Samples
+ * are added by the read task and read with getStats() from any thread.
+ */
+class RttEstimator {
+
+    //number of recent samples percentiles are taken from
+    public static final int SAMPLE_WINDOW = 64;
+
+    private final long[] mWindow;
+    //total number of samples, the next one is written at mCount % SAMPLE_WINDOW
+    private long mCount;
+    private long mSmoothed;
+    private long mVariance;
+    private long mMin;
+    private long mMax;
+
+
+    public RttEstimator(){
+        mWindow = new long[SAMPLE_WINDOW];
+    }
+
+
+    /**
+     * @param rtt a round trip time in microseconds
+     */
+    public synchronized void addSample(long rtt){
+        if(rtt < 0)
+            throw new IllegalArgumentException(rtt + " is not a valid round trip time");
+
+        if(mCount == 0){
+            mSmoothed = rtt;
+            mVariance = rtt / 2;
+            mMin = rtt;
+            mMax = rtt;
+        }else{
+            mVariance += (Math.abs(rtt - mSmoothed) - mVariance) >> 2;
+            mSmoothed += (rtt - mSmoothed) >> 3;
+            mMin = Math.min(mMin, rtt);
+            mMax = Math.max(mMax, rtt);
+        }
+        mWindow[(int) (mCount % SAMPLE_WINDOW)] = rtt;
+        mCount++;
+    }
+
+
+    /**
+     * @return a copy of the statistics collected so far.
+     */
+    public synchronized @NonNull RttStats getStats(){
+        int windowSize = (int) Math.min(mCount, SAMPLE_WINDOW);
+        long[] window = new long[windowSize];
+        System.arraycopy(mWindow, 0, window, 0, windowSize);
+        return new RttStats(mCount, mSmoothed, mVariance, mMin, mMax, window);
+    }
+}
@@ -0,0 +1,116 @@
+package com.yckir.bluetoothchat.services;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The round trip times of a connection at the moment they were read with
+ * BluetoothBinder.getRttStats(). Every hello the service sends carries an echo token that the
+ * remote device returns in its reply, and the time between the two is one sample. Hellos are
+ * only sent to connections that go quiet, so a busy connection gets few samples.
+ */
+public class RttStats {
+
+    private final long mSampleCount;
+    private final long mSmoothed;
+    private final long mVariance;
+    private final long mMin;
+    private final long mMax;
+    //the most recent samples, sorted
+    private final long[] mRecent;
+
+
+    /**
+     * All times are in microseconds.
+     *
+     * @param sampleCount number of samples ever taken
+     * @param smoothed smoothed average of the samples
+     * @param variance smoothed mean deviation of the samples
+     * @param min smallest sample
+     * @param max largest sample
+     * @param recent the most recent samples, owned by this object
+     */
+    RttStats(long sampleCount, long smoothed, long variance, long min, long max, @NonNull long[] recent){
+        mSampleCount = sampleCount;
+        mSmoothed = smoothed;
+        mVariance = variance;
+        mMin = min;
+        mMax = max;
+        mRecent = recent;
+        Arrays.sort(mRecent);
+    }
+
+
+    /**
+     * @return the number of round trips that have been measured. The other values are 0 while
+     *         this is 0.
+     */
+    public long getSampleCount(){
+        return mSampleCount;
+    }
+
+
+    /**
+     * @param unit unit of the result
+     * @return the average round trip time, weighted toward recent samples.
+     */
+    public long getSmoothed(@NonNull TimeUnit unit){
+        return unit.convert(mSmoothed, TimeUnit.MICROSECONDS);
+    }
+
+
+    /**
+     * @param unit unit of the result
+     * @return the average difference between a sample and the smoothed round trip time.
+     */
+    public long getVariance(@NonNull TimeUnit unit){
+        return unit.convert(mVariance, TimeUnit.MICROSECONDS);
+    }
+
+
+    /**
+     * @param unit unit of the result
+     * @return the shortest round trip time measured.
+     */
+    public long getMin(@NonNull TimeUnit unit){
+        return unit.convert(mMin, TimeUnit.MICROSECONDS);
+    }
+
+
+    /**
+     * @param unit unit of the result
+     * @return the longest round trip time measured.
+     */
+    public long getMax(@NonNull TimeUnit unit){
+        return unit.convert(mMax, TimeUnit.MICROSECONDS);
+    }
+
+
+    /**
+     * Finds a percentile of the last RttEstimator.SAMPLE_WINDOW samples using the nearest rank.
+     *
+     * @param percent the percentile, from 1 to 100
+     * @param unit unit of the result
+     * @return the round trip time that percent of the recent samples are at or below, 0 if
+     *         there are no samples.
+     */
+    public long getPercentile(int percent, @NonNull TimeUnit unit){
+        if(percent < 1 || percent > 100)
+            throw new IllegalArgumentException(percent + " is not a valid percentile");
+        if(mRecent.length == 0)
+            return 0;
+
+        int rank = (percent * mRecent.length + 99) / 100;
+        return unit.convert(mRecent[rank - 1], TimeUnit.MICROSECONDS);
+    }
+
+
+    @Override
+    public String toString() {
+        return "RttStats{samples=" + mSampleCount + ", smoothed=" + mSmoothed + "us, min=" + mMin
+                + "us, max=" + mMax + "us, p50=" + getPercentile(50, TimeUnit.MICROSECONDS)
+                + "us, p99=" + getPercentile(99, TimeUnit.MICROSECONDS) + "us}";
+    }
+}
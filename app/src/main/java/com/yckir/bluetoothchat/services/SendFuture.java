@@ -0,0 +1,375 @@
+package com.yckir.bluetoothchat.services;
+
+import android.support.annotation.NonNull;
+
+import com.yckir.bluetoothchat.services.messages.BT_Message;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an app message sent with BluetoothBinder.writeMessageAsync(). A message that
+ * can not be sent yet, because the remote device has not given enough credits, waits in the
+ * order it was sent until credits arrive. The future then completes with true once the message
+ * has been queued to be written, or with false if it was not, for example because the
+ * connection closed first. A message that is still waiting can be cancelled.
+ * <p>
+ * A queued message is tracked until the write task has flushed it to the stream of the
+ * connection. awaitWritten() and the Listener report when that happens, or the close code of
+ * the connection if it closed first, and getLatency() gives the time the message spent between
+ * being queued and being written.
+ */
+public class SendFuture implements Future<Boolean> {
+
+    private static final int STATE_WAITING = 0;
+    //claimed by the thread that is queueing the message, it can no longer be cancelled
+    private static final int STATE_SENDING = 1;
+    private static final int STATE_ACCEPTED = 2;
+    private static final int STATE_REJECTED = 3;
+    private static final int STATE_CANCELLED = 4;
+
+    private static final int WRITE_PENDING = 0;
+    private static final int WRITE_SUCCEEDED = 1;
+    private static final int WRITE_FAILED = 2;
+
+    private final BT_Message mMessage;
+    private final int mLane;
+    private int mState;
+    private int mWriteState;
+    //code of the connection if it closed before the message was written, 0 if it was never queued
+    private int mCloseCode;
+    //System.nanoTime() when the message was queued and when it was written
+    private long mQueuedTime;
+    private long mWrittenTime;
+    private Listener mListener;
+
+
+    /**
+     * Listener of a send, called once the message has been written or has failed to be. It is
+     * called on the thread that finished the send, usually the write task of the connection,
+     * so it must return quickly.
+     */
+    public interface Listener {
+
+        /**
+         * @param send the send whose message was flushed to the connection
+         */
+        void onWritten(SendFuture send);
+
+        /**
+         * @param send the send whose message was not written
+         * @param closeCode the code the connection was closed with, 0 if the message was never
+         *                  queued
+         */
+        void onFailed(SendFuture send, int closeCode);
+    }
+
+
+    /**
+     * @param message the message that is sent, owned by the future until it is queued
+     * @param lane the OutboundQueue lane the message is written from
+     */
+    SendFuture(@NonNull BT_Message message, int lane){
+        this(message, lane, true);
+    }
+
+
+    /**
+     * @param message the message that is sent, owned by the future until it is queued
+     * @param lane the OutboundQueue lane the message is written from
+     * @param trackWrite false for a message that is shared by several connections, whose writes
+     *                   can not be told apart. Only whether it was queued is reported then.
+     */
+    SendFuture(@NonNull BT_Message message, int lane, boolean trackWrite){
+        mMessage = message;
+        mLane = lane;
+        mState = STATE_WAITING;
+        mWriteState = WRITE_PENDING;
+        if(!trackWrite)
+            return;
+        message.setWriteListener(new BT_Message.WriteListener() {
+            @Override
+            public void onWritten() {
+                written();
+            }
+
+            @Override
+            public void onWriteFailed(int closeCode) {
+                finishWrite(false, closeCode);
+            }
+        });
+    }
+
+
+    /**
+     * @return the message that is sent.
+     */
+    BT_Message getMessage(){
+        return mMessage;
+    }
+
+
+    /**
+     * @return the OutboundQueue lane the message is written from.
+     */
+    int getLane(){
+        return mLane;
+    }
+
+
+    /**
+     * Takes the message so that it can be queued. Fails if the future was cancelled.
+     *
+     * @return true if the caller now queues the message, false if the future was cancelled.
+     */
+    synchronized boolean claim(){
+        if(mState != STATE_WAITING)
+            return false;
+        mState = STATE_SENDING;
+        return true;
+    }
+
+
+    /**
+     * Completes the future and wakes the threads waiting for it. A rejected message has also
+     * failed to be written.
+     *
+     * @param accepted true if the message was queued to be written
+     */
+    void complete(boolean accepted){
+        synchronized (this){
+            if(mState >= STATE_ACCEPTED)
+                return;
+            mState = accepted ? STATE_ACCEPTED : STATE_REJECTED;
+            notifyAll();
+        }
+        if(!accepted)
+            finishWrite(false, 0);
+    }
+
+
+    /**
+     * Records the time the message is queued. Called right before it is offered to the queue,
+     * since the write task can write it as soon as it is there.
+     */
+    synchronized void queued(){
+        mQueuedTime = System.nanoTime();
+    }
+
+
+    /**
+     * Records the time the message was written, called by the write task after the flush.
+     */
+    private void written(){
+        long now = System.nanoTime();
+        synchronized (this){
+            mWrittenTime = now;
+        }
+        finishWrite(true, 0);
+    }
+
+
+    /**
+     * Finishes the write of the message and calls the listener.
+     *
+     * @param written true if the message was written
+     * @param closeCode the code the connection closed with if it was not
+     */
+    private void finishWrite(boolean written, int closeCode){
+        Listener listener;
+        synchronized (this){
+            if(mWriteState != WRITE_PENDING)
+                return;
+            mWriteState = written ? WRITE_SUCCEEDED : WRITE_FAILED;
+            mCloseCode = closeCode;
+            listener = mListener;
+            notifyAll();
+        }
+        if(listener != null)
+            callListener(listener);
+    }
+
+
+    /**
+     * Must not hold the lock and be written or failed.
+     */
+    private void callListener(Listener listener){
+        if(isWritten())
+            listener.onWritten(this);
+        else
+            listener.onFailed(this, getCloseCode());
+    }
+
+
+    /**
+     * Sets the listener that is called once the message has been written or has failed to be.
+     * It is called right away on this thread if that has already happened.
+     *
+     * @param listener the listener, replaces any earlier one
+     */
+    public void setListener(@NonNull Listener listener){
+        synchronized (this){
+            mListener = listener;
+            if(mWriteState == WRITE_PENDING)
+                return;
+        }
+        callListener(listener);
+    }
+
+
+    /**
+     * Waits until the message has been written or has failed to be.
+     *
+     * @return true if the message was flushed to the connection, false if it was rejected,
+     *         cancelled or the connection closed first.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitWritten() throws InterruptedException{
+        while(mWriteState == WRITE_PENDING)
+            wait();
+        return mWriteState == WRITE_SUCCEEDED;
+    }
+
+
+    /**
+     * Waits up to the timeout for the message to be written or to fail to be.
+     *
+     * @param timeout longest time to wait
+     * @param unit unit of timeout
+     * @return true if the message was flushed to the connection, false if it was rejected,
+     *         cancelled or the connection closed first.
+     * @throws InterruptedException if interrupted while waiting
+     * @throws TimeoutException if the message has not been written once the timeout has passed
+     */
+    public synchronized boolean awaitWritten(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException, TimeoutException{
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(mWriteState == WRITE_PENDING){
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0)
+                throw new TimeoutException("message not written yet");
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return mWriteState == WRITE_SUCCEEDED;
+    }
+
+
+    /**
+     * @return true once the message has been written or has failed to be.
+     */
+    public synchronized boolean isWriteDone(){
+        return mWriteState != WRITE_PENDING;
+    }
+
+
+    /**
+     * @return true if the message was flushed to the connection.
+     */
+    public synchronized boolean isWritten(){
+        return mWriteState == WRITE_SUCCEEDED;
+    }
+
+
+    /**
+     * @return the code the connection closed with before the message was written, 0 if the
+     *         message was written, is still pending or was never queued.
+     */
+    public synchronized int getCloseCode(){
+        return mCloseCode;
+    }
+
+
+    /**
+     * The time from the message being queued to it being flushed to the connection. Time spent
+     * waiting for credits is not included.
+     *
+     * @param unit unit of the result
+     * @return the latency of the message, -1 if it has not been written.
+     */
+    public synchronized long getLatency(@NonNull TimeUnit unit){
+        if(mWriteState != WRITE_SUCCEEDED)
+            return -1;
+        return unit.convert(mWrittenTime - mQueuedTime, TimeUnit.NANOSECONDS);
+    }
+
+
+    /**
+     * Cancels a message that is still waiting for credits. The message is dropped the next time
+     * credits arrive or when the connection closes.
+     *
+     * @param mayInterruptIfRunning ignored, nothing runs on behalf of a future
+     * @return true if the message was cancelled, false if it was already queued or rejected.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this){
+            if(mState != STATE_WAITING)
+                return false;
+            mState = STATE_CANCELLED;
+            notifyAll();
+        }
+        finishWrite(false, 0);
+        return true;
+    }
+
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == STATE_CANCELLED;
+    }
+
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState >= STATE_ACCEPTED;
+    }
+
+
+    /**
+     * Waits until the message has been queued or rejected.
+     *
+     * @return true if the message was queued to be written, false if it was rejected.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public synchronized Boolean get() throws InterruptedException {
+        while(mState < STATE_ACCEPTED)
+            wait();
+        return result();
+    }
+
+
+    /**
+     * Waits up to the timeout for the message to be queued or rejected. The message keeps
+     * waiting for credits after a timeout unless it is cancelled.
+     *
+     * @param timeout longest time to wait
+     * @param unit unit of timeout
+     * @return true if the message was queued to be written, false if it was rejected.
+     * @throws InterruptedException if interrupted while waiting
+     * @throws TimeoutException if the message is still waiting once the timeout has passed
+     */
+    @Override
+    public synchronized Boolean get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(mState < STATE_ACCEPTED){
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0)
+                throw new TimeoutException("message still waiting for credits");
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+
+    /**
+     * Must hold the lock and be done.
+     */
+    private boolean result(){
+        if(mState == STATE_CANCELLED)
+            throw new CancellationException("message was cancelled");
+        return mState == STATE_ACCEPTED;
+    }
+}
@@ -27,6 +27,14 @@ public class ServiceUtility {
     public static final int CLOSE_SAY_GOODBYE              = 106;
     public static final int CLOSE_GET_GOODBYE              = 107;
 
+    //app messages are written before lower priorities but after the service's own control
+    //messages. Interactive messages are written before bulk ones that were queued earlier
+    @IntDef({PRIORITY_INTERACTIVE, PRIORITY_BULK})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface PRIORITY {}
+    public static final int PRIORITY_INTERACTIVE           = 1;
+    public static final int PRIORITY_BULK                  = 2;
+
 
     /**
      * checks if the parameter is a valid close code. Necessary because
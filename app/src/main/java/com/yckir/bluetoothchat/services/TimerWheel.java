@@ -0,0 +1,233 @@
+package com.yckir.bluetoothchat.services;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+
+/**
+ * A hashed timer wheel. Time is cut into ticks, and every timer is kept in the bucket of the
+ * tick its deadline falls in, so scheduling and cancelling take constant time however many
+ * timers there are. Each advance() only looks at the buckets of the ticks that passed. A
+ * deadline further away than one turn of the wheel waits in its bucket for the turns that are
+ * left. Timers fire within a tick after their deadline.
+ * <p>
+ * Not thread safe, the service only uses it on the control thread. Times are in milliseconds
+ * from the same clock, usually SystemClock.uptimeMillis().
+ */
+class TimerWheel {
+
+    private final int mTickLength;
+    private final int mMask;
+    //sentinel of the doubly linked list of timers in each bucket
+    private final Timeout[] mBuckets;
+    private final long mStartTime;
+    //the next tick whose bucket has not been processed
+    private long mTick;
+    private int mSize;
+    //timers that expired during advance(), run once the bucket has been processed
+    private final ArrayList<Timeout> mExpired;
+
+
+    /**
+     * A scheduled timer, used to cancel it.
+     */
+    public static final class Timeout {
+        private final Runnable mTask;
+        private final long mDeadline;
+        //end of the tick whose bucket fires the timer
+        private long mFireTime;
+        //turns of the wheel left before the timer's bucket is the one that fires it
+        private long mRounds;
+        private Timeout mPrevious;
+        private Timeout mNext;
+        //true while the timer has expired and waits to be run by advance()
+        private boolean mExpiring;
+
+
+        private Timeout(Runnable task, long deadline){
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+
+        /**
+         * @return the time the timer fires at.
+         */
+        public long getDeadline(){
+            return mDeadline;
+        }
+
+
+        /**
+         * @return the time advance() has to be called at for the timer to fire, up to a tick
+         *         after its deadline.
+         */
+        public long getFireTime(){
+            return mFireTime;
+        }
+
+
+        /**
+         * @return true if the timer is waiting to fire.
+         */
+        public boolean isPending(){
+            return mNext != null || mExpiring;
+        }
+
+
+        private void unlink(){
+            mPrevious.mNext = mNext;
+            mNext.mPrevious = mPrevious;
+            mPrevious = null;
+            mNext = null;
+        }
+    }
+
+
+    /**
+     * @param now the current time, ticks are counted from it
+     * @param tickLength milliseconds in a tick
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(long now, int tickLength, int wheelSize){
+        if(tickLength <= 0)
+            throw new IllegalArgumentException(tickLength + " is not a valid tick length");
+        if(wheelSize <= 0 || wheelSize > 1 << 30)
+            throw new IllegalArgumentException(wheelSize + " is not a valid wheel size");
+
+        int buckets = 1;
+        while(buckets < wheelSize)
+            buckets <<= 1;
+
+        mTickLength = tickLength;
+        mMask = buckets - 1;
+        mBuckets = new Timeout[buckets];
+        for(int i = 0; i < buckets; i++){
+            Timeout sentinel = new Timeout(null, 0);
+            sentinel.mPrevious = sentinel;
+            sentinel.mNext = sentinel;
+            mBuckets[i] = sentinel;
+        }
+        mStartTime = now;
+        mExpired = new ArrayList<>();
+    }
+
+
+    /**
+     * Schedules a task. A deadline that has already passed fires on the next advance().
+     *
+     * @param task run by advance() once the deadline has passed
+     * @param deadline the time to run the task at
+     * @return the timer, used to cancel it.
+     */
+    public @NonNull Timeout schedule(@NonNull Runnable task, long deadline){
+        Timeout timeout = new Timeout(task, deadline);
+
+        long tick = Math.max((deadline - mStartTime) / mTickLength, mTick);
+        timeout.mRounds = (tick - mTick) / mBuckets.length;
+        timeout.mFireTime = getTickEnd(tick);
+
+        Timeout sentinel = mBuckets[(int) (tick & mMask)];
+        timeout.mPrevious = sentinel.mPrevious;
+        timeout.mNext = sentinel;
+        sentinel.mPrevious.mNext = timeout;
+        sentinel.mPrevious = timeout;
+        mSize++;
+        return timeout;
+    }
+
+
+    /**
+     * Stops a timer from firing.
+     *
+     * @param timeout the timer to cancel, may be null
+     * @return true if the timer was cancelled, false if it had already fired or been cancelled.
+     */
+    public boolean cancel(Timeout timeout){
+        if(timeout == null || !timeout.isPending())
+            return false;
+        //expired in the same tick as the task cancelling it, so it is only kept from running
+        if(timeout.mExpiring){
+            timeout.mExpiring = false;
+            return true;
+        }
+        timeout.unlink();
+        mSize--;
+        return true;
+    }
+
+
+    /**
+     * Processes the buckets of every tick that has passed and runs the timers that expired, in
+     * the order of their ticks. Tasks may schedule and cancel timers.
+     *
+     * @param now the current time
+     * @return the number of tasks that were run.
+     */
+    public int advance(long now){
+        int run = 0;
+        while(getTickEnd(mTick) <= now){
+            Timeout sentinel = mBuckets[(int) (mTick & mMask)];
+            Timeout timeout = sentinel.mNext;
+            while(timeout != sentinel){
+                Timeout next = timeout.mNext;
+                if(timeout.mRounds > 0){
+                    timeout.mRounds--;
+                }else{
+                    timeout.unlink();
+                    mSize--;
+                    timeout.mExpiring = true;
+                    mExpired.add(timeout);
+                }
+                timeout = next;
+            }
+            mTick++;
+
+            for(int i = 0; i < mExpired.size(); i++){
+                Timeout expired = mExpired.get(i);
+                if(!expired.mExpiring)
+                    continue;
+                expired.mExpiring = false;
+                expired.mTask.run();
+                run++;
+            }
+            mExpired.clear();
+        }
+        return run;
+    }
+
+
+    /**
+     * Finds the next tick whose bucket has a timer, so that the caller can sleep through the
+     * ticks that have nothing to do. Looks at up to every bucket of the wheel. A timer that is
+     * more than a turn away makes its bucket count on every turn before its own.
+     *
+     * @return the time advance() should next be called at, -1 if there are no timers.
+     */
+    public long getNextTickTime(){
+        if(mSize == 0)
+            return -1;
+        for(long tick = mTick; ; tick++){
+            Timeout sentinel = mBuckets[(int) (tick & mMask)];
+            if(sentinel.mNext != sentinel)
+                return getTickEnd(tick);
+        }
+    }
+
+
+    /**
+     * @return the number of timers waiting to fire.
+     */
+    public int size(){
+        return mSize;
+    }
+
+
+    /**
+     * @param tick a tick counted from the start time
+     * @return the time the tick ends, once every deadline in it has passed.
+     */
+    private long getTickEnd(long tick){
+        return mStartTime + (tick + 1) * mTickLength;
+    }
+}
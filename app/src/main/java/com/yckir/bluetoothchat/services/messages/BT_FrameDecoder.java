@@ -0,0 +1,209 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Rebuilds length prefixed frames from a stream of bytes. A stream does not keep the boundaries
+ * of the writes that were made to it, so a single read can contain part of a frame or several
+ * frames. Bytes are added with readFrom() or append(), and every complete frame is removed with
+ * nextFrame() until it returns null, or handled in place with peekFrameLength() and skipFrame().
+ * Incomplete frames are kept until the rest of their bytes arrive. The buffer never holds more
+ * than the max frame length, so complete frames should be removed before more bytes are added.
+ */
+public class BT_FrameDecoder {
+
+    private final int mMaxFrameLength;
+    private byte[] mBuffer;
+    //index of the first byte that has not been returned as part of a frame
+    private int mStart;
+    //index after the last byte that has been added
+    private int mEnd;
+
+
+    /**
+     * Creates a decoder. The buffer starts at the initial capacity and grows when a frame does
+     * not fit, but never past maxFrameLength.
+     *
+     * @param initialCapacity starting size of the buffer
+     * @param maxFrameLength largest frame that can be decoded, including the length prefix
+     */
+    public BT_FrameDecoder(int initialCapacity, int maxFrameLength){
+        if(maxFrameLength < BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID
+                || maxFrameLength > BT_MessageUtility.MAX_FRAME_LENGTH)
+            throw new IllegalArgumentException(maxFrameLength + " is not a valid max frame length");
+        if(initialCapacity < BT_MessageUtility.LENGTH_PREFIX)
+            throw new IllegalArgumentException(initialCapacity + " is not a valid capacity");
+
+        mMaxFrameLength = maxFrameLength;
+        mBuffer = new byte[Math.min(initialCapacity, maxFrameLength)];
+        mStart = 0;
+        mEnd = 0;
+    }
+
+
+    /**
+     * Performs a single read from the stream directly into the free space of the buffer.
+     *
+     * @param inputStream stream that will be read from
+     * @return the number of bytes read, -1 if the end of the stream has been reached.
+     * @throws IOException if the stream could not be read
+     */
+    public int readFrom(@NonNull InputStream inputStream) throws IOException{
+        makeRoom(1);
+        int numBytes = inputStream.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if(numBytes > 0)
+            mEnd += numBytes;
+        return numBytes;
+    }
+
+
+    /**
+     * Adds bytes to the end of the buffer.
+     *
+     * @param b array that holds the bytes
+     * @param offset index of the first byte to be added
+     * @param length number of bytes to be added
+     */
+    public void append(@NonNull byte[] b, int offset, int length){
+        if(offset < 0 || length < 0 || offset + length > b.length)
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", size " + b.length);
+
+        while(length > 0){
+            makeRoom(1);
+            int count = Math.min(length, mBuffer.length - mEnd);
+            System.arraycopy(b, offset, mBuffer, mEnd, count);
+            mEnd += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+
+    /**
+     * Removes the next complete frame from the buffer.
+     *
+     * @return the next frame including its length prefix, null if a whole frame has not been added yet.
+     * @throws IOException if the length prefix describes a frame that can not be valid, the stream
+     * can not be trusted after this happens.
+     */
+    public @Nullable byte[] nextFrame() throws IOException{
+        int frameLength = peekFrameLength();
+        if(frameLength < 0)
+            return null;
+
+        byte[] frame = Arrays.copyOfRange(mBuffer, mStart, mStart + frameLength);
+        skipFrame();
+        return frame;
+    }
+
+
+    /**
+     * Checks if the next frame is complete without removing it. A complete frame can be read from
+     * getBuffer() starting at getFrameOffset() until skipFrame() is called, so it can be handled
+     * without being copied out of the buffer.
+     *
+     * @return length of the next frame including its length prefix, -1 if a whole frame has not been added yet.
+     * @throws IOException if the length prefix describes a frame that can not be valid, the stream
+     * can not be trusted after this happens.
+     */
+    public int peekFrameLength() throws IOException{
+        int frameLength = pendingFrameLength();
+        if(frameLength < 0 || mEnd - mStart < frameLength)
+            return -1;
+        return frameLength;
+    }
+
+
+    /**
+     * The buffer is replaced when it grows, so this should be called again after bytes are added.
+     *
+     * @return the array that holds the buffered bytes.
+     */
+    public byte[] getBuffer(){
+        return mBuffer;
+    }
+
+
+    /**
+     * @return index in getBuffer() of the first byte of the next frame.
+     */
+    public int getFrameOffset(){
+        return mStart;
+    }
+
+
+    /**
+     * Removes the next frame from the buffer without copying it. Does nothing if a whole frame
+     * has not been added yet.
+     *
+     * @throws IOException if the length prefix describes a frame that can not be valid.
+     */
+    public void skipFrame() throws IOException{
+        int frameLength = peekFrameLength();
+        if(frameLength < 0)
+            return;
+
+        mStart += frameLength;
+        if(mStart == mEnd){
+            mStart = 0;
+            mEnd = 0;
+        }
+    }
+
+
+    /**
+     * @return the number of bytes that have been added but not returned as part of a frame.
+     */
+    public int getBufferedLength(){
+        return mEnd - mStart;
+    }
+
+
+    /**
+     * Reads the length prefix of the frame at the start of the buffer.
+     *
+     * @return length of the frame including the prefix, -1 if the prefix has not been added yet.
+     * @throws IOException if the prefix is too small or too large for a frame.
+     */
+    private int pendingFrameLength() throws IOException{
+        if(mEnd - mStart < BT_MessageUtility.LENGTH_PREFIX)
+            return -1;
+
+        int frameLength = BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.getShort(mBuffer, mStart);
+        if(frameLength < BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID || frameLength > mMaxFrameLength)
+            throw new IOException("invalid frame length " + frameLength);
+        return frameLength;
+    }
+
+
+    /**
+     * Makes sure there is free space at the end of the buffer. Bytes that have already been
+     * returned as frames are discarded first, and the buffer only grows if the pending frame
+     * can not fit in it.
+     *
+     * @param minFree the number of free bytes that are needed
+     */
+    private void makeRoom(int minFree){
+        if(mBuffer.length - mEnd >= minFree)
+            return;
+
+        if(mStart > 0){
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+            mEnd -= mStart;
+            mStart = 0;
+            if(mBuffer.length - mEnd >= minFree)
+                return;
+        }
+
+        int needed = mEnd + minFree;
+        if(needed > mMaxFrameLength)
+            throw new IllegalStateException("buffer can not hold more than " + mMaxFrameLength + " bytes");
+        int newLength = Math.min(Math.max(needed, mBuffer.length * 2), mMaxFrameLength);
+        mBuffer = Arrays.copyOf(mBuffer, newLength);
+    }
+}
@@ -0,0 +1,109 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Writes frames with their body compressed by a Deflater. A frame written this way has
+ * BT_MessageUtility.FLAG_COMPRESSED set in its type field and must be expanded with a
+ * BT_FrameInflater before it is decoded. Each connection should have its own deflater that is
+ * only used by the thread that writes to it, the Deflater and output buffer are reused for every
+ * frame. Call end() when the connection closes to free the native memory of the Deflater.
+ */
+public class BT_FrameDeflater {
+
+    private final Deflater mDeflater;
+    private byte[] mBuffer;
+
+
+    /**
+     * @param level the compression level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+     *              or Deflater.DEFAULT_COMPRESSION.
+     */
+    public BT_FrameDeflater(int level){
+        mDeflater = new Deflater(level);
+        mBuffer = new byte[0];
+    }
+
+
+    /**
+     * Writes a frame to the stream with its body compressed. If compressing does not make the
+     * frame smaller the frame is written as is.
+     *
+     * @param frame the array that holds the frame
+     * @param offset index of the first byte of the frame's length prefix
+     * @param length number of bytes in the frame
+     * @param outputStream the stream the frame is written to
+     * @return true if a compressed frame was written, false if the frame was written as is.
+     * @throws IOException if the stream could not be written to
+     */
+    public boolean write(@NonNull byte[] frame, int offset, int length, @NonNull OutputStream outputStream) throws IOException{
+        int compressedLength = deflate(frame, offset, length);
+        if(compressedLength < 0){
+            outputStream.write(frame, offset, length);
+            return false;
+        }
+        outputStream.write(mBuffer, 0, compressedLength);
+        return true;
+    }
+
+
+    /**
+     * Compresses the body of a frame into a frame at the start of the output buffer. The header
+     * keeps the type, flags and session id of the frame and has FLAG_COMPRESSED added.
+     *
+     * @param frame the array that holds the frame
+     * @param offset index of the first byte of the frame's length prefix
+     * @param length number of bytes in the frame
+     * @return the length of the compressed frame, -1 if it would not be smaller than the frame.
+     */
+    int deflate(@NonNull byte[] frame, int offset, int length){
+        if(length < BT_MessageUtility.LENGTH_HEADER || length > BT_MessageUtility.MAX_FRAME_LENGTH)
+            throw new IllegalArgumentException("frame length " + length + " must be between "
+                    + BT_MessageUtility.LENGTH_HEADER + " and " + BT_MessageUtility.MAX_FRAME_LENGTH);
+
+        //the compressed frame has to be at least a byte smaller to be worth sending
+        int limit = length - 1;
+        if(limit <= BT_MessageUtility.LENGTH_HEADER)
+            return -1;
+        if(mBuffer.length < limit)
+            mBuffer = new byte[limit];
+
+        mDeflater.reset();
+        mDeflater.setInput(frame, offset + BT_MessageUtility.LENGTH_HEADER, length - BT_MessageUtility.LENGTH_HEADER);
+        mDeflater.finish();
+
+        int compressedLength = BT_MessageUtility.LENGTH_HEADER;
+        while( !mDeflater.finished() && compressedLength < limit )
+            compressedLength += mDeflater.deflate(mBuffer, compressedLength, limit - compressedLength);
+
+        if( !mDeflater.finished() )
+            return -1;
+
+        int type = BT_MessageUtility.getShort(frame, offset + BT_MessageUtility.LENGTH_PREFIX);
+        BT_MessageUtility.putShort(mBuffer, 0, compressedLength - BT_MessageUtility.LENGTH_PREFIX);
+        BT_MessageUtility.putShort(mBuffer, BT_MessageUtility.LENGTH_PREFIX, type | BT_MessageUtility.FLAG_COMPRESSED);
+        mBuffer[BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID] =
+                frame[offset + BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID];
+        return compressedLength;
+    }
+
+
+    /**
+     * @return the array that holds the last frame made by deflate().
+     */
+    byte[] getBuffer(){
+        return mBuffer;
+    }
+
+
+    /**
+     * Frees the Deflater, the deflater can not be used afterwards.
+     */
+    public void end(){
+        mDeflater.end();
+    }
+}
@@ -0,0 +1,92 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Expands frames that were written by a BT_FrameDeflater back into normal frames. Each connection
+ * should have its own inflater that is only used by the thread that reads from it, the Inflater
+ * and output buffer are reused for every frame. Call end() when the connection closes to free the
+ * native memory of the Inflater.
+ */
+public class BT_FrameInflater {
+
+    private final Inflater mInflater;
+    private byte[] mBuffer;
+
+
+    /**
+     * @param initialCapacity starting size of the output buffer, grows to fit larger frames
+     */
+    public BT_FrameInflater(int initialCapacity){
+        if(initialCapacity < BT_MessageUtility.LENGTH_HEADER)
+            throw new IllegalArgumentException(initialCapacity + " is not a valid capacity");
+
+        mInflater = new Inflater();
+        mBuffer = new byte[Math.min(initialCapacity, BT_MessageUtility.MAX_FRAME_LENGTH)];
+    }
+
+
+    /**
+     * Expands a compressed frame into the start of getBuffer(). The header of the expanded frame
+     * has the same type, flags and session id without FLAG_COMPRESSED, and its length prefix matches the
+     * expanded length. IllegalArgumentException is thrown if the body is not valid compressed
+     * data or expands to more than a frame can hold.
+     *
+     * @param b the array that holds the compressed frame
+     * @param offset index of the first byte of the frame's length prefix
+     * @param length number of bytes in the array that belong to the frame
+     * @return the length of the expanded frame.
+     */
+    public int inflate(@NonNull byte[] b, int offset, int length){
+        if(length < BT_MessageUtility.LENGTH_HEADER)
+            throw new IllegalArgumentException("frame of length " + length + " must be at least length " + BT_MessageUtility.LENGTH_HEADER);
+
+        mInflater.reset();
+        mInflater.setInput(b, offset + BT_MessageUtility.LENGTH_HEADER, length - BT_MessageUtility.LENGTH_HEADER);
+
+        int expanded = BT_MessageUtility.LENGTH_HEADER;
+        try {
+            while( !mInflater.finished() ){
+                if(expanded == mBuffer.length){
+                    if(mBuffer.length == BT_MessageUtility.MAX_FRAME_LENGTH)
+                        throw new IllegalArgumentException("compressed frame expands to more than " + BT_MessageUtility.MAX_FRAME_LENGTH + " bytes");
+                    mBuffer = Arrays.copyOf(mBuffer, Math.min(mBuffer.length * 2, BT_MessageUtility.MAX_FRAME_LENGTH));
+                }
+
+                int count = mInflater.inflate(mBuffer, expanded, mBuffer.length - expanded);
+                if(count == 0 && (mInflater.needsInput() || mInflater.needsDictionary()))
+                    throw new IllegalArgumentException("compressed frame is incomplete");
+                expanded += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("compressed frame is not valid: " + e.getMessage());
+        }
+
+        int type = BT_MessageUtility.getShort(b, offset + BT_MessageUtility.LENGTH_PREFIX) & ~BT_MessageUtility.FLAG_COMPRESSED;
+        BT_MessageUtility.putShort(mBuffer, 0, expanded - BT_MessageUtility.LENGTH_PREFIX);
+        BT_MessageUtility.putShort(mBuffer, BT_MessageUtility.LENGTH_PREFIX, type);
+        mBuffer[BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID] =
+                b[offset + BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID];
+        return expanded;
+    }
+
+
+    /**
+     * @return the array that holds the last frame expanded by inflate().
+     */
+    public byte[] getBuffer(){
+        return mBuffer;
+    }
+
+
+    /**
+     * Frees the Inflater, the inflater can not be used afterwards.
+     */
+    public void end(){
+        mInflater.end();
+    }
+}
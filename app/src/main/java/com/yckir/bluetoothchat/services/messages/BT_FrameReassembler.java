@@ -0,0 +1,113 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Puts app messages that were sent as fragments back together. A device writes the fragments of
+ * a message in order on its own connection, and only frames of other types are written between
+ * them, so each connection needs one reassembler that is given every app frame read from it.
+ * Compressed frames have to be inflated before they are added. The data of a message that is
+ * being reassembled is limited, so a remote device can not use more memory than that.
+ */
+public class BT_FrameReassembler {
+
+    private final int mMaxDataLength;
+    //the message being reassembled, null if the last frame added finished a message
+    private BT_MessageApp mMessage;
+    //true if a message was too large and its remaining fragments are ignored
+    private boolean mDiscarding;
+
+
+    /**
+     * @param maxDataLength the most data a reassembled message can hold, at most
+     *                      BT_MessageApp.MAX_DATA_LENGTH
+     */
+    public BT_FrameReassembler(int maxDataLength){
+        if(maxDataLength < 0 || maxDataLength > BT_MessageApp.MAX_DATA_LENGTH)
+            throw new IllegalArgumentException(maxDataLength + " is not a valid max data length");
+        mMaxDataLength = maxDataLength;
+    }
+
+
+    /**
+     * Adds an app frame. A frame that is not a fragment is reconstructed right away. The data
+     * of a fragment is copied, so the array can be reused as soon as this returns.
+     * IllegalArgumentException is thrown if the frame is not a valid app frame, or if the
+     * message would hold more than the max data length. The rest of a message that is too large
+     * is ignored.
+     *
+     * @param b the array that holds the frame
+     * @param offset index of the first byte of the frame's length prefix
+     * @param length number of bytes in the array that belong to the frame
+     * @return the message once its last fragment has been added, null if more fragments are needed.
+     */
+    public @Nullable BT_MessageApp add(@NonNull byte[] b, int offset, int length){
+        if(length < BT_MessageUtility.LENGTH_HEADER)
+            throw new IllegalArgumentException("frame of length " + length + " must be at least length " + BT_MessageUtility.LENGTH_HEADER);
+        if(BT_MessageUtility.getShort(b, offset) != length - BT_MessageUtility.LENGTH_PREFIX)
+            throw new IllegalArgumentException("length prefix does not match frame length " + length);
+
+        int type = BT_MessageUtility.getShort(b, offset + BT_MessageUtility.LENGTH_PREFIX);
+        if((type & ~BT_MessageUtility.FLAG_MORE_FRAGMENTS) != BT_MessageUtility.TYPE_APP_MESSAGE)
+            throw new IllegalArgumentException(BT_MessageUtility.TYPE_APP_MESSAGE + " must be the message type, found " + type);
+
+        boolean more = (type & BT_MessageUtility.FLAG_MORE_FRAGMENTS) != 0;
+        int dataLength = length - BT_MessageUtility.LENGTH_HEADER;
+
+        if(mDiscarding){
+            mDiscarding = more;
+            return null;
+        }
+
+        if(mMessage == null){
+            if(!more && dataLength <= mMaxDataLength)
+                return BT_MessageApp.reconstruct(b, offset, length);
+
+            int sessionId = b[offset + BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID] & 0xFF;
+            mMessage = BT_MessageApp.obtain(sessionId, 0);
+        }
+
+        if(mMessage.getDataLength() + dataLength > mMaxDataLength){
+            int total = mMessage.getDataLength() + dataLength;
+            clear();
+            mDiscarding = more;
+            throw new IllegalArgumentException("message of at least " + total + " bytes is larger than " + mMaxDataLength);
+        }
+
+        mMessage.appendData(b, offset + BT_MessageUtility.LENGTH_HEADER, dataLength);
+        if(more)
+            return null;
+
+        BT_MessageApp message = mMessage;
+        mMessage = null;
+        return message;
+    }
+
+
+    /**
+     * @return true if fragments of a message have been added but its last fragment has not.
+     */
+    public boolean isReassembling(){
+        return mMessage != null || mDiscarding;
+    }
+
+
+    /**
+     * @return the number of data bytes held for the message being reassembled.
+     */
+    public int getBufferedLength(){
+        return mMessage == null ? 0 : mMessage.getDataLength();
+    }
+
+
+    /**
+     * Drops the message being reassembled, used when the connection closes.
+     */
+    public void clear(){
+        if(mMessage != null)
+            mMessage.recycle();
+        mMessage = null;
+        mDiscarding = false;
+    }
+}
@@ -1,31 +1,70 @@
 package com.yckir.bluetoothchat.services.messages;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * A bluetooth message object that is used to store and convert data that will be sent
  * to through bluetooth sockets. This object will always be at the start of a message. The type is
- * used to determine the structure of the remaining message and the address specifies who has
- * sent the message. Address is important because the server will forward a clients message to the
- * remaining clients.
+ * used to determine the structure of the remaining message and the session id specifies who has
+ * sent the message. Session ids are assigned by the hub when a device connects, so a single byte
+ * identifies the sender instead of its whole mac address. The service keeps the mapping from
+ * session id to device and fills in the mac address of messages it receives.
  */
 public class BT_Message {
 
     @BT_MessageUtility.MESSAGE_TYPE
     private final int mMessageType;
-    private final String mMacAddress;
+    private int mSessionId;
+    //not sent over bluetooth, set by the service from the session id
+    private String mMacAddress;
+    //frame returned by makeBytes() for messages that are only a header, reused between calls
+    private byte[] mHeaderFrame;
+    //number of owners that still have to call recycle(), read and written through REFERENCES
+    private volatile int mReferences;
+    //told when the frame has been written, cleared when the message is recycled
+    private WriteListener mWriteListener;
+
+    //value of mReferences for a message that is shared forever and never recycled
+    private static final int PERMANENT = Integer.MIN_VALUE;
+
+    private static final AtomicIntegerFieldUpdater<BT_Message> REFERENCES =
+            AtomicIntegerFieldUpdater.newUpdater(BT_Message.class, "mReferences");
+
+
+    /**
+     * Listener of a message that is sent to a single connection. The write task of the
+     * connection calls one of its methods from its own thread, so they must return quickly.
+     */
+    public interface WriteListener {
+
+        /**
+         * Called once the frame of the message has been flushed to the stream of the connection.
+         */
+        void onWritten();
+
+        /**
+         * Called if the connection closed before the frame could be written.
+         *
+         * @param closeCode the code the connection was closed with
+         */
+        void onWriteFailed(int closeCode);
+    }
 
 
     /**
-     * Checks if the length of the mac address is equal to BT_MessageUtility.LENGTH_ADDRESS.
+     * Checks if the session id fits in BT_MessageUtility.LENGTH_SESSION_ID bytes.
      *
-     * @param address the address to be checked
+     * @param sessionId the id to be checked
      */
-    private static void checkAddressLength(String address){
-        if(address.length() != BT_MessageUtility.LENGTH_ADDRESS)
-            throw new IllegalArgumentException(address +" is not length " + BT_MessageUtility.LENGTH_ADDRESS);
+    private static void checkSessionId(int sessionId){
+        if(!BT_MessageUtility.isSessionId(sessionId))
+            throw new IllegalArgumentException(sessionId + " is not a valid session id");
     }
 
 
@@ -40,6 +79,59 @@ public class BT_Message {
     }
 
 
+    /**
+     * Reconstructs the header of a frame. The length prefix must match the length of the frame,
+     * but the remaining bytes after the header are not checked. Subclasses use this to read the
+     * common part of their frame.
+     *
+     * @param frame a complete frame that starts with a BT_Message header.
+     * @return a message object with the type and session id of the frame.
+     */
+    protected static BT_Message reconstructHeader(@NonNull byte[] frame){
+        if(frame.length < BT_MessageUtility.LENGTH_HEADER)
+            throw new IllegalArgumentException(frame + " must be at least length " + BT_MessageUtility.LENGTH_HEADER);
+
+        int bodyLength = BT_MessageUtility.getShort(frame, 0);
+        if(bodyLength != frame.length - BT_MessageUtility.LENGTH_PREFIX)
+            throw new IllegalArgumentException("length prefix " + bodyLength + " does not match frame length " + frame.length);
+
+        @BT_MessageUtility.MESSAGE_TYPE int messageType = BT_MessageUtility.getShort(frame, BT_MessageUtility.LENGTH_PREFIX);
+        checkMessageType(messageType);
+
+        int sessionId = frame[BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID] & 0xFF;
+        return new BT_Message(messageType, sessionId);
+    }
+
+
+    /**
+     * Checks the header of a frame that starts at offset in a larger array without creating a
+     * message object. Used by subclasses that reconstruct into a recycled message.
+     *
+     * @param b the array that holds the frame
+     * @param offset index of the first byte of the frame's length prefix
+     * @param length number of bytes in the array that belong to the frame
+     * @param messageType the type the frame must have
+     * @return the session id in the header of the frame.
+     */
+    protected static int checkHeader(@NonNull byte[] b, int offset, int length,
+                                     @BT_MessageUtility.MESSAGE_TYPE int messageType){
+        if(offset < 0 || length < 0 || offset + length > b.length)
+            throw new IllegalArgumentException("offset " + offset + ", length " + length + ", size " + b.length);
+        if(length < BT_MessageUtility.LENGTH_HEADER)
+            throw new IllegalArgumentException("frame of length " + length + " must be at least length " + BT_MessageUtility.LENGTH_HEADER);
+
+        int bodyLength = BT_MessageUtility.getShort(b, offset);
+        if(bodyLength != length - BT_MessageUtility.LENGTH_PREFIX)
+            throw new IllegalArgumentException("length prefix " + bodyLength + " does not match frame length " + length);
+
+        int type = BT_MessageUtility.getShort(b, offset + BT_MessageUtility.LENGTH_PREFIX);
+        if(type != messageType)
+            throw new IllegalArgumentException(messageType + " must be the message type, found " + type);
+
+        return b[offset + BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID] & 0xFF;
+    }
+
+
     /**
      * Reconstructs a bluetooth message object that was converted to byte format using the result from
      * makeBytes().
@@ -50,31 +142,41 @@ public class BT_Message {
         if(byteMessage.length != BT_MessageUtility.LENGTH_HEADER)
             throw new IllegalArgumentException(byteMessage + " must be length " + BT_MessageUtility.LENGTH_HEADER);
 
-        String stringMessage = (new String(byteMessage, 0, byteMessage.length));
-
-        @BT_MessageUtility.MESSAGE_TYPE int messageType =  Integer.parseInt(
-                stringMessage.substring(0, BT_MessageUtility.LENGTH_ID));
-
-        checkMessageType(messageType);
-        String address = stringMessage.substring( BT_MessageUtility.LENGTH_ID, BT_MessageUtility.LENGTH_HEADER );
-        return new BT_Message(messageType, address);
+        return reconstructHeader(byteMessage);
     }
 
 
     /**
-     * Determines if the first 4 bytes of the parameter can be transformed into a valid MESSAGE_TYPE.
-     * If it is valid, then type is returned. If not, -1 is returned.
-     * IllegalArgumentException thrown if length is less than BT_MessageUtility.LENGTH_ID.
+     * Determines if the type that follows the length prefix can be transformed into a valid
+     * MESSAGE_TYPE. If it is valid, then type is returned. If not, -1 is returned. Flags in the
+     * high bits of the type field are ignored. Nothing is allocated, so this can be called on
+     * every frame that is read.
+     * IllegalArgumentException thrown if length is less than
+     * BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID.
      *
-     * @param b the byte array that will have its first bytes bytes checked
+     * @param b the frame that will have its type checked
      * @return the message type in the array, -1 if it was an invalid type.
      */
     public static @BT_MessageUtility.MESSAGE_TYPE int getType(@NonNull byte[] b){
-        if(b.length < BT_MessageUtility.LENGTH_ID)
-            throw new IllegalArgumentException(b + " must be larger than " + BT_MessageUtility.LENGTH_ID);
+        return getType(b, 0, b.length);
+    }
 
-        String id = new String( Arrays.copyOfRange(b,0,4) );
-        @BT_MessageUtility.MESSAGE_TYPE int type = Integer.parseInt(id);
+
+    /**
+     * Same as getType(byte[]) for a frame that starts at offset in a larger array.
+     *
+     * @param b the array that holds the frame
+     * @param offset index of the first byte of the frame's length prefix
+     * @param length number of bytes in the array that belong to the frame
+     * @return the message type of the frame, -1 if it was an invalid type.
+     */
+    public static @BT_MessageUtility.MESSAGE_TYPE int getType(@NonNull byte[] b, int offset, int length){
+        if(length < BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID)
+            throw new IllegalArgumentException("frame of length " + length + " must be larger than " +
+                    (BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID));
+
+        @BT_MessageUtility.MESSAGE_TYPE int type = BT_MessageUtility.getShort(b, offset + BT_MessageUtility.LENGTH_PREFIX)
+                & BT_MessageUtility.TYPE_MASK;
         if( !BT_MessageUtility.isMessageType(type) )
             return -1;
         return type;
@@ -82,24 +184,161 @@ public class BT_Message {
 
 
     /**
-     * Constructs a message object from a type and address
+     * Checks the flags in the type field of a frame. Frames with BT_MessageUtility.FLAG_COMPRESSED
+     * set have to be inflated with a BT_FrameInflater before they can be reconstructed.
+     *
+     * @param b the array that holds the frame
+     * @param offset index of the first byte of the frame's length prefix
+     * @param length number of bytes in the array that belong to the frame
+     * @return true if the body of the frame is compressed.
+     */
+    public static boolean isCompressed(@NonNull byte[] b, int offset, int length){
+        if(length < BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID)
+            throw new IllegalArgumentException("frame of length " + length + " must be larger than " +
+                    (BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID));
+
+        return (BT_MessageUtility.getShort(b, offset + BT_MessageUtility.LENGTH_PREFIX) & BT_MessageUtility.FLAG_COMPRESSED) != 0;
+    }
+
+
+    /**
+     * Checks the flags in the type field of a frame for BT_MessageUtility.FLAG_MORE_FRAGMENTS.
+     *
+     * @param b the array that holds the frame
+     * @param offset index of the first byte of the frame's length prefix
+     * @param length number of bytes in the array that belong to the frame
+     * @return true if the frame is a fragment of an app message that is not the last fragment.
+     */
+    public static boolean hasMoreFragments(@NonNull byte[] b, int offset, int length){
+        if(length < BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID)
+            throw new IllegalArgumentException("frame of length " + length + " must be larger than " +
+                    (BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID));
+
+        return (BT_MessageUtility.getShort(b, offset + BT_MessageUtility.LENGTH_PREFIX) & BT_MessageUtility.FLAG_MORE_FRAGMENTS) != 0;
+    }
+
+
+    /**
+     * Constructs a message object from a type and session id
      *
      * @param messageType the type of message being created
-     * @param macAddress the mac address of the bluetooth device that is sending the message.
+     * @param sessionId the session id of the bluetooth device that is sending the message.
      */
-    public BT_Message(@BT_MessageUtility.MESSAGE_TYPE int messageType, @NonNull String macAddress){
+    public BT_Message(@BT_MessageUtility.MESSAGE_TYPE int messageType, int sessionId){
         checkMessageType(messageType);
-        checkAddressLength(macAddress);
+        checkSessionId(sessionId);
 
         mMessageType = messageType;
-        mMacAddress = macAddress;
+        mSessionId = sessionId;
+        mReferences = 1;
+    }
+
+
+    /**
+     * Prepares a recycled message to be used again, like a newly constructed one. Subclasses call
+     * this from their obtain() methods.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     */
+    protected void reuse(int sessionId){
+        checkSessionId(sessionId);
+
+        mSessionId = sessionId;
+        mMacAddress = null;
+        mReferences = 1;
+        if(mHeaderFrame != null)
+            writeHeader(mHeaderFrame);
+    }
+
+
+    /**
+     * Makes retain() and recycle() do nothing, so the message can be sent any number of times
+     * without being recycled. Used for messages whose frame never changes, such as the hellos
+     * that are sent every timeout. Must be called before the message is shared with other threads.
+     */
+    protected void setPermanent(){
+        mReferences = PERMANENT;
     }
 
 
     /**
-     * @return the mac address of the bluetooth device that is sending the message.
+     * Adds an owner to the message. Every owner must call recycle() once when it is done with the
+     * message. This lets a single message be queued for several connections at once.
      */
-    public String getMacAddress(){ return mMacAddress; }
+    public void retain(){
+        int references;
+        do{
+            references = mReferences;
+            if(references == PERMANENT)
+                return;
+            if(references <= 0)
+                throw new IllegalStateException("message of type " + mMessageType + " has already been recycled");
+        }while( !REFERENCES.compareAndSet(this, references, references + 1) );
+    }
+
+
+    /**
+     * Releases one owner of the message. When the last owner has released it the message is
+     * returned to the pool of its type, if it has one, and must not be used again. Messages
+     * created with a constructor can be recycled too.
+     */
+    public void recycle(){
+        if(mReferences == PERMANENT)
+            return;
+        int references = REFERENCES.decrementAndGet(this);
+        if(references < 0)
+            throw new IllegalStateException("message of type " + mMessageType + " has already been recycled");
+        if(references == 0) {
+            mWriteListener = null;
+            onRecycled();
+        }
+    }
+
+
+    /**
+     * Called once the last owner has recycled the message. Subclasses with a pool return the
+     * message to it here. The default does nothing and the message is left for the garbage collector.
+     */
+    protected void onRecycled(){
+    }
+
+
+    /**
+     * Sets the listener that is told when the message has been written. Only a message that is
+     * sent to a single connection can have a listener, and it must be set before it is sent.
+     *
+     * @param listener the listener, null to remove it
+     */
+    public void setWriteListener(@Nullable WriteListener listener){
+        mWriteListener = listener;
+    }
+
+
+    /**
+     * @return the listener that is told when the message has been written, null if it has none.
+     */
+    public @Nullable WriteListener getWriteListener(){ return mWriteListener; }
+
+
+    /**
+     * @return the session id of the bluetooth device that is sending the message.
+     */
+    public int getSessionId(){ return mSessionId; }
+
+
+    /**
+     * The mac address is not part of the frame. The service sets it to the address of the remote
+     * bluetooth device the message was received from, found using the session id.
+     *
+     * @return the mac address of the remote bluetooth device, null if it has not been set.
+     */
+    public @Nullable String getMacAddress(){ return mMacAddress; }
+
+
+    /**
+     * @param macAddress the mac address of the remote bluetooth device this message belongs to.
+     */
+    public void setMacAddress(@Nullable String macAddress){ mMacAddress = macAddress; }
 
 
     /**
@@ -109,12 +348,80 @@ public class BT_Message {
 
 
     /**
-     * Converts the current message object into byte form. The object can be reconstructed using
-     * this string by calling reconstruct(byte[]).
+     * Writes the length prefix, type and session id to the start of frame. The length prefix will be
+     * the number of bytes in frame that come after the prefix.
+     *
+     * @param frame the array that will hold the frame, must be at least BT_MessageUtility.LENGTH_HEADER
+     *              and at most BT_MessageUtility.MAX_FRAME_LENGTH bytes long.
+     */
+    protected void writeHeader(@NonNull byte[] frame){
+        writeHeader(frame, frame.length);
+    }
+
+
+    /**
+     * Same as writeHeader(byte[]) for a frame that only uses the start of a larger array.
+     *
+     * @param frame the array that will hold the frame
+     * @param frameLength the number of bytes in frame that belong to the frame, must be at least
+     *                    BT_MessageUtility.LENGTH_HEADER and at most BT_MessageUtility.MAX_FRAME_LENGTH.
+     */
+    protected void writeHeader(@NonNull byte[] frame, int frameLength){
+        if(frameLength < BT_MessageUtility.LENGTH_HEADER || frameLength > BT_MessageUtility.MAX_FRAME_LENGTH
+                || frameLength > frame.length)
+            throw new IllegalArgumentException("frame length " + frameLength + " must be between "
+                    + BT_MessageUtility.LENGTH_HEADER + " and " + Math.min(frame.length, BT_MessageUtility.MAX_FRAME_LENGTH));
+
+        BT_MessageUtility.putShort(frame, 0, frameLength - BT_MessageUtility.LENGTH_PREFIX);
+        BT_MessageUtility.putShort(frame, BT_MessageUtility.LENGTH_PREFIX, mMessageType);
+        frame[BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID] = (byte) mSessionId;
+    }
+
+
+    /**
+     * Converts the current message object into a length prefixed frame. The object can be
+     * reconstructed using this frame by calling reconstruct(byte[]). The array belongs to the
+     * message, it should not be modified and is only valid until the message is recycled.
      *
      * @return the current message object into byte form.
      */
     public byte[] makeBytes(){
-        return ( mMessageType + mMacAddress).getBytes();
+        if(mHeaderFrame == null){
+            mHeaderFrame = new byte[BT_MessageUtility.LENGTH_HEADER];
+            writeHeader(mHeaderFrame);
+        }
+        return mHeaderFrame;
+    }
+
+
+    /**
+     * @return the number of bytes in the frame of this message, the number of bytes encode() writes.
+     */
+    public int getFrameLength(){
+        return makeBytes().length;
+    }
+
+
+    /**
+     * Writes the frame of this message into a buffer at its position, which is advanced past the
+     * frame. This lets a connection encode every message into one buffer that it reuses, instead of
+     * creating an array for each message. BufferOverflowException is thrown if fewer than
+     * getFrameLength() bytes remain in the buffer.
+     *
+     * @param buffer the buffer the frame is written to
+     */
+    public void encode(@NonNull ByteBuffer buffer){
+        buffer.put(makeBytes());
+    }
+
+
+    /**
+     * Writes the frame of this message to a stream.
+     *
+     * @param outputStream the stream the frame is written to
+     * @throws IOException if the stream could not be written to
+     */
+    public void writeTo(@NonNull OutputStream outputStream) throws IOException{
+        outputStream.write(makeBytes());
     }
 }
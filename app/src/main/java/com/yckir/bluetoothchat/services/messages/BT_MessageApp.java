@@ -3,21 +3,44 @@ package com.yckir.bluetoothchat.services.messages;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
  * This type of message is to be used by the main application that will be using the bluetooth
  * communication. They will send byte data to the service. The data will be wrapped in this class
  * and sent to the remote bluetooth device in byte form. The remote device will reconstruct the
- * BT_Message from the byte data. The remote client then gets the data with getData() method.
+ * BT_Message from the byte data. The remote client then gets the data with getDataBuffer(), which
+ * is a view of the received frame, or with getData() if it needs its own copy.
+ * <p>
+ * Every chat line is an app message, so they are pooled. Messages from obtain(), fromBuffer() and
+ * reconstruct() reuse recycled messages along with their frame arrays, which can be larger than
+ * the frame they hold.
+ * <p>
+ * The data can be larger than a single frame. Such a message is sent as fragments made with
+ * encodeFragment(), every fragment but the last has BT_MessageUtility.FLAG_MORE_FRAGMENTS set, and
+ * a BT_FrameReassembler puts the message back together on the remote device.
  */
 public class BT_MessageApp extends BT_Message{
 
+    //largest amount of data a message can hold, messages larger than a frame are fragmented
+    public static final int MAX_DATA_LENGTH = 256 * 1024;
+
+    private static final int MAX_POOL_SIZE = 20;
+    //recycled frame arrays larger than this are dropped so the pool does not hold on to large frames
+    private static final int MAX_POOLED_FRAME_LENGTH = 4096;
+    private static final BT_MessagePool<BT_MessageApp> sPool = new BT_MessagePool<>(MAX_POOL_SIZE);
+
     private byte[] mMessage;
+    //number of bytes at the start of mMessage that belong to the frame
+    private int mLength;
 
     /**
      * Reconstructs a BT_MessageApp object from a byte array. The byte data should derive from a
-     * makeBytes() method call.
+     * makeBytes() method call. The frame is copied into a message from the pool, so byteMessage
+     * is never handed to a later obtain() once the message is recycled.
      *
      * @param byteMessage the bytes to construct a BT_MessageApp object.
      * @return the constructed BT_MessageApp object.
@@ -26,49 +49,296 @@ public class BT_MessageApp extends BT_Message{
         if(byteMessage.length < BT_MessageUtility.LENGTH_HEADER)
             throw new IllegalArgumentException(byteMessage + " must be longer than the header size " + BT_MessageUtility.LENGTH_HEADER);
 
-        BT_Message m = BT_Message.reconstruct(Arrays.copyOfRange(byteMessage, 0, BT_MessageUtility.LENGTH_HEADER));
+        BT_Message m = BT_Message.reconstructHeader(byteMessage);
 
         if(m.getMessageType() != BT_MessageUtility.TYPE_APP_MESSAGE)
             throw new IllegalArgumentException(BT_MessageUtility.TYPE_APP_MESSAGE + " must be the " +
                     "message type, found " + m.getMessageType());
 
-        return new BT_MessageApp(m.getMacAddress(), Arrays.copyOfRange(byteMessage, BT_MessageUtility.LENGTH_HEADER, byteMessage.length));
+        BT_MessageApp app = obtain(m.getSessionId(), byteMessage.length - BT_MessageUtility.LENGTH_HEADER);
+        System.arraycopy(byteMessage, 0, app.mMessage, 0, byteMessage.length);
+        return app;
+    }
+
+
+    /**
+     * Reconstructs a BT_MessageApp object from a frame that starts at offset in a larger array,
+     * such as the buffer of a BT_FrameDecoder. The frame is copied into a message from the pool,
+     * so the array can be reused as soon as this returns.
+     *
+     * @param b the array that holds the frame
+     * @param offset index of the first byte of the frame's length prefix
+     * @param length number of bytes in the array that belong to the frame
+     * @return the constructed BT_MessageApp object.
+     */
+    public static BT_MessageApp reconstruct(@NonNull byte[] b, int offset, int length){
+        int sessionId = checkHeader(b, offset, length, BT_MessageUtility.TYPE_APP_MESSAGE);
+
+        BT_MessageApp m = obtain(sessionId, length - BT_MessageUtility.LENGTH_HEADER);
+        System.arraycopy(b, offset + BT_MessageUtility.LENGTH_HEADER, m.mMessage,
+                BT_MessageUtility.LENGTH_HEADER, length - BT_MessageUtility.LENGTH_HEADER);
+        return m;
+    }
+
+
+    /**
+     * Creates a message object with type BT_MessageUtility.TYPE_APP_MESSAGE from a buffer. The
+     * remaining bytes of data are copied into the frame once and the position of data is not
+     * changed. This allows a received data buffer to be forwarded without making a byte array first.
+     * The message comes from the pool, call recycle() when it is no longer needed.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @param data the data that will be sent to remote bluetooth device
+     * @return the constructed BT_MessageApp object.
+     */
+    public static BT_MessageApp fromBuffer(int sessionId, @NonNull ByteBuffer data){
+        BT_MessageApp m = obtain(sessionId, data.remaining());
+        data.duplicate().get(m.mMessage, BT_MessageUtility.LENGTH_HEADER, data.remaining());
+        return m;
+    }
+
+
+    /**
+     * Gets a message object with type BT_MessageUtility.TYPE_APP_MESSAGE from the pool, or
+     * constructs one if the pool is empty. The data is copied into the frame. Call recycle() when
+     * the message is no longer needed to return it.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @param data the data that will be sent to remote bluetooth device
+     * @return the constructed BT_MessageApp object.
+     */
+    public static BT_MessageApp obtain(int sessionId, @Nullable byte[] data){
+        BT_MessageApp m = obtain(sessionId, data == null ? 0 : data.length);
+        if(data != null)
+            System.arraycopy(data, 0, m.mMessage, BT_MessageUtility.LENGTH_HEADER, data.length);
+        return m;
+    }
+
+
+    /**
+     * Gets a message from the pool with a frame that has room for length bytes of data. Only the
+     * header is written.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @param length the number of data bytes that the frame will hold
+     * @return a message from the pool, or a new message if the pool is empty.
+     */
+    static BT_MessageApp obtain(int sessionId, int length){
+        BT_MessageApp m = sPool.acquire();
+        if(m == null)
+            return new BT_MessageApp(sessionId, length);
+
+        m.reuse(sessionId);
+        m.setFrameLength(length);
+        return m;
     }
 
 
     /**
      * Constructs a message object with type BT_MessageUtility.TYPE_APP_MESSAGE.
      *
-     * @param macAddress the mac address of the bluetooth device that is sending the message.
+     * @param sessionId the session id of the bluetooth device that is sending the message.
      * @param data the data that will be sent to remote bluetooth device
      */
-    public BT_MessageApp(@NonNull String macAddress,@Nullable byte[] data) {
-        super(BT_MessageUtility.TYPE_APP_MESSAGE, macAddress);
-        if(data == null)
-            data = "".getBytes();
+    public BT_MessageApp(int sessionId, @Nullable byte[] data) {
+        this(sessionId, data == null ? 0 : data.length);
+        if(data != null)
+            System.arraycopy(data, 0, mMessage, BT_MessageUtility.LENGTH_HEADER, data.length);
+    }
+
+
+    /**
+     * Constructs a message object with a frame that has room for length bytes of data. Only the
+     * header is written.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @param length the number of data bytes that the frame will hold
+     */
+    private BT_MessageApp(int sessionId, int length){
+        super(BT_MessageUtility.TYPE_APP_MESSAGE, sessionId);
+        setFrameLength(length);
+    }
+
+
+    /**
+     * Sizes the frame to hold length bytes of data and writes the header if the data fits in a
+     * single frame. The current frame array is kept if it is large enough.
+     *
+     * @param length the number of data bytes that the frame will hold
+     */
+    private void setFrameLength(int length){
+        if(length < 0 || length > MAX_DATA_LENGTH)
+            throw new IllegalArgumentException("data of length " + length + " is larger than " + MAX_DATA_LENGTH);
+
+        mLength = BT_MessageUtility.LENGTH_HEADER + length;
+        if(mMessage == null || mMessage.length < mLength)
+            mMessage = new byte[mLength];
+        if(mLength <= BT_MessageUtility.MAX_FRAME_LENGTH)
+            writeHeader(mMessage, mLength);
+    }
+
+
+    /**
+     * Adds data to the end of the message, used by BT_FrameReassembler. The frame array grows
+     * by doubling so that a message made from many fragments is not copied for each one.
+     *
+     * @param b array that holds the data
+     * @param offset index of the first byte of data
+     * @param length number of bytes of data
+     */
+    void appendData(@NonNull byte[] b, int offset, int length){
+        int newLength = mLength + length;
+        if(newLength - BT_MessageUtility.LENGTH_HEADER > MAX_DATA_LENGTH)
+            throw new IllegalArgumentException("data of length " + (newLength - BT_MessageUtility.LENGTH_HEADER)
+                    + " is larger than " + MAX_DATA_LENGTH);
+
+        if(newLength > mMessage.length)
+            mMessage = Arrays.copyOf(mMessage, Math.max(newLength,
+                    Math.min(mMessage.length * 2, BT_MessageUtility.LENGTH_HEADER + MAX_DATA_LENGTH)));
+        System.arraycopy(b, offset, mMessage, mLength, length);
+        mLength = newLength;
+        if(mLength <= BT_MessageUtility.MAX_FRAME_LENGTH)
+            writeHeader(mMessage, mLength);
+    }
 
-        mMessage = new byte[BT_MessageUtility.LENGTH_HEADER + data.length];
 
-        System.arraycopy( super.makeBytes(), 0, mMessage, 0, BT_MessageUtility.LENGTH_HEADER);
-        System.arraycopy(data, 0, mMessage, BT_MessageUtility.LENGTH_HEADER, data.length);
+    /**
+     * Writes one fragment of the data into a buffer at its position, with a header of its own.
+     * Fragments are made in order, starting with dataOffset 0 and continuing at the returned offset
+     * until it equals getDataLength(). The fragment holds as much of the remaining data as fits in
+     * the remaining bytes of the buffer, up to BT_MessageUtility.MAX_FRAME_LENGTH. Every fragment
+     * except the last has BT_MessageUtility.FLAG_MORE_FRAGMENTS set. A message whose data fits is
+     * written as a single frame without the flag. The message is not changed, so a message that is
+     * shared by several connections can be fragmented by each of them at the same time.
+     *
+     * @param dataOffset index in the data of the first byte of the fragment
+     * @param buffer the buffer the fragment is written to, must have more than
+     *               BT_MessageUtility.LENGTH_HEADER bytes remaining unless there is no data left
+     * @return the index in the data of the first byte of the next fragment.
+     */
+    public int encodeFragment(int dataOffset, @NonNull ByteBuffer buffer){
+        if(dataOffset < 0 || dataOffset > getDataLength())
+            throw new IllegalArgumentException(dataOffset + " is not in the data of length " + getDataLength());
 
+        int room = Math.min(buffer.remaining(), BT_MessageUtility.MAX_FRAME_LENGTH) - BT_MessageUtility.LENGTH_HEADER;
+        int count = Math.min(getDataLength() - dataOffset, room);
+        if(count <= 0 && dataOffset < getDataLength())
+            throw new IllegalArgumentException("fragment must have room for more than " + BT_MessageUtility.LENGTH_HEADER
+                    + " bytes, " + buffer.remaining() + " remaining");
+        boolean more = dataOffset + count < getDataLength();
+
+        buffer.putShort((short) (BT_MessageUtility.LENGTH_HEADER + count - BT_MessageUtility.LENGTH_PREFIX));
+        buffer.putShort((short) (BT_MessageUtility.TYPE_APP_MESSAGE | (more ? BT_MessageUtility.FLAG_MORE_FRAGMENTS : 0)));
+        buffer.put((byte) getSessionId());
+        buffer.put(mMessage, BT_MessageUtility.LENGTH_HEADER + dataOffset, count);
+        return dataOffset + count;
     }
 
 
     /**
-     * @return the data that was specified in constructor.
+     * @return a copy of the data that was specified in constructor.
      */
     public byte[] getData(){
-        return Arrays.copyOfRange(mMessage, BT_MessageUtility.LENGTH_HEADER, mMessage.length);
+        return Arrays.copyOfRange(mMessage, BT_MessageUtility.LENGTH_HEADER, mLength);
+    }
+
+
+    /**
+     * Gets the data without copying it. The buffer is a read only view of the frame, its position
+     * is 0 and its limit is the length of the data. Each call returns a new view, so reading from
+     * one view does not change another. The view is only valid until the message is recycled.
+     *
+     * @return a read only view of the data that was specified in constructor.
+     */
+    public ByteBuffer getDataBuffer(){
+        return ByteBuffer.wrap(mMessage, BT_MessageUtility.LENGTH_HEADER, getDataLength())
+                .slice().asReadOnlyBuffer();
+    }
+
+
+    /**
+     * @return the number of bytes of data in the message.
+     */
+    public int getDataLength(){
+        return mLength - BT_MessageUtility.LENGTH_HEADER;
+    }
+
+
+    /**
+     * Gets the frame without copying it, so that it can be written without makeBytes(). The
+     * array belongs to the message and should not be modified.
+     *
+     * @return the array that holds the frame, which can be longer than the frame.
+     */
+    public byte[] getFrameArray(){
+        return mMessage;
+    }
+
+
+    /**
+     * @return the number of bytes at the start of getFrameArray() that belong to the frame, can
+     *         be larger than BT_MessageUtility.MAX_FRAME_LENGTH if the message has to be fragmented.
+     */
+    @Override
+    public int getFrameLength(){
+        return mLength;
     }
 
 
     /**
      * Creates a byte array of the BT_Message plus the data specified from the constructor. Call
-     * reconstruct() to recreate the object.
+     * reconstruct() to recreate the object. The frame array is returned without copying unless it
+     * came from the pool and is larger than the frame, use writeTo() to avoid the copy.
+     * IllegalStateException is thrown if the data does not fit in a single frame.
      */
     @Override
     public byte[] makeBytes() {
-        return mMessage;
+        if(mLength > BT_MessageUtility.MAX_FRAME_LENGTH)
+            throw new IllegalStateException("data of length " + getDataLength() + " does not fit in a frame");
+        if(mMessage.length == mLength)
+            return mMessage;
+        return Arrays.copyOf(mMessage, mLength);
+    }
+
+
+    /**
+     * Copies the frame into the buffer. IllegalStateException is thrown if the data does not fit
+     * in a single frame, use encodeFragment() to write such a message.
+     */
+    @Override
+    public void encode(@NonNull ByteBuffer buffer) {
+        if(mLength > BT_MessageUtility.MAX_FRAME_LENGTH)
+            throw new IllegalStateException("data of length " + getDataLength() + " does not fit in a frame");
+        buffer.put(mMessage, 0, mLength);
+    }
+
+
+    /**
+     * Writes the frame to a stream, or every fragment of it if the data does not fit in a single
+     * frame. A BluetoothService writes the fragments itself so that other frames can be sent
+     * between them.
+     */
+    @Override
+    public void writeTo(@NonNull OutputStream outputStream) throws IOException {
+        if(mLength <= BT_MessageUtility.MAX_FRAME_LENGTH){
+            outputStream.write(mMessage, 0, mLength);
+            return;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(BT_MessageUtility.MAX_FRAME_LENGTH);
+        int dataOffset = 0;
+        while(dataOffset < getDataLength()){
+            frame.clear();
+            dataOffset = encodeFragment(dataOffset, frame);
+            outputStream.write(frame.array(), 0, frame.position());
+        }
+    }
+
+
+    @Override
+    protected void onRecycled() {
+        if(mMessage.length > MAX_POOLED_FRAME_LENGTH)
+            mMessage = null;
+        sPool.release(this);
     }
 }
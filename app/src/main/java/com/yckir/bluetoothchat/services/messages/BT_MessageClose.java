@@ -1,7 +1,5 @@
 package com.yckir.bluetoothchat.services.messages;
 
-import android.support.annotation.NonNull;
-
 import com.yckir.bluetoothchat.services.ServiceUtility;
 
 import java.util.Arrays;
@@ -29,7 +27,7 @@ public class BT_MessageClose extends BT_Message {
             throw new IllegalArgumentException(byteMessage + " is invalid param, must be length "
                     + BT_MessageUtility.LENGTH_HEADER + ServiceUtility.LENGTH_CLOSE_CODE);
 
-        BT_Message m = BT_Message.reconstruct(Arrays.copyOfRange(byteMessage, 0, BT_MessageUtility.LENGTH_HEADER));
+        BT_Message m = BT_Message.reconstructHeader(byteMessage);
 
         //check that the type is TYPE_CONNECTION_CLOSED
         if(m.getMessageType() != BT_MessageUtility.TYPE_CONNECTION_CLOSED)
@@ -43,7 +41,7 @@ public class BT_MessageClose extends BT_Message {
         if( !ServiceUtility.isCloseCode(closeCode) )
             throw new IllegalArgumentException(closeCode + " is not a valid close close");
 
-        return new BT_MessageClose(m.getMacAddress(), closeCode );
+        return new BT_MessageClose(m.getSessionId(), closeCode );
 
     }
 
@@ -51,17 +49,18 @@ public class BT_MessageClose extends BT_Message {
     /**
      * Constructs a message object of type BT_MessageUtility.TYPE_CONNECTION_CLOSED.
      *
-     * @param macAddress  the mac address of the bluetooth device that is sending the message.
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @param closeCode id that identifies why the connection is being closed
      */
-    public BT_MessageClose(@NonNull String macAddress, @ServiceUtility.CLOSE_CODE int closeCode) {
-        super(BT_MessageUtility.TYPE_CONNECTION_CLOSED, macAddress);
+    public BT_MessageClose(int sessionId, @ServiceUtility.CLOSE_CODE int closeCode) {
+        super(BT_MessageUtility.TYPE_CONNECTION_CLOSED, sessionId);
 
         if( !ServiceUtility.isCloseCode(closeCode) )
             throw new  IllegalArgumentException(closeCode + " is not a valid close close");
 
         mMessage = new byte[BT_MessageUtility.LENGTH_HEADER + ServiceUtility.LENGTH_CLOSE_CODE];
 
-        System.arraycopy( super.makeBytes(), 0, mMessage, 0, BT_MessageUtility.LENGTH_HEADER);
+        writeHeader(mMessage);
         System.arraycopy((closeCode + "").getBytes(), 0, mMessage, BT_MessageUtility.LENGTH_HEADER, ServiceUtility.LENGTH_CLOSE_CODE);
         mCloseCode = closeCode;
     }
@@ -0,0 +1,80 @@
+package com.yckir.bluetoothchat.services.messages;
+
+/**
+ * Gives the remote device credits to send more app messages. Each credit allows one app message,
+ * however many fragments it is sent in. A device that supports BT_MessageOptions.OPTION_CREDITS
+ * starts every connection with the same number of credits in each direction and returns them
+ * with this message once the app messages it read have been handled.
+ */
+public class BT_MessageCredit extends BT_Message {
+
+    //most credits one message can return
+    public static final int MAX_CREDITS = 0xFFFF;
+
+    private final int mCredits;
+    private final byte[] mMessage;
+
+    /**
+     * Reconstructs a BT_MessageCredit object from a byte array. The byte data should derive from a
+     * makeBytes() method call.
+     *
+     * @param byteMessage the bytes to construct a BT_MessageCredit object.
+     * @return the constructed BT_MessageCredit object.
+     */
+    public static BT_MessageCredit reconstruct(byte[] byteMessage){
+        //check if the message is correct size
+        if(byteMessage.length != BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_CREDITS)
+            throw new IllegalArgumentException(byteMessage + " is invalid param, must be length "
+                    + (BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_CREDITS));
+
+        BT_Message m = BT_Message.reconstructHeader(byteMessage);
+
+        //check its correct type
+        if(m.getMessageType() != BT_MessageUtility.TYPE_CREDIT)
+            throw new IllegalArgumentException(BT_MessageUtility.TYPE_CREDIT + " must be the " +
+                    "message type, found " + m.getMessageType());
+
+        int credits = (byteMessage[BT_MessageUtility.LENGTH_HEADER] & 0xFF) << 8
+                | byteMessage[BT_MessageUtility.LENGTH_HEADER + 1] & 0xFF;
+        return new BT_MessageCredit(m.getSessionId(), credits);
+    }
+
+
+    /**
+     * Constructs a message object with type BT_MessageUtility.TYPE_CREDIT.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @param credits the number of app messages the remote device may send in addition to the
+     *                credits it already has, from 1 to MAX_CREDITS
+     */
+    public BT_MessageCredit(int sessionId, int credits) {
+        super(BT_MessageUtility.TYPE_CREDIT, sessionId);
+
+        if(credits <= 0 || credits > MAX_CREDITS)
+            throw new IllegalArgumentException(credits + " is not a valid number of credits");
+
+        mCredits = credits;
+        mMessage = new byte[BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_CREDITS];
+        writeHeader(mMessage);
+        mMessage[BT_MessageUtility.LENGTH_HEADER] = (byte) (credits >> 8);
+        mMessage[BT_MessageUtility.LENGTH_HEADER + 1] = (byte) credits;
+    }
+
+
+    /**
+     * @return the number of credits given to the remote device.
+     */
+    public int getCredits(){
+        return mCredits;
+    }
+
+
+    /**
+     * Creates a byte array of the BT_Message plus the credits. Call reconstruct() to recreate
+     * the object.
+     */
+    @Override
+    public byte[] makeBytes() {
+        return mMessage;
+    }
+}
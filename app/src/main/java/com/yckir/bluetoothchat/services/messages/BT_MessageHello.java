@@ -1,14 +1,71 @@
 package com.yckir.bluetoothchat.services.messages;
 
-import android.support.annotation.NonNull;
-
-
 /**
  * A hello message is sent constantly to ensure that the recipient is aware and responding to us.
- * This type of message requires no extra data associated with it.
+ * This type of message requires no extra data associated with it. A hello can carry an echo
+ * token of BT_MessageUtility.LENGTH_ECHO_TOKEN bytes, which the recipient copies into its reply
+ * so the sender can measure the round trip time of the link. Devices that do not know about
+ * tokens reply without one.
  */
 public class BT_MessageHello extends BT_Message {
 
+    //the frame of a hello without an echo token only depends on the session id, so one
+    //permanent message is kept for each id and its frame is only encoded once.
+    private static final BT_MessageHello[] sCache = new BT_MessageHello[BT_MessageUtility.MAX_SESSION_ID + 1];
+
+    //a hello with an echo token is sent to every connection each interval, so they are pooled
+    private static final int MAX_POOL_SIZE = 10;
+    private static final BT_MessagePool<BT_MessageHello> sPool = new BT_MessagePool<>(MAX_POOL_SIZE);
+
+    //the echo token as an unsigned value, -1 for a hello without one
+    private long mEchoToken;
+    //frame of a hello with an echo token, null if it only has a header
+    private final byte[] mMessage;
+
+
+    /**
+     * Gets the shared message object with type BT_MessageUtility.TYPE_HELLO for a session id,
+     * constructing it the first time. The message is permanent, retain() and recycle() do nothing,
+     * so it can be queued for any number of connections.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @return a message with the given session id.
+     */
+    public static synchronized BT_MessageHello obtain(int sessionId){
+        if(!BT_MessageUtility.isSessionId(sessionId))
+            throw new IllegalArgumentException(sessionId + " is not a valid session id");
+
+        BT_MessageHello m = sCache[sessionId];
+        if(m == null){
+            m = new BT_MessageHello(sessionId);
+            m.makeBytes();
+            m.setPermanent();
+            sCache[sessionId] = m;
+        }
+        return m;
+    }
+
+
+    /**
+     * Gets a message object with type BT_MessageUtility.TYPE_HELLO that carries an echo token
+     * from the pool, or constructs one if the pool is empty. Call recycle() once the message has
+     * been written to return it.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @param echoToken value chosen by the sender, returned unchanged in the reply
+     * @return a message with the given session id and echo token.
+     */
+    public static BT_MessageHello obtain(int sessionId, int echoToken){
+        BT_MessageHello m = sPool.acquire();
+        if(m == null)
+            return new BT_MessageHello(sessionId, echoToken);
+
+        m.reuse(sessionId);
+        m.setEchoToken(echoToken);
+        return m;
+    }
+
+
     /**
      * Reconstructs a BT_MessageHello object from a byte array. The byte data should derive from a
      * makeBytes() method call.
@@ -19,30 +76,105 @@ public class BT_MessageHello extends BT_Message {
     public static BT_MessageHello reconstruct(byte[] byteMessage){
 
         //check if the message is correct size
-        if(byteMessage.length != BT_MessageUtility.LENGTH_HEADER)
+        if(byteMessage.length != BT_MessageUtility.LENGTH_HEADER
+                && byteMessage.length != BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_ECHO_TOKEN)
             throw new IllegalArgumentException(byteMessage + " is invalid param, must be length "
-                    + BT_MessageUtility.LENGTH_HEADER);
+                    + BT_MessageUtility.LENGTH_HEADER + " or "
+                    + (BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_ECHO_TOKEN));
 
-        BT_Message m = BT_Message.reconstruct(byteMessage);
+        BT_Message m = BT_Message.reconstructHeader(byteMessage);
 
         //check its correct type
         if(m.getMessageType() != BT_MessageUtility.TYPE_HELLO)
             throw new IllegalArgumentException(BT_MessageUtility.TYPE_HELLO + " must be the " +
                     "message type, found " + m.getMessageType());
 
-        return new BT_MessageHello(m.getMacAddress());
+        if(byteMessage.length == BT_MessageUtility.LENGTH_HEADER)
+            return new BT_MessageHello(m.getSessionId());
+        return new BT_MessageHello(m.getSessionId(), BT_MessageUtility.getInt(byteMessage, BT_MessageUtility.LENGTH_HEADER));
+    }
+
+
+    /**
+     * Reads the echo token of a frame without creating a message object. Used by the service on
+     * every hello it reads.
+     *
+     * @param b the array that holds the frame
+     * @param offset index of the first byte of the frame's length prefix
+     * @param length number of bytes in the array that belong to the frame
+     * @return the echo token as an unsigned value, -1 if the frame does not have one.
+     */
+    public static long getEchoToken(byte[] b, int offset, int length){
+        checkHeader(b, offset, length, BT_MessageUtility.TYPE_HELLO);
+        if(length != BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_ECHO_TOKEN)
+            return -1;
+        return BT_MessageUtility.getInt(b, offset + BT_MessageUtility.LENGTH_HEADER) & 0xFFFFFFFFL;
     }
 
 
     /**
      * Constructs a message object with type BT_MessageUtility.TYPE_HELLO.
      *
-     * @param macAddress the mac address of the bluetooth device that is sending the message.
+     * @param sessionId the session id of the bluetooth device that is sending the message.
      */
-    public BT_MessageHello(@NonNull String macAddress) {
-        super(BT_MessageUtility.TYPE_HELLO, macAddress);
+    public BT_MessageHello(int sessionId) {
+        super(BT_MessageUtility.TYPE_HELLO, sessionId);
+        mEchoToken = -1;
+        mMessage = null;
     }
 
 
+    /**
+     * Constructs a message object with type BT_MessageUtility.TYPE_HELLO that carries an echo token.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @param echoToken value chosen by the sender, returned unchanged in the reply
+     */
+    public BT_MessageHello(int sessionId, int echoToken) {
+        super(BT_MessageUtility.TYPE_HELLO, sessionId);
+        mMessage = new byte[BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_ECHO_TOKEN];
+        setEchoToken(echoToken);
+    }
+
 
+    /**
+     * Writes the header and the echo token into the frame, which is reused by obtain().
+     *
+     * @param echoToken the echo token the frame carries
+     */
+    private void setEchoToken(int echoToken){
+        mEchoToken = echoToken & 0xFFFFFFFFL;
+        writeHeader(mMessage);
+        BT_MessageUtility.putInt(mMessage, BT_MessageUtility.LENGTH_HEADER, echoToken);
+    }
+
+
+    /**
+     * @return the echo token as an unsigned value, -1 if the hello does not have one.
+     */
+    public long getEchoToken(){
+        return mEchoToken;
+    }
+
+
+    /**
+     * Creates a byte array of the BT_Message plus the echo token if it has one. Call
+     * reconstruct() to recreate the object.
+     */
+    @Override
+    public byte[] makeBytes() {
+        if(mMessage == null)
+            return super.makeBytes();
+        return mMessage;
+    }
+
+
+    /**
+     * Only a hello with an echo token is pooled, the ones without are shared by obtain(int).
+     */
+    @Override
+    protected void onRecycled() {
+        if(mMessage != null)
+            sPool.release(this);
+    }
 }
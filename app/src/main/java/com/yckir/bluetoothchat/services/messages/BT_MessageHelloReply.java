@@ -1,13 +1,69 @@
 package com.yckir.bluetoothchat.services.messages;
 
-import android.support.annotation.NonNull;
-
 /**
  * This of message is sent in response to a BT_MessageHello. No extra data is required since
- * receiving this is enough to acknowledge the connection is valid.
+ * receiving this is enough to acknowledge the connection is valid. A reply to a hello that
+ * carried an echo token carries the same token back.
  */
 public class BT_MessageHelloReply extends BT_Message {
 
+    //a reply to a hello without an echo token only depends on the session id, so one
+    //permanent message is kept for each id and its frame is only encoded once.
+    private static final BT_MessageHelloReply[] sCache = new BT_MessageHelloReply[BT_MessageUtility.MAX_SESSION_ID + 1];
+
+    //a reply with an echo token is sent to every connection each interval, so they are pooled
+    private static final int MAX_POOL_SIZE = 10;
+    private static final BT_MessagePool<BT_MessageHelloReply> sPool = new BT_MessagePool<>(MAX_POOL_SIZE);
+
+    //the echo token as an unsigned value, -1 for a reply without one
+    private long mEchoToken;
+    //frame of a reply with an echo token, null if it only has a header
+    private final byte[] mMessage;
+
+
+    /**
+     * Gets the shared message object with type BT_MessageUtility.TYPE_HELLO_REPLY for a session id,
+     * constructing it the first time. The message is permanent, retain() and recycle() do nothing,
+     * so it can be queued for any number of connections.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @return a message with the given session id.
+     */
+    public static synchronized BT_MessageHelloReply obtain(int sessionId){
+        if(!BT_MessageUtility.isSessionId(sessionId))
+            throw new IllegalArgumentException(sessionId + " is not a valid session id");
+
+        BT_MessageHelloReply m = sCache[sessionId];
+        if(m == null){
+            m = new BT_MessageHelloReply(sessionId);
+            m.makeBytes();
+            m.setPermanent();
+            sCache[sessionId] = m;
+        }
+        return m;
+    }
+
+
+    /**
+     * Gets a message object with type BT_MessageUtility.TYPE_HELLO_REPLY that carries an echo token
+     * from the pool, or constructs one if the pool is empty. Call recycle() once the message has
+     * been written to return it.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @param echoToken the token of the hello that is being answered
+     * @return a message with the given session id and echo token.
+     */
+    public static BT_MessageHelloReply obtain(int sessionId, int echoToken){
+        BT_MessageHelloReply m = sPool.acquire();
+        if(m == null)
+            return new BT_MessageHelloReply(sessionId, echoToken);
+
+        m.reuse(sessionId);
+        m.setEchoToken(echoToken);
+        return m;
+    }
+
+
     /**
      * Reconstructs a BT_MessageHelloReply object from a byte array. The byte data should derive from a
      * makeBytes() method call.
@@ -18,27 +74,104 @@ public class BT_MessageHelloReply extends BT_Message {
     public static BT_MessageHelloReply reconstruct(byte[] byteMessage){
 
         //check if the message is correct size
-        if(byteMessage.length != BT_MessageUtility.LENGTH_HEADER)
+        if(byteMessage.length != BT_MessageUtility.LENGTH_HEADER
+                && byteMessage.length != BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_ECHO_TOKEN)
             throw new IllegalArgumentException(byteMessage + " is invalid param, must be length "
-                    + BT_MessageUtility.LENGTH_HEADER);
+                    + BT_MessageUtility.LENGTH_HEADER + " or "
+                    + (BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_ECHO_TOKEN));
 
-        BT_Message m = BT_Message.reconstruct(byteMessage);
+        BT_Message m = BT_Message.reconstructHeader(byteMessage);
 
         //check its correct type
         if(m.getMessageType() != BT_MessageUtility.TYPE_HELLO_REPLY)
             throw new IllegalArgumentException(BT_MessageUtility.TYPE_HELLO_REPLY + " must be the " +
                     "message type, found " + m.getMessageType());
 
-        return new BT_MessageHelloReply(m.getMacAddress());
+        if(byteMessage.length == BT_MessageUtility.LENGTH_HEADER)
+            return new BT_MessageHelloReply(m.getSessionId());
+        return new BT_MessageHelloReply(m.getSessionId(), BT_MessageUtility.getInt(byteMessage, BT_MessageUtility.LENGTH_HEADER));
+    }
+
+
+    /**
+     * Reads the echo token of a frame without creating a message object. Used by the service on
+     * every reply it reads.
+     *
+     * @param b the array that holds the frame
+     * @param offset index of the first byte of the frame's length prefix
+     * @param length number of bytes in the array that belong to the frame
+     * @return the echo token as an unsigned value, -1 if the frame does not have one.
+     */
+    public static long getEchoToken(byte[] b, int offset, int length){
+        checkHeader(b, offset, length, BT_MessageUtility.TYPE_HELLO_REPLY);
+        if(length != BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_ECHO_TOKEN)
+            return -1;
+        return BT_MessageUtility.getInt(b, offset + BT_MessageUtility.LENGTH_HEADER) & 0xFFFFFFFFL;
     }
 
     /**
      * Constructs a message object with type BT_MessageUtility.TYPE_HELLO_REPLY.
      *
-     * @param macAddress the mac address of the bluetooth device that is sending the message.
+     * @param sessionId the session id of the bluetooth device that is sending the message.
      */
-    public BT_MessageHelloReply(@NonNull String macAddress) {
-        super(BT_MessageUtility.TYPE_HELLO_REPLY, macAddress);
+    public BT_MessageHelloReply(int sessionId) {
+        super(BT_MessageUtility.TYPE_HELLO_REPLY, sessionId);
+        mEchoToken = -1;
+        mMessage = null;
     }
 
+
+    /**
+     * Constructs a message object with type BT_MessageUtility.TYPE_HELLO_REPLY that carries an echo token.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @param echoToken the token of the hello that is being answered
+     */
+    public BT_MessageHelloReply(int sessionId, int echoToken) {
+        super(BT_MessageUtility.TYPE_HELLO_REPLY, sessionId);
+        mMessage = new byte[BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_ECHO_TOKEN];
+        setEchoToken(echoToken);
+    }
+
+
+    /**
+     * Writes the header and the echo token into the frame, which is reused by obtain().
+     *
+     * @param echoToken the echo token the frame carries
+     */
+    private void setEchoToken(int echoToken){
+        mEchoToken = echoToken & 0xFFFFFFFFL;
+        writeHeader(mMessage);
+        BT_MessageUtility.putInt(mMessage, BT_MessageUtility.LENGTH_HEADER, echoToken);
+    }
+
+
+    /**
+     * @return the echo token as an unsigned value, -1 if the reply does not have one.
+     */
+    public long getEchoToken(){
+        return mEchoToken;
+    }
+
+
+    /**
+     * Creates a byte array of the BT_Message plus the echo token if it has one. Call
+     * reconstruct() to recreate the object.
+     */
+    @Override
+    public byte[] makeBytes() {
+        if(mMessage == null)
+            return super.makeBytes();
+        return mMessage;
+    }
+
+
+    /**
+     * Only a reply with an echo token is pooled, the ones without are shared by obtain(int).
+     */
+    @Override
+    protected void onRecycled() {
+        if(mMessage != null)
+            sPool.release(this);
+    }
 }
@@ -0,0 +1,91 @@
+package com.yckir.bluetoothchat.services.messages;
+
+/**
+ * Sent by both devices when a connection is added to tell the remote device which optional
+ * features this device supports. A feature is only used on a connection once the remote device
+ * has said that it supports it, so devices that do not send this message never receive frames
+ * that they can not read.
+ */
+public class BT_MessageOptions extends BT_Message {
+
+    //the device can inflate frames that have BT_MessageUtility.FLAG_COMPRESSED set
+    public static final int OPTION_DEFLATE = 1;
+    //the device returns BT_MessageCredit for the app messages it reads, so the sender may wait for credits
+    public static final int OPTION_CREDITS = 2;
+    //the device keeps the app messages it wrote and counts the ones it read, so a connection that
+    //fails can be resumed with BT_MessageResume and the messages that were lost sent again
+    public static final int OPTION_RESUME = 4;
+
+    private final int mOptions;
+    private final byte[] mMessage;
+
+    /**
+     * Reconstructs a BT_MessageOptions object from a byte array. The byte data should derive from a
+     * makeBytes() method call.
+     *
+     * @param byteMessage the bytes to construct a BT_MessageOptions object.
+     * @return the constructed BT_MessageOptions object.
+     */
+    public static BT_MessageOptions reconstruct(byte[] byteMessage){
+        //check if the message is correct size
+        if(byteMessage.length != BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_OPTIONS)
+            throw new IllegalArgumentException(byteMessage + " is invalid param, must be length "
+                    + (BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_OPTIONS));
+
+        BT_Message m = BT_Message.reconstructHeader(byteMessage);
+
+        //check its correct type
+        if(m.getMessageType() != BT_MessageUtility.TYPE_OPTIONS)
+            throw new IllegalArgumentException(BT_MessageUtility.TYPE_OPTIONS + " must be the " +
+                    "message type, found " + m.getMessageType());
+
+        return new BT_MessageOptions(m.getSessionId(), byteMessage[BT_MessageUtility.LENGTH_HEADER] & 0xFF);
+    }
+
+
+    /**
+     * Constructs a message object with type BT_MessageUtility.TYPE_OPTIONS.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @param options the OPTION_ flags of the features that the device supports. Unknown flags
+     *                are kept so that newer devices can add features.
+     */
+    public BT_MessageOptions(int sessionId, int options) {
+        super(BT_MessageUtility.TYPE_OPTIONS, sessionId);
+
+        if(options < 0 || options > 0xFF)
+            throw new IllegalArgumentException(options + " does not fit in " + BT_MessageUtility.LENGTH_OPTIONS + " byte");
+
+        mOptions = options;
+        mMessage = new byte[BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_OPTIONS];
+        writeHeader(mMessage);
+        mMessage[BT_MessageUtility.LENGTH_HEADER] = (byte) options;
+    }
+
+
+    /**
+     * @return the OPTION_ flags of the features that the sending device supports.
+     */
+    public int getOptions(){
+        return mOptions;
+    }
+
+
+    /**
+     * @param option one of the OPTION_ flags
+     * @return true if the sending device supports the option.
+     */
+    public boolean hasOption(int option){
+        return (mOptions & option) == option;
+    }
+
+
+    /**
+     * Creates a byte array of the BT_Message plus the options. Call reconstruct() to recreate
+     * the object.
+     */
+    @Override
+    public byte[] makeBytes() {
+        return mMessage;
+    }
+}
@@ -0,0 +1,66 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * A bounded free list of recycled messages of one type, used by the obtain() methods of the
+ * BT_Message subclasses. Messages are returned by BT_Message.recycle() once the last reference
+ * has been released. When the pool is full the recycled message is left for the garbage
+ * collector, so the pool never holds more than its max size.
+ *
+ * @param <T> the type of message held by the pool
+ */
+class BT_MessagePool<T extends BT_Message> {
+
+    private final Object[] mPool;
+    private int mSize;
+
+
+    /**
+     * @param maxSize the largest number of recycled messages that will be kept
+     */
+    BT_MessagePool(int maxSize){
+        if(maxSize < 0)
+            throw new IllegalArgumentException(maxSize + " is not a valid pool size");
+        mPool = new Object[maxSize];
+        mSize = 0;
+    }
+
+
+    /**
+     * @return a recycled message, null if the pool is empty.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized @Nullable T acquire(){
+        if(mSize == 0)
+            return null;
+
+        mSize--;
+        T message = (T) mPool[mSize];
+        mPool[mSize] = null;
+        return message;
+    }
+
+
+    /**
+     * @param message a message that is no longer used
+     * @return true if the message was kept, false if the pool is full.
+     */
+    synchronized boolean release(@NonNull T message){
+        if(mSize == mPool.length)
+            return false;
+
+        mPool[mSize] = message;
+        mSize++;
+        return true;
+    }
+
+
+    /**
+     * @return the number of recycled messages in the pool.
+     */
+    synchronized int size(){
+        return mSize;
+    }
+}
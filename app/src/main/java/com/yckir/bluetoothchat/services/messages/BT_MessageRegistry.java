@@ -0,0 +1,225 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the message types that can be sent over bluetooth. Each type is registered once with the
+ * decoder that turns its frame into a BT_Message and whether the message is for the activity or
+ * only used by the service. Registering gives the type a dense index from 0 to getTypeCount() - 1,
+ * so anything that depends on the type, like the handler of a frame, is kept in an array and
+ * found with getTypeIndex() instead of a switch.
+ * <p>
+ * The built in types are registered when the class is loaded. Types can be registered at any
+ * time. The service reads the frames of a type that is only used by it with the FrameHandler
+ * registered with BluetoothService.registerFrameHandler(), and BluetoothServiceHandler gives
+ * activity messages to the Dispatcher registered with BluetoothServiceHandler.registerDispatcher().
+ */
+public final class BT_MessageRegistry {
+
+    /**
+     * Turns a frame of one message type into a message object.
+     */
+    public interface Decoder{
+        /**
+         * The array is reused after this returns, so decoders that keep the frame must copy it.
+         *
+         * @param b array that holds a complete frame, including its length prefix
+         * @param offset index of the first byte of the frame
+         * @param length number of bytes in the frame
+         * @return the message in the frame.
+         */
+        BT_Message decode(@NonNull byte[] b, int offset, int length);
+    }
+
+    //smallest and largest ids that can be a message type
+    private static final int TYPE_MIN = 1000;
+    private static final int TYPE_MAX = 1199;
+
+    //most types that can be registered
+    public static final int MAX_TYPES = 64;
+
+    //maps (type - TYPE_MIN) to a dense index, -1 for ids that are not registered
+    private static final byte[] sTypeIndex = new byte[TYPE_MAX - TYPE_MIN + 1];
+    private static final int[] sTypes = new int[MAX_TYPES];
+    private static final Decoder[] sDecoders = new Decoder[MAX_TYPES];
+    private static final boolean[] sActivityMessages = new boolean[MAX_TYPES];
+    //written last when a type is registered, so a reader that sees an index below it sees the entry
+    private static volatile int sTypeCount;
+
+    static {
+        Arrays.fill(sTypeIndex, (byte) -1);
+
+        register(BT_MessageUtility.TYPE_HELLO, false, new Decoder() {
+            @Override
+            public BT_Message decode(@NonNull byte[] b, int offset, int length) {
+                return BT_MessageHello.reconstruct(copyFrame(b, offset, length));
+            }
+        });
+        register(BT_MessageUtility.TYPE_HELLO_REPLY, false, new Decoder() {
+            @Override
+            public BT_Message decode(@NonNull byte[] b, int offset, int length) {
+                return BT_MessageHelloReply.reconstruct(copyFrame(b, offset, length));
+            }
+        });
+        register(BT_MessageUtility.TYPE_SESSION, false, new Decoder() {
+            @Override
+            public BT_Message decode(@NonNull byte[] b, int offset, int length) {
+                return BT_MessageSession.reconstruct(copyFrame(b, offset, length));
+            }
+        });
+        register(BT_MessageUtility.TYPE_OPTIONS, false, new Decoder() {
+            @Override
+            public BT_Message decode(@NonNull byte[] b, int offset, int length) {
+                return BT_MessageOptions.reconstruct(copyFrame(b, offset, length));
+            }
+        });
+        register(BT_MessageUtility.TYPE_CREDIT, false, new Decoder() {
+            @Override
+            public BT_Message decode(@NonNull byte[] b, int offset, int length) {
+                return BT_MessageCredit.reconstruct(copyFrame(b, offset, length));
+            }
+        });
+        register(BT_MessageUtility.TYPE_RESUME, false, new Decoder() {
+            @Override
+            public BT_Message decode(@NonNull byte[] b, int offset, int length) {
+                return BT_MessageResume.reconstruct(copyFrame(b, offset, length));
+            }
+        });
+        register(BT_MessageUtility.TYPE_CONNECTION_CLOSED, false, new Decoder() {
+            @Override
+            public BT_Message decode(@NonNull byte[] b, int offset, int length) {
+                return BT_MessageClose.reconstruct(copyFrame(b, offset, length));
+            }
+        });
+        register(BT_MessageUtility.TYPE_SERVER_SETUP_FINISHED, true, new Decoder() {
+            @Override
+            public BT_Message decode(@NonNull byte[] b, int offset, int length) {
+                return BT_MessageSetupFinished.reconstruct(copyFrame(b, offset, length));
+            }
+        });
+        register(BT_MessageUtility.TYPE_APP_MESSAGE, true, new Decoder() {
+            @Override
+            public BT_Message decode(@NonNull byte[] b, int offset, int length) {
+                return BT_MessageApp.reconstruct(b, offset, length);
+            }
+        });
+    }
+
+
+    private BT_MessageRegistry(){
+    }
+
+
+    /**
+     * Registers a message type.
+     *
+     * @param type the id written in the header of the frames of the type, between 1000 and 1199.
+     * @param activityMessage true if the decoded message is given to the BluetoothServiceHandler,
+     *                        false if the frame is only handled by the service.
+     * @param decoder turns a frame of the type into a message
+     * @return the index of the type.
+     */
+    public static synchronized int register(int type, boolean activityMessage, @NonNull Decoder decoder){
+        if(type < TYPE_MIN || type > TYPE_MAX)
+            throw new IllegalArgumentException(type + " must be between " + TYPE_MIN + " and " + TYPE_MAX);
+        if(sTypeIndex[type - TYPE_MIN] >= 0)
+            throw new IllegalArgumentException(type + " has already been registered");
+        if(decoder == null)
+            throw new IllegalArgumentException("type " + type + " must have a decoder");
+        if(sTypeCount == MAX_TYPES)
+            throw new IllegalStateException("can not register more than " + MAX_TYPES + " types");
+
+        int index = sTypeCount;
+        sTypes[index] = type;
+        sDecoders[index] = decoder;
+        sActivityMessages[index] = activityMessage;
+        sTypeIndex[type - TYPE_MIN] = (byte) index;
+        sTypeCount = index + 1;
+        return index;
+    }
+
+
+    /**
+     * Gets the dense index of a message type. Uses a precomputed table and does not allocate, so
+     * it can be called on every frame that is read.
+     *
+     * @param type the id to look up
+     * @return a value from 0 to getTypeCount() - 1, -1 if type is not a registered message type.
+     */
+    public static int getTypeIndex(int type){
+        int count = sTypeCount;
+        if(type < TYPE_MIN || type > TYPE_MAX)
+            return -1;
+
+        int index = sTypeIndex[type - TYPE_MIN];
+        return index < count ? index : -1;
+    }
+
+
+    /**
+     * @return the number of registered message types.
+     */
+    public static int getTypeCount(){
+        return sTypeCount;
+    }
+
+
+    /**
+     * @param index index of a registered type
+     * @return the message type with the index.
+     */
+    public static @BT_MessageUtility.MESSAGE_TYPE int getType(int index){
+        checkIndex(index);
+        return sTypes[index];
+    }
+
+
+    /**
+     * @param index index of a registered type
+     * @return true if messages of the type are given to the BluetoothServiceHandler, false if
+     *         they are only handled by the service.
+     */
+    public static boolean isActivityMessage(int index){
+        checkIndex(index);
+        return sActivityMessages[index];
+    }
+
+
+    /**
+     * Decodes a frame with the decoder of its type.
+     *
+     * @param index index of the type of the frame, from getTypeIndex()
+     * @param b array that holds a complete frame, including its length prefix
+     * @param offset index of the first byte of the frame
+     * @param length number of bytes in the frame
+     * @return the message in the frame.
+     */
+    public static BT_Message decode(int index, @NonNull byte[] b, int offset, int length){
+        checkIndex(index);
+        return sDecoders[index].decode(b, offset, length);
+    }
+
+
+    /**
+     * @param index the index to be checked
+     */
+    private static void checkIndex(int index){
+        if(index < 0 || index >= sTypeCount)
+            throw new IllegalArgumentException(index + " is not the index of a registered type");
+    }
+
+
+    /**
+     * Copies a frame out of a larger array for the types that are reconstructed from a whole array.
+     *
+     * @param b array that holds the frame
+     * @param offset index of the first byte of the frame
+     * @param length number of bytes in the frame
+     * @return a copy of the frame.
+     */
+    private static byte[] copyFrame(byte[] b, int offset, int length){
+        return Arrays.copyOfRange(b, offset, offset + length);
+    }
+}
@@ -0,0 +1,100 @@
+package com.yckir.bluetoothchat.services.messages;
+
+/**
+ * Resumes a session on a new connection after the old one failed. The device that lost the
+ * connection sends it first, with the resume token the hub gave it in BT_MessageSession, and the
+ * hub answers with the same token, or with REJECTED if it no longer has the session. Both carry
+ * the number of app messages the sender has read in the session, so the other device sends again
+ * the ones it wrote after them.
+ */
+public class BT_MessageResume extends BT_Message {
+
+    //token of an answer from a hub that can not resume the session
+    public static final int REJECTED = 0;
+
+    private final int mResumeToken;
+    private final int mReadCount;
+    private final byte[] mMessage;
+
+    /**
+     * Reconstructs a BT_MessageResume object from a byte array. The byte data should derive from a
+     * makeBytes() method call.
+     *
+     * @param byteMessage the bytes to construct a BT_MessageResume object.
+     * @return the constructed BT_MessageResume object.
+     */
+    public static BT_MessageResume reconstruct(byte[] byteMessage){
+        //check if the message is correct size
+        int length = BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_RESUME_TOKEN
+                + BT_MessageUtility.LENGTH_MESSAGE_COUNT;
+        if(byteMessage.length != length)
+            throw new IllegalArgumentException(byteMessage + " is invalid param, must be length " + length);
+
+        BT_Message m = BT_Message.reconstructHeader(byteMessage);
+
+        //check its correct type
+        if(m.getMessageType() != BT_MessageUtility.TYPE_RESUME)
+            throw new IllegalArgumentException(BT_MessageUtility.TYPE_RESUME + " must be the " +
+                    "message type, found " + m.getMessageType());
+
+        int offset = BT_MessageUtility.LENGTH_HEADER;
+        return new BT_MessageResume(m.getSessionId(), BT_MessageUtility.getInt(byteMessage, offset),
+                BT_MessageUtility.getInt(byteMessage, offset + BT_MessageUtility.LENGTH_RESUME_TOKEN));
+    }
+
+
+    /**
+     * Constructs a message object with type BT_MessageUtility.TYPE_RESUME.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @param resumeToken the resume token of the session, REJECTED if it can not be resumed
+     * @param readCount the number of app messages the sender has read in the session. It wraps
+     *                  around, only the difference between two counts is used.
+     */
+    public BT_MessageResume(int sessionId, int resumeToken, int readCount) {
+        super(BT_MessageUtility.TYPE_RESUME, sessionId);
+
+        mResumeToken = resumeToken;
+        mReadCount = readCount;
+        mMessage = new byte[BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_RESUME_TOKEN
+                + BT_MessageUtility.LENGTH_MESSAGE_COUNT];
+        writeHeader(mMessage);
+        BT_MessageUtility.putInt(mMessage, BT_MessageUtility.LENGTH_HEADER, resumeToken);
+        BT_MessageUtility.putInt(mMessage, BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_RESUME_TOKEN,
+                readCount);
+    }
+
+
+    /**
+     * @return the resume token of the session, REJECTED if it can not be resumed.
+     */
+    public int getResumeToken(){
+        return mResumeToken;
+    }
+
+
+    /**
+     * @return the number of app messages the sender has read in the session.
+     */
+    public int getReadCount(){
+        return mReadCount;
+    }
+
+
+    /**
+     * @return true if the session is being resumed, false if the hub rejected it.
+     */
+    public boolean isRejected(){
+        return mResumeToken == REJECTED;
+    }
+
+
+    /**
+     * Creates a byte array of the BT_Message plus the resume token and read count. Call
+     * reconstruct() to recreate the object.
+     */
+    @Override
+    public byte[] makeBytes() {
+        return mMessage;
+    }
+}
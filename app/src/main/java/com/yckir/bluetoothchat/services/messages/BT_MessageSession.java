@@ -0,0 +1,109 @@
+package com.yckir.bluetoothchat.services.messages;
+
+/**
+ * Sent by the hub as the first message on a new connection to give the remote device its session
+ * id. The remote device writes that id in the header of every message it sends afterwards, and the
+ * hub uses it to find the device that sent a message. The hub itself always uses
+ * BT_MessageUtility.SESSION_HUB.
+ * <p>
+ * The hub may add a resume token of BT_MessageUtility.LENGTH_RESUME_TOKEN bytes. A device that
+ * loses the connection sends it back in a BT_MessageResume on a new connection, so the hub knows
+ * which session is being resumed.
+ */
+public class BT_MessageSession extends BT_Message {
+
+    private final int mAssignedId;
+    //0 if the message has no resume token
+    private final int mResumeToken;
+    private final byte[] mMessage;
+
+    /**
+     * Reconstructs a BT_MessageSession object from a byte array. The byte data should derive from a
+     * makeBytes() method call.
+     *
+     * @param byteMessage the bytes to construct a BT_MessageSession object.
+     * @return the constructed BT_MessageSession object.
+     */
+    public static BT_MessageSession reconstruct(byte[] byteMessage){
+        //check if the message is correct size
+        int length = BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_SESSION_ID;
+        if(byteMessage.length != length && byteMessage.length != length + BT_MessageUtility.LENGTH_RESUME_TOKEN)
+            throw new IllegalArgumentException(byteMessage + " is invalid param, must be length "
+                    + length + " or " + (length + BT_MessageUtility.LENGTH_RESUME_TOKEN));
+
+        BT_Message m = BT_Message.reconstructHeader(byteMessage);
+
+        //check its correct type
+        if(m.getMessageType() != BT_MessageUtility.TYPE_SESSION)
+            throw new IllegalArgumentException(BT_MessageUtility.TYPE_SESSION + " must be the " +
+                    "message type, found " + m.getMessageType());
+
+        int assignedId = byteMessage[BT_MessageUtility.LENGTH_HEADER] & 0xFF;
+        if(byteMessage.length == length)
+            return new BT_MessageSession(m.getSessionId(), assignedId);
+        return new BT_MessageSession(m.getSessionId(), assignedId, BT_MessageUtility.getInt(byteMessage, length));
+    }
+
+
+    /**
+     * Constructs a message object with type BT_MessageUtility.TYPE_SESSION.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @param assignedId the session id that the remote bluetooth device should use from now on.
+     */
+    public BT_MessageSession(int sessionId, int assignedId) {
+        this(sessionId, assignedId, 0);
+    }
+
+
+    /**
+     * Constructs a message object with type BT_MessageUtility.TYPE_SESSION that carries a resume
+     * token.
+     *
+     * @param sessionId the session id of the bluetooth device that is sending the message.
+     * @param assignedId the session id that the remote bluetooth device should use from now on.
+     * @param resumeToken the token the remote device resumes the session with, 0 for none
+     */
+    public BT_MessageSession(int sessionId, int assignedId, int resumeToken) {
+        super(BT_MessageUtility.TYPE_SESSION, sessionId);
+
+        if(assignedId == BT_MessageUtility.SESSION_UNASSIGNED || assignedId == BT_MessageUtility.SESSION_HUB
+                || !BT_MessageUtility.isSessionId(assignedId))
+            throw new IllegalArgumentException(assignedId + " can not be assigned as a session id");
+
+        mAssignedId = assignedId;
+        mResumeToken = resumeToken;
+        int length = BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_SESSION_ID;
+        mMessage = new byte[resumeToken == 0 ? length : length + BT_MessageUtility.LENGTH_RESUME_TOKEN];
+        writeHeader(mMessage);
+        mMessage[BT_MessageUtility.LENGTH_HEADER] = (byte) assignedId;
+        if(resumeToken != 0)
+            BT_MessageUtility.putInt(mMessage, length, resumeToken);
+    }
+
+
+    /**
+     * @return the session id that the remote bluetooth device should use.
+     */
+    public int getAssignedId(){
+        return mAssignedId;
+    }
+
+
+    /**
+     * @return the token the session is resumed with, 0 if the hub did not give one.
+     */
+    public int getResumeToken(){
+        return mResumeToken;
+    }
+
+
+    /**
+     * Creates a byte array of the BT_Message plus the assigned id and resume token. Call reconstruct() to recreate
+     * the object.
+     */
+    @Override
+    public byte[] makeBytes() {
+        return mMessage;
+    }
+}
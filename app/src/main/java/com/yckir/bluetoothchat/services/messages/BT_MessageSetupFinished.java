@@ -1,7 +1,5 @@
 package com.yckir.bluetoothchat.services.messages;
 
-import android.support.annotation.NonNull;
-
 /**
  * This message is used to tell clients that the server has finished the setup phase. The clients
  * that receives this are the clients that the server has accepted. The clients should start the main
@@ -30,15 +28,15 @@ public class BT_MessageSetupFinished extends BT_Message{
             throw new IllegalArgumentException(BT_MessageUtility.TYPE_SERVER_SETUP_FINISHED + " must be the " +
                     "message type, found " + m.getMessageType());
 
-        return new BT_MessageSetupFinished(m.getMacAddress());
+        return new BT_MessageSetupFinished(m.getSessionId());
     }
 
     /**
      * Constructs a message object with type BT_MessageUtility.TYPE_SERVER_SETUP_FINISHED.
      *
-     * @param macAddress the mac address of the bluetooth device that is sending the message.
+     * @param sessionId the session id of the bluetooth device that is sending the message.
      */
-    public BT_MessageSetupFinished(@NonNull String macAddress) {
-        super(BT_MessageUtility.TYPE_SERVER_SETUP_FINISHED, macAddress);
+    public BT_MessageSetupFinished(int sessionId) {
+        super(BT_MessageUtility.TYPE_SERVER_SETUP_FINISHED, sessionId);
     }
 }
@@ -7,7 +7,8 @@ import java.lang.annotation.RetentionPolicy;
 
 public class BT_MessageUtility {
 
-    @IntDef(flag = true, value = {TYPE_HELLO, TYPE_HELLO_REPLY, TYPE_CONNECTION_CLOSED, TYPE_SERVER_SETUP_FINISHED, TYPE_APP_MESSAGE})
+    @IntDef(flag = true, value = {TYPE_HELLO, TYPE_HELLO_REPLY, TYPE_SESSION, TYPE_OPTIONS, TYPE_CREDIT,
+            TYPE_RESUME, TYPE_CONNECTION_CLOSED, TYPE_SERVER_SETUP_FINISHED, TYPE_APP_MESSAGE})
     @Retention(RetentionPolicy.SOURCE)
     public @interface MESSAGE_TYPE {}
 
@@ -16,6 +17,10 @@ public class BT_MessageUtility {
     //activity never sees.
     public static final int TYPE_HELLO = 1000;
     public static final int TYPE_HELLO_REPLY = 1001;
+    public static final int TYPE_SESSION = 1002;
+    public static final int TYPE_OPTIONS = 1003;
+    public static final int TYPE_CREDIT = 1004;
+    public static final int TYPE_RESUME = 1005;
 
     //ids between 1100 and 1199 are reserved for service to activity messages
     //used mainly to tell user of important events such as client leaving
@@ -23,21 +28,102 @@ public class BT_MessageUtility {
     public static final int TYPE_SERVER_SETUP_FINISHED = 1101;
     public static final int TYPE_APP_MESSAGE = 1102;
 
-    //number of bytes int the message identifier
-    public static final int LENGTH_ID = 4;
-    public static final int LENGTH_ADDRESS = 17;
-    public static final int LENGTH_HEADER = LENGTH_ID +LENGTH_ADDRESS;
+    //the type field of a header holds the type in its low bits and flags in its high bits
+    public static final int TYPE_MASK = 0x0FFF;
+    //the body of the frame has been compressed with a Deflater and must be inflated before it is decoded
+    public static final int FLAG_COMPRESSED = 0x8000;
+    //the frame is a fragment of a larger app message and more fragments of it follow
+    public static final int FLAG_MORE_FRAGMENTS = 0x4000;
 
+    //number of bytes in the frame length prefix. The prefix holds the number of bytes that follow it.
+    public static final int LENGTH_PREFIX = 2;
+    //number of bytes int the message identifier, written as a big endian short
+    public static final int LENGTH_ID = 2;
+    //number of bytes in the session id of the device that sent the message
+    public static final int LENGTH_SESSION_ID = 1;
+    public static final int LENGTH_HEADER = LENGTH_PREFIX + LENGTH_ID + LENGTH_SESSION_ID;
+    //number of bytes of options in a BT_MessageOptions
+    public static final int LENGTH_OPTIONS = 1;
+    //number of bytes of credits in a BT_MessageCredit, written as a big endian short
+    public static final int LENGTH_CREDITS = 2;
+    //number of bytes of the optional echo token of a hello and its reply, written as a big endian int
+    public static final int LENGTH_ECHO_TOKEN = 4;
+    //number of bytes of the resume token of a session, written as a big endian int
+    public static final int LENGTH_RESUME_TOKEN = 4;
+    //number of bytes of the count of app messages read in a BT_MessageResume, written as a big endian int
+    public static final int LENGTH_MESSAGE_COUNT = 4;
+
+    //session ids are assigned by the hub during the handshake. A device that has not been given
+    //an id yet sends SESSION_UNASSIGNED, and the hub always uses SESSION_HUB.
+    public static final int SESSION_UNASSIGNED = 0;
+    public static final int SESSION_HUB = 1;
+    public static final int MAX_SESSION_ID = 255;
+
+    //largest value the length prefix can hold, and the largest frame including the prefix
+    public static final int MAX_FRAME_BODY = 0xFFFF;
+    public static final int MAX_FRAME_LENGTH = LENGTH_PREFIX + MAX_FRAME_BODY;
+
+    /**
+     * @param type the id to be checked
+     * @return true if type has been registered in BT_MessageRegistry.
+     */
     public static boolean isMessageType(int type){
-        switch (type) {
-            case TYPE_APP_MESSAGE:
-            case TYPE_CONNECTION_CLOSED:
-            case TYPE_HELLO_REPLY:
-            case TYPE_HELLO:
-            case TYPE_SERVER_SETUP_FINISHED:
-                return true;
-            default:
-                return false;
-        }
+        return BT_MessageRegistry.getTypeIndex(type) >= 0;
+    }
+
+
+    /**
+     * @param sessionId the id to be checked
+     * @return true if sessionId can be written in the session id byte of a header
+     */
+    public static boolean isSessionId(int sessionId){
+        return sessionId >= SESSION_UNASSIGNED && sessionId <= MAX_SESSION_ID;
+    }
+
+
+    /**
+     * Writes the lower 16 bits of value into two bytes in big endian order.
+     *
+     * @param b the array to write to
+     * @param offset index of the first byte that will be written
+     * @param value the value to be written
+     */
+    public static void putShort(byte[] b, int offset, int value){
+        b[offset] = (byte) (value >> 8);
+        b[offset + 1] = (byte) value;
+    }
+
+    /**
+     * Reads two bytes in big endian order as an unsigned value.
+     *
+     * @param b the array to read from
+     * @param offset index of the first byte that will be read
+     * @return the unsigned value of the two bytes
+     */
+    public static int getShort(byte[] b, int offset){
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+
+    /**
+     * Writes value into four bytes in big endian order.
+     *
+     * @param b the array to write to
+     * @param offset index of the first byte that will be written
+     * @param value the value to be written
+     */
+    public static void putInt(byte[] b, int offset, int value){
+        putShort(b, offset, value >> 16);
+        putShort(b, offset + 2, value);
+    }
+
+    /**
+     * Reads four bytes in big endian order.
+     *
+     * @param b the array to read from
+     * @param offset index of the first byte that will be read
+     * @return the value of the four bytes
+     */
+    public static int getInt(byte[] b, int offset){
+        return (getShort(b, offset) << 16) | getShort(b, offset + 2);
     }
 }
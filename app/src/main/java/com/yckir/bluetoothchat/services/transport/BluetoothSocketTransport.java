@@ -0,0 +1,88 @@
+package com.yckir.bluetoothchat.services.transport;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * A transport over a connected bluetooth socket. The id of the remote device is its mac address.
+ */
+public class BluetoothSocketTransport implements Transport {
+
+    private final BluetoothSocket mSocket;
+
+
+    /**
+     * @param socket a socket that has been connected, using BluetoothServerSocket.accept() for a
+     *               server or createRfcommSocketToServiceRecord().connect() for a client.
+     */
+    public BluetoothSocketTransport(@NonNull BluetoothSocket socket){
+        mSocket = socket;
+    }
+
+
+    /**
+     * Creates a connector that opens a new rfcomm socket to a device, the way a client first
+     * connects to the hub.
+     *
+     * @param device the device to connect to
+     * @param uuid the service record the device listens on
+     * @return a connector for the device.
+     */
+    public static Connector connector(@NonNull final BluetoothDevice device, @NonNull final UUID uuid){
+        return new Connector() {
+            @NonNull
+            @Override
+            public Transport connect() throws IOException {
+                BluetoothSocket socket = device.createRfcommSocketToServiceRecord(uuid);
+                try {
+                    socket.connect();
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+                return new BluetoothSocketTransport(socket);
+            }
+        };
+    }
+
+
+    /**
+     * @return the socket of the transport.
+     */
+    public BluetoothSocket getSocket(){
+        return mSocket;
+    }
+
+
+    @NonNull
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+
+    @NonNull
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+
+    @NonNull
+    @Override
+    public String getRemoteId() {
+        return mSocket.getRemoteDevice().getAddress();
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
@@ -0,0 +1,226 @@
+package com.yckir.bluetoothchat.services.transport;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A transport whose streams are in-memory pipes, made in connected pairs with pair(). Nothing
+ * leaves the process, so hundreds of simulated devices can be connected to a service at once
+ * to load test it. Unlike java.io.PipedInputStream, the pipes do not care which threads read and
+ * write them.
+ */
+public class PipedTransport implements Transport {
+
+    //bytes a pipe holds before a write blocks, about the buffer of a bluetooth socket
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    private final Pipe mIn;
+    private final Pipe mOut;
+    private final String mRemoteId;
+
+
+    /**
+     * Creates two transports connected by a pipe in each direction.
+     *
+     * @param firstId the id of the device that uses the first transport
+     * @param secondId the id of the device that uses the second transport
+     * @param bufferSize number of bytes each pipe holds before a write blocks
+     * @return two connected transports, what is written to one is read from the other.
+     */
+    public static PipedTransport[] pair(@NonNull String firstId, @NonNull String secondId, int bufferSize){
+        Pipe toFirst = new Pipe(bufferSize);
+        Pipe toSecond = new Pipe(bufferSize);
+        return new PipedTransport[]{new PipedTransport(toFirst, toSecond, secondId),
+                new PipedTransport(toSecond, toFirst, firstId)};
+    }
+
+
+    /**
+     * @param in pipe that is read from
+     * @param out pipe that is written to
+     * @param remoteId the id of the device at the other end of the pipes
+     */
+    private PipedTransport(Pipe in, Pipe out, String remoteId){
+        mIn = in;
+        mOut = out;
+        mRemoteId = remoteId;
+    }
+
+
+    @NonNull
+    @Override
+    public InputStream getInputStream() {
+        return mIn.mInputStream;
+    }
+
+
+    @NonNull
+    @Override
+    public OutputStream getOutputStream() {
+        return mOut.mOutputStream;
+    }
+
+
+    @NonNull
+    @Override
+    public String getRemoteId() {
+        return mRemoteId;
+    }
+
+
+    /**
+     * Closes both pipes. Bytes that were already written can still be read, then reads return the
+     * end of the stream. Writes fail on both transports of the pair.
+     */
+    @Override
+    public void close() {
+        mIn.close();
+        mOut.close();
+    }
+
+
+    /**
+     * A bounded ring of bytes. Reads block while it is empty and writes block while it is full.
+     */
+    private static class Pipe {
+        private final byte[] mBuffer;
+        //index of the next byte that is read
+        private int mHead;
+        //number of bytes that have been written and not read
+        private int mCount;
+        private boolean mClosed;
+
+        private final InputStream mInputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(@NonNull byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return mCount;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        private final OutputStream mOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+
+        /**
+         * @param bufferSize number of bytes the pipe holds before a write blocks
+         */
+        Pipe(int bufferSize){
+            if(bufferSize <= 0)
+                throw new IllegalArgumentException(bufferSize + " is not a valid buffer size");
+            mBuffer = new byte[bufferSize];
+        }
+
+
+        /**
+         * Blocks until at least one byte can be read, then reads as many as are available.
+         *
+         * @return the number of bytes read, -1 if the pipe is closed and empty.
+         * @throws InterruptedIOException if the thread was interrupted while waiting
+         */
+        synchronized int read(byte[] b, int off, int len) throws InterruptedIOException {
+            if(off < 0 || len < 0 || off + len > b.length)
+                throw new IndexOutOfBoundsException("offset " + off + ", length " + len + ", size " + b.length);
+            if(len == 0)
+                return 0;
+
+            while(mCount == 0){
+                if(mClosed)
+                    return -1;
+                waitForChange();
+            }
+
+            int count = Math.min(len, mCount);
+            int first = Math.min(count, mBuffer.length - mHead);
+            System.arraycopy(mBuffer, mHead, b, off, first);
+            System.arraycopy(mBuffer, 0, b, off + first, count - first);
+            mHead = (mHead + count) % mBuffer.length;
+            mCount -= count;
+            notifyAll();
+            return count;
+        }
+
+
+        /**
+         * Blocks until every byte has been copied into the pipe.
+         *
+         * @throws IOException if the pipe is closed, or InterruptedIOException if the thread was
+         *                     interrupted while waiting
+         */
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            if(off < 0 || len < 0 || off + len > b.length)
+                throw new IndexOutOfBoundsException("offset " + off + ", length " + len + ", size " + b.length);
+
+            while(len > 0){
+                if(mClosed)
+                    throw new IOException("pipe is closed");
+                if(mCount == mBuffer.length){
+                    waitForChange();
+                    continue;
+                }
+
+                int tail = (mHead + mCount) % mBuffer.length;
+                int count = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - tail));
+                System.arraycopy(b, off, mBuffer, tail, count);
+                mCount += count;
+                off += count;
+                len -= count;
+                notifyAll();
+            }
+        }
+
+
+        synchronized void close(){
+            mClosed = true;
+            notifyAll();
+        }
+
+
+        /**
+         * Waits until another thread reads, writes or closes the pipe. Must hold the lock.
+         */
+        private void waitForChange() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for the pipe");
+            }
+        }
+    }
+}
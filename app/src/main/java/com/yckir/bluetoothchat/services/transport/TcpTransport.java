@@ -0,0 +1,86 @@
+package com.yckir.bluetoothchat.services.transport;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A transport over a connected TCP socket. The id of the remote device is its address and port.
+ * Frames are small and written one at a time, so Nagle's algorithm is turned off. Used to run the
+ * service against simulated devices on a machine without bluetooth.
+ */
+public class TcpTransport implements Transport {
+
+    private final Socket mSocket;
+    private final String mRemoteId;
+
+
+    /**
+     * Connects two transports through a server socket on the loopback address. The server socket
+     * is closed once they are connected.
+     *
+     * @return two connected transports, what is written to one is read from the other.
+     * @throws IOException if the sockets could not be connected
+     */
+    public static TcpTransport[] loopbackPair() throws IOException{
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        ServerSocket server = new ServerSocket(0, 1, loopback);
+        Socket client = null;
+        try {
+            client = new Socket(loopback, server.getLocalPort());
+            Socket accepted = server.accept();
+            return new TcpTransport[]{new TcpTransport(client), new TcpTransport(accepted)};
+        }catch (IOException e){
+            if(client != null)
+                client.close();
+            throw e;
+        }finally {
+            server.close();
+        }
+    }
+
+
+    /**
+     * @param socket a connected socket
+     * @throws IOException if the socket options could not be set
+     */
+    public TcpTransport(@NonNull Socket socket) throws IOException{
+        if(!socket.isConnected())
+            throw new IllegalArgumentException(socket + " is not connected");
+        mSocket = socket;
+        mSocket.setTcpNoDelay(true);
+        mRemoteId = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+    }
+
+
+    @NonNull
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+
+    @NonNull
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+
+    @NonNull
+    @Override
+    public String getRemoteId() {
+        return mRemoteId;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
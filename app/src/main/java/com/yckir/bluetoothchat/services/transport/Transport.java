@@ -0,0 +1,64 @@
+package com.yckir.bluetoothchat.services.transport;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A connection to a remote device that BluetoothService reads frames from and writes frames to.
+ * The service only needs a pair of streams, an id for the remote device and a way to close the
+ * connection, so the same read, write and timeout code can run over bluetooth, a TCP socket or an
+ * in-memory pipe. Implementations must allow the streams to be used by two threads at once, one
+ * reading and one writing, and close() must unblock both of them.
+ */
+public interface Transport {
+
+    /**
+     * Opens a new transport to the same remote device. Given to the service with a client
+     * connection, so that it can reconnect to the hub on its own when the connection fails.
+     */
+    interface Connector {
+
+        /**
+         * Connects to the remote device. Called on a thread of the service that may block.
+         *
+         * @return a connected transport, with the same remote id as the one that failed.
+         * @throws IOException if the remote device could not be reached
+         */
+        @NonNull Transport connect() throws IOException;
+    }
+
+
+    /**
+     * @return the stream that frames from the remote device are read from.
+     * @throws IOException if the stream could not be created
+     */
+    @NonNull InputStream getInputStream() throws IOException;
+
+
+    /**
+     * @return the stream that frames to the remote device are written to.
+     * @throws IOException if the stream could not be created
+     */
+    @NonNull OutputStream getOutputStream() throws IOException;
+
+
+    /**
+     * The id the service uses in place of a mac address to identify the connection. It must be
+     * unique among the transports added to a service.
+     *
+     * @return the id of the remote device.
+     */
+    @NonNull String getRemoteId();
+
+
+    /**
+     * Closes the connection. Reads and writes that are blocked fail, and the remote device reads
+     * the end of its stream. Closing a transport that is already closed does nothing.
+     *
+     * @throws IOException if the connection could not be closed
+     */
+    void close() throws IOException;
+}
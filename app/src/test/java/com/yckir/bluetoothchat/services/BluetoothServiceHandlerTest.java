@@ -0,0 +1,55 @@
+package com.yckir.bluetoothchat.services;
+
+import android.support.annotation.NonNull;
+
+import com.yckir.bluetoothchat.services.messages.BT_Message;
+import com.yckir.bluetoothchat.services.messages.BT_MessageRegistry;
+import com.yckir.bluetoothchat.services.messages.BT_MessageUtility;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BluetoothServiceHandlerTest {
+
+    private static final BT_MessageRegistry.Decoder DECODER = new BT_MessageRegistry.Decoder() {
+        @Override
+        public BT_Message decode(@NonNull byte[] b, int offset, int length) {
+            return BT_Message.reconstruct(b);
+        }
+    };
+
+    private static final BluetoothServiceHandler.Dispatcher DISPATCHER = new BluetoothServiceHandler.Dispatcher() {
+        @Override
+        public void dispatch(@NonNull BluetoothServiceHandler handler, @NonNull BT_Message message) {
+        }
+    };
+
+    @Test
+    public void testBuiltInDispatchers(){
+        assertNotNull(BluetoothServiceHandler.getDispatcher(BT_MessageRegistry.getTypeIndex(BT_MessageUtility.TYPE_APP_MESSAGE)));
+        assertNotNull(BluetoothServiceHandler.getDispatcher(BT_MessageRegistry.getTypeIndex(BT_MessageUtility.TYPE_SERVER_SETUP_FINISHED)));
+        //close frames are read by the service, and close messages are also given to the handler
+        assertNotNull(BluetoothServiceHandler.getDispatcher(BT_MessageRegistry.getTypeIndex(BT_MessageUtility.TYPE_CONNECTION_CLOSED)));
+        assertNull(BluetoothServiceHandler.getDispatcher(BT_MessageRegistry.getTypeIndex(BT_MessageUtility.TYPE_HELLO)));
+    }
+
+    @Test
+    public void testRegisterDispatcher(){
+        int index = BT_MessageRegistry.register(1195, true, DECODER);
+        assertNull(BluetoothServiceHandler.getDispatcher(index));
+
+        BluetoothServiceHandler.registerDispatcher(1195, DISPATCHER);
+        assertSame(DISPATCHER, BluetoothServiceHandler.getDispatcher(index));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterDispatcherTwice(){
+        BluetoothServiceHandler.registerDispatcher(BT_MessageUtility.TYPE_APP_MESSAGE, DISPATCHER);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterDispatcherUnknownType(){
+        BluetoothServiceHandler.registerDispatcher(1194, DISPATCHER);
+    }
+}
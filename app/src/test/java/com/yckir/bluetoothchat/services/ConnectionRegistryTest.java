@@ -0,0 +1,92 @@
+package com.yckir.bluetoothchat.services;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConnectionRegistryTest {
+
+    private ConnectionRegistry<String> mRegistry;
+
+    @Before
+    public void setUp() throws Exception {
+        mRegistry = new ConnectionRegistry<>(2, 4);
+    }
+
+    @Test
+    public void testAssignSessionId(){
+        assertEquals(2, mRegistry.add("a", ConnectionRegistry.ASSIGN_SESSION_ID, "A"));
+        assertEquals(3, mRegistry.add("b", ConnectionRegistry.ASSIGN_SESSION_ID, "B"));
+        assertEquals(4, mRegistry.add("c", ConnectionRegistry.ASSIGN_SESSION_ID, "C"));
+        assertEquals(-1, mRegistry.add("d", ConnectionRegistry.ASSIGN_SESSION_ID, "D"));
+
+        //a removed id is given out again
+        assertTrue(mRegistry.remove("b", 3, "B"));
+        assertEquals(3, mRegistry.add("d", ConnectionRegistry.ASSIGN_SESSION_ID, "D"));
+        assertEquals("D", mRegistry.getBySession(3));
+    }
+
+    @Test
+    public void testAddExplicitSessionId(){
+        assertEquals(1, mRegistry.add("hub", 1, "H"));
+        assertEquals(-1, mRegistry.add("other", 1, "O"));
+        assertEquals("H", mRegistry.get("hub"));
+        assertEquals("H", mRegistry.getBySession(1));
+    }
+
+    @Test
+    public void testAddressUsedTwice(){
+        assertEquals(2, mRegistry.add("a", ConnectionRegistry.ASSIGN_SESSION_ID, "A"));
+        assertEquals(-1, mRegistry.add("a", ConnectionRegistry.ASSIGN_SESSION_ID, "A2"));
+        assertEquals("A", mRegistry.get("a"));
+        assertNull(mRegistry.getBySession(3));
+    }
+
+    @Test
+    public void testRemoveOnlyMatchingConnection(){
+        mRegistry.add("a", 2, "A");
+
+        assertFalse(mRegistry.remove("a", 2, "other"));
+        assertEquals("A", mRegistry.get("a"));
+
+        assertTrue(mRegistry.remove("a", 2, "A"));
+        assertFalse(mRegistry.remove("a", 2, "A"));
+        assertNull(mRegistry.get("a"));
+        assertNull(mRegistry.getBySession(2));
+    }
+
+    @Test
+    public void testSnapshot(){
+        mRegistry.add("a", 2, "A");
+        List<String> snapshot = mRegistry.snapshot();
+        mRegistry.add("b", 3, "B");
+
+        //an earlier snapshot does not change
+        assertEquals(1, snapshot.size());
+        assertEquals(2, mRegistry.snapshot().size());
+        assertEquals(2, mRegistry.size());
+        assertTrue(mRegistry.snapshot().contains("B"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSnapshotUnmodifiable(){
+        mRegistry.add("a", 2, "A");
+        mRegistry.snapshot().remove(0);
+    }
+
+    @Test
+    public void testGetMissing(){
+        assertNull(mRegistry.get("missing"));
+        assertNull(mRegistry.get(null));
+        assertNull(mRegistry.getBySession(-1));
+        assertNull(mRegistry.getBySession(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSessionId(){
+        mRegistry.add("a", 5, "A");
+    }
+}
@@ -0,0 +1,159 @@
+package com.yckir.bluetoothchat.services;
+
+import com.yckir.bluetoothchat.services.messages.BT_MessageApp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class CreditWindowTest {
+
+    private CreditWindow mWindow;
+
+    @Before
+    public void setUp() throws Exception {
+        mWindow = new CreditWindow(2);
+    }
+
+    /**
+     * @return a send of a new app message
+     */
+    private SendFuture send(){
+        return new SendFuture(new BT_MessageApp(1, "data".getBytes()), OutboundQueue.LANE_INTERACTIVE);
+    }
+
+    @Test
+    public void testTryAcquire(){
+        assertTrue(mWindow.tryAcquire());
+        assertTrue(mWindow.tryAcquire());
+        assertFalse(mWindow.tryAcquire());
+        assertEquals(0, mWindow.getCredits());
+
+        mWindow.refund();
+        assertTrue(mWindow.tryAcquire());
+    }
+
+    @Test
+    public void testGrantClaimsWaitingInOrder(){
+        mWindow.tryAcquire();
+        mWindow.tryAcquire();
+
+        SendFuture first = send();
+        SendFuture second = send();
+        SendFuture third = send();
+        assertTrue(mWindow.addWaiting(first));
+        assertTrue(mWindow.addWaiting(second));
+        assertTrue(mWindow.addWaiting(third));
+
+        List<SendFuture> claimed = mWindow.grant(2);
+        assertEquals(2, claimed.size());
+        assertSame(first, claimed.get(0));
+        assertSame(second, claimed.get(1));
+        assertFalse(second.cancel(false));
+        assertEquals(0, mWindow.getCredits());
+
+        //a send can not overtake the one that is still waiting
+        mWindow.grant(0);
+        assertFalse(mWindow.tryAcquire());
+        assertSame(third, mWindow.grant(1).get(0));
+    }
+
+    @Test
+    public void testCancelledSendIsDropped(){
+        mWindow.tryAcquire();
+        mWindow.tryAcquire();
+
+        SendFuture cancelled = send();
+        SendFuture waiting = send();
+        mWindow.addWaiting(cancelled);
+        mWindow.addWaiting(waiting);
+        assertTrue(cancelled.cancel(false));
+        assertTrue(cancelled.isCancelled());
+        assertTrue(cancelled.isDone());
+
+        List<SendFuture> claimed = mWindow.grant(1);
+        assertEquals(1, claimed.size());
+        assertSame(waiting, claimed.get(0));
+    }
+
+    @Test
+    public void testUnlimited(){
+        mWindow.tryAcquire();
+        mWindow.tryAcquire();
+        SendFuture waiting = send();
+        mWindow.addWaiting(waiting);
+
+        assertSame(waiting, mWindow.setUnlimited().get(0));
+        for(int i = 0; i < 100; i++)
+            assertTrue(mWindow.tryAcquire());
+        assertEquals(Integer.MAX_VALUE, mWindow.getCredits());
+    }
+
+    @Test
+    public void testClose(){
+        mWindow.tryAcquire();
+        mWindow.tryAcquire();
+        SendFuture waiting = send();
+        mWindow.addWaiting(waiting);
+
+        assertSame(waiting, mWindow.close().get(0));
+        assertFalse(mWindow.tryAcquire());
+        assertFalse(mWindow.addWaiting(send()));
+    }
+
+    @Test
+    public void testFutureComplete() throws Exception {
+        SendFuture accepted = send();
+        assertTrue(accepted.claim());
+        accepted.complete(true);
+        assertTrue(accepted.isDone());
+        assertTrue(accepted.get());
+        assertTrue(accepted.get(0, TimeUnit.MILLISECONDS));
+
+        SendFuture rejected = send();
+        rejected.complete(false);
+        assertFalse(rejected.get());
+        assertFalse(rejected.claim());
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testFutureTimeout() throws Exception {
+        send().get(10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(expected = CancellationException.class)
+    public void testFutureCancelled() throws Exception {
+        SendFuture send = send();
+        send.cancel(false);
+        send.get();
+    }
+
+    @Test
+    public void testGetWaitsForGrant() throws Exception {
+        mWindow.tryAcquire();
+        mWindow.tryAcquire();
+        final SendFuture waiting = send();
+        mWindow.addWaiting(waiting);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for(SendFuture s : mWindow.grant(1))
+                    s.complete(true);
+            }
+        }).start();
+
+        assertTrue(waiting.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,63 @@
+package com.yckir.bluetoothchat.services;
+
+import android.support.annotation.NonNull;
+
+import com.yckir.bluetoothchat.services.messages.BT_Message;
+import com.yckir.bluetoothchat.services.messages.BT_MessageRegistry;
+import com.yckir.bluetoothchat.services.messages.BT_MessageUtility;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameHandlerTest {
+
+    private static final BT_MessageRegistry.Decoder DECODER = new BT_MessageRegistry.Decoder() {
+        @Override
+        public BT_Message decode(@NonNull byte[] b, int offset, int length) {
+            return BT_Message.reconstruct(b);
+        }
+    };
+
+    private static final BluetoothService.FrameHandler FRAME_HANDLER = new BluetoothService.FrameHandler() {
+        @Override
+        public void handleFrame(@NonNull BluetoothService.BluetoothBinder binder, @NonNull String address,
+                                @NonNull byte[] b, int offset, int length) {
+        }
+    };
+
+    @Test
+    public void testBuiltInFrameHandlers(){
+        int[] serviceTypes = {BT_MessageUtility.TYPE_HELLO, BT_MessageUtility.TYPE_HELLO_REPLY,
+                BT_MessageUtility.TYPE_SESSION, BT_MessageUtility.TYPE_OPTIONS, BT_MessageUtility.TYPE_CREDIT,
+                BT_MessageUtility.TYPE_RESUME, BT_MessageUtility.TYPE_CONNECTION_CLOSED};
+        for(int type : serviceTypes)
+            assertNotNull(BluetoothService.getFrameHandler(BT_MessageRegistry.getTypeIndex(type)));
+
+        assertNull(BluetoothService.getFrameHandler(BT_MessageRegistry.getTypeIndex(BT_MessageUtility.TYPE_APP_MESSAGE)));
+    }
+
+    @Test
+    public void testRegisterFrameHandler(){
+        int index = BT_MessageRegistry.register(1196, false, DECODER);
+        assertNull(BluetoothService.getFrameHandler(index));
+
+        BluetoothService.registerFrameHandler(1196, FRAME_HANDLER);
+        assertSame(FRAME_HANDLER, BluetoothService.getFrameHandler(index));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterFrameHandlerTwice(){
+        BluetoothService.registerFrameHandler(BT_MessageUtility.TYPE_HELLO, FRAME_HANDLER);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterFrameHandlerForActivityMessage(){
+        BluetoothService.registerFrameHandler(BT_MessageUtility.TYPE_APP_MESSAGE, FRAME_HANDLER);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterFrameHandlerUnknownType(){
+        BluetoothService.registerFrameHandler(1194, FRAME_HANDLER);
+    }
+}
@@ -0,0 +1,168 @@
+package com.yckir.bluetoothchat.services;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HeartbeatTest {
+
+    private static final int MIN = 1000;
+    private static final int MAX = 6000;
+    private static final int SILENCE = 4 * MAX;
+    private static final double THRESHOLD = 8;
+
+    private Heartbeat mHeartbeat;
+
+    @Before
+    public void setUp() throws Exception {
+        mHeartbeat = new Heartbeat(0, MIN, MAX, SILENCE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidIntervals(){
+        mHeartbeat = new Heartbeat(0, MAX, MIN, SILENCE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxSilence(){
+        mHeartbeat = new Heartbeat(0, MIN, MAX, MAX - 1);
+    }
+
+    @Test
+    public void testHelloOnlyWhenIdle(){
+        assertEquals(MAX, mHeartbeat.getInterval());
+        assertEquals(Heartbeat.ACTION_NONE, mHeartbeat.check(MAX - 1, THRESHOLD));
+        assertEquals(Heartbeat.ACTION_SEND_HELLO, mHeartbeat.check(MAX, THRESHOLD));
+        assertEquals(1, mHeartbeat.getAttempts());
+    }
+
+    @Test
+    public void testTrafficKeepsConnectionAlive(){
+        //frames every 100 ms for a minute never need a hello
+        for(long now = 100; now <= 60000; now += 100){
+            mHeartbeat.frameRead(now);
+            assertEquals(Heartbeat.ACTION_NONE, mHeartbeat.check(now, THRESHOLD));
+        }
+        assertEquals(0, mHeartbeat.getAttempts());
+        //a busy link is checked soon after it stalls
+        assertEquals(MIN, mHeartbeat.getInterval());
+        assertEquals(Heartbeat.ACTION_SEND_HELLO, mHeartbeat.check(60000 + MIN, THRESHOLD));
+    }
+
+    @Test
+    public void testTimeout(){
+        assertEquals(Heartbeat.ACTION_SEND_HELLO, mHeartbeat.check(MAX, THRESHOLD));
+        assertEquals(0, mHeartbeat.getPhi(), 0);
+
+        //suspicion rises the longer the connection is silent past its idle interval
+        assertEquals(Heartbeat.ACTION_NONE, mHeartbeat.check(MAX + 1000, THRESHOLD));
+        double phi = mHeartbeat.getPhi();
+        assertTrue(phi > 0 && phi < THRESHOLD);
+        assertEquals(Heartbeat.ACTION_NONE, mHeartbeat.check(MAX + 2000, THRESHOLD));
+        assertTrue(mHeartbeat.getPhi() > phi);
+
+        assertEquals(Heartbeat.ACTION_TIMED_OUT, mHeartbeat.check(MAX + 3000, THRESHOLD));
+        assertTrue(mHeartbeat.getPhi() >= THRESHOLD);
+    }
+
+    @Test
+    public void testMaxSilence(){
+        //closed after the max silence even though phi is still low
+        mHeartbeat = new Heartbeat(0, MIN, MAX, MAX + 500);
+        assertEquals(Heartbeat.ACTION_SEND_HELLO, mHeartbeat.check(MAX, THRESHOLD));
+        assertEquals(Heartbeat.ACTION_TIMED_OUT, mHeartbeat.check(MAX + 500, THRESHOLD));
+        assertTrue(mHeartbeat.getPhi() < THRESHOLD);
+    }
+
+    @Test
+    public void testHelloSentAgain(){
+        //quick replies bring the reply timeout down to the min
+        long now = 0;
+        for(int i = 0; i < 10; i++){
+            now += mHeartbeat.getInterval();
+            mHeartbeat.check(now, THRESHOLD);
+            now += 20;
+            mHeartbeat.frameRead(now);
+        }
+        now += mHeartbeat.getInterval();
+        assertEquals(Heartbeat.ACTION_SEND_HELLO, mHeartbeat.check(now, THRESHOLD));
+        assertEquals(MIN, mHeartbeat.getReplyTimeout());
+
+        //an unanswered hello is followed by another while phi is below the threshold
+        assertEquals(Heartbeat.ACTION_SEND_HELLO, mHeartbeat.check(now + MIN, THRESHOLD));
+        assertEquals(2, mHeartbeat.getAttempts());
+        assertTrue(mHeartbeat.getPhi() < THRESHOLD);
+    }
+
+    @Test
+    public void testLateLinkGivenLonger(){
+        //a link that often answers late
+        Heartbeat late = new Heartbeat(0, MIN, MAX, SILENCE);
+        long now = 0;
+        for(int i = 0; i < 20; i++){
+            now += late.getInterval() + (i % 2 == 0 ? 0 : 2000);
+            late.frameRead(now);
+        }
+        now += late.getInterval() + 2500;
+        assertEquals(Heartbeat.ACTION_SEND_HELLO, late.check(now, THRESHOLD));
+
+        //a link that always answers at once
+        long quick = 0;
+        for(int i = 0; i < 20; i++){
+            quick += mHeartbeat.getInterval();
+            mHeartbeat.frameRead(quick);
+        }
+        quick += mHeartbeat.getInterval() + 2500;
+        mHeartbeat.check(quick, THRESHOLD);
+
+        assertTrue(late.getPhi() < mHeartbeat.getPhi());
+    }
+
+    @Test
+    public void testNextCheck(){
+        assertEquals(MAX, mHeartbeat.getNextCheck(0));
+        mHeartbeat.frameRead(500);
+        assertEquals(500 + mHeartbeat.getInterval(), mHeartbeat.getNextCheck(500));
+
+        //phi is checked often while a hello is unanswered
+        long now = mHeartbeat.getNextCheck(500);
+        assertEquals(Heartbeat.ACTION_SEND_HELLO, mHeartbeat.check(now, THRESHOLD));
+        assertEquals(now + MIN / 4, mHeartbeat.getNextCheck(now));
+    }
+
+    @Test
+    public void testAnyFrameAnswersHello(){
+        assertEquals(Heartbeat.ACTION_SEND_HELLO, mHeartbeat.check(MAX, THRESHOLD));
+        mHeartbeat.frameRead(MAX + 50);
+        assertEquals(Heartbeat.ACTION_NONE, mHeartbeat.check(MAX + 100, THRESHOLD));
+        assertEquals(0, mHeartbeat.getAttempts());
+    }
+
+    @Test
+    public void testReplyTimeoutAdapts(){
+        assertEquals(MAX, mHeartbeat.getReplyTimeout());
+
+        //quick replies bring the timeout down to the min
+        long now = 0;
+        for(int i = 0; i < 10; i++){
+            now += mHeartbeat.getInterval();
+            assertEquals(Heartbeat.ACTION_SEND_HELLO, mHeartbeat.check(now, THRESHOLD));
+            mHeartbeat.frameRead(now + 20);
+            now += 20;
+            mHeartbeat.check(now, THRESHOLD);
+        }
+        assertEquals(MIN, mHeartbeat.getReplyTimeout());
+
+        //slow replies raise it
+        for(int i = 0; i < 10; i++){
+            now += mHeartbeat.getInterval();
+            assertEquals(Heartbeat.ACTION_SEND_HELLO, mHeartbeat.check(now, THRESHOLD));
+            now += 900;
+            mHeartbeat.frameRead(now);
+            mHeartbeat.check(now, THRESHOLD);
+        }
+        assertTrue(mHeartbeat.getReplyTimeout() > MIN);
+        assertTrue(mHeartbeat.getReplyTimeout() <= MAX);
+    }
+}
@@ -0,0 +1,100 @@
+package com.yckir.bluetoothchat.services;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class MpscRingBufferTest {
+
+    private MpscRingBuffer<Integer> mBuffer;
+
+    @Before
+    public void setUp() throws Exception {
+        mBuffer = new MpscRingBuffer<>(4);
+    }
+
+    @Test
+    public void testCapacityRoundedUp(){
+        assertEquals(4, mBuffer.capacity());
+        assertEquals(8, new MpscRingBuffer<Integer>(5).capacity());
+        assertEquals(1, new MpscRingBuffer<Integer>(1).capacity());
+    }
+
+    @Test
+    public void testFifoAndFull(){
+        for(int i = 0; i < 4; i++)
+            assertTrue(mBuffer.offer(i));
+        assertFalse(mBuffer.offer(4));
+        assertEquals(4, mBuffer.size());
+
+        for(int i = 0; i < 4; i++)
+            assertEquals(Integer.valueOf(i), mBuffer.poll());
+        assertNull(mBuffer.poll());
+        assertEquals(0, mBuffer.size());
+    }
+
+    @Test
+    public void testWrapAround(){
+        //the head and tail pass the end of the array many times
+        for(int i = 0; i < 100; i++){
+            assertTrue(mBuffer.offer(i));
+            assertTrue(mBuffer.offer(-i));
+            assertEquals(Integer.valueOf(i), mBuffer.poll());
+            assertEquals(Integer.valueOf(-i), mBuffer.poll());
+        }
+        assertNull(mBuffer.poll());
+    }
+
+    @Test
+    public void testManyProducers() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+
+        for(int p = 0; p < producers; p++){
+            final int id = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for(int i = 0; i < perProducer; i++){
+                        while(!mBuffer.offer(id * perProducer + i))
+                            Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+
+        //every element arrives once, and the elements of one producer arrive in order
+        int[] next = new int[producers];
+        int received = 0;
+        while(received < producers * perProducer){
+            Integer e = mBuffer.poll();
+            if(e == null)
+                continue;
+            int id = e / perProducer;
+            assertEquals(next[id], e % perProducer);
+            next[id]++;
+            received++;
+        }
+
+        for(Thread t : threads)
+            t.join();
+        assertNull(mBuffer.poll());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity(){
+        new MpscRingBuffer<Integer>(0);
+    }
+}
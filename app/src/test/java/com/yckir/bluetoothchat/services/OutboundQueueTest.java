@@ -0,0 +1,130 @@
+package com.yckir.bluetoothchat.services;
+
+import com.yckir.bluetoothchat.services.messages.BT_Message;
+import com.yckir.bluetoothchat.services.messages.BT_MessageApp;
+import com.yckir.bluetoothchat.services.messages.BT_MessageHello;
+import com.yckir.bluetoothchat.services.messages.BT_MessageHelloReply;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+
+    private OutboundQueue mQueue;
+    private BT_Message mHello;
+    private BT_Message mReply;
+    private BT_Message mChat;
+    private BT_Message mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mQueue = new OutboundQueue(2, 0);
+        mHello = new BT_MessageHello(1);
+        mReply = new BT_MessageHelloReply(1);
+        mChat = new BT_MessageApp(1, "chat".getBytes());
+        mFile = new BT_MessageApp(1, new byte[4096]);
+    }
+
+    @Test
+    public void testHigherLaneFirst(){
+        assertTrue(mQueue.offer(mFile, OutboundQueue.LANE_BULK));
+        assertTrue(mQueue.offer(mChat, OutboundQueue.LANE_INTERACTIVE));
+        assertTrue(mQueue.offer(mHello, OutboundQueue.LANE_CONTROL));
+        assertEquals(3, mQueue.size());
+
+        assertSame(mHello, mQueue.poll());
+        assertSame(mChat, mQueue.poll());
+        assertSame(mFile, mQueue.poll());
+        assertNull(mQueue.poll());
+        assertEquals(0, mQueue.size());
+    }
+
+    @Test
+    public void testLaneIsFifo(){
+        mQueue.offer(mHello, OutboundQueue.LANE_CONTROL);
+        mQueue.offer(mReply, OutboundQueue.LANE_CONTROL);
+
+        assertSame(mHello, mQueue.poll());
+        assertSame(mReply, mQueue.poll());
+    }
+
+    @Test
+    public void testFullLaneDoesNotBlockOthers(){
+        assertTrue(mQueue.offer(mFile, OutboundQueue.LANE_BULK));
+        assertTrue(mQueue.offer(mFile, OutboundQueue.LANE_BULK));
+        assertFalse(mQueue.offer(mFile, OutboundQueue.LANE_BULK));
+
+        assertTrue(mQueue.offer(mReply, OutboundQueue.LANE_CONTROL));
+        assertSame(mReply, mQueue.poll());
+    }
+
+    @Test
+    public void testPollLane(){
+        mQueue.offer(mChat, OutboundQueue.LANE_INTERACTIVE);
+        assertNull(mQueue.poll(OutboundQueue.LANE_CONTROL));
+
+        mQueue.offer(mHello, OutboundQueue.LANE_CONTROL);
+        assertSame(mHello, mQueue.poll(OutboundQueue.LANE_CONTROL));
+        assertEquals(1, mQueue.size());
+        assertSame(mChat, mQueue.poll(OutboundQueue.LANE_INTERACTIVE));
+    }
+
+    @Test
+    public void testPollTimeout() throws InterruptedException {
+        assertNull(mQueue.poll(10, TimeUnit.MILLISECONDS));
+
+        mQueue.offer(mChat, OutboundQueue.LANE_INTERACTIVE);
+        assertSame(mChat, mQueue.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testTakeWaitsForOffer() throws InterruptedException {
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mQueue.offer(mChat, OutboundQueue.LANE_INTERACTIVE);
+            }
+        });
+        producer.start();
+
+        assertSame(mChat, mQueue.take());
+        producer.join();
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void testTakeInterrupted() throws InterruptedException {
+        final Thread consumer = Thread.currentThread();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                consumer.interrupt();
+            }
+        }).start();
+
+        mQueue.take();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLane(){
+        mQueue.offer(mChat, OutboundQueue.LANE_COUNT);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity(){
+        new OutboundQueue(0, 0);
+    }
+}
@@ -0,0 +1,68 @@
+package com.yckir.bluetoothchat.services;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PhiAccrualDetectorTest {
+
+    private static final int WINDOW = 10;
+    private static final double MIN_DEVIATION = 100;
+
+    private PhiAccrualDetector mDetector;
+
+    @Before
+    public void setUp() throws Exception {
+        mDetector = new PhiAccrualDetector(WINDOW, MIN_DEVIATION);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWindow(){
+        mDetector = new PhiAccrualDetector(0, MIN_DEVIATION);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSample(){
+        mDetector.addSample(-1);
+    }
+
+    @Test
+    public void testPhiRises(){
+        for(int i = 0; i < WINDOW; i++)
+            mDetector.addSample(1000);
+
+        assertTrue(mDetector.phi(0) < 0.01);
+        //half the samples are later than the mean
+        assertEquals(-Math.log10(0.5), mDetector.phi(1000), 0.01);
+
+        double last = mDetector.phi(1000);
+        for(long elapsed = 1100; elapsed <= 2000; elapsed += 100){
+            double phi = mDetector.phi(elapsed);
+            assertTrue(phi > last);
+            last = phi;
+        }
+        assertTrue(Double.isInfinite(mDetector.phi(100000)));
+    }
+
+    @Test
+    public void testOneStandardDeviation(){
+        mDetector.addSample(500);
+        mDetector.addSample(1500);
+
+        //about 16% of a normal distribution is more than one standard deviation above the mean
+        assertEquals(-Math.log10(0.1587), mDetector.phi(1500), 0.02);
+    }
+
+    @Test
+    public void testWindowDropsOldSamples(){
+        for(int i = 0; i < WINDOW; i++)
+            mDetector.addSample(5000);
+        assertTrue(mDetector.phi(2000) < 1);
+
+        for(int i = 0; i < WINDOW; i++)
+            mDetector.addSample(0);
+        assertEquals(WINDOW, mDetector.getSampleCount());
+        assertTrue(mDetector.phi(2000) > 8);
+    }
+}
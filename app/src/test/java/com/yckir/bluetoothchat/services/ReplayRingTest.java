@@ -0,0 +1,150 @@
+package com.yckir.bluetoothchat.services;
+
+import com.yckir.bluetoothchat.services.messages.BT_Message;
+import com.yckir.bluetoothchat.services.messages.BT_MessageApp;
+import com.yckir.bluetoothchat.services.messages.BT_MessageUtility;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReplayRingTest {
+
+    private static final int CAPACITY = 4;
+
+    private ReplayRing mRing;
+
+    @Before
+    public void setUp() throws Exception {
+        mRing = new ReplayRing(CAPACITY);
+    }
+
+    /**
+     * @param text data of the message
+     * @return an app message that the ring has been told was written, owned by the ring
+     */
+    private BT_Message write(String text){
+        BT_Message message = new BT_MessageApp(BT_MessageUtility.SESSION_HUB, text.getBytes());
+        mRing.written(message);
+        message.recycle();
+        return message;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity(){
+        mRing = new ReplayRing(0);
+    }
+
+    @Test
+    public void testReplayMissed(){
+        BT_Message a = write("a");
+        BT_Message b = write("b");
+        BT_Message c = write("c");
+        assertEquals(3, mRing.getWrittenCount());
+
+        //nothing missed
+        assertTrue(mRing.replay(3).isEmpty());
+
+        List<BT_Message> replay = mRing.replay(1);
+        assertEquals(2, replay.size());
+        assertSame(b, replay.get(0));
+        assertSame(c, replay.get(1));
+        assertNotSame(a, replay.get(0));
+    }
+
+    @Test
+    public void testReplayNotCountedAgain(){
+        write("a");
+        write("b");
+        List<BT_Message> replay = mRing.replay(0);
+
+        for(int i = 0; i < replay.size(); i++){
+            mRing.written(replay.get(i));
+            replay.get(i).recycle();
+        }
+        assertEquals(2, mRing.getWrittenCount());
+        assertEquals(2, mRing.size());
+
+        BT_Message c = write("c");
+        assertEquals(3, mRing.getWrittenCount());
+        assertSame(c, mRing.replay(2).get(0));
+    }
+
+    @Test
+    public void testOldestDropped(){
+        BT_Message first = write("0");
+        for(int i = 1; i < CAPACITY + 2; i++)
+            write(String.valueOf(i));
+        assertEquals(CAPACITY, mRing.size());
+
+        //the first two messages are gone and were recycled
+        assertNull(mRing.replay(1));
+        assertEquals(CAPACITY, mRing.replay(2).size());
+        try {
+            first.recycle();
+            fail("message was not recycled when it was dropped");
+        }catch (IllegalStateException e){
+            //expected
+        }
+    }
+
+    @Test
+    public void testUnsentFollowReplay(){
+        write("a");
+        BT_Message b = write("b");
+        BT_Message unsent = new BT_MessageApp(BT_MessageUtility.SESSION_HUB, "c".getBytes());
+        mRing.unsent(unsent);
+
+        List<BT_Message> replay = mRing.replay(1);
+        assertEquals(2, replay.size());
+        assertSame(b, replay.get(0));
+        assertSame(unsent, replay.get(1));
+
+        //the unsent message is counted once it is written
+        mRing.written(b);
+        mRing.written(unsent);
+        assertEquals(3, mRing.getWrittenCount());
+        assertTrue(mRing.replay(3).isEmpty());
+    }
+
+    @Test
+    public void testReadMoreThanWritten(){
+        write("a");
+        assertNull(mRing.replay(2));
+    }
+
+    @Test
+    public void testCountsWrapAround(){
+        for(int i = 0; i < CAPACITY; i++)
+            write(String.valueOf(i));
+        //the remote device counts from the same start, any difference of the counts works
+        assertEquals(1, mRing.replay(mRing.getWrittenCount() - 1).size());
+        assertNull(mRing.replay(Integer.MIN_VALUE));
+    }
+
+    @Test
+    public void testClearFailsListeners(){
+        final int[] failedWith = new int[1];
+        BT_Message message = new BT_MessageApp(BT_MessageUtility.SESSION_HUB, "a".getBytes());
+        message.setWriteListener(new BT_Message.WriteListener() {
+            @Override
+            public void onWritten() {
+            }
+
+            @Override
+            public void onWriteFailed(int closeCode) {
+                failedWith[0] = closeCode;
+            }
+        });
+        mRing.written(message);
+        message.recycle();
+
+        mRing.clear(ServiceUtility.CLOSE_READ_CLOSE);
+        assertEquals(ServiceUtility.CLOSE_READ_CLOSE, failedWith[0]);
+        assertEquals(0, mRing.size());
+        assertNull(mRing.replay(0));
+    }
+}
@@ -0,0 +1,84 @@
+package com.yckir.bluetoothchat.services;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RttEstimatorTest {
+
+    private RttEstimator mEstimator;
+
+    @Before
+    public void setUp() throws Exception {
+        mEstimator = new RttEstimator();
+    }
+
+    @Test
+    public void testEmpty(){
+        RttStats stats = mEstimator.getStats();
+        assertEquals(0, stats.getSampleCount());
+        assertEquals(0, stats.getSmoothed(TimeUnit.MICROSECONDS));
+        assertEquals(0, stats.getPercentile(50, TimeUnit.MICROSECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeSample(){
+        mEstimator.addSample(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPercentile(){
+        mEstimator.getStats().getPercentile(0, TimeUnit.MICROSECONDS);
+    }
+
+    @Test
+    public void testFirstSample(){
+        mEstimator.addSample(8000);
+        RttStats stats = mEstimator.getStats();
+        assertEquals(1, stats.getSampleCount());
+        assertEquals(8, stats.getSmoothed(TimeUnit.MILLISECONDS));
+        assertEquals(4000, stats.getVariance(TimeUnit.MICROSECONDS));
+        assertEquals(8000, stats.getMin(TimeUnit.MICROSECONDS));
+        assertEquals(8000, stats.getMax(TimeUnit.MICROSECONDS));
+        assertEquals(8000, stats.getPercentile(99, TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    public void testSmoothedMovesTowardSamples(){
+        mEstimator.addSample(1000);
+        mEstimator.addSample(9000);
+        //the second sample adds an eighth of the difference
+        assertEquals(2000, mEstimator.getStats().getSmoothed(TimeUnit.MICROSECONDS));
+        assertEquals(1000, mEstimator.getStats().getMin(TimeUnit.MICROSECONDS));
+        assertEquals(9000, mEstimator.getStats().getMax(TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    public void testPercentiles(){
+        //samples 100 down to 1, in microseconds
+        for(int i = 100; i >= 1; i--)
+            mEstimator.addSample(i);
+
+        RttStats stats = mEstimator.getStats();
+        assertEquals(100, stats.getSampleCount());
+        assertEquals(1, stats.getMin(TimeUnit.MICROSECONDS));
+        assertEquals(100, stats.getMax(TimeUnit.MICROSECONDS));
+
+        //only the last SAMPLE_WINDOW samples, 64 down to 1, are kept for percentiles
+        assertEquals(32, stats.getPercentile(50, TimeUnit.MICROSECONDS));
+        assertEquals(64, stats.getPercentile(100, TimeUnit.MICROSECONDS));
+        assertEquals(1, stats.getPercentile(1, TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    public void testStatsAreACopy(){
+        mEstimator.addSample(10);
+        RttStats stats = mEstimator.getStats();
+        mEstimator.addSample(20);
+        assertEquals(1, stats.getSampleCount());
+        assertEquals(10, stats.getMax(TimeUnit.MICROSECONDS));
+    }
+}
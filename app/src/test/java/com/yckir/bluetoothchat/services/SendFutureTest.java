@@ -0,0 +1,122 @@
+package com.yckir.bluetoothchat.services;
+
+import com.yckir.bluetoothchat.services.messages.BT_MessageApp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class SendFutureTest {
+
+    private BT_MessageApp mMessage;
+    private SendFuture mSend;
+    private int mWrittenCalls;
+    private int mFailedCode;
+
+    private final SendFuture.Listener mListener = new SendFuture.Listener() {
+        @Override
+        public void onWritten(SendFuture send) {
+            mWrittenCalls++;
+        }
+
+        @Override
+        public void onFailed(SendFuture send, int closeCode) {
+            mFailedCode = closeCode;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mMessage = new BT_MessageApp(1, "data".getBytes());
+        mSend = new SendFuture(mMessage, OutboundQueue.LANE_INTERACTIVE);
+        mWrittenCalls = 0;
+        mFailedCode = -1;
+    }
+
+    @Test
+    public void testWritten() throws Exception {
+        mSend.setListener(mListener);
+        assertTrue(mSend.claim());
+        mSend.queued();
+        mSend.complete(true);
+        assertFalse(mSend.isWriteDone());
+        assertEquals(-1, mSend.getLatency(TimeUnit.NANOSECONDS));
+
+        mMessage.getWriteListener().onWritten();
+        assertTrue(mSend.get());
+        assertTrue(mSend.awaitWritten());
+        assertTrue(mSend.isWritten());
+        assertEquals(1, mWrittenCalls);
+        assertEquals(0, mSend.getCloseCode());
+        assertTrue(mSend.getLatency(TimeUnit.NANOSECONDS) >= 0);
+
+        //only the first result counts
+        mMessage.getWriteListener().onWriteFailed(ServiceUtility.CLOSE_WRITE_CLOSE);
+        assertTrue(mSend.isWritten());
+        assertEquals(-1, mFailedCode);
+    }
+
+    @Test
+    public void testWriteFailed() throws Exception {
+        mSend.setListener(mListener);
+        mSend.claim();
+        mSend.queued();
+        mSend.complete(true);
+
+        mMessage.getWriteListener().onWriteFailed(ServiceUtility.CLOSE_SAY_GOODBYE);
+        assertTrue(mSend.get());
+        assertFalse(mSend.awaitWritten());
+        assertEquals(ServiceUtility.CLOSE_SAY_GOODBYE, mSend.getCloseCode());
+        assertEquals(ServiceUtility.CLOSE_SAY_GOODBYE, mFailedCode);
+        assertEquals(-1, mSend.getLatency(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testRejectedFailsWrite() throws Exception {
+        mSend.setListener(mListener);
+        mSend.claim();
+        mSend.complete(false);
+
+        assertFalse(mSend.get());
+        assertTrue(mSend.isWriteDone());
+        assertFalse(mSend.awaitWritten(0, TimeUnit.MILLISECONDS));
+        assertEquals(0, mFailedCode);
+    }
+
+    @Test
+    public void testCancelFailsWrite() throws Exception {
+        assertTrue(mSend.cancel(false));
+        assertFalse(mSend.awaitWritten());
+        assertEquals(0, mSend.getCloseCode());
+    }
+
+    @Test
+    public void testListenerAfterDone(){
+        mSend.claim();
+        mSend.queued();
+        mSend.complete(true);
+        mMessage.getWriteListener().onWritten();
+
+        mSend.setListener(mListener);
+        assertEquals(1, mWrittenCalls);
+    }
+
+    @Test
+    public void testRecycleClearsListener(){
+        assertNotNull(mMessage.getWriteListener());
+        mMessage.recycle();
+        assertNull(mMessage.getWriteListener());
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testAwaitWrittenTimeout() throws Exception {
+        mSend.claim();
+        mSend.queued();
+        mSend.complete(true);
+        mSend.awaitWritten(10, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,128 @@
+package com.yckir.bluetoothchat.services;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    private static final int TICK = 10;
+    private static final int SIZE = 8;
+
+    private TimerWheel mWheel;
+    private List<String> mFired;
+
+    @Before
+    public void setUp() throws Exception {
+        mWheel = new TimerWheel(1000, TICK, SIZE);
+        mFired = new ArrayList<>();
+    }
+
+    /**
+     * @param name added to mFired when the task runs
+     * @return a task that records that it ran
+     */
+    private Runnable task(final String name){
+        return new Runnable() {
+            @Override
+            public void run() {
+                mFired.add(name);
+            }
+        };
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTick(){
+        mWheel = new TimerWheel(0, 0, SIZE);
+    }
+
+    @Test
+    public void testFiresWithinATickOfDeadline(){
+        TimerWheel.Timeout timeout = mWheel.schedule(task("a"), 1025);
+        assertEquals(1, mWheel.size());
+        assertEquals(1030, timeout.getFireTime());
+        assertEquals(1030, mWheel.getNextTickTime());
+
+        assertEquals(0, mWheel.advance(1029));
+        assertTrue(timeout.isPending());
+        assertEquals(1, mWheel.advance(1030));
+        assertEquals("a", mFired.get(0));
+        assertFalse(timeout.isPending());
+        assertEquals(0, mWheel.size());
+        assertEquals(-1, mWheel.getNextTickTime());
+    }
+
+    @Test
+    public void testFiresInDeadlineOrder(){
+        mWheel.schedule(task("c"), 1055);
+        mWheel.schedule(task("a"), 1005);
+        mWheel.schedule(task("b"), 1031);
+
+        assertEquals(3, mWheel.advance(1100));
+        assertEquals("a", mFired.get(0));
+        assertEquals("b", mFired.get(1));
+        assertEquals("c", mFired.get(2));
+    }
+
+    @Test
+    public void testDeadlineMoreThanATurnAway(){
+        //the wheel turns every 80 ms, this waits in its bucket for two turns
+        TimerWheel.Timeout timeout = mWheel.schedule(task("far"), 1000 + 2 * TICK * SIZE + 5);
+        assertEquals(0, mWheel.advance(1000 + 2 * TICK * SIZE));
+        assertTrue(timeout.isPending());
+        assertEquals(1, mWheel.advance(1000 + 2 * TICK * SIZE + TICK));
+    }
+
+    @Test
+    public void testPastDeadlineFiresNextAdvance(){
+        mWheel.advance(1200);
+        mWheel.schedule(task("late"), 900);
+        assertEquals(1, mWheel.advance(1210));
+    }
+
+    @Test
+    public void testCancel(){
+        TimerWheel.Timeout timeout = mWheel.schedule(task("a"), 1020);
+        assertTrue(mWheel.cancel(timeout));
+        assertFalse(mWheel.cancel(timeout));
+        assertFalse(mWheel.cancel(null));
+        assertEquals(0, mWheel.size());
+        assertEquals(0, mWheel.advance(2000));
+        assertTrue(mFired.isEmpty());
+    }
+
+    @Test
+    public void testCancelInSameTick(){
+        final TimerWheel.Timeout[] second = new TimerWheel.Timeout[1];
+        mWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                assertTrue(mWheel.cancel(second[0]));
+            }
+        }, 1001);
+        second[0] = mWheel.schedule(task("b"), 1002);
+
+        assertEquals(1, mWheel.advance(1010));
+        assertTrue(mFired.isEmpty());
+    }
+
+    @Test
+    public void testTaskReschedules(){
+        mWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mWheel.schedule(task("again"), 1050);
+            }
+        }, 1000);
+
+        assertEquals(1, mWheel.advance(1010));
+        assertEquals(1, mWheel.size());
+        assertEquals(1060, mWheel.getNextTickTime());
+        assertEquals(1, mWheel.advance(1060));
+        assertEquals("again", mFired.get(0));
+    }
+}
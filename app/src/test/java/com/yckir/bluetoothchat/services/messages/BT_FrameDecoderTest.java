@@ -0,0 +1,150 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BT_FrameDecoderTest {
+
+    private BT_FrameDecoder mDecoder;
+
+    private final int session1 = 0;
+    private final int session2 = 255;
+
+    private byte[] mFrame1;
+    private byte[] mFrame2;
+    private byte[] mFrame3;
+
+    @Before
+    public void setUp() throws Exception {
+        mDecoder = new BT_FrameDecoder(16, BT_MessageUtility.MAX_FRAME_LENGTH);
+        mFrame1 = new BT_MessageHello(session1).makeBytes();
+        mFrame2 = new BT_MessageApp(session2, "hello".getBytes()).makeBytes();
+        mFrame3 = new BT_MessageApp(session1, new byte[3000]).makeBytes();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorInvalidMaxLength(){
+        mDecoder = new BT_FrameDecoder(16, BT_MessageUtility.MAX_FRAME_LENGTH + 1);
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertNull(mDecoder.nextFrame());
+        assertEquals(0, mDecoder.getBufferedLength());
+    }
+
+    @Test
+    public void testSingleFrame() throws IOException {
+        mDecoder.append(mFrame1, 0, mFrame1.length);
+        assertArrayEquals(mFrame1, mDecoder.nextFrame());
+        assertNull(mDecoder.nextFrame());
+        assertEquals(0, mDecoder.getBufferedLength());
+    }
+
+    @Test
+    public void testSplitFrame() throws IOException {
+        //one byte at a time, the frame is only returned once the last byte arrives
+        for(int i = 0; i < mFrame2.length - 1; i++){
+            mDecoder.append(mFrame2, i, 1);
+            assertNull(mDecoder.nextFrame());
+        }
+        mDecoder.append(mFrame2, mFrame2.length - 1, 1);
+        assertArrayEquals(mFrame2, mDecoder.nextFrame());
+    }
+
+    @Test
+    public void testMergedFrames() throws IOException {
+        byte[] merged = concat(mFrame1, mFrame2, mFrame1);
+        mDecoder.append(merged, 0, merged.length);
+
+        assertArrayEquals(mFrame1, mDecoder.nextFrame());
+        assertArrayEquals(mFrame2, mDecoder.nextFrame());
+        assertArrayEquals(mFrame1, mDecoder.nextFrame());
+        assertNull(mDecoder.nextFrame());
+    }
+
+    @Test
+    public void testMergedAndSplitFrames() throws IOException {
+        byte[] merged = concat(mFrame1, mFrame2);
+        int split = mFrame1.length + 3;
+        mDecoder.append(merged, 0, split);
+
+        assertArrayEquals(mFrame1, mDecoder.nextFrame());
+        assertNull(mDecoder.nextFrame());
+        assertEquals(3, mDecoder.getBufferedLength());
+
+        mDecoder.append(merged, split, merged.length - split);
+        assertArrayEquals(mFrame2, mDecoder.nextFrame());
+    }
+
+    @Test
+    public void testFrameLargerThanBuffer() throws IOException {
+        mDecoder.append(mFrame3, 0, mFrame3.length);
+        assertArrayEquals(mFrame3, mDecoder.nextFrame());
+    }
+
+    @Test
+    public void testReadFrom() throws IOException {
+        byte[] merged = concat(mFrame1, mFrame3, mFrame2);
+        ByteArrayInputStream in = new ByteArrayInputStream(merged);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] frame;
+        int count = 0;
+
+        while(mDecoder.readFrom(in) >= 0){
+            while( (frame = mDecoder.nextFrame()) != null ){
+                out.write(frame);
+                count++;
+            }
+        }
+        assertEquals(3, count);
+        assertArrayEquals(merged, out.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidLength() throws IOException {
+        byte[] b = {0, 1, 0, 0};
+        mDecoder.append(b, 0, b.length);
+        mDecoder.nextFrame();
+    }
+
+    @Test(expected = IOException.class)
+    public void testLengthLargerThanMax() throws IOException {
+        mDecoder = new BT_FrameDecoder(16, 64);
+        mDecoder.append(mFrame3, 0, BT_MessageUtility.LENGTH_PREFIX);
+        mDecoder.nextFrame();
+    }
+
+    @Test
+    public void testPeekAndSkip() throws IOException {
+        byte[] merged = concat(mFrame1, mFrame2);
+        mDecoder.append(merged, 0, merged.length - 1);
+
+        int length = mDecoder.peekFrameLength();
+        assertEquals(mFrame1.length, length);
+        assertArrayEquals(mFrame1, Arrays.copyOfRange(mDecoder.getBuffer(),
+                mDecoder.getFrameOffset(), mDecoder.getFrameOffset() + length));
+        mDecoder.skipFrame();
+
+        assertEquals(-1, mDecoder.peekFrameLength());
+        mDecoder.append(merged, merged.length - 1, 1);
+        assertEquals(mFrame2.length, mDecoder.peekFrameLength());
+        mDecoder.skipFrame();
+        assertEquals(0, mDecoder.getBufferedLength());
+    }
+
+
+    private static byte[] concat(byte[]... arrays){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(byte[] b : arrays)
+            out.write(b, 0, b.length);
+        return out.toByteArray();
+    }
+}
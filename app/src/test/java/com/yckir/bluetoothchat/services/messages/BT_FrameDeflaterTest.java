@@ -0,0 +1,110 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import static com.yckir.bluetoothchat.services.messages.BT_MessageTestUtility.frame;
+import static org.junit.Assert.*;
+
+public class BT_FrameDeflaterTest {
+
+    private BT_FrameDeflater mDeflater;
+    private BT_FrameInflater mInflater;
+    private String mText;
+
+    @Before
+    public void setUp() throws Exception {
+        mDeflater = new BT_FrameDeflater(Deflater.DEFAULT_COMPRESSION);
+        mInflater = new BT_FrameInflater(16);
+
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < 50; i++)
+            builder.append("user").append(i % 5).append(": hello everyone in the chatroom\n");
+        mText = builder.toString();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDeflater.end();
+        mInflater.end();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        BT_MessageApp m = new BT_MessageApp(7, mText.getBytes());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertTrue(mDeflater.write(m.makeBytes(), 0, m.getFrameLength(), out));
+        byte[] compressed = out.toByteArray();
+        assertTrue(compressed.length < m.makeBytes().length);
+        assertTrue(BT_Message.isCompressed(compressed, 0, compressed.length));
+        assertEquals(BT_MessageUtility.TYPE_APP_MESSAGE, BT_Message.getType(compressed));
+        assertEquals(compressed.length - BT_MessageUtility.LENGTH_PREFIX, BT_MessageUtility.getShort(compressed, 0));
+
+        int length = mInflater.inflate(compressed, 0, compressed.length);
+        byte[] expanded = Arrays.copyOf(mInflater.getBuffer(), length);
+        assertFalse(BT_Message.isCompressed(expanded, 0, expanded.length));
+        assertArrayEquals(m.makeBytes(), expanded);
+    }
+
+    @Test
+    public void testReused() throws IOException {
+        for(int i = 0; i < 3; i++){
+            BT_MessageApp m = new BT_MessageApp(i, (mText + i).getBytes());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertTrue(mDeflater.write(m.makeBytes(), 0, m.getFrameLength(), out));
+
+            byte[] compressed = out.toByteArray();
+            int length = mInflater.inflate(compressed, 0, compressed.length);
+            assertArrayEquals(m.makeBytes(), Arrays.copyOf(mInflater.getBuffer(), length));
+        }
+    }
+
+    @Test
+    public void testFragmentFlagKept() throws IOException {
+        BT_MessageApp m = new BT_MessageApp(7, mText.getBytes());
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        m.encodeFragment(0, buffer);
+        byte[] fragment = buffer.array();
+        int frameLength = buffer.position();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertTrue(mDeflater.write(fragment, 0, frameLength, out));
+        byte[] compressed = out.toByteArray();
+        assertTrue(BT_Message.hasMoreFragments(compressed, 0, compressed.length));
+
+        int length = mInflater.inflate(compressed, 0, compressed.length);
+        assertArrayEquals(Arrays.copyOf(fragment, frameLength), Arrays.copyOf(mInflater.getBuffer(), length));
+    }
+
+    @Test
+    public void testNotSmaller() throws IOException {
+        BT_MessageApp m = new BT_MessageApp(7, "hi".getBytes());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertFalse(mDeflater.write(m.makeBytes(), 0, m.getFrameLength(), out));
+        assertArrayEquals(frame(BT_MessageUtility.TYPE_APP_MESSAGE, 7, "hi"), out.toByteArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInflateInvalidData(){
+        byte[] b = frame(BT_MessageUtility.TYPE_APP_MESSAGE | BT_MessageUtility.FLAG_COMPRESSED, 7, "not deflated");
+        mInflater.inflate(b, 0, b.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReconstructCompressed() throws IOException {
+        BT_MessageApp m = new BT_MessageApp(7, mText.getBytes());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mDeflater.write(m.makeBytes(), 0, m.getFrameLength(), out);
+
+        BT_MessageApp.reconstruct(out.toByteArray());
+    }
+}
@@ -0,0 +1,142 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.yckir.bluetoothchat.services.messages.BT_MessageTestUtility.frame;
+import static org.junit.Assert.*;
+
+public class BT_FrameReassemblerTest {
+
+    private BT_FrameReassembler mReassembler;
+    private byte[] mData;
+    private ByteBuffer mFragment;
+
+    @Before
+    public void setUp() throws Exception {
+        mReassembler = new BT_FrameReassembler(1000);
+        mData = new byte[300];
+        for(int i = 0; i < mData.length; i++)
+            mData[i] = (byte) i;
+        mFragment = ByteBuffer.allocate(64);
+    }
+
+    /**
+     * Fragments a message and adds every fragment, checking that only the last one finishes it.
+     */
+    private BT_MessageApp addFragments(BT_MessageApp m){
+        BT_MessageApp result = null;
+        int dataOffset = 0;
+        do{
+            assertNull(result);
+            mFragment.clear();
+            dataOffset = m.encodeFragment(dataOffset, mFragment);
+            int frameLength = mFragment.position();
+            assertEquals(dataOffset < m.getDataLength(), BT_Message.hasMoreFragments(mFragment.array(), 0, frameLength));
+            result = mReassembler.add(mFragment.array(), 0, frameLength);
+        }while(dataOffset < m.getDataLength());
+        return result;
+    }
+
+    @Test
+    public void testSingleFrame(){
+        byte[] f = frame(BT_MessageUtility.TYPE_APP_MESSAGE, 4, "hello");
+        BT_MessageApp m = mReassembler.add(f, 0, f.length);
+
+        assertNotNull(m);
+        assertArrayEquals("hello".getBytes(), m.getData());
+        assertFalse(mReassembler.isReassembling());
+    }
+
+    @Test
+    public void testFragments(){
+        BT_MessageApp m = addFragments(new BT_MessageApp(9, mData));
+
+        assertNotNull(m);
+        assertEquals(9, m.getSessionId());
+        assertArrayEquals(mData, m.getData());
+        assertFalse(mReassembler.isReassembling());
+        assertEquals(0, mReassembler.getBufferedLength());
+    }
+
+    @Test
+    public void testPartial(){
+        BT_MessageApp m = new BT_MessageApp(9, mData);
+        m.encodeFragment(0, mFragment);
+        int frameLength = mFragment.position();
+
+        assertNull(mReassembler.add(mFragment.array(), 0, frameLength));
+        assertTrue(mReassembler.isReassembling());
+        assertEquals(frameLength - BT_MessageUtility.LENGTH_HEADER, mReassembler.getBufferedLength());
+
+        mReassembler.clear();
+        assertFalse(mReassembler.isReassembling());
+    }
+
+    @Test
+    public void testTooLarge(){
+        mReassembler = new BT_FrameReassembler(100);
+        BT_MessageApp m = new BT_MessageApp(9, mData);
+
+        int dataOffset = 0;
+        boolean thrown = false;
+        while(dataOffset < m.getDataLength()){
+            mFragment.clear();
+            dataOffset = m.encodeFragment(dataOffset, mFragment);
+            try {
+                assertNull(mReassembler.add(mFragment.array(), 0, mFragment.position()));
+            }catch (IllegalArgumentException e){
+                assertFalse(thrown);
+                thrown = true;
+            }
+        }
+        assertTrue(thrown);
+        assertFalse(mReassembler.isReassembling());
+
+        //the next message is not affected
+        byte[] f = frame(BT_MessageUtility.TYPE_APP_MESSAGE, 4, "after");
+        assertArrayEquals("after".getBytes(), mReassembler.add(f, 0, f.length).getData());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidType(){
+        byte[] f = frame(BT_MessageUtility.TYPE_HELLO, 4, "");
+        mReassembler.add(f, 0, f.length);
+    }
+
+    @Test
+    public void testWriteTo() throws Exception {
+        byte[] large = new byte[BT_MessageUtility.MAX_FRAME_LENGTH + 100];
+        Arrays.fill(large, (byte) 7);
+        BT_MessageApp m = new BT_MessageApp(9, large);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        m.writeTo(out);
+
+        mReassembler = new BT_FrameReassembler(BT_MessageApp.MAX_DATA_LENGTH);
+        BT_FrameDecoder decoder = new BT_FrameDecoder(1024, BT_MessageUtility.MAX_FRAME_LENGTH);
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+
+        byte[] f;
+        BT_MessageApp result = null;
+        int count = 0;
+        while(decoder.readFrom(in) > 0){
+            while( (f = decoder.nextFrame()) != null ){
+                result = mReassembler.add(f, 0, f.length);
+                count++;
+            }
+        }
+        assertEquals(2, count);
+        assertNotNull(result);
+        assertArrayEquals(large, result.getData());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMakeBytesTooLarge(){
+        new BT_MessageApp(9, new byte[BT_MessageUtility.MAX_FRAME_LENGTH]).makeBytes();
+    }
+}
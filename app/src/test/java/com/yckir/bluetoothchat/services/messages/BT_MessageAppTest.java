@@ -6,7 +6,12 @@ import com.yckir.bluetoothchat.services.messages.BT_MessageUtility;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+import static com.yckir.bluetoothchat.services.messages.BT_MessageTestUtility.frame;
 import static org.junit.Assert.*;
 
 public class BT_MessageAppTest {
@@ -17,11 +22,11 @@ public class BT_MessageAppTest {
     private BT_MessageApp mMessage4;
     private BT_MessageApp mMessage5;
 
-    private final String address1 = "00:00:00:00:00:00";
-    private final String address2 = "aa:aa:aa:aa:aa:aa";
-    private final String address3 = "--:oo:kk:yy:gg:gg";
-    private final String address4 = "ppppppppppppppppp";
-    private final String address5 = "44444444444444444";
+    private final int session1 = 0;
+    private final int session2 = 1;
+    private final int session3 = 2;
+    private final int session4 = 127;
+    private final int session5 = 255;
 
     private final String data1 = "hello";
     private final String data2 = "1234";
@@ -31,36 +36,36 @@ public class BT_MessageAppTest {
 
     @Before
     public void setUp() throws Exception {
-        mMessage1 = new BT_MessageApp(address1, data1.getBytes());
-        mMessage2 = new BT_MessageApp(address2, data2.getBytes());
-        mMessage3 = new BT_MessageApp(address3, data3.getBytes());
-        mMessage4 = new BT_MessageApp(address4, data4.getBytes());
-        mMessage5 = new BT_MessageApp(address5, data5.getBytes());
+        mMessage1 = new BT_MessageApp(session1, data1.getBytes());
+        mMessage2 = new BT_MessageApp(session2, data2.getBytes());
+        mMessage3 = new BT_MessageApp(session3, data3.getBytes());
+        mMessage4 = new BT_MessageApp(session4, data4.getBytes());
+        mMessage5 = new BT_MessageApp(session5, data5.getBytes());
     }
 
     @Test(expected = IllegalArgumentException.class)
-    public void testConstructorInvalidAddressShort(){
-        mMessage1 = new BT_MessageApp("1", data1.getBytes());
+    public void testConstructorInvalidSessionIdSmall(){
+        mMessage1 = new BT_MessageApp(-1, data1.getBytes());
 
     }
 
     @Test(expected = IllegalArgumentException.class)
-    public void testConstructorInvalidAddressLong(){
-        mMessage1 = new BT_MessageApp("01234567890123456789", data1.getBytes());
+    public void testConstructorInvalidSessionIdLarge(){
+        mMessage1 = new BT_MessageApp(256, data1.getBytes());
     }
 
     @Test
     public void testConstructorNullData(){
-        mMessage1 = new BT_MessageApp(address1, null);
+        mMessage1 = new BT_MessageApp(session1, null);
     }
 
     @Test
     public void testSuperGet(){
-        assertEquals(mMessage1.getMacAddress(), address1);
-        assertEquals(mMessage2.getMacAddress(), address2);
-        assertEquals(mMessage3.getMacAddress(), address3);
-        assertEquals(mMessage4.getMacAddress(), address4);
-        assertEquals(mMessage5.getMacAddress(), address5);
+        assertEquals(mMessage1.getSessionId(), session1);
+        assertEquals(mMessage2.getSessionId(), session2);
+        assertEquals(mMessage3.getSessionId(), session3);
+        assertEquals(mMessage4.getSessionId(), session4);
+        assertEquals(mMessage5.getSessionId(), session5);
 
         assertEquals(mMessage1.getMessageType(), BT_MessageUtility.TYPE_APP_MESSAGE);
         assertEquals(mMessage2.getMessageType(), BT_MessageUtility.TYPE_APP_MESSAGE);
@@ -80,11 +85,140 @@ public class BT_MessageAppTest {
 
     @Test
     public void testGetEmptyData(){
-        BT_MessageApp m = new BT_MessageApp(address1, null);
+        BT_MessageApp m = new BT_MessageApp(session1, null);
         byte[] b = m.getData();
         assertEquals("", new String(b));
     }
 
+    @Test
+    public void testGetDataBuffer(){
+        ByteBuffer b = mMessage1.getDataBuffer();
+        assertTrue(b.isReadOnly());
+        assertEquals(0, b.position());
+        assertEquals(data1.length(), b.remaining());
+        assertEquals(data1.length(), mMessage1.getDataLength());
+
+        byte[] read = new byte[b.remaining()];
+        b.get(read);
+        assertEquals(data1, new String(read));
+
+        //every call returns a new view
+        assertEquals(data1.length(), mMessage1.getDataBuffer().remaining());
+        assertEquals(0, mMessage5.getDataBuffer().remaining());
+    }
+
+    @Test
+    public void testReconstructCopies(){
+        byte[] frame = mMessage2.makeBytes().clone();
+        byte[] original = frame.clone();
+        BT_MessageApp m = BT_MessageApp.reconstruct(frame);
+        assertNotSame(frame, m.makeBytes());
+        assertArrayEquals(original, m.makeBytes());
+
+        //the recycled message must not write into the array it was reconstructed from
+        m.recycle();
+        BT_MessageApp reused = BT_MessageApp.obtain(session4, data4.getBytes());
+        assertSame(m, reused);
+        assertArrayEquals(original, frame);
+        assertArrayEquals(data4.getBytes(), reused.getData());
+        reused.recycle();
+    }
+
+    @Test
+    public void testFromBuffer(){
+        ByteBuffer data = ByteBuffer.wrap(("--" + data3).getBytes());
+        data.position(2);
+
+        BT_MessageApp m = BT_MessageApp.fromBuffer(session3, data);
+        assertArrayEquals(mMessage3.makeBytes(), m.makeBytes());
+        assertEquals(2, data.position());
+
+        m = BT_MessageApp.fromBuffer(session1, mMessage1.getDataBuffer());
+        assertArrayEquals(mMessage1.makeBytes(), m.makeBytes());
+    }
+
+    @Test
+    public void testObtainReusesRecycled(){
+        BT_MessageApp m = BT_MessageApp.obtain(session3, data3.getBytes());
+        m.recycle();
+
+        BT_MessageApp reused = BT_MessageApp.obtain(session2, data2.getBytes());
+        assertSame(m, reused);
+        assertEquals(session2, reused.getSessionId());
+        assertNull(reused.getMacAddress());
+        assertArrayEquals(data2.getBytes(), reused.getData());
+        assertArrayEquals(frame(BT_MessageUtility.TYPE_APP_MESSAGE, session2, data2), reused.makeBytes());
+        reused.recycle();
+    }
+
+    @Test
+    public void testWriteToLargerFrameArray() throws IOException {
+        BT_MessageApp m = BT_MessageApp.obtain(session3, data3.getBytes());
+        m.recycle();
+        m = BT_MessageApp.obtain(session4, data4.getBytes());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        m.writeTo(out);
+        assertArrayEquals(frame(BT_MessageUtility.TYPE_APP_MESSAGE, session4, data4), out.toByteArray());
+        assertEquals(data4.length(), m.getDataBuffer().remaining());
+        m.recycle();
+    }
+
+    @Test
+    public void testReconstructOffset(){
+        byte[] f = frame(BT_MessageUtility.TYPE_APP_MESSAGE, session3, data3);
+        byte[] b = new byte[f.length + 4];
+        System.arraycopy(f, 0, b, 2, f.length);
+
+        BT_MessageApp m = BT_MessageApp.reconstruct(b, 2, f.length);
+        assertEquals(session3, m.getSessionId());
+        assertArrayEquals(data3.getBytes(), m.getData());
+
+        //the frame is copied, so the array can be reused
+        b[2 + BT_MessageUtility.LENGTH_HEADER] = 'x';
+        assertArrayEquals(data3.getBytes(), m.getData());
+        m.recycle();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReconstructOffsetInvalidType(){
+        byte[] f = frame(BT_MessageUtility.TYPE_HELLO, session3, data3);
+        BT_MessageApp.reconstruct(f, 0, f.length);
+    }
+
+    @Test
+    public void testEncode(){
+        BT_MessageApp m = BT_MessageApp.obtain(session3, data3.getBytes());
+        m.recycle();
+        m = BT_MessageApp.obtain(session1, data1.getBytes());
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        m.encode(buffer);
+        assertEquals(m.getFrameLength(), buffer.position());
+        assertArrayEquals(frame(BT_MessageUtility.TYPE_APP_MESSAGE, session1, data1),
+                Arrays.copyOf(buffer.array(), buffer.position()));
+        m.recycle();
+    }
+
+    @Test
+    public void testEncodeFragment(){
+        ByteBuffer buffer = ByteBuffer.allocate(BT_MessageUtility.LENGTH_HEADER + 3);
+
+        assertEquals(3, mMessage3.encodeFragment(0, buffer));
+        assertTrue(BT_Message.hasMoreFragments(buffer.array(), 0, buffer.position()));
+
+        //the last fragment does not fill the buffer and has no flag
+        buffer = ByteBuffer.allocate(BT_MessageUtility.LENGTH_HEADER + 10);
+        assertEquals(data3.length(), mMessage3.encodeFragment(3, buffer));
+        assertArrayEquals(frame(BT_MessageUtility.TYPE_APP_MESSAGE, session3, data3.substring(3)),
+                Arrays.copyOf(buffer.array(), buffer.position()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncodeFragmentNoRoom(){
+        mMessage1.encodeFragment(0, ByteBuffer.allocate(BT_MessageUtility.LENGTH_HEADER));
+    }
+
     @Test
     public void testMakeBytes(){
 
@@ -92,27 +226,27 @@ public class BT_MessageAppTest {
         //create new stringA from bytes1
         //compare string value of object1 to stringA
 
-        String original, created;
+        byte[] original, created;
 
-        original = BT_MessageUtility.TYPE_APP_MESSAGE + address1 + data1;
-        created = new String(mMessage1.makeBytes());
-        assertEquals(original, created);
+        original = frame(BT_MessageUtility.TYPE_APP_MESSAGE, session1, data1);
+        created = mMessage1.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_APP_MESSAGE + address2 + data2;
-        created = new String(mMessage2.makeBytes());
-        assertEquals(original, created);
+        original = frame(BT_MessageUtility.TYPE_APP_MESSAGE, session2, data2);
+        created = mMessage2.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_APP_MESSAGE + address3 + data3;
-        created = new String(mMessage3.makeBytes());
-        assertEquals(original, created);
+        original = frame(BT_MessageUtility.TYPE_APP_MESSAGE, session3, data3);
+        created = mMessage3.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_APP_MESSAGE + address4 + data4;
-        created = new String(mMessage4.makeBytes());
-        assertEquals(original, created);
+        original = frame(BT_MessageUtility.TYPE_APP_MESSAGE, session4, data4);
+        created = mMessage4.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_APP_MESSAGE + address5 + data5;
-        created = new String(mMessage5.makeBytes());
-        assertEquals(original, created);
+        original = frame(BT_MessageUtility.TYPE_APP_MESSAGE, session5, data5);
+        created = mMessage5.makeBytes();
+        assertArrayEquals(original, created);
     }
 
     @Test
@@ -122,40 +256,39 @@ public class BT_MessageAppTest {
         //create new object2 from bytes1
         //compare string value of object1 to object2
 
-        String original, created;
+        byte[] original, created;
         BT_MessageApp reconstructedMessage;
 
-        original = BT_MessageUtility.TYPE_APP_MESSAGE + address1 + data1;
+        original = frame(BT_MessageUtility.TYPE_APP_MESSAGE, session1, data1);
         reconstructedMessage = BT_MessageApp.reconstruct(mMessage1.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_APP_MESSAGE + address2 + data2;
+        original = frame(BT_MessageUtility.TYPE_APP_MESSAGE, session2, data2);
         reconstructedMessage = BT_MessageApp.reconstruct(mMessage2.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_APP_MESSAGE + address3 + data3;
+        original = frame(BT_MessageUtility.TYPE_APP_MESSAGE, session3, data3);
         reconstructedMessage = BT_MessageApp.reconstruct(mMessage3.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_APP_MESSAGE + address4 + data4;
+        original = frame(BT_MessageUtility.TYPE_APP_MESSAGE, session4, data4);
         reconstructedMessage = BT_MessageApp.reconstruct(mMessage4.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_APP_MESSAGE + address5 + data5;
+        original = frame(BT_MessageUtility.TYPE_APP_MESSAGE, session5, data5);
         reconstructedMessage = BT_MessageApp.reconstruct(mMessage5.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
     }
 
     @Test(expected = IllegalArgumentException.class)
     public void testReconstructInvalidType(){
 
-        String original = BT_MessageUtility.TYPE_HELLO + address1 + data1;
-        byte[] wrongType = original.getBytes();
+        byte[] wrongType = frame(BT_MessageUtility.TYPE_HELLO, session1, data1);
 
         mMessage1 = BT_MessageApp.reconstruct(wrongType);
     }
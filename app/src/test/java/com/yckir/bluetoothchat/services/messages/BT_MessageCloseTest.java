@@ -9,6 +9,7 @@ import com.yckir.bluetoothchat.services.messages.BT_MessageUtility;
 import org.junit.Before;
 import org.junit.Test;
 
+import static com.yckir.bluetoothchat.services.messages.BT_MessageTestUtility.frame;
 import static org.junit.Assert.*;
 
 public class BT_MessageCloseTest {
@@ -19,11 +20,11 @@ public class BT_MessageCloseTest {
     private BT_MessageClose mMessage4;
     private BT_MessageClose mMessage5;
 
-    private final String address1 = "00:00:00:00:00:00";
-    private final String address2 = "aa:aa:aa:aa:aa:aa";
-    private final String address3 = "--:oo:kk:yy:gg:gg";
-    private final String address4 = "ppppppppppppppppp";
-    private final String address5 = "44444444444444444";
+    private final int session1 = 0;
+    private final int session2 = 1;
+    private final int session3 = 2;
+    private final int session4 = 127;
+    private final int session5 = 255;
 
     private final int code1 = ServiceUtility.CLOSE_GET_GOODBYE;
     private final int code2 = ServiceUtility.CLOSE_KICKED_FROM_SERVER;
@@ -33,36 +34,36 @@ public class BT_MessageCloseTest {
 
     @Before
     public void setUp() throws Exception {
-        mMessage1 =  new BT_MessageClose(address1, code1);
-        mMessage2 =  new BT_MessageClose(address2, code2);
-        mMessage3 =  new BT_MessageClose(address3, code3);
-        mMessage4 =  new BT_MessageClose(address4, code4);
-        mMessage5 =  new BT_MessageClose(address5, code5);
+        mMessage1 =  new BT_MessageClose(session1, code1);
+        mMessage2 =  new BT_MessageClose(session2, code2);
+        mMessage3 =  new BT_MessageClose(session3, code3);
+        mMessage4 =  new BT_MessageClose(session4, code4);
+        mMessage5 =  new BT_MessageClose(session5, code5);
     }
 
     @Test(expected = IllegalArgumentException.class)
-    public void testConstructorInvalidAddressShort(){
-        mMessage1 = new BT_MessageClose("0", code1);
+    public void testConstructorInvalidSessionIdSmall(){
+        mMessage1 = new BT_MessageClose(-1, code1);
     }
 
     @Test(expected = IllegalArgumentException.class)
-    public void testConstructorInvalidAddressLong(){
-        mMessage1 = new BT_MessageClose("01234567890123456789", code1);
+    public void testConstructorInvalidSessionIdLarge(){
+        mMessage1 = new BT_MessageClose(256, code1);
     }
 
     @Test(expected = IllegalArgumentException.class)
     public void testConstructorInvalidCode(){
         @ServiceUtility.CLOSE_CODE int fakeCode = -1;
-        mMessage1 = new BT_MessageClose( address1, fakeCode );
+        mMessage1 = new BT_MessageClose( session1, fakeCode );
     }
 
     @Test
     public void testSuperGet(){
-        assertEquals(mMessage1.getMacAddress(), address1);
-        assertEquals(mMessage2.getMacAddress(), address2);
-        assertEquals(mMessage3.getMacAddress(), address3);
-        assertEquals(mMessage4.getMacAddress(), address4);
-        assertEquals(mMessage5.getMacAddress(), address5);
+        assertEquals(mMessage1.getSessionId(), session1);
+        assertEquals(mMessage2.getSessionId(), session2);
+        assertEquals(mMessage3.getSessionId(), session3);
+        assertEquals(mMessage4.getSessionId(), session4);
+        assertEquals(mMessage5.getSessionId(), session5);
 
         assertEquals(mMessage1.getMessageType(), BT_MessageUtility.TYPE_CONNECTION_CLOSED);
         assertEquals(mMessage2.getMessageType(), BT_MessageUtility.TYPE_CONNECTION_CLOSED);
@@ -86,27 +87,27 @@ public class BT_MessageCloseTest {
         //create new stringA from bytes1
         //compare string value of object1 to stringA
 
-        String original, created;
+        byte[] original, created;
 
-        original = BT_MessageUtility.TYPE_CONNECTION_CLOSED + address1 + code1;
-        created = new String(mMessage1.makeBytes());
-        assertEquals(original, created);
+        original = frame(BT_MessageUtility.TYPE_CONNECTION_CLOSED, session1, "" + code1);
+        created = mMessage1.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_CONNECTION_CLOSED + address2 + code2;
-        created = new String(mMessage2.makeBytes());
-        assertEquals(original, created);
+        original = frame(BT_MessageUtility.TYPE_CONNECTION_CLOSED, session2, "" + code2);
+        created = mMessage2.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_CONNECTION_CLOSED + address3 + code3;
-        created = new String(mMessage3.makeBytes());
-        assertEquals(original, created);
+        original = frame(BT_MessageUtility.TYPE_CONNECTION_CLOSED, session3, "" + code3);
+        created = mMessage3.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_CONNECTION_CLOSED + address4 + code4;
-        created = new String(mMessage4.makeBytes());
-        assertEquals(original, created);
+        original = frame(BT_MessageUtility.TYPE_CONNECTION_CLOSED, session4, "" + code4);
+        created = mMessage4.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_CONNECTION_CLOSED + address5 + code5;
-        created = new String(mMessage5.makeBytes());
-        assertEquals(original, created);
+        original = frame(BT_MessageUtility.TYPE_CONNECTION_CLOSED, session5, "" + code5);
+        created = mMessage5.makeBytes();
+        assertArrayEquals(original, created);
     }
 
     @Test
@@ -116,40 +117,39 @@ public class BT_MessageCloseTest {
         //create new object2 from bytes1
         //compare string value of object1 to object2
 
-        String original, created;
+        byte[] original, created;
         BT_MessageClose reconstructedMessage;
 
-        original = BT_MessageUtility.TYPE_CONNECTION_CLOSED + address1 + code1;
+        original = frame(BT_MessageUtility.TYPE_CONNECTION_CLOSED, session1, "" + code1);
         reconstructedMessage = BT_MessageClose.reconstruct(mMessage1.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_CONNECTION_CLOSED + address2 + code2;
+        original = frame(BT_MessageUtility.TYPE_CONNECTION_CLOSED, session2, "" + code2);
         reconstructedMessage = BT_MessageClose.reconstruct(mMessage2.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_CONNECTION_CLOSED + address3 + code3;
+        original = frame(BT_MessageUtility.TYPE_CONNECTION_CLOSED, session3, "" + code3);
         reconstructedMessage = BT_MessageClose.reconstruct(mMessage3.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_CONNECTION_CLOSED + address4 + code4;
+        original = frame(BT_MessageUtility.TYPE_CONNECTION_CLOSED, session4, "" + code4);
         reconstructedMessage = BT_MessageClose.reconstruct(mMessage4.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_CONNECTION_CLOSED + address5 + code5;
+        original = frame(BT_MessageUtility.TYPE_CONNECTION_CLOSED, session5, "" + code5);
         reconstructedMessage = BT_MessageClose.reconstruct(mMessage5.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
     }
 
     @Test(expected = IllegalArgumentException.class)
     public void testReconstructInvalidType(){
 
-        String original = BT_MessageUtility.TYPE_HELLO + address1 + code1;
-        byte[] wrongType = original.getBytes();
+        byte[] wrongType = frame(BT_MessageUtility.TYPE_HELLO, session1, "" + code1);
 
         mMessage1 = BT_MessageClose.reconstruct(wrongType);
     }
@@ -157,8 +157,7 @@ public class BT_MessageCloseTest {
     @Test(expected = IllegalArgumentException.class)
     public void testReconstructInvalidClose(){
 
-        String original = BT_MessageUtility.TYPE_HELLO + address1 + -1;
-        byte[] wrongType = original.getBytes();
+        byte[] wrongType = frame(BT_MessageUtility.TYPE_HELLO, session1, "-1");
 
         mMessage1 = BT_MessageClose.reconstruct(wrongType);
     }
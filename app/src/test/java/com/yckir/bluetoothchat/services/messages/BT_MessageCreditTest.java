@@ -0,0 +1,87 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.yckir.bluetoothchat.services.messages.BT_MessageTestUtility.frame;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BT_MessageCreditTest {
+    private BT_MessageCredit mMessage1;
+    private BT_MessageCredit mMessage2;
+    private BT_MessageCredit mMessage3;
+
+    private final int session1 = BT_MessageUtility.SESSION_HUB;
+    private final int session2 = 0;
+    private final int session3 = 255;
+
+    private final int credits1 = 1;
+    private final int credits2 = 300;
+    private final int credits3 = BT_MessageCredit.MAX_CREDITS;
+
+    @Before
+    public void setUp() throws Exception {
+        mMessage1 = new BT_MessageCredit(session1, credits1);
+        mMessage2 = new BT_MessageCredit(session2, credits2);
+        mMessage3 = new BT_MessageCredit(session3, credits3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorCreditsLarge(){
+        mMessage1 = new BT_MessageCredit(session1, BT_MessageCredit.MAX_CREDITS + 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorCreditsZero(){
+        mMessage1 = new BT_MessageCredit(session1, 0);
+    }
+
+    @Test
+    public void testSuperGet(){
+        assertEquals(mMessage1.getSessionId(), session1);
+        assertEquals(mMessage2.getSessionId(), session2);
+        assertEquals(mMessage3.getSessionId(), session3);
+
+        assertEquals(mMessage1.getMessageType(), BT_MessageUtility.TYPE_CREDIT);
+        assertEquals(mMessage2.getMessageType(), BT_MessageUtility.TYPE_CREDIT);
+        assertEquals(mMessage3.getMessageType(), BT_MessageUtility.TYPE_CREDIT);
+    }
+
+    @Test
+    public void testReconstruct(){
+        BT_MessageCredit reconstructedMessage;
+
+        reconstructedMessage = BT_MessageCredit.reconstruct(mMessage1.makeBytes());
+        assertArrayEquals(mMessage1.makeBytes(), reconstructedMessage.makeBytes());
+        assertEquals(credits1, reconstructedMessage.getCredits());
+
+        reconstructedMessage = BT_MessageCredit.reconstruct(mMessage2.makeBytes());
+        assertArrayEquals(mMessage2.makeBytes(), reconstructedMessage.makeBytes());
+        assertEquals(credits2, reconstructedMessage.getCredits());
+
+        reconstructedMessage = BT_MessageCredit.reconstruct(mMessage3.makeBytes());
+        assertArrayEquals(mMessage3.makeBytes(), reconstructedMessage.makeBytes());
+        assertEquals(credits3, reconstructedMessage.getCredits());
+    }
+
+    @Test
+    public void testRegistryDecode(){
+        byte[] b = mMessage2.makeBytes();
+        int index = BT_MessageRegistry.getTypeIndex(BT_MessageUtility.TYPE_CREDIT);
+        BT_MessageCredit decoded = (BT_MessageCredit) BT_MessageRegistry.decode(index, b, 0, b.length);
+        assertEquals(credits2, decoded.getCredits());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReconstructInvalidType(){
+        byte[] wrongType = frame(BT_MessageUtility.TYPE_OPTIONS, session1, "dd");
+        mMessage1 = BT_MessageCredit.reconstruct(wrongType);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReconstructInvalidLength(){
+        byte[] wrongLength = frame(BT_MessageUtility.TYPE_CREDIT, session1, "d");
+        mMessage1 = BT_MessageCredit.reconstruct(wrongLength);
+    }
+}
@@ -3,7 +3,10 @@ package com.yckir.bluetoothchat.services.messages;
 import org.junit.Before;
 import org.junit.Test;
 
+import static com.yckir.bluetoothchat.services.messages.BT_MessageTestUtility.frame;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 
 public class BT_MessageHelloReplyTest {
@@ -14,28 +17,28 @@ public class BT_MessageHelloReplyTest {
     private BT_MessageHelloReply mMessage4;
     private BT_MessageHelloReply mMessage5;
 
-    private final String address1 = "00:00:00:00:00:00";
-    private final String address2 = "aa:aa:aa:aa:aa:aa";
-    private final String address3 = "--:oo:kk:yy:gg:gg";
-    private final String address4 = "ppppppppppppppppp";
-    private final String address5 = "44444444444444444";
+    private final int session1 = 0;
+    private final int session2 = 1;
+    private final int session3 = 2;
+    private final int session4 = 127;
+    private final int session5 = 255;
 
     @Before
     public void setUp() throws Exception {
-        mMessage1 =  new BT_MessageHelloReply(address1);
-        mMessage2 =  new BT_MessageHelloReply(address2);
-        mMessage3 =  new BT_MessageHelloReply(address3);
-        mMessage4 =  new BT_MessageHelloReply(address4);
-        mMessage5 =  new BT_MessageHelloReply(address5);
+        mMessage1 =  new BT_MessageHelloReply(session1);
+        mMessage2 =  new BT_MessageHelloReply(session2);
+        mMessage3 =  new BT_MessageHelloReply(session3);
+        mMessage4 =  new BT_MessageHelloReply(session4);
+        mMessage5 =  new BT_MessageHelloReply(session5);
     }
 
     @Test
     public void testSuperGet(){
-        assertEquals(mMessage1.getMacAddress(), address1);
-        assertEquals(mMessage2.getMacAddress(), address2);
-        assertEquals(mMessage3.getMacAddress(), address3);
-        assertEquals(mMessage4.getMacAddress(), address4);
-        assertEquals(mMessage5.getMacAddress(), address5);
+        assertEquals(mMessage1.getSessionId(), session1);
+        assertEquals(mMessage2.getSessionId(), session2);
+        assertEquals(mMessage3.getSessionId(), session3);
+        assertEquals(mMessage4.getSessionId(), session4);
+        assertEquals(mMessage5.getSessionId(), session5);
 
         assertEquals(mMessage1.getMessageType(), BT_MessageUtility.TYPE_HELLO_REPLY);
         assertEquals(mMessage2.getMessageType(), BT_MessageUtility.TYPE_HELLO_REPLY);
@@ -52,43 +55,79 @@ public class BT_MessageHelloReplyTest {
         //create new object2 from bytes1
         //compare string value of object1 to object2
 
-        String original, created;
+        byte[] original, created;
         BT_MessageHelloReply reconstructedMessage;
 
-        original = BT_MessageUtility.TYPE_HELLO_REPLY + address1;
+        original = frame(BT_MessageUtility.TYPE_HELLO_REPLY, session1, "");
         reconstructedMessage = BT_MessageHelloReply.reconstruct(mMessage1.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_HELLO_REPLY + address2;
+        original = frame(BT_MessageUtility.TYPE_HELLO_REPLY, session2, "");
         reconstructedMessage = BT_MessageHelloReply.reconstruct(mMessage2.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_HELLO_REPLY + address3;
+        original = frame(BT_MessageUtility.TYPE_HELLO_REPLY, session3, "");
         reconstructedMessage = BT_MessageHelloReply.reconstruct(mMessage3.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_HELLO_REPLY + address4;
+        original = frame(BT_MessageUtility.TYPE_HELLO_REPLY, session4, "");
         reconstructedMessage = BT_MessageHelloReply.reconstruct(mMessage4.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_HELLO_REPLY + address5;
+        original = frame(BT_MessageUtility.TYPE_HELLO_REPLY, session5, "");
         reconstructedMessage = BT_MessageHelloReply.reconstruct(mMessage5.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
+    }
+
+    @Test
+    public void testEchoToken(){
+        BT_MessageHelloReply m = new BT_MessageHelloReply(session2, 0xCAFEBABE);
+        assertEquals(0xCAFEBABEL, m.getEchoToken());
+        assertEquals(-1, mMessage2.getEchoToken());
+
+        byte[] b = m.makeBytes();
+        assertEquals(BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_ECHO_TOKEN, b.length);
+        assertEquals(0xCAFEBABEL, BT_MessageHelloReply.getEchoToken(b, 0, b.length));
+        assertEquals(-1, BT_MessageHelloReply.getEchoToken(mMessage2.makeBytes(), 0, BT_MessageUtility.LENGTH_HEADER));
+
+        BT_MessageHelloReply reconstructedMessage = BT_MessageHelloReply.reconstruct(b);
+        assertEquals(session2, reconstructedMessage.getSessionId());
+        assertEquals(0xCAFEBABEL, reconstructedMessage.getEchoToken());
+        assertArrayEquals(b, reconstructedMessage.makeBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReconstructInvalidLength(){
+        mMessage1 = BT_MessageHelloReply.reconstruct(frame(BT_MessageUtility.TYPE_HELLO_REPLY, session1, "dd"));
     }
 
     @Test(expected = IllegalArgumentException.class)
     public void testReconstructInvalidType(){
 
-        String original = BT_MessageUtility.TYPE_HELLO + address1;
-        byte[] wrongType = original.getBytes();
+        byte[] wrongType = frame(BT_MessageUtility.TYPE_HELLO, session1, "");
 
         mMessage1 = BT_MessageHelloReply.reconstruct(wrongType);
     }
 
-
+    @Test
+    public void testObtainWithEchoToken(){
+        BT_MessageHelloReply m = BT_MessageHelloReply.obtain(session2, 0xCAFEBABE);
+        assertArrayEquals(new BT_MessageHelloReply(session2, 0xCAFEBABE).makeBytes(), m.makeBytes());
+
+        //a recycled message is obtained again with its frame rewritten in place
+        byte[] frame = m.makeBytes();
+        m.recycle();
+        BT_MessageHelloReply reused = BT_MessageHelloReply.obtain(session4, 7);
+        assertSame(m, reused);
+        assertSame(frame, reused.makeBytes());
+        assertEquals(session4, reused.getSessionId());
+        assertEquals(7, reused.getEchoToken());
+        assertArrayEquals(new BT_MessageHelloReply(session4, 7).makeBytes(), reused.makeBytes());
+        reused.recycle();
+    }
 }
@@ -4,7 +4,11 @@ package com.yckir.bluetoothchat.services.messages;
 import org.junit.Before;
 import org.junit.Test;
 
+import static com.yckir.bluetoothchat.services.messages.BT_MessageTestUtility.frame;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 public class BT_MessageHelloTest {
     private BT_MessageHello mMessage1;
@@ -13,28 +17,28 @@ public class BT_MessageHelloTest {
     private BT_MessageHello mMessage4;
     private BT_MessageHello mMessage5;
 
-    private final String address1 = "00:00:00:00:00:00";
-    private final String address2 = "aa:aa:aa:aa:aa:aa";
-    private final String address3 = "--:oo:kk:yy:gg:gg";
-    private final String address4 = "ppppppppppppppppp";
-    private final String address5 = "44444444444444444";
+    private final int session1 = 0;
+    private final int session2 = 1;
+    private final int session3 = 2;
+    private final int session4 = 127;
+    private final int session5 = 255;
 
     @Before
     public void setUp() throws Exception {
-        mMessage1 =  new BT_MessageHello(address1);
-        mMessage2 =  new BT_MessageHello(address2);
-        mMessage3 =  new BT_MessageHello(address3);
-        mMessage4 =  new BT_MessageHello(address4);
-        mMessage5 =  new BT_MessageHello(address5);
+        mMessage1 =  new BT_MessageHello(session1);
+        mMessage2 =  new BT_MessageHello(session2);
+        mMessage3 =  new BT_MessageHello(session3);
+        mMessage4 =  new BT_MessageHello(session4);
+        mMessage5 =  new BT_MessageHello(session5);
     }
 
     @Test
     public void testSuperGet(){
-        assertEquals(mMessage1.getMacAddress(), address1);
-        assertEquals(mMessage2.getMacAddress(), address2);
-        assertEquals(mMessage3.getMacAddress(), address3);
-        assertEquals(mMessage4.getMacAddress(), address4);
-        assertEquals(mMessage5.getMacAddress(), address5);
+        assertEquals(mMessage1.getSessionId(), session1);
+        assertEquals(mMessage2.getSessionId(), session2);
+        assertEquals(mMessage3.getSessionId(), session3);
+        assertEquals(mMessage4.getSessionId(), session4);
+        assertEquals(mMessage5.getSessionId(), session5);
 
         assertEquals(mMessage1.getMessageType(), BT_MessageUtility.TYPE_HELLO);
         assertEquals(mMessage2.getMessageType(), BT_MessageUtility.TYPE_HELLO);
@@ -50,41 +54,99 @@ public class BT_MessageHelloTest {
         //create new object2 from bytes1
         //compare string value of object1 to object2
 
-        String original, created;
+        byte[] original, created;
         BT_MessageHello reconstructedMessage;
 
-        original = BT_MessageUtility.TYPE_HELLO + address1;
+        original = frame(BT_MessageUtility.TYPE_HELLO, session1, "");
         reconstructedMessage = BT_MessageHello.reconstruct(mMessage1.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_HELLO + address2;
+        original = frame(BT_MessageUtility.TYPE_HELLO, session2, "");
         reconstructedMessage = BT_MessageHello.reconstruct(mMessage2.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_HELLO + address3;
+        original = frame(BT_MessageUtility.TYPE_HELLO, session3, "");
         reconstructedMessage = BT_MessageHello.reconstruct(mMessage3.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_HELLO + address4;
+        original = frame(BT_MessageUtility.TYPE_HELLO, session4, "");
         reconstructedMessage = BT_MessageHello.reconstruct(mMessage4.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
 
-        original = BT_MessageUtility.TYPE_HELLO + address5;
+        original = frame(BT_MessageUtility.TYPE_HELLO, session5, "");
         reconstructedMessage = BT_MessageHello.reconstruct(mMessage5.makeBytes());
-        created = new String(reconstructedMessage.makeBytes());
-        assertEquals(original, created);
+        created = reconstructedMessage.makeBytes();
+        assertArrayEquals(original, created);
+    }
+
+    @Test
+    public void testEchoToken(){
+        BT_MessageHello m = new BT_MessageHello(session2, 0xCAFEBABE);
+        assertEquals(0xCAFEBABEL, m.getEchoToken());
+        assertEquals(-1, mMessage2.getEchoToken());
+
+        byte[] b = m.makeBytes();
+        assertEquals(BT_MessageUtility.LENGTH_HEADER + BT_MessageUtility.LENGTH_ECHO_TOKEN, b.length);
+        assertEquals(0xCAFEBABEL, BT_MessageHello.getEchoToken(b, 0, b.length));
+        assertEquals(-1, BT_MessageHello.getEchoToken(mMessage2.makeBytes(), 0, BT_MessageUtility.LENGTH_HEADER));
+
+        BT_MessageHello reconstructedMessage = BT_MessageHello.reconstruct(b);
+        assertEquals(session2, reconstructedMessage.getSessionId());
+        assertEquals(0xCAFEBABEL, reconstructedMessage.getEchoToken());
+        assertArrayEquals(b, reconstructedMessage.makeBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReconstructInvalidLength(){
+        mMessage1 = BT_MessageHello.reconstruct(frame(BT_MessageUtility.TYPE_HELLO, session1, "dd"));
     }
 
     @Test(expected = IllegalArgumentException.class)
     public void testReconstructInvalidType(){
 
-        String original = BT_MessageUtility.TYPE_HELLO_REPLY + address1;
-        byte[] wrongType = original.getBytes();
+        byte[] wrongType = frame(BT_MessageUtility.TYPE_HELLO_REPLY, session1, "");
 
         mMessage1 = BT_MessageHello.reconstruct(wrongType);
     }
+
+    @Test
+    public void testObtain(){
+        BT_MessageHello m = BT_MessageHello.obtain(session3);
+        assertEquals(session3, m.getSessionId());
+        assertArrayEquals(new BT_MessageHello(session3).makeBytes(), m.makeBytes());
+
+        //the message is permanent, so it is shared and recycling it does nothing
+        m.retain();
+        m.recycle();
+        m.recycle();
+        assertSame(m, BT_MessageHello.obtain(session3));
+        assertNotSame(m, BT_MessageHello.obtain(session4));
+        assertEquals(session4, BT_MessageHello.obtain(session4).getSessionId());
+    }
+
+    @Test
+    public void testObtainWithEchoToken(){
+        BT_MessageHello m = BT_MessageHello.obtain(session2, 0xCAFEBABE);
+        assertArrayEquals(new BT_MessageHello(session2, 0xCAFEBABE).makeBytes(), m.makeBytes());
+
+        //a recycled message is obtained again with its frame rewritten in place
+        byte[] frame = m.makeBytes();
+        m.recycle();
+        BT_MessageHello reused = BT_MessageHello.obtain(session4, 7);
+        assertSame(m, reused);
+        assertSame(frame, reused.makeBytes());
+        assertEquals(session4, reused.getSessionId());
+        assertEquals(7, reused.getEchoToken());
+        assertArrayEquals(new BT_MessageHello(session4, 7).makeBytes(), reused.makeBytes());
+        reused.recycle();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testObtainInvalidSessionId(){
+        BT_MessageHello.obtain(256);
+    }
 }
@@ -0,0 +1,88 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.yckir.bluetoothchat.services.messages.BT_MessageTestUtility.frame;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BT_MessageOptionsTest {
+    private BT_MessageOptions mMessage1;
+    private BT_MessageOptions mMessage2;
+    private BT_MessageOptions mMessage3;
+
+    private final int session1 = BT_MessageUtility.SESSION_HUB;
+    private final int session2 = 0;
+    private final int session3 = 255;
+
+    private final int options1 = BT_MessageOptions.OPTION_DEFLATE;
+    private final int options2 = 0;
+    private final int options3 = 0xFF;
+
+    @Before
+    public void setUp() throws Exception {
+        mMessage1 = new BT_MessageOptions(session1, options1);
+        mMessage2 = new BT_MessageOptions(session2, options2);
+        mMessage3 = new BT_MessageOptions(session3, options3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOptionsLarge(){
+        mMessage1 = new BT_MessageOptions(session1, 256);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOptionsNegative(){
+        mMessage1 = new BT_MessageOptions(session1, -1);
+    }
+
+    @Test
+    public void testSuperGet(){
+        assertEquals(mMessage1.getSessionId(), session1);
+        assertEquals(mMessage2.getSessionId(), session2);
+        assertEquals(mMessage3.getSessionId(), session3);
+
+        assertEquals(mMessage1.getMessageType(), BT_MessageUtility.TYPE_OPTIONS);
+        assertEquals(mMessage2.getMessageType(), BT_MessageUtility.TYPE_OPTIONS);
+        assertEquals(mMessage3.getMessageType(), BT_MessageUtility.TYPE_OPTIONS);
+    }
+
+    @Test
+    public void testHasOption(){
+        assertTrue(mMessage1.hasOption(BT_MessageOptions.OPTION_DEFLATE));
+        assertFalse(mMessage2.hasOption(BT_MessageOptions.OPTION_DEFLATE));
+        assertTrue(mMessage3.hasOption(BT_MessageOptions.OPTION_DEFLATE));
+    }
+
+    @Test
+    public void testReconstruct(){
+        BT_MessageOptions reconstructedMessage;
+
+        reconstructedMessage = BT_MessageOptions.reconstruct(mMessage1.makeBytes());
+        assertArrayEquals(mMessage1.makeBytes(), reconstructedMessage.makeBytes());
+        assertEquals(options1, reconstructedMessage.getOptions());
+
+        reconstructedMessage = BT_MessageOptions.reconstruct(mMessage2.makeBytes());
+        assertArrayEquals(mMessage2.makeBytes(), reconstructedMessage.makeBytes());
+        assertEquals(options2, reconstructedMessage.getOptions());
+
+        reconstructedMessage = BT_MessageOptions.reconstruct(mMessage3.makeBytes());
+        assertArrayEquals(mMessage3.makeBytes(), reconstructedMessage.makeBytes());
+        assertEquals(options3, reconstructedMessage.getOptions());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReconstructInvalidType(){
+        byte[] wrongType = frame(BT_MessageUtility.TYPE_SESSION, session1, "d");
+        mMessage1 = BT_MessageOptions.reconstruct(wrongType);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReconstructInvalidLength(){
+        byte[] wrongLength = frame(BT_MessageUtility.TYPE_OPTIONS, session1, "");
+        mMessage1 = BT_MessageOptions.reconstruct(wrongLength);
+    }
+}
@@ -0,0 +1,109 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import static com.yckir.bluetoothchat.services.messages.BT_MessageTestUtility.frame;
+import static org.junit.Assert.*;
+
+public class BT_MessageRegistryTest {
+
+    private final int[] types = {BT_MessageUtility.TYPE_HELLO, BT_MessageUtility.TYPE_HELLO_REPLY,
+            BT_MessageUtility.TYPE_SESSION, BT_MessageUtility.TYPE_CONNECTION_CLOSED,
+            BT_MessageUtility.TYPE_SERVER_SETUP_FINISHED, BT_MessageUtility.TYPE_APP_MESSAGE};
+
+    private static final BT_MessageRegistry.Decoder DECODER = new BT_MessageRegistry.Decoder() {
+        @Override
+        public BT_Message decode(@NonNull byte[] b, int offset, int length) {
+            return BT_Message.reconstruct(b);
+        }
+    };
+
+    @Test
+    public void testGetTypeIndex(){
+        boolean[] used = new boolean[BT_MessageRegistry.getTypeCount()];
+
+        for(int type : types){
+            int index = BT_MessageRegistry.getTypeIndex(type);
+            assertTrue(index >= 0 && index < BT_MessageRegistry.getTypeCount());
+            assertFalse(used[index]);
+            used[index] = true;
+            assertEquals(type, BT_MessageRegistry.getType(index));
+        }
+
+        assertEquals(-1, BT_MessageRegistry.getTypeIndex(-1));
+        assertEquals(-1, BT_MessageRegistry.getTypeIndex(1050));
+        assertEquals(-1, BT_MessageRegistry.getTypeIndex(9999));
+    }
+
+    @Test
+    public void testIsActivityMessage(){
+        assertFalse(BT_MessageRegistry.isActivityMessage(BT_MessageRegistry.getTypeIndex(BT_MessageUtility.TYPE_HELLO)));
+        assertFalse(BT_MessageRegistry.isActivityMessage(BT_MessageRegistry.getTypeIndex(BT_MessageUtility.TYPE_CONNECTION_CLOSED)));
+        assertTrue(BT_MessageRegistry.isActivityMessage(BT_MessageRegistry.getTypeIndex(BT_MessageUtility.TYPE_APP_MESSAGE)));
+        assertTrue(BT_MessageRegistry.isActivityMessage(BT_MessageRegistry.getTypeIndex(BT_MessageUtility.TYPE_SERVER_SETUP_FINISHED)));
+    }
+
+    @Test
+    public void testDecode(){
+        byte[] f = frame(BT_MessageUtility.TYPE_APP_MESSAGE, 3, "data");
+        byte[] b = new byte[f.length + 6];
+        System.arraycopy(f, 0, b, 6, f.length);
+
+        BT_Message m = BT_MessageRegistry.decode(BT_MessageRegistry.getTypeIndex(BT_MessageUtility.TYPE_APP_MESSAGE),
+                b, 6, f.length);
+        assertTrue(m instanceof BT_MessageApp);
+        assertEquals(3, m.getSessionId());
+        assertArrayEquals("data".getBytes(), ((BT_MessageApp) m).getData());
+
+        f = frame(BT_MessageUtility.TYPE_HELLO, 3, "");
+        m = BT_MessageRegistry.decode(BT_MessageRegistry.getTypeIndex(BT_MessageUtility.TYPE_HELLO), f, 0, f.length);
+        assertTrue(m instanceof BT_MessageHello);
+    }
+
+    @Test
+    public void testRegister(){
+        final int type = 1199;
+        int index = BT_MessageRegistry.register(type, true, new BT_MessageRegistry.Decoder() {
+            @Override
+            public BT_Message decode(byte[] b, int offset, int length) {
+                return new BT_Message(type, b[offset + BT_MessageUtility.LENGTH_HEADER - 1] & 0xFF);
+            }
+        });
+
+        assertEquals(index, BT_MessageRegistry.getTypeIndex(type));
+        assertTrue(BT_MessageUtility.isMessageType(type));
+        assertTrue(BT_MessageRegistry.isActivityMessage(index));
+
+        byte[] f = frame(type, 9, "");
+        assertEquals(type, BT_Message.getType(f));
+        assertEquals(9, BT_MessageRegistry.decode(index, f, 0, f.length).getSessionId());
+    }
+
+    @Test
+    public void testRegisterServiceType(){
+        int index = BT_MessageRegistry.register(1198, false, DECODER);
+        assertFalse(BT_MessageRegistry.isActivityMessage(index));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterTwice(){
+        BT_MessageRegistry.register(BT_MessageUtility.TYPE_HELLO, false, DECODER);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterOutOfRange(){
+        BT_MessageRegistry.register(999, false, DECODER);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterWithoutDecoder(){
+        BT_MessageRegistry.register(1197, false, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidIndex(){
+        BT_MessageRegistry.isActivityMessage(BT_MessageRegistry.MAX_TYPES);
+    }
+}
@@ -0,0 +1,82 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.yckir.bluetoothchat.services.messages.BT_MessageTestUtility.frame;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BT_MessageResumeTest {
+    private BT_MessageResume mMessage1;
+    private BT_MessageResume mMessage2;
+
+    private final int session1 = BT_MessageUtility.SESSION_UNASSIGNED;
+    private final int session2 = BT_MessageUtility.SESSION_HUB;
+
+    private final int token1 = 0x7A3B12C4;
+    private final int token2 = -1;
+
+    private final int count1 = 0;
+    private final int count2 = -5;
+
+    @Before
+    public void setUp() throws Exception {
+        mMessage1 = new BT_MessageResume(session1, token1, count1);
+        mMessage2 = new BT_MessageResume(session2, token2, count2);
+    }
+
+    @Test
+    public void testSuperGet(){
+        assertEquals(mMessage1.getSessionId(), session1);
+        assertEquals(mMessage2.getSessionId(), session2);
+
+        assertEquals(mMessage1.getMessageType(), BT_MessageUtility.TYPE_RESUME);
+        assertEquals(mMessage2.getMessageType(), BT_MessageUtility.TYPE_RESUME);
+    }
+
+    @Test
+    public void testRejected(){
+        assertFalse(mMessage1.isRejected());
+        assertTrue(new BT_MessageResume(session2, BT_MessageResume.REJECTED, 0).isRejected());
+    }
+
+    @Test
+    public void testReconstruct(){
+        BT_MessageResume reconstructedMessage;
+
+        reconstructedMessage = BT_MessageResume.reconstruct(mMessage1.makeBytes());
+        assertArrayEquals(mMessage1.makeBytes(), reconstructedMessage.makeBytes());
+        assertEquals(token1, reconstructedMessage.getResumeToken());
+        assertEquals(count1, reconstructedMessage.getReadCount());
+
+        //counts wrap around, so every bit is kept
+        reconstructedMessage = BT_MessageResume.reconstruct(mMessage2.makeBytes());
+        assertArrayEquals(mMessage2.makeBytes(), reconstructedMessage.makeBytes());
+        assertEquals(token2, reconstructedMessage.getResumeToken());
+        assertEquals(count2, reconstructedMessage.getReadCount());
+    }
+
+    @Test
+    public void testRegistryDecode(){
+        byte[] b = mMessage1.makeBytes();
+        int index = BT_MessageRegistry.getTypeIndex(BT_MessageUtility.TYPE_RESUME);
+        assertFalse(BT_MessageRegistry.isActivityMessage(index));
+        BT_MessageResume decoded = (BT_MessageResume) BT_MessageRegistry.decode(index, b, 0, b.length);
+        assertEquals(token1, decoded.getResumeToken());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReconstructInvalidType(){
+        byte[] wrongType = frame(BT_MessageUtility.TYPE_CREDIT, session1, "dddddddd");
+        mMessage1 = BT_MessageResume.reconstruct(wrongType);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReconstructInvalidLength(){
+        byte[] wrongLength = frame(BT_MessageUtility.TYPE_RESUME, session1, "dddd");
+        mMessage1 = BT_MessageResume.reconstruct(wrongLength);
+    }
+}
@@ -0,0 +1,110 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.yckir.bluetoothchat.services.messages.BT_MessageTestUtility.frame;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BT_MessageSessionTest {
+    private BT_MessageSession mMessage1;
+    private BT_MessageSession mMessage2;
+    private BT_MessageSession mMessage3;
+
+    private final int session1 = BT_MessageUtility.SESSION_HUB;
+    private final int session2 = 0;
+    private final int session3 = 255;
+
+    private final int assigned1 = 2;
+    private final int assigned2 = 100;
+    private final int assigned3 = 255;
+
+    @Before
+    public void setUp() throws Exception {
+        mMessage1 = new BT_MessageSession(session1, assigned1);
+        mMessage2 = new BT_MessageSession(session2, assigned2);
+        mMessage3 = new BT_MessageSession(session3, assigned3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorAssignUnassigned(){
+        mMessage1 = new BT_MessageSession(session1, BT_MessageUtility.SESSION_UNASSIGNED);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorAssignHub(){
+        mMessage1 = new BT_MessageSession(session1, BT_MessageUtility.SESSION_HUB);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorAssignLarge(){
+        mMessage1 = new BT_MessageSession(session1, 256);
+    }
+
+    @Test
+    public void testSuperGet(){
+        assertEquals(mMessage1.getSessionId(), session1);
+        assertEquals(mMessage2.getSessionId(), session2);
+        assertEquals(mMessage3.getSessionId(), session3);
+
+        assertEquals(mMessage1.getMessageType(), BT_MessageUtility.TYPE_SESSION);
+        assertEquals(mMessage2.getMessageType(), BT_MessageUtility.TYPE_SESSION);
+        assertEquals(mMessage3.getMessageType(), BT_MessageUtility.TYPE_SESSION);
+    }
+
+    @Test
+    public void testGetAssignedId(){
+        assertEquals(mMessage1.getAssignedId(), assigned1);
+        assertEquals(mMessage2.getAssignedId(), assigned2);
+        assertEquals(mMessage3.getAssignedId(), assigned3);
+    }
+
+    @Test
+    public void testReconstruct(){
+
+        //deconstruct object1 into bytes1
+        //create new object2 from bytes1
+        //compare bytes of object1 to object2
+
+        BT_MessageSession reconstructedMessage;
+
+        reconstructedMessage = BT_MessageSession.reconstruct(mMessage1.makeBytes());
+        assertArrayEquals(mMessage1.makeBytes(), reconstructedMessage.makeBytes());
+        assertEquals(assigned1, reconstructedMessage.getAssignedId());
+
+        reconstructedMessage = BT_MessageSession.reconstruct(mMessage2.makeBytes());
+        assertArrayEquals(mMessage2.makeBytes(), reconstructedMessage.makeBytes());
+        assertEquals(assigned2, reconstructedMessage.getAssignedId());
+
+        reconstructedMessage = BT_MessageSession.reconstruct(mMessage3.makeBytes());
+        assertArrayEquals(mMessage3.makeBytes(), reconstructedMessage.makeBytes());
+        assertEquals(assigned3, reconstructedMessage.getAssignedId());
+    }
+
+    @Test
+    public void testResumeToken(){
+        assertEquals(0, mMessage1.getResumeToken());
+
+        BT_MessageSession withToken = new BT_MessageSession(session1, assigned1, -12345);
+        assertEquals(mMessage1.makeBytes().length + BT_MessageUtility.LENGTH_RESUME_TOKEN,
+                withToken.makeBytes().length);
+
+        BT_MessageSession reconstructedMessage = BT_MessageSession.reconstruct(withToken.makeBytes());
+        assertArrayEquals(withToken.makeBytes(), reconstructedMessage.makeBytes());
+        assertEquals(assigned1, reconstructedMessage.getAssignedId());
+        assertEquals(-12345, reconstructedMessage.getResumeToken());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReconstructInvalidType(){
+        byte[] wrongType = frame(BT_MessageUtility.TYPE_HELLO, session1, "d");
+        mMessage1 = BT_MessageSession.reconstruct(wrongType);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReconstructInvalidLength(){
+        byte[] wrongLength = frame(BT_MessageUtility.TYPE_SESSION, session1, "");
+        mMessage1 = BT_MessageSession.reconstruct(wrongLength);
+    }
+}
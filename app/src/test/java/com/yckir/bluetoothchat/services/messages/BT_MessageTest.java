@@ -7,8 +7,11 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import static com.yckir.bluetoothchat.services.messages.BT_MessageTestUtility.frame;
 import static org.junit.Assert.*;
 
 
@@ -20,11 +23,11 @@ public class BT_MessageTest {
     private BT_Message mMessage4;
     private BT_Message mMessage5;
 
-    private final String address1 = "00:00:00:00:00:00";
-    private final String address2 = "aa:aa:aa:aa:aa:aa";
-    private final String address3 = "--:oo:kk:yy:gg:gg";
-    private final String address4 = "ppppppppppppppppp";
-    private final String address5 = "44444444444444444";
+    private final int session1 = 0;
+    private final int session2 = 1;
+    private final int session3 = 2;
+    private final int session4 = 127;
+    private final int session5 = 255;
 
     private final int type1 = BT_MessageUtility.TYPE_HELLO;
     private final int type2 = BT_MessageUtility.TYPE_HELLO_REPLY;
@@ -35,11 +38,11 @@ public class BT_MessageTest {
 
     @Before
     public void setUp() throws Exception {
-        mMessage1 = new BT_Message(type1, address1);
-        mMessage2 = new BT_Message(type2, address2);
-        mMessage3 = new BT_Message(type3, address3);
-        mMessage4 = new BT_Message(type4, address4);
-        mMessage5 = new BT_Message(type5, address5);
+        mMessage1 = new BT_Message(type1, session1);
+        mMessage2 = new BT_Message(type2, session2);
+        mMessage3 = new BT_Message(type3, session3);
+        mMessage4 = new BT_Message(type4, session4);
+        mMessage5 = new BT_Message(type5, session5);
     }
 
     @After
@@ -55,17 +58,17 @@ public class BT_MessageTest {
 
         assertTrue( !BT_MessageUtility.isMessageType( fakeType ) );
 
-        mMessage1 = new BT_Message(fakeType, address1);
+        mMessage1 = new BT_Message(fakeType, session1);
     }
 
     @Test(expected = IllegalArgumentException.class)
-    public void testConstructor2pInvalidAddressSmall(){
-        mMessage1 = new BT_Message(BT_MessageUtility.TYPE_HELLO, "1");
+    public void testConstructor2pInvalidSessionIdSmall(){
+        mMessage1 = new BT_Message(BT_MessageUtility.TYPE_HELLO, -1);
     }
 
     @Test(expected = IllegalArgumentException.class)
-    public void testConstructor2pInvalidAddressLarge(){
-        mMessage1 = new BT_Message(BT_MessageUtility.TYPE_HELLO, "01234567890123456789");
+    public void testConstructor2pInvalidSessionIdLarge(){
+        mMessage1 = new BT_Message(BT_MessageUtility.TYPE_HELLO, 256);
     }
 
 
@@ -75,10 +78,10 @@ public class BT_MessageTest {
     public void testReconstructBytes(){
 
         BT_Message m;
-        m = BT_Message.reconstruct((type1 + address1).getBytes());
+        m = BT_Message.reconstruct(frame(type1, session1, ""));
 
         assertEquals(m.getMessageType(), mMessage1.getMessageType());
-        assertEquals(m.getMacAddress(), mMessage1.getMacAddress());
+        assertEquals(m.getSessionId(), mMessage1.getSessionId());
 
     }
 
@@ -92,13 +95,13 @@ public class BT_MessageTest {
     public void testReconstructBytesInvalidType(){
         assertTrue( !BT_MessageUtility.isMessageType( 9999 ) );
 
-        byte[] b = ("9999" + address1).getBytes();
+        byte[] b = frame(9999, session1, "");
         mMessage1 = BT_Message.reconstruct(b);
     }
 
     @Test(expected = IllegalArgumentException.class)
     public void testReconstructBytesInvalidLarge(){
-        byte[] b = "02345678901234567890".getBytes();
+        byte[] b = frame(type1, session1, "0");
         mMessage1 = BT_Message.reconstruct(b);
     }
 
@@ -106,21 +109,21 @@ public class BT_MessageTest {
     public void testGetType(){
         byte[] b;
 
-        b = (type1 + "").getBytes();
+        b = frame(type1, session1, "");
         assertNotEquals(-1, BT_Message.getType(b));
-        b = (type2 + "").getBytes();
+        b = frame(type2, session1, "");
         assertNotEquals(-1, BT_Message.getType(b));
-        b = (type3 + "").getBytes();
+        b = frame(type3, session1, "");
         assertNotEquals(-1, BT_Message.getType(b));
-        b = (type4 + "").getBytes();
+        b = frame(type4, session1, "");
         assertNotEquals(-1, BT_Message.getType(b));
-        b = (type5 + "").getBytes();
+        b = frame(type5, session1, "");
         assertNotEquals(-1, BT_Message.getType(b));
     }
 
     @Test
     public void testGetTypeLarge(){
-        byte[] b = (type1 + "asd").getBytes();
+        byte[] b = frame(type1, session1, "asd");
         assertNotEquals(-1,  BT_Message.getType(b));
     }
 
@@ -133,10 +136,36 @@ public class BT_MessageTest {
     @Test
     public void testGetTypeInvalidType(){
         assertTrue( !BT_MessageUtility.isMessageType(5000) );
-        byte[] b = "5000".getBytes();
+        byte[] b = frame(5000, session1, "");
         assertEquals(-1, BT_Message.getType(b));
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void testReconstructBytesInvalidPrefix(){
+        byte[] b = frame(type1, session1, "");
+        b[1]++;
+        mMessage1 = BT_Message.reconstruct(b);
+    }
+
+    @Test
+    public void testSetMacAddress(){
+        //the address is not part of the frame, so a reconstructed message has none
+        BT_Message m = BT_Message.reconstruct(mMessage2.makeBytes());
+        assertNull(m.getMacAddress());
+
+        m.setMacAddress("aa:aa:aa:aa:aa:aa");
+        assertEquals("aa:aa:aa:aa:aa:aa", m.getMacAddress());
+        assertEquals(BT_MessageUtility.LENGTH_HEADER, m.makeBytes().length);
+    }
+
+    @Test
+    public void testGetTypeOffset(){
+        byte[] b = new byte[40];
+        byte[] f = frame(type4, session4, "");
+        System.arraycopy(f, 0, b, 7, f.length);
+        assertEquals(type4, BT_Message.getType(b, 7, f.length));
+    }
+
     @Test
     public void testGetMacAddress(){
         assertEquals(mMessage1.getMessageType(), type1);
@@ -148,11 +177,11 @@ public class BT_MessageTest {
 
     @Test
     public void testGetMessageType(){
-        assertEquals(mMessage1.getMacAddress(), address1);
-        assertEquals(mMessage2.getMacAddress(), address2);
-        assertEquals(mMessage3.getMacAddress(), address3);
-        assertEquals(mMessage4.getMacAddress(), address4);
-        assertEquals(mMessage5.getMacAddress(), address5);
+        assertEquals(mMessage1.getSessionId(), session1);
+        assertEquals(mMessage2.getSessionId(), session2);
+        assertEquals(mMessage3.getSessionId(), session3);
+        assertEquals(mMessage4.getSessionId(), session4);
+        assertEquals(mMessage5.getSessionId(), session5);
     }
 
 
@@ -183,5 +212,41 @@ public class BT_MessageTest {
         assertTrue( Arrays.equals( original, created ) );
     }
 
+    @Test
+    public void testRetainRecycle(){
+        mMessage1.retain();
+        mMessage1.recycle();
+        mMessage1.recycle();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRecycleTwice(){
+        mMessage1.recycle();
+        mMessage1.recycle();
+    }
+
+    @Test
+    public void testEncode(){
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        buffer.put((byte) 9);
+        mMessage3.encode(buffer);
+        mMessage4.encode(buffer);
 
-}
\ No newline at end of file
+        assertEquals(1 + 2 * BT_MessageUtility.LENGTH_HEADER, buffer.position());
+        assertEquals(BT_MessageUtility.LENGTH_HEADER, mMessage3.getFrameLength());
+        assertArrayEquals(mMessage3.makeBytes(), Arrays.copyOfRange(buffer.array(), 1, 1 + BT_MessageUtility.LENGTH_HEADER));
+        assertArrayEquals(mMessage4.makeBytes(), Arrays.copyOfRange(buffer.array(),
+                1 + BT_MessageUtility.LENGTH_HEADER, 1 + 2 * BT_MessageUtility.LENGTH_HEADER));
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void testEncodeOverflow(){
+        mMessage1.encode(ByteBuffer.allocate(BT_MessageUtility.LENGTH_HEADER - 1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRetainRecycled(){
+        mMessage1.recycle();
+        mMessage1.retain();
+    }
+}
@@ -0,0 +1,26 @@
+package com.yckir.bluetoothchat.services.messages;
+
+/**
+ * Builds the expected frames for the message tests.
+ */
+class BT_MessageTestUtility {
+
+    /**
+     * Creates a frame with a length prefix, a binary type and a session id, followed by the bytes
+     * of rest.
+     *
+     * @param type the message type that will be written after the prefix
+     * @param sessionId the session id that will be written after the type
+     * @param rest any data that follows the header
+     * @return the frame
+     */
+    static byte[] frame(int type, int sessionId, String rest){
+        byte[] body = rest.getBytes();
+        byte[] frame = new byte[BT_MessageUtility.LENGTH_HEADER + body.length];
+        BT_MessageUtility.putShort(frame, 0, frame.length - BT_MessageUtility.LENGTH_PREFIX);
+        BT_MessageUtility.putShort(frame, BT_MessageUtility.LENGTH_PREFIX, type);
+        frame[BT_MessageUtility.LENGTH_PREFIX + BT_MessageUtility.LENGTH_ID] = (byte) sessionId;
+        System.arraycopy(body, 0, frame, BT_MessageUtility.LENGTH_HEADER, body.length);
+        return frame;
+    }
+}
@@ -0,0 +1,115 @@
+package com.yckir.bluetoothchat.services.transport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class PipedTransportTest {
+
+    private PipedTransport mFirst;
+    private PipedTransport mSecond;
+
+    @Before
+    public void setUp() throws Exception {
+        PipedTransport[] pair = PipedTransport.pair("first", "second", 8);
+        mFirst = pair[0];
+        mSecond = pair[1];
+    }
+
+    /**
+     * Reads until b is full or the stream ends.
+     */
+    private static int readFully(InputStream in, byte[] b) throws IOException {
+        int total = 0;
+        int read;
+        while(total < b.length && (read = in.read(b, total, b.length - total)) != -1)
+            total += read;
+        return total;
+    }
+
+    @Test
+    public void testRemoteId(){
+        assertEquals("second", mFirst.getRemoteId());
+        assertEquals("first", mSecond.getRemoteId());
+    }
+
+    @Test
+    public void testBothDirections() throws IOException {
+        mFirst.getOutputStream().write("abc".getBytes());
+        mSecond.getOutputStream().write("xy".getBytes());
+
+        byte[] b = new byte[3];
+        assertEquals(3, readFully(mSecond.getInputStream(), b));
+        assertArrayEquals("abc".getBytes(), b);
+
+        b = new byte[2];
+        assertEquals(2, readFully(mFirst.getInputStream(), b));
+        assertArrayEquals("xy".getBytes(), b);
+    }
+
+    @Test
+    public void testLargerThanBuffer() throws Exception {
+        final byte[] data = new byte[1000];
+        for(int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+
+        //the pipe holds 8 bytes, so the writer blocks until the reader catches up
+        Thread writer = new Thread(){
+            @Override
+            public void run() {
+                try {
+                    mFirst.getOutputStream().write(data);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        writer.start();
+
+        byte[] b = new byte[data.length];
+        assertEquals(data.length, readFully(mSecond.getInputStream(), b));
+        assertArrayEquals(data, b);
+        writer.join();
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        mFirst.getOutputStream().write("ab".getBytes());
+        mFirst.close();
+
+        //written bytes can still be read before the end of the stream
+        byte[] b = new byte[4];
+        assertEquals(2, readFully(mSecond.getInputStream(), b));
+        assertEquals(-1, mSecond.getInputStream().read());
+        assertEquals(-1, mFirst.getInputStream().read());
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriteAfterClose() throws IOException {
+        mFirst.close();
+        mSecond.getOutputStream().write(1);
+    }
+
+    @Test
+    public void testCloseUnblocksRead() throws Exception {
+        Thread closer = new Thread(){
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mSecond.close();
+            }
+        };
+        closer.start();
+
+        assertEquals(-1, mFirst.getInputStream().read());
+        closer.join();
+    }
+}
@@ -0,0 +1,51 @@
+package com.yckir.bluetoothchat.services.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TcpTransportTest {
+
+    private TcpTransport mFirst;
+    private TcpTransport mSecond;
+
+    @Before
+    public void setUp() throws Exception {
+        TcpTransport[] pair = TcpTransport.loopbackPair();
+        mFirst = pair[0];
+        mSecond = pair[1];
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFirst.close();
+        mSecond.close();
+    }
+
+    @Test
+    public void testRemoteId(){
+        assertTrue(mFirst.getRemoteId().startsWith("127.0.0.1:"));
+        assertNotEquals(mFirst.getRemoteId(), mSecond.getRemoteId());
+    }
+
+    @Test
+    public void testLoopback() throws IOException {
+        mFirst.getOutputStream().write("abc".getBytes());
+
+        byte[] b = new byte[3];
+        int total = 0;
+        while(total < b.length)
+            total += mSecond.getInputStream().read(b, total, b.length - total);
+        assertArrayEquals("abc".getBytes(), b);
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        mFirst.close();
+        assertEquals(-1, mSecond.getInputStream().read());
+    }
+}
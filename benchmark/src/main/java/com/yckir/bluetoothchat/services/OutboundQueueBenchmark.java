@@ -0,0 +1,103 @@
+package com.yckir.bluetoothchat.services;
+
+import com.yckir.bluetoothchat.services.messages.BT_Message;
+import com.yckir.bluetoothchat.services.messages.BT_MessageApp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the OutboundQueue of a connection with the fair ArrayBlockingQueue it replaced. The
+ * grouped benchmarks have three threads offering, like the UI thread, the read task and the
+ * timeout handler, while one thread polls like the write task. Neither side waits, so a full or
+ * empty queue shows up as a failed offer or a null poll rather than a blocked thread. The
+ * single thread benchmarks measure an offer and poll without contention.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class OutboundQueueBenchmark {
+
+    @Param({"16", "256"})
+    public int capacity;
+
+    private static final BT_Message MESSAGE = new BT_MessageApp(7, new byte[16]);
+
+    private OutboundQueue mOutboundQueue;
+    private ArrayBlockingQueue<BT_Message> mBlockingQueue;
+
+
+    @Setup(Level.Iteration)
+    public void setUp(){
+        mOutboundQueue = new OutboundQueue(capacity, 0);
+        mBlockingQueue = new ArrayBlockingQueue<>(capacity, true);
+    }
+
+
+    @Benchmark
+    @Group("outboundQueue")
+    @GroupThreads(3)
+    public boolean outboundQueueOffer(){
+        return mOutboundQueue.offer(MESSAGE, OutboundQueue.LANE_INTERACTIVE);
+    }
+
+
+    @Benchmark
+    @Group("outboundQueue")
+    @GroupThreads(1)
+    public BT_Message outboundQueuePoll(){
+        return mOutboundQueue.poll();
+    }
+
+
+    @Benchmark
+    @Group("blockingQueue")
+    @GroupThreads(3)
+    public boolean blockingQueueOffer(){
+        return mBlockingQueue.offer(MESSAGE);
+    }
+
+
+    @Benchmark
+    @Group("blockingQueue")
+    @GroupThreads(1)
+    public BT_Message blockingQueuePoll(){
+        return mBlockingQueue.poll();
+    }
+
+
+    @Benchmark
+    @Group("outboundQueueUncontended")
+    @GroupThreads(1)
+    public BT_Message outboundQueueOfferPoll(){
+        mOutboundQueue.offer(MESSAGE, OutboundQueue.LANE_INTERACTIVE);
+        return mOutboundQueue.poll();
+    }
+
+
+    @Benchmark
+    @Group("blockingQueueUncontended")
+    @GroupThreads(1)
+    public BT_Message blockingQueueOfferPoll(){
+        mBlockingQueue.offer(MESSAGE);
+        return mBlockingQueue.poll();
+    }
+}
@@ -0,0 +1,118 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and decoding of app messages at several data sizes. 1019 bytes of data fill
+ * a frame of the service's FRAME_LENGTH, larger messages are sent as fragments of that size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BT_MessageAppBenchmark {
+
+    @Param({"0", "16", "256", "1019", "4096", "60000"})
+    public int size;
+
+    private static final int SESSION_ID = 7;
+    //the frame length the service writes with
+    private static final int FRAME_LENGTH = 1024;
+
+    private byte[] mData;
+    private BT_MessageApp mMessage;
+    private byte[] mFrame;
+    private ByteBuffer mBuffer;
+    private ByteBuffer mFragment;
+
+
+    @Setup
+    public void setUp(){
+        mData = new byte[size];
+        new Random(size).nextBytes(mData);
+        mMessage = new BT_MessageApp(SESSION_ID, mData);
+        mFrame = mMessage.makeBytes().clone();
+        mBuffer = ByteBuffer.allocate(BT_MessageUtility.MAX_FRAME_LENGTH);
+        mFragment = ByteBuffer.allocate(FRAME_LENGTH);
+    }
+
+
+    @Benchmark
+    public byte[] makeBytes(){
+        return mMessage.makeBytes();
+    }
+
+
+    @Benchmark
+    public byte[] constructAndMakeBytes(){
+        return new BT_MessageApp(SESSION_ID, mData).makeBytes();
+    }
+
+
+    @Benchmark
+    public ByteBuffer encode(){
+        mBuffer.clear();
+        mMessage.encode(mBuffer);
+        return mBuffer;
+    }
+
+
+    /**
+     * The path of a message that is sent: obtained from the pool, encoded into the frames the
+     * service writes, then recycled.
+     */
+    @Benchmark
+    public int obtainEncodeFragmentsRecycle(){
+        BT_MessageApp m = BT_MessageApp.obtain(SESSION_ID, mData);
+        int frames = 0;
+        int dataOffset = 0;
+        do{
+            mFragment.clear();
+            dataOffset = m.encodeFragment(dataOffset, mFragment);
+            frames++;
+        }while(dataOffset < m.getDataLength());
+        m.recycle();
+        return frames;
+    }
+
+
+    @Benchmark
+    public BT_MessageApp reconstruct(){
+        return BT_MessageApp.reconstruct(mFrame);
+    }
+
+
+    /**
+     * The path of a message that is read: copied out of the decoder buffer into a pooled message,
+     * then recycled once it has been handled.
+     */
+    @Benchmark
+    public int reconstructPooledRecycle(){
+        BT_MessageApp m = BT_MessageApp.reconstruct(mFrame, 0, mFrame.length);
+        int length = m.getDataLength();
+        m.recycle();
+        return length;
+    }
+
+
+    @Benchmark
+    public int getType(){
+        return BT_Message.getType(mFrame, 0, mFrame.length);
+    }
+}
@@ -0,0 +1,120 @@
+package com.yckir.bluetoothchat.services.messages;
+
+import com.yckir.bluetoothchat.services.ServiceUtility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and decoding of the messages that the service sends to itself. Their frames
+ * have a fixed size, so each type is measured once. Hellos and hello replies are taken from their
+ * pools with an echo token, the way the service sends them. App messages are measured at several
+ * data sizes in BT_MessageAppBenchmark. Run with the gc profiler to see the bytes allocated per
+ * operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BT_MessageBenchmark {
+
+    @Param({"HELLO", "HELLO_REPLY", "SESSION", "OPTIONS", "CREDIT", "RESUME", "CONNECTION_CLOSED",
+            "SERVER_SETUP_FINISHED"})
+    public String type;
+
+    private static final int SESSION_ID = 7;
+    private static final int ECHO_TOKEN = 0x12345678;
+
+    private BT_Message mMessage;
+    private byte[] mFrame;
+    private int mTypeIndex;
+    private ByteBuffer mBuffer;
+
+
+    @Setup
+    public void setUp(){
+        mMessage = create();
+        mFrame = mMessage.makeBytes().clone();
+        mTypeIndex = BT_MessageRegistry.getTypeIndex(mMessage.getMessageType());
+        mBuffer = ByteBuffer.allocate(BT_MessageUtility.MAX_FRAME_LENGTH);
+    }
+
+
+    /**
+     * @return a message of the type being measured, from its pool for the pooled types.
+     */
+    private BT_Message create(){
+        switch (type){
+            case "HELLO":
+                return BT_MessageHello.obtain(SESSION_ID, ECHO_TOKEN);
+            case "HELLO_REPLY":
+                return BT_MessageHelloReply.obtain(SESSION_ID, ECHO_TOKEN);
+            case "SESSION":
+                return new BT_MessageSession(BT_MessageUtility.SESSION_HUB, SESSION_ID);
+            case "OPTIONS":
+                return new BT_MessageOptions(SESSION_ID, BT_MessageOptions.OPTION_DEFLATE);
+            case "CREDIT":
+                return new BT_MessageCredit(SESSION_ID, 8);
+            case "RESUME":
+                return new BT_MessageResume(SESSION_ID, ECHO_TOKEN, 42);
+            case "CONNECTION_CLOSED":
+                return new BT_MessageClose(SESSION_ID, ServiceUtility.CLOSE_SAY_GOODBYE);
+            case "SERVER_SETUP_FINISHED":
+                return new BT_MessageSetupFinished(SESSION_ID);
+            default:
+                throw new IllegalArgumentException(type + " is not a message that can be measured");
+        }
+    }
+
+
+    @Benchmark
+    public byte[] makeBytes(){
+        return mMessage.makeBytes();
+    }
+
+
+    /**
+     * The message is recycled afterwards like the write task does, so the pooled types reuse it.
+     */
+    @Benchmark
+    public byte[] createAndMakeBytes(){
+        BT_Message m = create();
+        byte[] frame = m.makeBytes();
+        m.recycle();
+        return frame;
+    }
+
+
+    @Benchmark
+    public ByteBuffer encode(){
+        mBuffer.clear();
+        mMessage.encode(mBuffer);
+        return mBuffer;
+    }
+
+
+    @Benchmark
+    public BT_Message reconstruct(){
+        return BT_MessageRegistry.decode(mTypeIndex, mFrame, 0, mFrame.length);
+    }
+
+
+    @Benchmark
+    public int getType(){
+        return BT_Message.getType(mFrame, 0, mFrame.length);
+    }
+}